@@ -0,0 +1,39 @@
+package ch.ahdis.matchbox.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the usual JMH command line options (e.g. {@code ValidationBenchmark -p sample=careplan.xml}).
+ * <p>
+ * Unless another result format is given with {@code -rf}, the results are written as JSON to
+ * {@code jmh-result.json} (or the file given with {@code -rff}), so that two runs can be compared.
+ */
+public class BenchmarkRunner {
+
+	private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+	public static void main(final String[] args) throws Exception {
+		final var commandLineOptions = new CommandLineOptions(args);
+		if (commandLineOptions.shouldHelp()) {
+			commandLineOptions.showHelp();
+			return;
+		}
+		if (commandLineOptions.shouldList()) {
+			new Runner(commandLineOptions).list();
+			return;
+		}
+
+		final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLineOptions);
+		if (!commandLineOptions.getResultFormat().hasValue()) {
+			options.resultFormat(ResultFormatType.JSON);
+			if (!commandLineOptions.getResult().hasValue()) {
+				options.result(DEFAULT_RESULT_FILE);
+			}
+		}
+		new Runner(options.build()).run();
+	}
+}
@@ -0,0 +1,122 @@
+package ch.ahdis.matchbox.benchmarks;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.engine.ReferenceResolutionIndex;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The resolution of the references between the entries of a transaction Bundle, where two entries out of three are
+ * Observations that reference the Patient of a third entry by its full URL: with the index of the Bundle (built once
+ * per validation), and as it was done before (the entries are scanned for each reference); and the validation of the
+ * whole Bundle.
+ * <p>
+ * The resolution with the index is linear in the number of entries, the scan is quadratic: it takes minutes per
+ * operation with 50000 entries, it can be left out with {@code -p entries=100,1000,10000}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BundleReferenceBenchmark {
+
+	@Param({"100", "1000", "10000", "50000"})
+	public int entries;
+
+	private MatchboxEngine engine;
+
+	private byte[] content;
+
+	private Element bundle;
+
+	/**
+	 * The references of the Observations, in the order of the entries.
+	 */
+	private final List<String> references = new ArrayList<>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		this.engine = new MatchboxEngine.MatchboxEngineBuilder().getEngineR4();
+		final var json = new StringBuilder("{\"resourceType\":\"Bundle\",\"type\":\"transaction\",\"entry\":[");
+		for (int i = 0; i < this.entries; ++i) {
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("{\"fullUrl\":\"").append(getFullUrl(i)).append("\",\"resource\":");
+			if (i % 3 == 0) {
+				json.append("{\"resourceType\":\"Patient\",\"gender\":\"female\"},\"request\":{\"method\":\"POST\",\"url\":\"Patient\"}}");
+			} else {
+				final String reference = getFullUrl(i - i % 3);
+				this.references.add(reference);
+				json.append("{\"resourceType\":\"Observation\",\"status\":\"final\",\"code\":{\"text\":\"weight\"},")
+					.append("\"subject\":{\"reference\":\"").append(reference).append("\"},")
+					.append("\"effectiveDateTime\":\"2024-01-01\",\"valueQuantity\":{\"value\":").append(i)
+					.append(",\"unit\":\"kg\"}},\"request\":{\"method\":\"POST\",\"url\":\"Observation\"}}");
+			}
+		}
+		json.append("]}");
+		this.content = json.toString().getBytes(StandardCharsets.UTF_8);
+		this.bundle = Manager.parseSingle(this.engine.getContext(), new ByteArrayInputStream(this.content), FhirFormat.JSON);
+	}
+
+	@Benchmark
+	public void indexedResolution(final Blackhole blackhole) {
+		this.bundle.clearUserData(ReferenceResolutionIndex.USER_DATA_KEY);
+		final var index = ReferenceResolutionIndex.of(this.bundle);
+		for (final String reference : this.references) {
+			final List<Element> entries = new ArrayList<>();
+			index.getCandidateEntries(reference).getNamedChildren("entry", entries);
+			blackhole.consume(entries.getFirst());
+		}
+	}
+
+	/**
+	 * The resolution of InstanceValidator before the entries were indexed.
+	 */
+	@Benchmark
+	public void scannedResolution(final Blackhole blackhole) {
+		for (final String reference : this.references) {
+			final List<Element> entries = new ArrayList<>();
+			this.bundle.getNamedChildren("entry", entries);
+			Element match = null;
+			for (final Element entry : entries) {
+				if (reference.equals(entry.getChildValue("fullUrl"))) {
+					match = entry;
+				}
+			}
+			blackhole.consume(match);
+		}
+	}
+
+	@Benchmark
+	public OperationOutcome validate() throws Exception {
+		return this.engine.validate(new ByteArrayInputStream(this.content), FhirFormat.JSON, null);
+	}
+
+	private static String getFullUrl(final int index) {
+		return "urn:uuid:00000000-0000-0000-0000-%012d".formatted(index);
+	}
+}
@@ -0,0 +1,48 @@
+package ch.ahdis.matchbox.benchmarks;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The creation of engines: a new R4 engine from the packages, and a copy of an existing one (as done by the server for
+ * each IG).
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EngineCreationBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class BaseEngine {
+		MatchboxEngine engine;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			this.engine = new MatchboxEngine.MatchboxEngineBuilder().getEngineR4();
+		}
+	}
+
+	@Benchmark
+	public MatchboxEngine getEngineR4() throws Exception {
+		return new MatchboxEngine.MatchboxEngineBuilder().getEngineR4();
+	}
+
+	@Benchmark
+	public MatchboxEngine copyEngine(final BaseEngine base) throws Exception {
+		return new MatchboxEngine(base.engine);
+	}
+}
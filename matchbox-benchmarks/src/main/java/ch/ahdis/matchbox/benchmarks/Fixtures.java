@@ -0,0 +1,76 @@
+package ch.ahdis.matchbox.benchmarks;
+
+import ch.ahdis.matchbox.engine.CdaMappingEngine;
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Access to the fixtures of the matchbox-engine tests (R4ValidationTests, FhirMappingLanguageTests and
+ * CdaToFhirTransformTests), and creation of the engines configured as in these tests.
+ */
+final class Fixtures {
+
+	/**
+	 * The maps used by CdaToFhirTransformTests.
+	 */
+	static final String[] CDA_MAPS = {"datatypes.map", "FullHeader.map", "LabBody.map", "cda-it-observation.map",
+		"cda-it-observation-condition.map", "fhir-to-cda.map"};
+
+	static final String CDA_LAB_MAP = "http://salute.gov.it/ig/cda-fhir-maps/StructureMap/RefertodilaboratorioFULLBODY";
+
+	static final String QR_TO_PATIENT_MAP = "http://ahdis.ch/matchbox/fml/qr2patgender";
+
+	private Fixtures() {
+	}
+
+	static byte[] readBytes(final @NonNull String path) {
+		try (final InputStream in = Fixtures.class.getResourceAsStream(path)) {
+			if (in == null) {
+				throw new IllegalArgumentException("Fixture not found: " + path);
+			}
+			return in.readAllBytes();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	static String readString(final @NonNull String path) {
+		return new String(readBytes(path), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns a R4 sample of R4ValidationTests, with its placeholder replaced by a valid value.
+	 */
+	static String readR4Sample(final @NonNull String filename) {
+		return readString("/r4-samples/" + filename)
+			.replace("{{INTENT}}", "plan")
+			.replace("{{STATUS}}", "active")
+			.replace("{{UNIT}}", "min")
+			.replace("{{CONTENTTYPE}}", "application/pdf");
+	}
+
+	/**
+	 * Creates a R4 engine that contains the map of FhirMappingLanguageTests.testQr2Patient().
+	 */
+	static MatchboxEngine createFmlEngine() throws Exception {
+		final MatchboxEngine engine = new MatchboxEngine.MatchboxEngineBuilder().getEngineR4();
+		engine.addCanonicalResource(engine.parseMap(readString("/mapping-language/qr2patgender.map")));
+		return engine;
+	}
+
+	/**
+	 * Creates a CDA engine that contains the maps of CdaToFhirTransformTests.
+	 */
+	static CdaMappingEngine createCdaEngine() throws Exception {
+		final CdaMappingEngine engine = new CdaMappingEngine.CdaMappingEngineBuilder().getCdaEngineR4();
+		for (final String map : CDA_MAPS) {
+			engine.addCanonicalResource(engine.parseMap(readString("/cda/" + map)));
+		}
+		return engine;
+	}
+}
@@ -0,0 +1,103 @@
+package ch.ahdis.matchbox.benchmarks;
+
+import ch.ahdis.matchbox.engine.CdaMappingEngine;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.JsonParser;
+import org.hl7.fhir.r5.elementmodel.XmlParser;
+import org.hl7.fhir.r5.formats.IParser.OutputStyle;
+import org.hl7.fhir.r5.model.StructureMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The parsing of FML maps and of the documents used by the transforms, and the composition of the parsed documents
+ * to JSON and XML.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ParseComposeBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class MapState {
+		@Param({"/mapping-language/qr2patgender.map", "/cda/LabBody.map"})
+		public String map;
+
+		CdaMappingEngine engine;
+		String content;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			this.engine = Fixtures.createCdaEngine();
+			this.content = Fixtures.readString(this.map);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class DocumentState {
+		/**
+		 * The document: the Italian lab report (CDA) of CdaToFhirTransformTests, or the QuestionnaireResponse of
+		 * FhirMappingLanguageTests.
+		 */
+		@Param({"/cda/cda-it.xml", "/mapping-language/qr.json"})
+		public String document;
+
+		CdaMappingEngine engine;
+		byte[] content;
+		Element element;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			this.engine = Fixtures.createCdaEngine();
+			this.content = Fixtures.readBytes(this.document);
+			this.element = parseDocument(this);
+		}
+	}
+
+	@Benchmark
+	public StructureMap parseMap(final MapState state) {
+		return state.engine.parseMapR5(state.content);
+	}
+
+	@Benchmark
+	public Element parse(final DocumentState state) throws Exception {
+		return parseDocument(state);
+	}
+
+	static Element parseDocument(final DocumentState state) throws Exception {
+		if (state.document.endsWith(".xml")) {
+			return new XmlParser(state.engine.getContext()).parseSingle(new ByteArrayInputStream(state.content), null);
+		}
+		return new JsonParser(state.engine.getContext()).parseSingle(new ByteArrayInputStream(state.content), null);
+	}
+
+	@Benchmark
+	public byte[] composeJson(final DocumentState state) throws Exception {
+		final var output = new ByteArrayOutputStream();
+		new JsonParser(state.engine.getContext()).compose(state.element, output, OutputStyle.NORMAL, null);
+		return output.toByteArray();
+	}
+
+	@Benchmark
+	public byte[] composeXml(final DocumentState state) throws Exception {
+		final var output = new ByteArrayOutputStream();
+		new XmlParser(state.engine.getContext()).compose(state.element, output, OutputStyle.NORMAL, null);
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,63 @@
+package ch.ahdis.matchbox.benchmarks;
+
+import ch.ahdis.matchbox.engine.CdaMappingEngine;
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The StructureMap transforms of FhirMappingLanguageTests (QuestionnaireResponse to Patient) and
+ * CdaToFhirTransformTests (Italian lab report to a FHIR Bundle).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class TransformBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class FmlState {
+		MatchboxEngine engine;
+		String questionnaireResponse;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			this.engine = Fixtures.createFmlEngine();
+			this.questionnaireResponse = Fixtures.readString("/mapping-language/qr.json");
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class CdaState {
+		CdaMappingEngine engine;
+		String cda;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			this.engine = Fixtures.createCdaEngine();
+			this.cda = Fixtures.readString("/cda/cda-it.xml");
+		}
+	}
+
+	@Benchmark
+	public String transformQrToPatient(final FmlState state) throws Exception {
+		return state.engine.transform(state.questionnaireResponse, true, Fixtures.QR_TO_PATIENT_MAP, true);
+	}
+
+	@Benchmark
+	public String transformCdaToFhir(final CdaState state) throws Exception {
+		return state.engine.transform(state.cda, false, Fixtures.CDA_LAB_MAP, true);
+	}
+}
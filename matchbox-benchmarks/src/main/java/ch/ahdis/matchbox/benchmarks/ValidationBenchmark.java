@@ -0,0 +1,61 @@
+package ch.ahdis.matchbox.benchmarks;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The validation of the R4 samples of R4ValidationTests against their base profile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ValidationBenchmark {
+
+	private static final Map<String, String> PROFILES = Map.of(
+		"careplan.xml", "http://hl7.org/fhir/StructureDefinition/CarePlan",
+		"measure.xml", "http://hl7.org/fhir/StructureDefinition/Measure",
+		"code-correct.xml", "http://hl7.org/fhir/StructureDefinition/Basic",
+		"observation.xml", "http://hl7.org/fhir/StructureDefinition/Observation");
+
+	@Param({"careplan.xml", "measure.xml", "code-correct.xml", "observation.xml"})
+	public String sample;
+
+	private MatchboxEngine engine;
+
+	private byte[] content;
+
+	private String profile;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		this.engine = new MatchboxEngine.MatchboxEngineBuilder().getEngineR4();
+		this.content = Fixtures.readR4Sample(this.sample).getBytes(StandardCharsets.UTF_8);
+		this.profile = PROFILES.get(this.sample);
+	}
+
+	@Benchmark
+	public OperationOutcome validate() throws Exception {
+		return this.engine.validate(new ByteArrayInputStream(this.content), FhirFormat.XML, this.profile);
+	}
+}
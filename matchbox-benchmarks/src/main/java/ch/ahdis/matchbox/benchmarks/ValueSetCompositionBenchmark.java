@@ -0,0 +1,185 @@
+package ch.ahdis.matchbox.benchmarks;
+
+import ch.ahdis.matchbox.engine.CompiledValueSetComposition;
+import ch.ahdis.matchbox.engine.CompiledValueSetComposition.Membership;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
+import org.hl7.fhir.r5.model.Enumerations;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * The evaluation of codes against the compositions of the value sets of a package, as done by ValueSet/$validate-code
+ * when a value set can't be expanded: with the compositions compiled and cached, and as it was done before (the
+ * concepts are scanned and the regex filters are compiled for each code).
+ * <p>
+ * The value sets are those of a package (a classpath resource or a file, e.g.
+ * {@code -p valueSetPackage=/path/to/ch.fhir.ig.ch-epr-term.tgz}), and synthetic value sets with large enumerations
+ * and regex filters, as the compositions of the HL7 terminology package are mostly small.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ValueSetCompositionBenchmark {
+
+	@Param({"/hl7.terminology.r4#5.3.0.tgz"})
+	public String valueSetPackage;
+
+	/**
+	 * The number of synthetic value sets, and of concepts in their enumerations.
+	 */
+	@Param({"20"})
+	public int syntheticValueSets;
+
+	@Param({"2000"})
+	public int syntheticConcepts;
+
+	private final List<ValueSet> valueSets = new ArrayList<>();
+
+	/**
+	 * The system and the codes to evaluate, for each value set (e.g. its first and last explicit concepts, and a code that
+	 * is not in it).
+	 */
+	private final List<String[]> codes = new ArrayList<>();
+
+	private final Map<String, CompiledValueSetComposition> compositionCache = new HashMap<>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		final NpmPackage npmPackage;
+		try (final InputStream in = Files.exists(Path.of(this.valueSetPackage))
+			? Files.newInputStream(Path.of(this.valueSetPackage))
+			: new ByteArrayInputStream(Fixtures.readBytes(this.valueSetPackage))) {
+			npmPackage = NpmPackage.fromPackage(in);
+		}
+		final var parser = new org.hl7.fhir.r4.formats.JsonParser();
+		for (final String file : npmPackage.listResources("ValueSet")) {
+			try (final InputStream in = npmPackage.loadResource(file)) {
+				final var valueSet = (ValueSet) VersionConvertorFactory_40_50.convertResource(parser.parse(in));
+				final var include = valueSet.getCompose().getIncludeFirstRep();
+				if (!include.hasSystem() || (!include.hasConcept() && !include.hasFilter())) {
+					continue;
+				}
+				final String first = include.hasConcept() ? include.getConcept().getFirst().getCode() : "first";
+				final String last = include.hasConcept() ? include.getConcept().getLast().getCode() : "last";
+				this.valueSets.add(valueSet);
+				this.codes.add(new String[]{include.getSystem(), first, last, "not-a-code"});
+			}
+		}
+		for (int i = 0; i < this.syntheticValueSets; ++i) {
+			this.addSyntheticValueSet(i);
+		}
+		if (this.valueSets.isEmpty()) {
+			throw new IllegalStateException("No value set with an explicit composition in " + this.valueSetPackage);
+		}
+	}
+
+	@Benchmark
+	public void compiledComposition(final Blackhole blackhole) {
+		for (int i = 0; i < this.valueSets.size(); ++i) {
+			final ValueSet valueSet = this.valueSets.get(i);
+			final var composition = this.compositionCache.computeIfAbsent(
+				CompiledValueSetComposition.getCacheKey(valueSet),
+				key -> new CompiledValueSetComposition(valueSet.getCompose()));
+			final String[] codes = this.codes.get(i);
+			for (int j = 1; j < codes.length; ++j) {
+				blackhole.consume(composition.evaluate(codes[0], codes[j]));
+			}
+		}
+	}
+
+	@Benchmark
+	public void uncompiledComposition(final Blackhole blackhole) {
+		for (int i = 0; i < this.valueSets.size(); ++i) {
+			final var compose = this.valueSets.get(i).getCompose();
+			final String[] codes = this.codes.get(i);
+			for (int j = 1; j < codes.length; ++j) {
+				blackhole.consume(evaluateUncompiled(compose, codes[0], codes[j]));
+			}
+		}
+	}
+
+	@Benchmark
+	public void compileComposition(final Blackhole blackhole) {
+		for (final ValueSet valueSet : this.valueSets) {
+			blackhole.consume(new CompiledValueSetComposition(valueSet.getCompose()));
+		}
+	}
+
+	/**
+	 * Adds a value set that enumerates concepts of a system, and includes the codes of another system that match regex
+	 * filters.
+	 */
+	private void addSyntheticValueSet(final int index) {
+		final var valueSet = new ValueSet();
+		valueSet.setUrl("http://example.org/ValueSet/synthetic-" + index);
+		valueSet.setVersion("1.0.0");
+		final var enumeration = valueSet.getCompose().addInclude().setSystem("http://example.org/CodeSystem/enumerated");
+		for (int i = 0; i < this.syntheticConcepts; ++i) {
+			enumeration.addConcept().setCode("code-" + i);
+		}
+		final var filtered = valueSet.getCompose().addInclude().setSystem("urn:oid:2.16.756.5.30.1.127.3.10.1");
+		filtered.addFilter().setProperty("code").setOp(Enumerations.FilterOperator.REGEX).setValue("[0-9]{4,8}");
+		filtered.addFilter().setProperty("code").setOp(Enumerations.FilterOperator.REGEX).setValue("[1-9][0-9]*");
+		this.valueSets.add(valueSet);
+		this.codes.add(new String[]{enumeration.getSystem(), "code-" + (this.syntheticConcepts - 1), "code-missing",
+			"code-0"});
+		this.valueSets.add(valueSet);
+		this.codes.add(new String[]{filtered.getSystem(), "123456", "0123", "12"});
+	}
+
+	/**
+	 * The evaluation of ValueSetCodeValidationProvider before the compositions were compiled.
+	 */
+	private static Membership evaluateUncompiled(final ValueSet.ValueSetComposeComponent compose,
+																final String system,
+																final String code) {
+		int mayBeIncludedByInclude = 0;
+		for (final var include : compose.getInclude()) {
+			if (include.hasSystem() && !include.getSystem().equals(system)) {
+				continue;
+			}
+			for (final var concept : include.getConcept()) {
+				if (concept.getCode().equals(code)) {
+					return Membership.INCLUDED;
+				}
+			}
+			for (final var filter : include.getFilter()) {
+				if ("regex".equals(filter.getOp().toCode())) {
+					final var pattern = Pattern.compile(filter.getValue());
+					if (!pattern.matcher(code).matches()) {
+						return Membership.EXCLUDED;
+					}
+				}
+			}
+			++mayBeIncludedByInclude;
+		}
+		return mayBeIncludedByInclude > 0 ? Membership.UNKNOWN : Membership.EXCLUDED;
+	}
+}
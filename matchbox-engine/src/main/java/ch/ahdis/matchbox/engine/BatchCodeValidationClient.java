@@ -0,0 +1,191 @@
+package ch.ahdis.matchbox.engine;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.CapabilityStatement;
+import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.terminologies.client.ITerminologyClient;
+import org.hl7.fhir.utilities.FhirPublication;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Sends the batches of code validations of the validator to a matchbox terminology server, in a single
+ * ValueSet/$batch-validate-code request instead of a batch Bundle of ValueSet/$validate-code requests.
+ * <p>
+ * The operation is only used if the terminology server declares it in its capability statement, and if all the
+ * requests of the batch are ValueSet/$validate-code requests. Otherwise, or if the operation fails, {@code null} is
+ * returned and the batch is sent as usual.
+ */
+public class BatchCodeValidationClient implements BiFunction<ITerminologyClient, Bundle, Bundle> {
+	private static final Logger log = LoggerFactory.getLogger(BatchCodeValidationClient.class);
+
+	public static final String OPERATION_NAME = "batch-validate-code";
+
+	private static final String VALIDATE_CODE_URL = "ValueSet/$validate-code";
+
+	/**
+	 * The marker of the terminology servers that don't support the operation.
+	 */
+	private static final UnaryOperator<Parameters> UNSUPPORTED = parameters -> parameters;
+
+	/**
+	 * The operation of each terminology server, or {@link #UNSUPPORTED} if it doesn't support it, by server address.
+	 */
+	private final Map<String, UnaryOperator<Parameters>> operations = new ConcurrentHashMap<>();
+
+	/**
+	 * The factory of the operation of a terminology server that supports it.
+	 */
+	private final OperationFactory operationFactory;
+
+	public BatchCodeValidationClient() {
+		this(BatchCodeValidationClient::createOperation);
+	}
+
+	/**
+	 * @param operationFactory the factory of the operation of a terminology server that supports it, e.g. to call the
+	 *                         operation with another HTTP client.
+	 */
+	public BatchCodeValidationClient(final @NonNull OperationFactory operationFactory) {
+		this.operationFactory = operationFactory;
+	}
+
+	/**
+	 * Validates the codes of a batch with the operation, and returns the batch response, or {@code null} if the
+	 * operation can't be used.
+	 */
+	@Override
+	public @Nullable Bundle apply(final @NonNull ITerminologyClient client,
+											final @NonNull Bundle batch) {
+		if (batch.getEntry().isEmpty() || !isValueSetValidationBatch(batch)) {
+			return null;
+		}
+		final UnaryOperator<Parameters> operation = this.getOperation(client);
+		if (operation == null) {
+			return null;
+		}
+
+		final var request = new Parameters();
+		for (final var entry : batch.getEntry()) {
+			request.addParameter().setName("validation").setResource(entry.getResource());
+		}
+		final Parameters response;
+		try {
+			response = operation.apply(request);
+		} catch (final Exception e) {
+			log.warn("The batch validation of {} codes on '{}' has failed, sending them as a batch", batch.getEntry().size(),
+						client.getAddress(), e);
+			return null;
+		}
+
+		final var validations = response.getParameters("validation");
+		if (validations.size() != batch.getEntry().size()) {
+			log.warn("The batch validation on '{}' has returned {} responses for {} codes, sending them as a batch",
+						client.getAddress(), validations.size(), batch.getEntry().size());
+			return null;
+		}
+		final var bundle = new Bundle();
+		bundle.setType(Bundle.BundleType.BATCHRESPONSE);
+		for (final var validation : validations) {
+			bundle.addEntry().setResource(validation.getResource());
+		}
+		return bundle;
+	}
+
+	/**
+	 * Returns whether all the requests of the batch are ValueSet/$validate-code requests.
+	 */
+	static boolean isValueSetValidationBatch(final Bundle batch) {
+		for (final var entry : batch.getEntry()) {
+			if (!(entry.getResource() instanceof Parameters) || !VALIDATE_CODE_URL.equals(entry.getRequest().getUrl())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the operation of the terminology server, or {@code null} if it doesn't support it. The capability
+	 * statement of each server is only requested once.
+	 */
+	private @Nullable UnaryOperator<Parameters> getOperation(final ITerminologyClient client) {
+		final String address = client.getAddress();
+		if (!this.operations.containsKey(address)) {
+			UnaryOperator<Parameters> operation = null;
+			try {
+				if (supportsOperation(client.getCapabilitiesStatement())) {
+					operation = this.operationFactory.create(client);
+					log.info("The terminology server '{}' supports ValueSet/${}", address, OPERATION_NAME);
+				}
+			} catch (final Exception e) {
+				log.debug("Unable to check if the terminology server '{}' supports ValueSet/${}", address, OPERATION_NAME, e);
+			}
+			this.operations.putIfAbsent(address, operation != null ? operation : UNSUPPORTED);
+		}
+		final UnaryOperator<Parameters> operation = this.operations.get(address);
+		return operation == UNSUPPORTED ? null : operation;
+	}
+
+	static boolean supportsOperation(final @Nullable CapabilityStatement capabilityStatement) {
+		if (capabilityStatement == null) {
+			return false;
+		}
+		for (final var rest : capabilityStatement.getRest()) {
+			for (final var resource : rest.getResource()) {
+				if (!"ValueSet".equals(resource.getType())) {
+					continue;
+				}
+				for (final var operation : resource.getOperation()) {
+					if (OPERATION_NAME.equals(operation.getName()) || ("$" + OPERATION_NAME).equals(operation.getName())) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates the operation with a FHIR client of the same version as the terminology client.
+	 */
+	private static UnaryOperator<Parameters> createOperation(final ITerminologyClient client) throws Exception {
+		if (client.getActualVersion() == FhirPublication.R5) {
+			final var toolingClient = new org.hl7.fhir.r5.utils.client.FHIRToolingClient(client.getAddress(),
+																												client.getUserAgent());
+			toolingClient.setClientHeaders(client.getClientHeaders());
+			return request -> toolingClient.operateType(ValueSet.class, OPERATION_NAME, request);
+		}
+		final var toolingClient = new org.hl7.fhir.r4.utils.client.FHIRToolingClient(client.getAddress(),
+																											client.getUserAgent());
+		toolingClient.setClientHeaders(client.getClientHeaders());
+		return request -> {
+			try {
+				final var response = toolingClient.operateType(org.hl7.fhir.r4.model.ValueSet.class, OPERATION_NAME,
+																			  (org.hl7.fhir.r4.model.Parameters) VersionConvertorFactory_40_50.convertResource(request));
+				return (Parameters) VersionConvertorFactory_40_50.convertResource(response);
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		};
+	}
+
+	/**
+	 * The factory of the operation of a terminology server.
+	 */
+	@FunctionalInterface
+	public interface OperationFactory {
+
+		@NonNull UnaryOperator<Parameters> create(@NonNull ITerminologyClient client) throws Exception;
+	}
+}
@@ -0,0 +1,184 @@
+package ch.ahdis.matchbox.engine;
+
+import com.google.gson.JsonParser;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.r5.formats.IParser;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.hl7.fhir.r5.model.StructureMap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Transforms many documents with the same StructureMap, and writes the results as NDJSON.
+ * <p>
+ * The map, and the source and target contexts, are resolved once for all the documents. The documents are transformed
+ * in parallel on the given executor, that can be shared by the bulk transforms, but the results are written in the
+ * order of the inputs, as soon as they are available; the number of documents being transformed at the same time is
+ * bounded, so that the inputs can be streamed. A document that fails to be transformed is replaced by an
+ * OperationOutcome in the output.
+ */
+public class BulkTransformer {
+
+	protected static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(BulkTransformer.class);
+
+	private final MatchboxEngine engine;
+
+	private final StructureMap map;
+
+	private final SimpleWorkerContext targetContext;
+
+	private final ExecutorService executor;
+
+	private final int parallelism;
+
+	private int transformedCount = 0;
+
+	private int failedCount = 0;
+
+	/**
+	 * @param engine      the engine that contains the map.
+	 * @param mapUri      the URL of the map.
+	 * @param executor    the executor of the transforms, it is not shut down by the bulk transformer.
+	 * @param parallelism the number of documents transformed in parallel, it should be the number of threads of the
+	 *                    executor.
+	 */
+	public BulkTransformer(final @NonNull MatchboxEngine engine,
+								  final @NonNull String mapUri,
+								  final @NonNull ExecutorService executor,
+								  final int parallelism) throws FHIRException, IOException {
+		this.engine = engine;
+		this.executor = executor;
+		this.map = engine.getContext().fetchResource(StructureMap.class, mapUri);
+		if (this.map == null) {
+			throw new FHIRException("Unable to find map " + mapUri);
+		}
+		this.targetContext = engine.getTargetContext(this.map);
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Transforms the documents and writes the results to the output, one JSON resource per line. The format of each
+	 * document (JSON or XML) is detected from its content.
+	 *
+	 * @param inputs the documents to transform.
+	 * @param output the NDJSON output.
+	 */
+	public void transform(final @NonNull Iterator<byte[]> inputs,
+								 final @NonNull Writer output) throws IOException {
+		final int maxPending = 4 * this.parallelism;
+		final Deque<Future<String>> pending = new ArrayDeque<>(maxPending);
+		try {
+			while (inputs.hasNext()) {
+				final byte[] input = inputs.next();
+				pending.add(this.executor.submit(() -> this.transformToJson(input)));
+				if (pending.size() >= maxPending) {
+					this.write(pending.poll(), output);
+				}
+			}
+			while (!pending.isEmpty()) {
+				this.write(pending.poll(), output);
+			}
+		} finally {
+			pending.forEach(future -> future.cancel(true));
+			output.flush();
+		}
+		log.info("Bulk transform with {} finished: {} documents transformed, {} failed", this.map.getUrl(),
+					this.transformedCount, this.failedCount);
+	}
+
+	public int getTransformedCount() {
+		return this.transformedCount;
+	}
+
+	public int getFailedCount() {
+		return this.failedCount;
+	}
+
+	/**
+	 * Creates an executor for the bulk transforms, with a fixed number of daemon threads.
+	 */
+	public static ExecutorService newExecutor(final int threads) {
+		final var threadCounter = new AtomicInteger();
+		return Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+			final var thread = new Thread(runnable, "matchbox-bulk-transform-" + threadCounter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Returns the document carried by a NDJSON line: either the JSON document itself, or a JSON string that contains
+	 * the document (e.g. a XML document).
+	 */
+	public static byte[] fromNdjsonLine(final @NonNull String line) {
+		final String trimmed = line.trim();
+		if (trimmed.startsWith("\"")) {
+			return JsonParser.parseString(trimmed).getAsString().getBytes(StandardCharsets.UTF_8);
+		}
+		return trimmed.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private String transformToJson(final byte[] input) throws FHIRException, IOException {
+		final var parser = this.engine.makeSourceParser(this.map, detectFormat(input));
+		final Element source = parser.parseSingle(new ByteArrayInputStream(input), null);
+		final Element transformed = this.engine.transform(source, this.map.getUrl(), this.targetContext);
+
+		final var output = new ByteArrayOutputStream();
+		new org.hl7.fhir.r5.elementmodel.JsonParser(this.targetContext).compose(transformed, output,
+																										 IParser.OutputStyle.NORMAL, null);
+		return output.toString(StandardCharsets.UTF_8);
+	}
+
+	private void write(final Future<String> result,
+							 final Writer output) throws IOException {
+		String json;
+		try {
+			json = result.get();
+			++this.transformedCount;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("The bulk transform has been interrupted", e);
+		} catch (final ExecutionException e) {
+			log.error("Error during the transform", e.getCause());
+			json = getError(e.getCause());
+			++this.failedCount;
+		}
+		// NDJSON requires one resource per line
+		output.write(json.replace("\r", "").replace("\n", " "));
+		output.write("\n");
+	}
+
+	private static String getError(final Throwable error) throws IOException {
+		final var oo = new OperationOutcome();
+		oo.addIssue()
+			.setSeverity(OperationOutcome.IssueSeverity.ERROR)
+			.setCode(OperationOutcome.IssueType.EXCEPTION)
+			.setDiagnostics("Error during the transform: " + error.getMessage());
+		return new org.hl7.fhir.r5.formats.JsonParser().composeString(oo);
+	}
+
+	private static FhirFormat detectFormat(final byte[] input) {
+		for (final byte b : input) {
+			if (!Character.isWhitespace(b) && b != (byte) 0xEF && b != (byte) 0xBB && b != (byte) 0xBF) {
+				return b == '<' ? FhirFormat.XML : FhirFormat.JSON;
+			}
+		}
+		return FhirFormat.JSON;
+	}
+}
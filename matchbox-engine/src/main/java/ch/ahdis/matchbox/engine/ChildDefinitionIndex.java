@@ -0,0 +1,148 @@
+package ch.ahdis.matchbox.engine;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.hl7.fhir.exceptions.DefinitionException;
+import org.hl7.fhir.r5.conformance.profile.ProfileUtilities;
+import org.hl7.fhir.r5.conformance.profile.ProfileUtilities.SourcedChildDefinitions;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The index of the child definitions (including the slices) and of the slice definitions of the elements of the
+ * profiles, shared by the validators of an engine, so that the snapshot of a profile is walked once per element
+ * definition instead of once per validated element instance.
+ * <p>
+ * The definitions are computed lazily by {@link ProfileUtilities#getChildMap} and {@link ProfileUtilities#getSliceList},
+ * and indexed by profile (by identity, the profiles of the context of an engine are not modified once loaded) and by
+ * element id. The definitions of the elements without id are not indexed, because the elements of the slices have the
+ * same paths. The number of indexed profiles is bounded: when it is exceeded, the least recently used profile is
+ * removed. The index can be used concurrently, the indexed definitions are only read.
+ * <p>
+ * The index doesn't log its metrics, they are read on demand with {@link #getHitCount()} and
+ * {@link #getMissCount()}.
+ */
+public class ChildDefinitionIndex {
+
+	/**
+	 * The maximum number of indexed profiles.
+	 */
+	private static final int MAX_PROFILES = 4096;
+
+	/**
+	 * The indexed definitions, by profile, in access order. Guarded by itself.
+	 */
+	private final LinkedHashMap<StructureDefinition, ProfileIndex> profiles = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<StructureDefinition, ProfileIndex> eldest) {
+			return this.size() > MAX_PROFILES;
+		}
+	};
+
+	private final LongAdder hitCount = new LongAdder();
+
+	private final LongAdder missCount = new LongAdder();
+
+	/**
+	 * Returns the child definitions of an element definition of a profile, computing them with the given profile
+	 * utilities if they are not indexed.
+	 *
+	 * @throws DefinitionException if the child definitions can't be computed, they are not indexed.
+	 */
+	public @NonNull SourcedChildDefinitions getChildMap(final @NonNull ProfileUtilities profileUtilities,
+																		 final @NonNull StructureDefinition profile,
+																		 final @NonNull ElementDefinition definition,
+																		 final boolean chillInsideOnly) throws DefinitionException {
+		if (!definition.hasId()) {
+			this.missCount.increment();
+			return profileUtilities.getChildMap(profile, definition, chillInsideOnly);
+		}
+		final Map<String, SourcedChildDefinitions> childMaps = this.getProfileIndex(profile).childMaps();
+		final String key = definition.getId() + "|" + chillInsideOnly;
+		final SourcedChildDefinitions cached = childMaps.get(key);
+		if (cached != null) {
+			this.hitCount.increment();
+			return cached;
+		}
+		this.missCount.increment();
+		// The definitions are computed outside the map, they may be computed twice by concurrent validators
+		final SourcedChildDefinitions computed = profileUtilities.getChildMap(profile, definition, chillInsideOnly);
+		final SourcedChildDefinitions previous = childMaps.putIfAbsent(key, computed);
+		return previous != null ? previous : computed;
+	}
+
+	/**
+	 * Returns the slice definitions of a sliced element definition of a profile, computing them with the given profile
+	 * utilities if they are not indexed.
+	 */
+	public @NonNull List<ElementDefinition> getSliceList(final @NonNull ProfileUtilities profileUtilities,
+																		  final @NonNull StructureDefinition profile,
+																		  final @NonNull ElementDefinition definition) {
+		if (!definition.hasId()) {
+			this.missCount.increment();
+			return profileUtilities.getSliceList(profile, definition);
+		}
+		final Map<String, List<ElementDefinition>> sliceLists = this.getProfileIndex(profile).sliceLists();
+		final String key = definition.getId();
+		final List<ElementDefinition> cached = sliceLists.get(key);
+		if (cached != null) {
+			this.hitCount.increment();
+			return cached;
+		}
+		this.missCount.increment();
+		final List<ElementDefinition> computed = List.copyOf(profileUtilities.getSliceList(profile, definition));
+		final List<ElementDefinition> previous = sliceLists.putIfAbsent(key, computed);
+		return previous != null ? previous : computed;
+	}
+
+	/**
+	 * Returns the number of indexed profiles.
+	 */
+	public int size() {
+		synchronized (this.profiles) {
+			return this.profiles.size();
+		}
+	}
+
+	public long getHitCount() {
+		return this.hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return this.missCount.sum();
+	}
+
+	public void clear() {
+		synchronized (this.profiles) {
+			this.profiles.clear();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ChildDefinitionIndex[profiles=%d, hits=%d, misses=%d]".formatted(
+			this.size(), this.getHitCount(), this.getMissCount());
+	}
+
+	private ProfileIndex getProfileIndex(final StructureDefinition profile) {
+		synchronized (this.profiles) {
+			return this.profiles.computeIfAbsent(profile, key -> new ProfileIndex(new ConcurrentHashMap<>(),
+																										 new ConcurrentHashMap<>()));
+		}
+	}
+
+	/**
+	 * The indexed definitions of a profile.
+	 *
+	 * @param childMaps  the child definitions, by 'element id|chillInsideOnly'.
+	 * @param sliceLists the slice definitions, by element id.
+	 */
+	private record ProfileIndex(Map<String, SourcedChildDefinitions> childMaps,
+										 Map<String, List<ElementDefinition>> sliceLists) {
+	}
+}
@@ -0,0 +1,136 @@
+package ch.ahdis.matchbox.engine;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The composition of a value set, compiled to infer whether a code is included or excluded without expanding the value
+ * set.
+ * <p>
+ * The explicit concepts of each include are stored in a hash set, and the regex filters are compiled once, so that a
+ * composition can be cached and evaluated many times. Only the explicit concepts and the regex filters are evaluated;
+ * the other filters are ignored.
+ */
+public class CompiledValueSetComposition {
+	private static final Logger log = LoggerFactory.getLogger(CompiledValueSetComposition.class);
+
+	public enum Membership {
+		INCLUDED, EXCLUDED, UNKNOWN
+	}
+
+	private final List<CompiledInclude> includes;
+
+	public CompiledValueSetComposition(final ValueSet.@NonNull ValueSetComposeComponent compose) {
+		this.includes = new ArrayList<>(compose.getInclude().size());
+		for (final var include : compose.getInclude()) {
+			final Set<String> concepts = new HashSet<>(include.getConcept().size() * 2);
+			for (final var concept : include.getConcept()) {
+				if (concept.hasCode()) {
+					concepts.add(concept.getCode());
+				}
+			}
+			final List<Pattern> patterns = new ArrayList<>(1);
+			for (final var filter : include.getFilter()) {
+				if (filter.hasOp() && "regex".equals(filter.getOp().toCode()) && filter.hasValue()) {
+					try {
+						patterns.add(Pattern.compile(filter.getValue()));
+					} catch (final PatternSyntaxException e) {
+						log.debug("Ignoring the invalid regex filter '{}'", filter.getValue(), e);
+					}
+				}
+			}
+			this.includes.add(new CompiledInclude(include.hasSystem() ? include.getSystem() : null, concepts, patterns));
+		}
+	}
+
+	/**
+	 * Returns whether a code is explicitly included in the composition, excluded from it (it does not match the regex
+	 * filters of the includes of its system, or its system is not included), or if that can't be inferred.
+	 */
+	public Membership evaluate(final @Nullable String system, final @Nullable String code) {
+		int mayBeIncludedByInclude = 0;
+		for (final CompiledInclude include : this.includes) {
+			if (include.system() != null && !include.system().equals(system)) {
+				continue;
+			}
+			if (code != null && include.concepts().contains(code)) {
+				return Membership.INCLUDED;
+			}
+			for (final Pattern pattern : include.patterns()) {
+				// Try to match the full code with the regex
+				if (code == null || !pattern.matcher(code).matches()) {
+					return Membership.EXCLUDED;
+				}
+			}
+			++mayBeIncludedByInclude;
+		}
+
+		if (mayBeIncludedByInclude > 0) {
+			return Membership.UNKNOWN;
+		}
+		// The system is not present in the composition
+		return Membership.EXCLUDED;
+	}
+
+	/**
+	 * Returns the key of a compiled composition in a cache, or {@code null} if the value set has no URL.
+	 * <p>
+	 * The key contains the value set URL and version, and the SHA-256 hash of everything the compiled composition
+	 * depends on (the system and version, concept codes and filters of each include), so that a value set that has been
+	 * modified under the same URL and version is compiled again.
+	 */
+	public static @Nullable String getCacheKey(final @NonNull ValueSet valueSet) {
+		if (!valueSet.hasUrl()) {
+			return null;
+		}
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		for (final var include : valueSet.getCompose().getInclude()) {
+			update(digest, "include");
+			update(digest, include.getSystem());
+			update(digest, include.getVersion());
+			for (final var concept : include.getConcept()) {
+				update(digest, concept.getCode());
+			}
+			for (final var filter : include.getFilter()) {
+				update(digest, filter.getProperty());
+				update(digest, filter.hasOp() ? filter.getOp().toCode() : null);
+				update(digest, filter.getValue());
+			}
+		}
+		final var key = new StringBuilder(valueSet.getUrl().length() + 80).append(valueSet.getUrl());
+		if (valueSet.hasVersion()) {
+			key.append('|').append(valueSet.getVersion());
+		}
+		return key.append('#').append(HexFormat.of().formatHex(digest.digest())).toString();
+	}
+
+	private static void update(final MessageDigest digest, final @Nullable String value) {
+		if (value != null) {
+			digest.update(value.getBytes(StandardCharsets.UTF_8));
+		}
+		// The separator keeps the adjacent values apart
+		digest.update((byte) 0);
+	}
+
+	private record CompiledInclude(@Nullable String system, Set<String> concepts, List<Pattern> patterns) {
+	}
+}
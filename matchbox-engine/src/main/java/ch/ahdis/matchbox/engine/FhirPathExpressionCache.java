@@ -0,0 +1,118 @@
+package ch.ahdis.matchbox.engine;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.hl7.fhir.r5.fhirpath.ExpressionNode;
+import org.hl7.fhir.r5.fhirpath.FHIRLexer;
+import org.hl7.fhir.r5.fhirpath.FHIRPathEngine;
+
+import java.util.LinkedHashMap;
+
+/**
+ * The cache of the parsed FHIRPath expressions of the validators (invariants, slicing discriminators and extension
+ * contexts), shared by all the engines of the process, so that the invariants of the core and extensions packages are
+ * parsed once instead of once per engine.
+ * <p>
+ * The expressions are cached by FHIR version, parsing options and host services of the FHIRPath engine, and by text.
+ * The number of cached expressions is bounded: when it is exceeded, the least recently used expressions are evicted.
+ * The parsed expressions are only evaluated, they are shared between threads; they must not be type-checked, because
+ * the type checking stores its result in the expression nodes.
+ */
+public class FhirPathExpressionCache {
+
+	private static final FhirPathExpressionCache SHARED = new FhirPathExpressionCache(10_000);
+
+	/**
+	 * The maximum number of cached expressions, 0 to disable the cache.
+	 */
+	private int maxEntries;
+
+	/**
+	 * The parsed expressions, by key, in access order.
+	 */
+	private final LinkedHashMap<String, ExpressionNode> expressions = new LinkedHashMap<>(1024, 0.75f, true);
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	public FhirPathExpressionCache(final int maxEntries) {
+		this.maxEntries = Math.max(0, maxEntries);
+	}
+
+	/**
+	 * Returns the cache shared by the validators of all the engines.
+	 */
+	public static FhirPathExpressionCache getShared() {
+		return SHARED;
+	}
+
+	/**
+	 * Returns the parsed expression, parsing it with the given FHIRPath engine if it is not cached.
+	 *
+	 * @param fhirVersion the FHIR version of the context of the FHIRPath engine.
+	 * @throws FHIRLexer.FHIRLexerException if the expression is not valid, it is not cached.
+	 */
+	public @NonNull ExpressionNode parse(final @NonNull FHIRPathEngine fpe,
+													 final @NonNull String fhirVersion,
+													 final @NonNull String expression) throws FHIRLexer.FHIRLexerException {
+		final String key = fhirVersion + "|" + fpe.isLegacyMode() + "|" + fpe.isAllowDoubleQuotes() + "|"
+			+ (fpe.getHostServices() == null ? null : fpe.getHostServices().getClass().getName()) + "|" + expression;
+		synchronized (this) {
+			final ExpressionNode cached = this.expressions.get(key);
+			if (cached != null) {
+				++this.hitCount;
+				return cached;
+			}
+			++this.missCount;
+		}
+		// The expression is parsed outside the lock, it may be parsed twice by concurrent validators
+		final ExpressionNode parsed = fpe.parse(expression);
+		synchronized (this) {
+			if (this.maxEntries == 0) {
+				return parsed;
+			}
+			final ExpressionNode previous = this.expressions.putIfAbsent(key, parsed);
+			this.evict();
+			return previous != null ? previous : parsed;
+		}
+	}
+
+	/**
+	 * Changes the maximum number of cached expressions, 0 to disable the cache.
+	 */
+	public synchronized void setMaxEntries(final int maxEntries) {
+		this.maxEntries = Math.max(0, maxEntries);
+		this.evict();
+	}
+
+	public synchronized int getMaxEntries() {
+		return this.maxEntries;
+	}
+
+	/**
+	 * Returns the number of cached expressions.
+	 */
+	public synchronized int size() {
+		return this.expressions.size();
+	}
+
+	public synchronized long getHitCount() {
+		return this.hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return this.missCount;
+	}
+
+	public synchronized void clear() {
+		this.expressions.clear();
+	}
+
+	private void evict() {
+		final var iterator = this.expressions.entrySet().iterator();
+		while (this.expressions.size() > this.maxEntries && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+}
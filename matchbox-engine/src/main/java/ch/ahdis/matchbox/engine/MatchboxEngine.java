@@ -26,10 +26,20 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
@@ -43,6 +53,7 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r5.context.ContextUtilities;
+import org.hl7.fhir.r5.context.IWorkerContextManager.ICanonicalResourceLocator;
 import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.context.SimpleWorkerContext.SimpleWorkerContextBuilder;
 import org.hl7.fhir.r5.elementmodel.Element;
@@ -52,6 +63,8 @@ import org.hl7.fhir.r5.fhirpath.FHIRPathEngine;
 import org.hl7.fhir.r5.formats.IParser;
 import org.hl7.fhir.r5.formats.IParser.OutputStyle;
 import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.ImplementationGuide;
 import org.hl7.fhir.r5.model.Narrative.NarrativeStatus;
 import org.hl7.fhir.r5.model.Parameters;
 import org.hl7.fhir.r5.model.StructureDefinition;
@@ -64,7 +77,11 @@ import org.hl7.fhir.r5.renderers.utils.ResourceWrapper;
 import org.hl7.fhir.r5.utils.EOperationOutcome;
 import org.hl7.fhir.r5.utils.OperationOutcomeUtilities;
 import org.hl7.fhir.r5.utils.structuremap.StructureMapUtilities;
+import org.hl7.fhir.r5.utils.validation.BundleValidationRule;
 import org.hl7.fhir.r5.utils.validation.IResourceValidator;
+import org.hl7.fhir.r5.utils.validation.IValidationPolicyAdvisor;
+import org.hl7.fhir.r5.utils.validation.IValidatorResourceFetcher;
+import org.hl7.fhir.r5.utils.validation.constants.BestPracticeWarningLevel;
 import org.hl7.fhir.r5.utils.validation.constants.ReferenceValidationPolicy;
 import org.hl7.fhir.utilities.ByteProvider;
 import org.hl7.fhir.utilities.FhirPublication;
@@ -77,16 +94,21 @@ import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.hl7.fhir.utilities.xhtml.NodeType;
 import org.hl7.fhir.utilities.xhtml.XhtmlNode;
+import org.hl7.fhir.validation.BaseValidator.ValidationControl;
 import org.hl7.fhir.validation.IgLoader;
 import org.hl7.fhir.validation.ValidationEngine;
 import org.hl7.fhir.validation.ValidatorUtils;
+import org.hl7.fhir.validation.cli.model.HtmlInMarkdownCheck;
 import org.hl7.fhir.validation.cli.services.PassiveExpiringSessionCache;
+import org.hl7.fhir.validation.cli.utils.QuestionnaireMode;
+import org.hl7.fhir.validation.cli.utils.ValidationLevel;
 import org.hl7.fhir.validation.instance.InstanceValidator;
 
 import ch.ahdis.matchbox.engine.cli.VersionUtil;
 import ch.ahdis.matchbox.engine.exception.IgLoadException;
 import ch.ahdis.matchbox.engine.exception.MatchboxEngineCreationException;
 import ch.ahdis.matchbox.engine.exception.TerminologyServerException;
+import ch.ahdis.matchbox.mappinglanguage.CompiledStructureMap;
 import ch.ahdis.matchbox.mappinglanguage.MatchboxStructureMapUtilities;
 import ch.ahdis.matchbox.mappinglanguage.TransformSupportServices;
 
@@ -110,6 +132,55 @@ public class MatchboxEngine extends ValidationEngine {
 
 	protected List<String> suppressedWarnInfoPatterns = new ArrayList<>();
 	protected PassiveExpiringSessionCache sessionCache = new PassiveExpiringSessionCache();
+
+	/**
+	 * The compiled StructureMaps, by map URL (and target FHIR version), in access order. The least recently used map is
+	 * evicted when there are more than {@link #MAX_COMPILED_MAPS} maps, as the compiled maps keep their target contexts
+	 * alive.
+	 */
+	private final Map<String, CompiledStructureMap> compiledMaps = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, CompiledStructureMap> eldest) {
+			return this.size() > MAX_COMPILED_MAPS;
+		}
+	};
+	private static final int MAX_COMPILED_MAPS = 256;
+
+	/**
+	 * The idle validators, that are reset for each validation instead of being created. The pool is bounded by the
+	 * number of processors, the validators that are released when it is full are discarded.
+	 */
+	private final Deque<InstanceValidator> validatorPool = new ArrayDeque<>();
+	private static final int MAX_POOLED_VALIDATORS = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The version of the settings that {@link ValidationEngine#getValidator(FhirFormat)} applies to the validators it
+	 * creates. It is incremented by the setters of these settings, and by the getters of those that are modified in
+	 * place (e.g. the extension domains), after the setting has changed.
+	 */
+	private final AtomicLong validatorSettingsVersion = new AtomicLong();
+
+	/**
+	 * The version of the settings with which the pooled validators have been created. Guarded by the pool.
+	 */
+	private long validatorPoolSettingsVersion = -1;
+
+	/**
+	 * Whether the entries of the large Bundles are validated in parallel, on the {@link #BUNDLE_ENTRY_POOL}.
+	 */
+	private boolean parallelBundleValidation = false;
+
+	/**
+	 * The pool on which the entries of the large Bundles are validated in parallel, shared by all the engines. Its
+	 * threads are bounded by the number of processors, they are only started when a Bundle is validated in parallel.
+	 */
+	private static final ForkJoinPool BUNDLE_ENTRY_POOL = newBundleEntryPool();
+
+	/**
+	 * The index of the child and slice definitions of the elements of the profiles, shared by the validators of the
+	 * engine.
+	 */
+	private final ChildDefinitionIndex childDefinitionIndex = new ChildDefinitionIndex();
 	
 	static protected ValidationEngine nullEngine;
 	
@@ -164,6 +235,7 @@ public class MatchboxEngine extends ValidationEngine {
 				MatchboxEngine otherMatchboxEngine = (MatchboxEngine) other;
 				this.sessionCache = otherMatchboxEngine.sessionCache;
 				this.suppressedWarnInfoPatterns = otherMatchboxEngine.suppressedWarnInfoPatterns;
+				this.parallelBundleValidation = otherMatchboxEngine.parallelBundleValidation;
 		}
 		// Create a new IgLoader, otherwise the context is desynchronized between the loader and the engine
 		this.setIgLoader(new IgLoader(this.getPcm(), this.getContext(), this.getVersion(), this.isDebug()));
@@ -496,6 +568,20 @@ public class MatchboxEngine extends ValidationEngine {
 		}
 	}
 
+	/**
+	 * Sets the terminology server. If it is a matchbox server, the batches of code validations are sent to it in a
+	 * single ValueSet/$batch-validate-code request.
+	 */
+	@Override
+	public String setTerminologyServer(final String src,
+												  final String log,
+												  final FhirPublication version,
+												  final boolean useEcosystem) throws FHIRException, URISyntaxException, IOException {
+		final String txVersion = super.setTerminologyServer(src, log, version, useEcosystem);
+		this.getContext().setBatchCodeValidation(new BatchCodeValidationClient());
+		return txVersion;
+	}
+
 	/**
 	 * Transforms an input with the map identified by the uri to the output defined
 	 * by the map
@@ -528,14 +614,8 @@ public class MatchboxEngine extends ValidationEngine {
 			throws FHIRException, IOException {
 		log.info("Start transform: " + mapUri);
 
-		SimpleWorkerContext context = this.getContext();
-		StructureMap map = context.fetchResource(StructureMap.class, mapUri);
-		
-		String fhirVersionTarget = getFhirVersion(getCanonicalFromStructureMap(map, StructureMap.StructureMapModelMode.TARGET));
-		if (fhirVersionTarget !=null && (fhirVersionTarget.startsWith("4.0") || fhirVersionTarget.startsWith("4.3") || fhirVersionTarget.startsWith("5.0"))  && !fhirVersionTarget.equals(this.getVersion().substring(0, 3))) {
-			log.info("Loading additional FHIR version for Target into context " + fhirVersionTarget);
-			context = getContextForFhirVersion(fhirVersionTarget);
-		}
+		StructureMap map = this.getContext().fetchResource(StructureMap.class, mapUri);
+		SimpleWorkerContext context = getTargetContext(map);
 
 		Element transformed = transform(ByteProvider.forBytes(input.getBytes("UTF-8")), (inputJson ? FhirFormat.JSON : FhirFormat.XML),
 												  mapUri, context);
@@ -563,12 +643,34 @@ public class MatchboxEngine extends ValidationEngine {
 																			final String mapUri,
 																			final SimpleWorkerContext targetContext)
 			throws FHIRException, IOException {
+		StructureMap map = this.getContext().fetchResource(StructureMap.class, mapUri);
+		org.hl7.fhir.r5.elementmodel.ParserBase parser = makeSourceParser(map, cntType);
+		org.hl7.fhir.r5.elementmodel.Element src = parser.parseSingle(new ByteArrayInputStream(source.getBytes()), null);
+		return transform(src, mapUri, targetContext);
+	}
+
+	/**
+	 * Returns the context for the target of the map: the engine context, or another one if the target is in a
+	 * different FHIR version.
+	 */
+	SimpleWorkerContext getTargetContext(StructureMap map) throws FHIRException, IOException {
+		String fhirVersionTarget = getFhirVersion(getCanonicalFromStructureMap(map, StructureMap.StructureMapModelMode.TARGET));
+		if (fhirVersionTarget !=null && (fhirVersionTarget.startsWith("4.0") || fhirVersionTarget.startsWith("4.3") || fhirVersionTarget.startsWith("5.0"))  && !fhirVersionTarget.equals(this.getVersion().substring(0, 3))) {
+			log.info("Loading additional FHIR version for Target into context " + fhirVersionTarget);
+			return getContextForFhirVersion(fhirVersionTarget);
+		}
+		return this.getContext();
+	}
+
+	/**
+	 * Creates a parser for the source of the map.
+	 */
+	org.hl7.fhir.r5.elementmodel.ParserBase makeSourceParser(StructureMap map, FhirFormat cntType) throws FHIRException, IOException {
 		SimpleWorkerContext context = this.getContext();
 
 		// usual case is that source and target are in the same FHIR version as in the context, however it could be that either source or target are in a different FHIR version
 		// if this is the case we do lazy loading of the additional FHIR version into the context
 
-		StructureMap map = context.fetchResource(StructureMap.class, mapUri);
 		String canonicalSource = getCanonicalFromStructureMap(map, StructureMap.StructureMapModelMode.SOURCE);
 
 		String fhirVersionSource = getFhirVersion(canonicalSource);
@@ -582,8 +684,7 @@ public class MatchboxEngine extends ValidationEngine {
 		if (sd.getKind() == StructureDefinitionKind.LOGICAL) {
 			parser.setLogical(sd);
 		}
-		org.hl7.fhir.r5.elementmodel.Element src = parser.parseSingle(new ByteArrayInputStream(source.getBytes()), null);
-		return transform(src, mapUri, targetContext);
+		return parser;
 	}
 
 	/**
@@ -649,23 +750,43 @@ public class MatchboxEngine extends ValidationEngine {
 	 */
 	public org.hl7.fhir.r5.elementmodel.Element transform(org.hl7.fhir.r5.elementmodel.Element src,  String mapUri, SimpleWorkerContext targetContext)
 			throws FHIRException, IOException {
+		CompiledStructureMap compiledMap = this.getCompiledStructureMap(mapUri, targetContext);
+		StructureMap map = compiledMap.getMap();
+		log.info("Using map " + map.getUrl() + (map.getVersion()!=null ? "|" + map.getVersion() + " " : "" )
+				+ (map.getDateElement() != null && !map.getDateElement().isEmpty()  ? "(" + map.getDateElement().asStringValue() + ")" : ""));
+		return compiledMap.transform(src);
+	}
+
+	/**
+	 * Returns the compiled map for the given map URL and target context. The compiled maps are cached, until a resource
+	 * is added to or removed from the contexts (e.g. when the map is updated).
+	 */
+	private CompiledStructureMap getCompiledStructureMap(String mapUri, SimpleWorkerContext targetContext) throws FHIRException {
 		SimpleWorkerContext context = this.getContext();
-		List<Base> outputs = new ArrayList<>();
-		StructureMapUtilities scu = new MatchboxStructureMapUtilities(context,
-				new TransformSupportServices(targetContext!=null ? targetContext : context, outputs), this);
+		SimpleWorkerContext actualTargetContext = (targetContext != null) ? targetContext : context;
+		String key = (targetContext != null) ? mapUri + "|" + targetContext.getVersion() : mapUri;
+		CompiledStructureMap compiledMap;
+		synchronized (this.compiledMaps) {
+			compiledMap = this.compiledMaps.get(key);
+		}
+		if (compiledMap != null && compiledMap.isUpToDate(context, actualTargetContext)) {
+			return compiledMap;
+		}
+
 		StructureMap map = context.fetchResource(StructureMap.class, mapUri);
 		if (map == null) {
 			log.error("Unable to find map " + mapUri + " (Known Maps = " + context.listMapUrls() + ")");
 			throw new Error("Unable to find map " + mapUri + " (Known Maps = " + context.listMapUrls() + ")");
 		}
-		log.info("Using map " + map.getUrl() + (map.getVersion()!=null ? "|" + map.getVersion() + " " : "" )
-				+ (map.getDateElement() != null && !map.getDateElement().isEmpty()  ? "(" + map.getDateElement().asStringValue() + ")" : ""));
-
-		org.hl7.fhir.r5.elementmodel.Element resource = getTargetResourceFromStructureMap(map, targetContext);
-
-		scu.transform(null, src, map, resource);
-		resource.populatePaths(null);
-		return resource;
+		compiledMap = new CompiledStructureMap(map, getTargetStructureDefinition(map, targetContext), context,
+															actualTargetContext, this);
+		synchronized (this.compiledMaps) {
+			// the maps compiled before a resource was loaded or dropped are not used anymore, they are released with
+			// their contexts
+			this.compiledMaps.values().removeIf(CompiledStructureMap::isOutdated);
+			this.compiledMaps.put(key, compiledMap);
+		}
+		return compiledMap;
 	}
 
 	/**
@@ -680,7 +801,7 @@ public class MatchboxEngine extends ValidationEngine {
 
 	/**
 	 * gets the canonical for either source or target, we assume currently that the fhir source or target is the default canonical for the source and target, this might not be true
-	 * however this approach is used in the getTargetResourceFromStructureMap below
+	 * however this approach is used in the getTargetStructureDefinition below
 	 * @param map
 	 * @param mode
 	 * @return
@@ -697,7 +818,7 @@ public class MatchboxEngine extends ValidationEngine {
 		return targetTypeUrl;
 	}
 
-	private org.hl7.fhir.r5.elementmodel.Element getTargetResourceFromStructureMap(StructureMap map, SimpleWorkerContext targetContext) {
+	private StructureDefinition getTargetStructureDefinition(StructureMap map, SimpleWorkerContext targetContext) {
 		String targetTypeUrl = null;
 		SimpleWorkerContext context = (targetContext!=null ? targetContext : this.getContext());
 		for (StructureMap.StructureMapStructureComponent component : map.getStructure()) {
@@ -719,11 +840,14 @@ public class MatchboxEngine extends ValidationEngine {
 			}
 		}
 
-		StructureDefinition structureDefinition = null;
-		for (StructureDefinition sd : context.fetchResourcesByType(StructureDefinition.class)) {
-			if (sd.getUrl().equalsIgnoreCase(targetTypeUrl)) {
-				structureDefinition = sd;
-				break;
+		StructureDefinition structureDefinition = context.fetchResource(StructureDefinition.class, targetTypeUrl);
+		if (structureDefinition == null) {
+			// the URLs are compared ignoring the case
+			for (StructureDefinition sd : context.fetchResourcesByType(StructureDefinition.class)) {
+				if (sd.getUrl().equalsIgnoreCase(targetTypeUrl)) {
+					structureDefinition = sd;
+					break;
+				}
 			}
 		}
 
@@ -732,7 +856,7 @@ public class MatchboxEngine extends ValidationEngine {
 			throw new FHIRException("Unable to find StructureDefinition for target type ('" + targetTypeUrl + "')");
 		}
 
-		return Manager.build(context, structureDefinition);
+		return structureDefinition;
 	}
 
 	/**
@@ -827,12 +951,373 @@ public class MatchboxEngine extends ValidationEngine {
 						+ (sd.getDateElement() != null ? "(" + sd.getDateElement().asStringValue() + ")" : ""));
 		}
 		final List<ValidationMessage> messages = new ArrayList<>();
-		final InstanceValidator validator = getValidator(format);
-		validator.setPolicyAdvisor(new ValidationPolicyAdvisor(ReferenceValidationPolicy.CHECK_VALID));
-		validator.validate(null, messages, stream, format, (sd != null) ? new ArrayList<>(List.of(sd)) :  new ArrayList<>());
+		final PooledValidator pooled = this.borrowValidator(format);
+		final InstanceValidator validator = pooled.validator();
+		try {
+			validator.setPolicyAdvisor(new ValidationPolicyAdvisor(ReferenceValidationPolicy.CHECK_VALID));
+			validator.setBundleEntryPool(this.parallelBundleValidation ? BUNDLE_ENTRY_POOL : null);
+			validator.setChildDefinitionIndex(this.childDefinitionIndex);
+			validator.validate(null, messages, stream, format, (sd != null) ? new ArrayList<>(List.of(sd)) : new ArrayList<>());
+		} finally {
+			this.releaseValidator(pooled);
+		}
 		return this.filterValidationMessages(messages);
 	}
 
+	/**
+	 * Returns a validator from the pool, reset for a new validation, or a new one if the pool is empty. The validators
+	 * are created and configured by {@link ValidationEngine#getValidator(FhirFormat)}; the pool is emptied when the
+	 * settings of the engine have changed since they were created. The SHC format is always validated by a new
+	 * validator, because its creation loads the SHC package.
+	 */
+	private PooledValidator borrowValidator(final @Nullable FhirFormat format) throws FHIRException, IOException {
+		// read before the validator is created, a validator created while a setting changes is then not pooled
+		final long settingsVersion = this.validatorSettingsVersion.get();
+		InstanceValidator validator = null;
+		synchronized (this.validatorPool) {
+			if (settingsVersion != this.validatorPoolSettingsVersion) {
+				this.validatorPool.clear();
+				this.validatorPoolSettingsVersion = settingsVersion;
+			}
+			if (format != FhirFormat.SHC) {
+				validator = this.validatorPool.pollFirst();
+			}
+		}
+		if (validator == null) {
+			return new PooledValidator(this.getValidator(format), format != FhirFormat.SHC ? settingsVersion : -1);
+		}
+		validator.resetForReuse();
+		return new PooledValidator(validator, settingsVersion);
+	}
+
+	/**
+	 * Returns a validator to the pool, once its validation is finished, unless the settings of the engine have changed
+	 * in the meantime.
+	 */
+	private void releaseValidator(final @NonNull PooledValidator pooled) {
+		if (pooled.settingsVersion() < 0) {
+			return;
+		}
+		synchronized (this.validatorPool) {
+			if (this.validatorPool.size() < MAX_POOLED_VALIDATORS
+				&& pooled.settingsVersion() == this.validatorPoolSettingsVersion
+				&& pooled.settingsVersion() == this.validatorSettingsVersion.get()) {
+				this.validatorPool.addFirst(pooled.validator());
+			}
+		}
+	}
+
+	/*
+	 * The settings that are applied to the validators increment the version of the settings, so that the pooled
+	 * validators are not reused once they have changed.
+	 */
+
+	@Override
+	public ValidationEngine setMapLog(final String mapLog) throws FileNotFoundException {
+		super.setMapLog(mapLog);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setContext(final SimpleWorkerContext context) {
+		super.setContext(context);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setDoNative(final boolean doNative) {
+		super.setDoNative(doNative);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setNoInvariantChecks(final boolean noInvariantChecks) {
+		super.setNoInvariantChecks(noInvariantChecks);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setDisplayWarnings(final boolean displayWarnings) {
+		super.setDisplayWarnings(displayWarnings);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setWantInvariantInMessage(final boolean wantInvariantInMessage) {
+		super.setWantInvariantInMessage(wantInvariantInMessage);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setHintAboutNonMustSupport(final boolean hintAboutNonMustSupport) {
+		super.setHintAboutNonMustSupport(hintAboutNonMustSupport);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setAnyExtensionsAllowed(final boolean anyExtensionsAllowed) {
+		super.setAnyExtensionsAllowed(anyExtensionsAllowed);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setVersion(final String version) {
+		super.setVersion(version);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setLanguage(final String language) {
+		super.setLanguage(language);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setPcm(final FilesystemPackageCacheManager pcm) {
+		super.setPcm(pcm);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setDebug(final boolean debug) {
+		super.setDebug(debug);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setFetcher(final IValidatorResourceFetcher fetcher) {
+		super.setFetcher(fetcher);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setPolicyAdvisor(final IValidationPolicyAdvisor policyAdvisor) {
+		super.setPolicyAdvisor(policyAdvisor);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setLocator(final ICanonicalResourceLocator locator) {
+		super.setLocator(locator);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setAssumeValidRestReferences(final boolean assumeValidRestReferences) {
+		super.setAssumeValidRestReferences(assumeValidRestReferences);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setNoExtensibleBindingMessages(final boolean noExtensibleBindingMessages) {
+		super.setNoExtensibleBindingMessages(noExtensibleBindingMessages);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setNoUnicodeBiDiControlChars(final boolean noUnicodeBiDiControlChars) {
+		super.setNoUnicodeBiDiControlChars(noUnicodeBiDiControlChars);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setSecurityChecks(final boolean securityChecks) {
+		super.setSecurityChecks(securityChecks);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setCrumbTrails(final boolean crumbTrails) {
+		super.setCrumbTrails(crumbTrails);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setShowMessageIds(final boolean showMessageIds) {
+		super.setShowMessageIds(showMessageIds);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setForPublication(final boolean forPublication) {
+		super.setForPublication(forPublication);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setAllowExampleUrls(final boolean allowExampleUrls) {
+		super.setAllowExampleUrls(allowExampleUrls);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setShowMessagesFromReferences(final boolean showMessagesFromReferences) {
+		super.setShowMessagesFromReferences(showMessagesFromReferences);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setDoImplicitFHIRPathStringConversion(final boolean doImplicitFHIRPathStringConversion) {
+		super.setDoImplicitFHIRPathStringConversion(doImplicitFHIRPathStringConversion);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setHtmlInMarkdownCheck(final HtmlInMarkdownCheck htmlInMarkdownCheck) {
+		super.setHtmlInMarkdownCheck(htmlInMarkdownCheck);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setAllowDoubleQuotesInFHIRPath(final boolean allowDoubleQuotesInFHIRPath) {
+		super.setAllowDoubleQuotesInFHIRPath(allowDoubleQuotesInFHIRPath);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setCheckIPSCodes(final boolean checkIPSCodes) {
+		super.setCheckIPSCodes(checkIPSCodes);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setBestPracticeLevel(final BestPracticeWarningLevel bestPracticeLevel) {
+		super.setBestPracticeLevel(bestPracticeLevel);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setUnknownCodeSystemsCauseErrors(final boolean unknownCodeSystemsCauseErrors) {
+		super.setUnknownCodeSystemsCauseErrors(unknownCodeSystemsCauseErrors);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setNoExperimentalContent(final boolean noExperimentalContent) {
+		super.setNoExperimentalContent(noExperimentalContent);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setLocale(final Locale locale) {
+		super.setLocale(locale);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setIgs(final List<ImplementationGuide> igs) {
+		super.setIgs(igs);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setExtensionDomains(final List<String> extensionDomains) {
+		super.setExtensionDomains(extensionDomains);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setShowTimes(final boolean showTimes) {
+		super.setShowTimes(showTimes);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setBundleValidationRules(final List<BundleValidationRule> bundleValidationRules) {
+		super.setBundleValidationRules(bundleValidationRules);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setQuestionnaireMode(final QuestionnaireMode questionnaireMode) {
+		super.setQuestionnaireMode(questionnaireMode);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setLevel(final ValidationLevel level) {
+		super.setLevel(level);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setIgLoader(final IgLoader igLoader) {
+		super.setIgLoader(igLoader);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setJurisdiction(final Coding jurisdiction) {
+		super.setJurisdiction(jurisdiction);
+		return this.validatorSettingChanged();
+	}
+
+	@Override
+	public ValidationEngine setValidationControl(final Map<String, ValidationControl> validationControl) {
+		super.setValidationControl(validationControl);
+		return this.validatorSettingChanged();
+	}
+
+	/**
+	 * Returns the igs of the engine, which may be modified in place.
+	 */
+	@Override
+	public List<ImplementationGuide> getIgs() {
+		this.validatorSettingsVersion.incrementAndGet();
+		return super.getIgs();
+	}
+
+	/**
+	 * Returns the extensionDomains of the engine, which may be modified in place.
+	 */
+	@Override
+	public List<String> getExtensionDomains() {
+		this.validatorSettingsVersion.incrementAndGet();
+		return super.getExtensionDomains();
+	}
+
+	/**
+	 * Returns the bundleValidationRules of the engine, which may be modified in place.
+	 */
+	@Override
+	public List<BundleValidationRule> getBundleValidationRules() {
+		this.validatorSettingsVersion.incrementAndGet();
+		return super.getBundleValidationRules();
+	}
+
+	/**
+	 * Returns the validationControl of the engine, which may be modified in place.
+	 */
+	@Override
+	public Map<String, ValidationControl> getValidationControl() {
+		this.validatorSettingsVersion.incrementAndGet();
+		return super.getValidationControl();
+	}
+
+	private ValidationEngine validatorSettingChanged() {
+		this.validatorSettingsVersion.incrementAndGet();
+		return this;
+	}
+
+	private static ForkJoinPool newBundleEntryPool() {
+		final int parallelism = Runtime.getRuntime().availableProcessors();
+		final AtomicInteger threadCount = new AtomicInteger();
+		final ForkJoinPool.ForkJoinWorkerThreadFactory factory = pool -> {
+			final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("matchbox-bundle-entry-" + threadCount.incrementAndGet());
+			return thread;
+		};
+		// the tasks don't wait for each other, the pool doesn't need to add threads to compensate for blocked ones
+		return new ForkJoinPool(parallelism, factory, null, false, 0, parallelism, 1, pool -> true, 60, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * A validator borrowed from the pool, with the version of the settings it has been created with, or -1 if it is not
+	 * returned to the pool.
+	 */
+	private record PooledValidator(InstanceValidator validator, long settingsVersion) {
+	}
+
 	/**
 	 * Get the corresponding StructureDefinition (R5)
 	 *
@@ -1114,6 +1599,30 @@ public class MatchboxEngine extends ValidationEngine {
 		return this.suppressedWarnInfoPatterns;
 	}
 
+	/**
+	 * Returns whether the entries of the large Bundles are validated in parallel.
+	 */
+	public boolean isParallelBundleValidation() {
+		return this.parallelBundleValidation;
+	}
+
+	/**
+	 * Enables or disables the parallel validation of the entries of the large Bundles. The entries that reference each
+	 * other are validated by the same thread, and the messages are returned in the order of the entries, as by the
+	 * sequential validation.
+	 */
+	public void setParallelBundleValidation(final boolean parallelBundleValidation) {
+		this.parallelBundleValidation = parallelBundleValidation;
+	}
+
+	/**
+	 * Returns the index of the child and slice definitions of the elements of the profiles, with its hit and miss
+	 * counts.
+	 */
+	public ChildDefinitionIndex getChildDefinitionIndex() {
+		return this.childDefinitionIndex;
+	}
+
 	/**
 	 * Compiles the list of suppressed validation warning/information-level issues into a list of {@link Pattern}.
 	 */
@@ -0,0 +1,399 @@
+package ch.ahdis.matchbox.engine;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.r5.model.ValueSet.ValueSetExpansionContainsComponent;
+import org.hl7.fhir.utilities.VersionUtilities;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * A store of value set expansions that have been computed in advance (e.g. when an IG is installed), so that the first
+ * validations after a restart do not have to expand them again.
+ * <p>
+ * The expansions of a package are written in a compact binary file in the store directory. When the file is opened,
+ * only the URL and version of its value sets are read; an expansion is read from the file and decoded when it is
+ * requested. Only the flat expansion is stored: the system, code and display of each concept, and whether it is
+ * abstract or inactive.
+ * <p>
+ * The file format is: the magic number and format version, the number of value sets and, for each value set, its URL,
+ * version, first included system and the concepts of its expansion. The strings are stored as their UTF-8 length
+ * (or -1 if null) followed by their UTF-8 bytes.
+ */
+public class PrecomputedExpansionStore {
+	private static final Logger log = LoggerFactory.getLogger(PrecomputedExpansionStore.class);
+
+	public static final String FILE_EXTENSION = ".expansions";
+
+	private static final int MAGIC = 0x4D425845; // MBXE
+	private static final int FORMAT_VERSION = 1;
+
+	private static final byte FLAG_ABSTRACT = 1;
+	private static final byte FLAG_INACTIVE = 2;
+
+	private final Path directory;
+
+	/**
+	 * The open files, by file name. They are sorted to resolve the value sets of the same URL and version the same way
+	 * on every start.
+	 */
+	private final Map<String, ExpansionFile> files = new TreeMap<>();
+
+	/**
+	 * The location of the expansions, by 'URL|version', and by URL for the latest version. The map is replaced when a
+	 * file is added or removed.
+	 */
+	private volatile Map<String, Location> locations = Map.of();
+
+	private volatile int size = 0;
+
+	public PrecomputedExpansionStore(final @NonNull Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Opens all the expansion files of the store directory.
+	 */
+	public synchronized void load() throws IOException {
+		if (!Files.isDirectory(this.directory)) {
+			return;
+		}
+		try (final DirectoryStream<Path> paths = Files.newDirectoryStream(this.directory, "*" + FILE_EXTENSION)) {
+			for (final Path path : paths) {
+				try {
+					this.replaceFile(path.getFileName().toString(), open(path));
+				} catch (final IOException | RuntimeException e) {
+					log.warn("Unable to load the precomputed expansions of '{}'", path, e);
+				}
+			}
+		}
+		this.updateLocations();
+		log.info("Loaded {} precomputed expansions from '{}'", this.size(), this.directory);
+	}
+
+	/**
+	 * Writes the expansions of a package, replacing the previous ones, and opens them.
+	 *
+	 * @param expandedValueSets the expanded value sets; the hierarchy of their expansions is flattened.
+	 */
+	public synchronized void write(final @NonNull String packageId,
+											 final @NonNull String packageVersion,
+											 final @NonNull Collection<ValueSet> expandedValueSets) throws IOException {
+		Files.createDirectories(this.directory);
+		final String fileName = getFileName(packageId, packageVersion);
+		final Path target = this.directory.resolve(fileName);
+		final Path temporary = Files.createTempFile(this.directory, fileName, ".tmp");
+		try (final var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			output.writeInt(MAGIC);
+			output.writeInt(FORMAT_VERSION);
+			output.writeInt(expandedValueSets.size());
+			for (final ValueSet valueSet : expandedValueSets) {
+				writeString(output, valueSet.getUrl());
+				writeString(output, valueSet.getVersion());
+				writeString(output, valueSet.getCompose().getInclude().isEmpty()
+					? null
+					: valueSet.getCompose().getInclude().getFirst().getSystem());
+				final List<ValueSetExpansionContainsComponent> contains = new ArrayList<>();
+				flatten(valueSet.getExpansion().getContains(), contains);
+				output.writeInt(contains.size());
+				for (final var concept : contains) {
+					output.writeByte((concept.getAbstract() ? FLAG_ABSTRACT : 0) | (concept.getInactive() ? FLAG_INACTIVE : 0));
+					writeString(output, concept.getSystem());
+					writeString(output, concept.getCode());
+					writeString(output, concept.getDisplay());
+				}
+			}
+		}
+		// The previous file is closed before it is replaced
+		this.replaceFile(fileName, null);
+		Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		this.replaceFile(fileName, open(target));
+		this.updateLocations();
+		log.info("Stored {} precomputed expansions of {}#{}", expandedValueSets.size(), packageId, packageVersion);
+	}
+
+	/**
+	 * Removes the expansions of a package.
+	 */
+	public synchronized void remove(final @NonNull String packageId,
+											  final @NonNull String packageVersion) throws IOException {
+		final String fileName = getFileName(packageId, packageVersion);
+		if (this.replaceFile(fileName, null)) {
+			this.updateLocations();
+		}
+		Files.deleteIfExists(this.directory.resolve(fileName));
+	}
+
+	/**
+	 * Returns whether the expansions of a package are stored.
+	 */
+	public synchronized boolean contains(final @NonNull String packageId,
+													 final @NonNull String packageVersion) {
+		return this.files.containsKey(getFileName(packageId, packageVersion));
+	}
+
+	/**
+	 * Returns the precomputed expansion of a value set, or {@code null} if there is none. The returned value set only
+	 * contains the URL, the version, the first included system and the expansion.
+	 *
+	 * @param version the value set version, or {@code null} for the latest version, as resolved by the worker context.
+	 */
+	public @Nullable ValueSet getExpansion(final @Nullable String url, final @Nullable String version) {
+		if (url == null) {
+			return null;
+		}
+		final Location location = this.locations.get(version == null ? url : url + "|" + version);
+		if (location == null) {
+			return null;
+		}
+		final ByteBuffer buffer = ByteBuffer.allocate(location.length());
+		try {
+			long position = location.offset();
+			while (buffer.hasRemaining()) {
+				final int read = location.channel().read(buffer, position);
+				if (read < 0) {
+					throw new EOFException();
+				}
+				position += read;
+			}
+		} catch (final IOException e) {
+			// The file may have been removed concurrently
+			log.debug("Unable to read the precomputed expansion of '{}'", url, e);
+			return null;
+		}
+		buffer.flip();
+		final var valueSet = new ValueSet();
+		valueSet.setUrl(readString(buffer));
+		valueSet.setVersion(readString(buffer));
+		final String firstIncludedSystem = readString(buffer);
+		if (firstIncludedSystem != null) {
+			valueSet.getCompose().addInclude().setSystem(firstIncludedSystem);
+		}
+		final var expansion = valueSet.getExpansion();
+		expansion.setIdentifier("urn:uuid:" + UUID.randomUUID());
+		expansion.setTimestamp(new Date());
+		final int count = buffer.getInt();
+		expansion.setTotal(count);
+		for (int i = 0; i < count; ++i) {
+			final byte flags = buffer.get();
+			final var concept = expansion.addContains()
+				.setSystem(readString(buffer))
+				.setCode(readString(buffer))
+				.setDisplay(readString(buffer));
+			if ((flags & FLAG_ABSTRACT) != 0) {
+				concept.setAbstract(true);
+			}
+			if ((flags & FLAG_INACTIVE) != 0) {
+				concept.setInactive(true);
+			}
+		}
+		return valueSet;
+	}
+
+	/**
+	 * Returns a copy of the value set with its precomputed expansion, or {@code null} if there is none.
+	 */
+	public @Nullable ValueSet expand(final @NonNull ValueSet valueSet) {
+		final ValueSet precomputed = this.getExpansion(valueSet.getUrl(), valueSet.getVersion());
+		if (precomputed == null) {
+			return null;
+		}
+		final ValueSet expanded = valueSet.copy();
+		expanded.setExpansion(precomputed.getExpansion());
+		return expanded;
+	}
+
+	/**
+	 * Returns the number of value sets whose expansion is stored.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	public Path getDirectory() {
+		return this.directory;
+	}
+
+	public static String getFileName(final String packageId, final String packageVersion) {
+		return (packageId + "#" + packageVersion).replaceAll("[^A-Za-z0-9._#-]", "_") + FILE_EXTENSION;
+	}
+
+	/**
+	 * Replaces an open file, and closes the previous one.
+	 *
+	 * @return whether there was a previous file.
+	 */
+	private boolean replaceFile(final String fileName, final @Nullable ExpansionFile file) {
+		final ExpansionFile previous = file == null ? this.files.remove(fileName) : this.files.put(fileName, file);
+		if (previous == null) {
+			return false;
+		}
+		try {
+			previous.channel().close();
+		} catch (final IOException e) {
+			log.debug("Unable to close the precomputed expansions of '{}'", fileName, e);
+		}
+		return true;
+	}
+
+	private void updateLocations() {
+		final Map<String, Location> locations = new HashMap<>();
+		final Map<String, String> latestVersions = new HashMap<>();
+		int size = 0;
+		for (final ExpansionFile file : this.files.values()) {
+			size += file.entries().size();
+			for (final Entry entry : file.entries()) {
+				final var location = new Location(file.channel(), entry.offset(), entry.length());
+				if (entry.version() != null) {
+					locations.put(entry.url() + "|" + entry.version(), location);
+				}
+				// The URL alone resolves to the latest version, with the rules of the worker context
+				if (!locations.containsKey(entry.url())
+					|| compareVersions(entry.version(), latestVersions.get(entry.url())) >= 0) {
+					locations.put(entry.url(), location);
+					latestVersions.put(entry.url(), entry.version());
+				}
+			}
+		}
+		this.locations = Map.copyOf(locations);
+		this.size = size;
+	}
+
+	/**
+	 * Compares two value set versions like {@code BaseWorkerContext.MetadataResourceVersionComparator}: a missing
+	 * version is the oldest, then the versions are compared by major and minor version if they have one.
+	 */
+	static int compareVersions(final @Nullable String v1, final @Nullable String v2) {
+		if (v1 == null || v2 == null) {
+			return v1 == null ? (v2 == null ? 0 : -1) : 1;
+		}
+		final String mm1 = VersionUtilities.getMajMin(v1);
+		final String mm2 = VersionUtilities.getMajMin(v2);
+		return mm1 == null || mm2 == null ? v1.compareTo(v2) : mm1.compareTo(mm2);
+	}
+
+	/**
+	 * Opens an expansion file and reads the URL, version and location of its value sets.
+	 */
+	private static ExpansionFile open(final Path path) throws IOException {
+		final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			// The stream is not closed, it would close the channel
+			final var input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0))));
+			if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+				throw new IOException("Unsupported expansion file format");
+			}
+			final int count = input.readInt();
+			final List<Entry> entries = new ArrayList<>(count);
+			long offset = 12;
+			for (int i = 0; i < count; ++i) {
+				final long start = offset;
+				final String url = readString(input);
+				final String version = readString(input);
+				offset += stringSize(url) + stringSize(version) + skipString(input);
+				final int contains = input.readInt();
+				offset += 4;
+				for (int j = 0; j < contains; ++j) {
+					input.readByte();
+					offset += 1 + skipString(input) + skipString(input) + skipString(input);
+				}
+				if (url != null) {
+					entries.add(new Entry(url, version, start, Math.toIntExact(offset - start)));
+				}
+			}
+			return new ExpansionFile(channel, List.copyOf(entries));
+		} catch (final IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static void flatten(final List<ValueSetExpansionContainsComponent> contains,
+										 final List<ValueSetExpansionContainsComponent> flattened) {
+		for (final var concept : contains) {
+			if (concept.hasCode()) {
+				flattened.add(concept);
+			}
+			if (concept.hasContains()) {
+				flatten(concept.getContains(), flattened);
+			}
+		}
+	}
+
+	private static void writeString(final DataOutputStream output, final @Nullable String value) throws IOException {
+		if (value == null) {
+			output.writeInt(-1);
+			return;
+		}
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static @Nullable String readString(final ByteBuffer buffer) {
+		final int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static @Nullable String readString(final DataInputStream input) throws IOException {
+		final int length = input.readInt();
+		if (length < 0) {
+			return null;
+		}
+		return new String(input.readNBytes(length), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Skips a string and returns its size in the file.
+	 */
+	private static int skipString(final DataInputStream input) throws IOException {
+		final int length = input.readInt();
+		if (length > 0) {
+			input.skipNBytes(length);
+		}
+		return 4 + Math.max(0, length);
+	}
+
+	private static int stringSize(final @Nullable String value) {
+		return 4 + (value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length);
+	}
+
+	private record ExpansionFile(FileChannel channel, List<Entry> entries) {
+	}
+
+	private record Entry(String url, @Nullable String version, long offset, int length) {
+	}
+
+	private record Location(FileChannel channel, long offset, int length) {
+	}
+}
@@ -0,0 +1,266 @@
+package ch.ahdis.matchbox.engine;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.hl7.fhir.r5.formats.JsonParser;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.utilities.VersionUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A store of the conformance resources of packages, already parsed and converted to R5, so that an engine can load
+ * a package without decompressing it and parsing its resources in their original FHIR version.
+ * <p>
+ * The resources of a package are written in a binary file in the store directory, which is read in memory when it is
+ * opened. The file is not kept open, nor mapped, so that it can be replaced or removed while the resources that have
+ * been opened are still used (which would fail on Windows). The file starts with an index of the resources (their type, id, URL, version, supplements, derivation and
+ * content, and the OIDs of the code systems), so that the resources can be registered without being parsed, followed
+ * by their R5 JSON representation. R5 JSON is used instead of Java serialization because the latter loses the
+ * extensions of primitive values.
+ * <p>
+ * The file format is: the magic number and format version, the version of the FHIR core library that has converted
+ * the resources, the package id and version, the package timestamp, the number of resources and, for each resource,
+ * its index entry, the number of its OIDs and the OIDs, and the length of its JSON representation; then the JSON
+ * representations. The strings are stored as their UTF-8 length (or -1 if null) followed by their UTF-8 bytes. A file
+ * written by another version of the core library, or for another timestamp of the package, is ignored.
+ */
+public class PreparsedPackageStore {
+	private static final Logger log = LoggerFactory.getLogger(PreparsedPackageStore.class);
+
+	public static final String FILE_EXTENSION = ".preparsed";
+
+	private static final int MAGIC = 0x4D425850; // MBXP
+	private static final int FORMAT_VERSION = 2;
+
+	private final Path directory;
+
+	public PreparsedPackageStore(final @NonNull Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Opens the pre-parsed resources of a package, or returns {@code null} if they have not been stored, have been
+	 * stored for another timestamp of the package or by another version of the core library, or can't be read.
+	 *
+	 * @param packageTimestamp the timestamp of the installed package, to detect a package that has been re-installed.
+	 */
+	public @Nullable List<Entry> open(final @NonNull String packageId,
+												 final @NonNull String packageVersion,
+												 final long packageTimestamp) {
+		final Path path = this.directory.resolve(getFileName(packageId, packageVersion));
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try {
+			final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION
+				|| !Objects.equals(VersionUtil.getVersion(), readString(buffer))
+				|| !packageId.equals(readString(buffer))
+				|| !packageVersion.equals(readString(buffer))
+				|| buffer.getLong() != packageTimestamp) {
+				log.debug("Ignoring the outdated pre-parsed resources of {}#{}", packageId, packageVersion);
+				return null;
+			}
+			final int count = buffer.getInt();
+			final List<Entry> entries = new ArrayList<>(count);
+			final int[] lengths = new int[count];
+			for (int i = 0; i < count; ++i) {
+				final String type = readString(buffer);
+				final String id = readString(buffer);
+				final String url = readString(buffer);
+				final String version = readString(buffer);
+				final String supplements = readString(buffer);
+				final String derivation = readString(buffer);
+				final String content = readString(buffer);
+				final List<String> oids = new ArrayList<>(0);
+				for (int j = buffer.getInt(); j > 0; --j) {
+					oids.add(readString(buffer));
+				}
+				entries.add(new Entry(type, id, url, version, supplements, derivation, content, oids, null));
+				lengths[i] = buffer.getInt();
+			}
+			int offset = buffer.position();
+			for (int i = 0; i < count; ++i) {
+				entries.set(i, entries.get(i).withJson(buffer.slice(offset, lengths[i])));
+				offset += lengths[i];
+			}
+			if (offset != buffer.limit()) {
+				throw new IOException("Unexpected end of file at " + offset + " instead of " + buffer.limit());
+			}
+			return entries;
+		} catch (final IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+			log.warn("Unable to read the pre-parsed resources of {}#{} in '{}'", packageId, packageVersion, path, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the pre-parsed resources of a package, replacing the previous ones.
+	 *
+	 * @param packageTimestamp the timestamp of the installed package.
+	 * @param resources        the resources, in the order in which they have to be loaded.
+	 */
+	public void write(final @NonNull String packageId,
+							final @NonNull String packageVersion,
+							final long packageTimestamp,
+							final @NonNull Collection<CanonicalResource> resources) throws IOException {
+		final var parser = new JsonParser();
+		final List<byte[]> jsons = new ArrayList<>(resources.size());
+		for (final CanonicalResource resource : resources) {
+			jsons.add(parser.composeBytes(resource));
+		}
+
+		Files.createDirectories(this.directory);
+		final String fileName = getFileName(packageId, packageVersion);
+		final Path temporary = Files.createTempFile(this.directory, fileName, ".tmp");
+		try (final var output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+			output.writeInt(MAGIC);
+			output.writeInt(FORMAT_VERSION);
+			writeString(output, VersionUtil.getVersion());
+			writeString(output, packageId);
+			writeString(output, packageVersion);
+			output.writeLong(packageTimestamp);
+			output.writeInt(resources.size());
+			int i = 0;
+			for (final CanonicalResource resource : resources) {
+				writeString(output, resource.fhirType());
+				writeString(output, resource.getIdBase());
+				writeString(output, resource.getUrl());
+				writeString(output, resource.getVersion());
+				if (resource instanceof final CodeSystem codeSystem) {
+					writeString(output, codeSystem.getSupplements());
+					writeString(output, null);
+					writeString(output, codeSystem.hasContent() ? codeSystem.getContent().toCode() : null);
+				} else if (resource instanceof final StructureDefinition structureDefinition) {
+					writeString(output, null);
+					writeString(output, structureDefinition.hasDerivation()
+						? structureDefinition.getDerivation().toCode()
+						: null);
+					writeString(output, null);
+				} else {
+					writeString(output, null);
+					writeString(output, null);
+					writeString(output, null);
+				}
+				final List<String> oids = getOids(resource);
+				output.writeInt(oids.size());
+				for (final String oid : oids) {
+					writeString(output, oid);
+				}
+				output.writeInt(jsons.get(i++).length);
+			}
+			for (final byte[] json : jsons) {
+				output.write(json);
+			}
+		} catch (final IOException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+		Files.move(temporary, this.directory.resolve(fileName), StandardCopyOption.REPLACE_EXISTING,
+					  StandardCopyOption.ATOMIC_MOVE);
+		log.info("Stored {} pre-parsed resources of {}#{}", resources.size(), packageId, packageVersion);
+	}
+
+	/**
+	 * Removes the pre-parsed resources of a package.
+	 */
+	public void remove(final @NonNull String packageId,
+							 final @NonNull String packageVersion) throws IOException {
+		Files.deleteIfExists(this.directory.resolve(getFileName(packageId, packageVersion)));
+	}
+
+	public Path getDirectory() {
+		return this.directory;
+	}
+
+	public static String getFileName(final String packageId, final String packageVersion) {
+		return (packageId + "#" + packageVersion).replaceAll("[^A-Za-z0-9._#-]", "_") + FILE_EXTENSION;
+	}
+
+	/**
+	 * Returns the OIDs of a code system, that are registered in the context with the code system.
+	 */
+	private static List<String> getOids(final CanonicalResource resource) {
+		if (!(resource instanceof final CodeSystem codeSystem)) {
+			return List.of();
+		}
+		final List<String> oids = new ArrayList<>(1);
+		for (final var identifier : codeSystem.getIdentifier()) {
+			if (identifier.hasValue() && identifier.getValue().startsWith("urn:oid:")) {
+				oids.add(identifier.getValue().substring(8));
+			}
+		}
+		return oids;
+	}
+
+	private static void writeString(final DataOutputStream output, final @Nullable String value) throws IOException {
+		if (value == null) {
+			output.writeInt(-1);
+			return;
+		}
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static @Nullable String readString(final ByteBuffer buffer) {
+		final int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+		final byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The index entry of a pre-parsed resource. The resource itself is only parsed by {@link #parse()}.
+	 *
+	 * @param supplements the supplemented code system of a CodeSystem.
+	 * @param derivation  the derivation of a StructureDefinition.
+	 * @param content     the content of a CodeSystem.
+	 * @param oids        the OIDs of a CodeSystem.
+	 */
+	public record Entry(String type,
+							  @Nullable String id,
+							  @Nullable String url,
+							  @Nullable String version,
+							  @Nullable String supplements,
+							  @Nullable String derivation,
+							  @Nullable String content,
+							  List<String> oids,
+							  ByteBuffer json) {
+
+		/**
+		 * Parses the resource from its JSON representation.
+		 */
+		public Resource parse() throws IOException {
+			final byte[] bytes = new byte[this.json.remaining()];
+			this.json.duplicate().get(bytes);
+			return new JsonParser().parse(bytes);
+		}
+
+		private Entry withJson(final ByteBuffer json) {
+			return new Entry(this.type, this.id, this.url, this.version, this.supplements, this.derivation, this.content,
+								  this.oids, json);
+		}
+	}
+}
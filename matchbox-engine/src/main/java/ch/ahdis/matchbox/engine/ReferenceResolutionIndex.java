@@ -0,0 +1,198 @@
+package ch.ahdis.matchbox.engine;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.hl7.fhir.r5.elementmodel.Element;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The index of the targets of the references of a resource that is being validated: the entries of a Bundle, by the
+ * id at the end of their full URL and by type and id, and the contained resources, by id. It is built once, the first
+ * time a reference is resolved in the resource, and kept in the user data of the resource element, so that it lives as
+ * long as the validated resource; the references are then resolved in constant time instead of by a scan of the
+ * entries or contained resources.
+ * <p>
+ * The lookups return the same elements as the scans of the validator, in particular the first one in document order
+ * when several match. The full URL that a reference targets is not computed here: the entries that end with the id of
+ * the reference are given to the validator, that applies its own rules to them. The index is immutable once built and
+ * can be used by concurrent validators.
+ */
+public class ReferenceResolutionIndex {
+
+	/**
+	 * The user data key of the index in the resource element, that can be cleared to rebuild the index.
+	 */
+	public static final String USER_DATA_KEY = "matchbox.reference_resolution_index";
+
+	/**
+	 * The indexed resource element.
+	 */
+	private final Element resource;
+
+	/**
+	 * The entries of the Bundle, in document order, empty if the resource is not a Bundle.
+	 */
+	private final List<Element> entries = new ArrayList<>();
+
+	/**
+	 * The entries, in document order, by the last segment of their full URL (after the last '/' or ':').
+	 */
+	private final Map<String, List<Element>> entriesById = new HashMap<>();
+
+	/**
+	 * The resource of the first entry, by full URL or by 'type/id' of its resource.
+	 */
+	private final Map<String, Element> resourcesByUrl = new HashMap<>();
+
+	/**
+	 * The positions of the entries of the Bundle, by identity.
+	 */
+	private final Map<Element, Integer> entryPositions = new IdentityHashMap<>();
+
+	/**
+	 * The position of the first contained resource, by id.
+	 */
+	private final Map<String, Integer> containedById = new HashMap<>();
+
+	private final List<Element> contained = new ArrayList<>();
+
+	private ReferenceResolutionIndex(final Element resource) {
+		this.resource = resource;
+		if ("Bundle".equals(resource.fhirType())) {
+			resource.getNamedChildren("entry", this.entries);
+			for (int i = 0; i < this.entries.size(); ++i) {
+				final Element entry = this.entries.get(i);
+				this.entryPositions.put(entry, i);
+				final String fullUrl = entry.getChildValue("fullUrl");
+				if (fullUrl != null) {
+					this.entriesById.computeIfAbsent(getLastSegment(fullUrl), key -> new ArrayList<>(1)).add(entry);
+				}
+				final Element entryResource = entry.getNamedChild("resource", false);
+				if (entryResource != null) {
+					if (fullUrl != null) {
+						this.resourcesByUrl.putIfAbsent(fullUrl, entryResource);
+					}
+					final String id = entryResource.getChildValue("id");
+					if (id != null) {
+						this.resourcesByUrl.putIfAbsent(entryResource.fhirType() + "/" + id, entryResource);
+					}
+				}
+			}
+		}
+		resource.getNamedChildren("contained", this.contained);
+		for (int i = 0; i < this.contained.size(); ++i) {
+			final String id = this.contained.get(i).getNamedChildValue("id", false);
+			if (id != null) {
+				this.containedById.putIfAbsent(id, i);
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of a resource element, building it if it has not been built yet.
+	 */
+	public static @NonNull ReferenceResolutionIndex of(final @NonNull Element resource) {
+		final Object index = resource.getUserData(USER_DATA_KEY);
+		// The user data may have been copied with the element, the index of another element is not used
+		if (index instanceof final ReferenceResolutionIndex referenceResolutionIndex
+			&& referenceResolutionIndex.resource == resource) {
+			return referenceResolutionIndex;
+		}
+		// The index may be built twice by concurrent validators, the indexes are identical
+		final ReferenceResolutionIndex built = new ReferenceResolutionIndex(resource);
+		resource.setUserData(USER_DATA_KEY, built);
+		return built;
+	}
+
+	/**
+	 * Returns the entries of the Bundle, in document order.
+	 */
+	public @NonNull List<Element> getEntries() {
+		return this.entries;
+	}
+
+	/**
+	 * Returns a Bundle element whose entries are the entries of the Bundle that the given reference may target, in
+	 * document order: the entries whose full URL ends with the id of the reference. The full URL that a reference
+	 * targets always ends with its id, so the validator finds the same entries in it as in the whole Bundle. Only the
+	 * entries of the returned element can be read.
+	 */
+	public @NonNull Element getCandidateEntries(final @NonNull String reference) {
+		String url = reference;
+		if (url.contains("/_history/")) {
+			url = url.substring(0, url.indexOf("/_history/"));
+		}
+		return new EntryView(this.entriesById.getOrDefault(getLastSegment(url), List.of()));
+	}
+
+	/**
+	 * Returns the position of an entry of the Bundle, or -1.
+	 */
+	public int getEntryPosition(final @NonNull Element entry) {
+		return this.entryPositions.getOrDefault(entry, -1);
+	}
+
+	/**
+	 * Returns the resource of the first entry whose full URL, or the 'type/id' of its resource, is the given URL.
+	 */
+	public @Nullable Element getResourceByUrl(final @NonNull String url) {
+		return this.resourcesByUrl.get(url);
+	}
+
+	/**
+	 * Returns the entry of the Bundle that contains the given element, or {@code null} if the element has no parent
+	 * that is an entry of the Bundle.
+	 */
+	public @Nullable Element getEntryOf(final @NonNull Element element) {
+		Element parent = element;
+		while (parent.hasParentForValidator() && parent.getParentForValidator() != null) {
+			parent = parent.getParentForValidator();
+			if (this.entryPositions.containsKey(parent)) {
+				return parent;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the position of the first contained resource that has the given id, or -1.
+	 */
+	public int getContainedPosition(final @NonNull String id) {
+		return this.containedById.getOrDefault(id, -1);
+	}
+
+	/**
+	 * Returns the contained resources, in document order.
+	 */
+	public @NonNull List<Element> getContained() {
+		return this.contained;
+	}
+
+	private static String getLastSegment(final String url) {
+		return url.substring(Math.max(url.lastIndexOf('/'), url.lastIndexOf(':')) + 1);
+	}
+
+	/**
+	 * A Bundle element that only has some of the entries of a Bundle.
+	 */
+	private static class EntryView extends Element {
+		private final List<Element> entries;
+
+		EntryView(final List<Element> entries) {
+			super("Bundle");
+			this.entries = entries;
+		}
+
+		@Override
+		public void getNamedChildren(final String name, final List<Element> list) {
+			if ("entry".equals(name)) {
+				list.addAll(this.entries);
+			}
+		}
+	}
+}
@@ -2,6 +2,8 @@ package ch.ahdis.matchbox.engine.cli;
 
 import java.net.Authenticator;
 import java.net.PasswordAuthentication;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 /*
@@ -67,6 +69,7 @@ public class MatchboxCli {
   public static final String JAVA_DISABLED_TUNNELING_SCHEMES = "jdk.http.auth.tunneling.disabledSchemes";
   public static final String JAVA_DISABLED_PROXY_SCHEMES = "jdk.http.auth.proxying.disabledSchemes";
   public static final String JAVA_USE_SYSTEM_PROXIES = "java.net.useSystemProxies";
+  public static final String THREADS = "-threads";
 
   private static MatchboxService matchboxService = new MatchboxService();
 
@@ -117,6 +120,7 @@ public class MatchboxCli {
       System.setProperty(JAVA_DISABLED_PROXY_SCHEMES, "");
     }
 
+    args = extractMatchboxParams(args);
     CliContext cliContext = Params.loadCliContext(args);
 
     FileFormat.checkCharsetAndWarnIfNotUTF8(System.out);
@@ -132,6 +136,24 @@ public class MatchboxCli {
     }
   }
 
+  /**
+   * Applies the matchbox specific parameters, and removes them from the arguments, as the other parameters would
+   * consider them as sources.
+   */
+  protected static String[] extractMatchboxParams(String[] args) {
+    List<String> remaining = new ArrayList<>(args.length);
+    for (int i = 0; i < args.length; i++) {
+      if (THREADS.equals(args[i])) {
+        if (i + 1 == args.length)
+          throw new IllegalArgumentException("Specified -threads without indicating the number of threads");
+        matchboxService.setTransformThreads(Integer.parseInt(args[++i]));
+      } else {
+        remaining.add(args[i]);
+      }
+    }
+    return remaining.toArray(new String[0]);
+  }
+
   protected static void parseTestParamsAndExecute(String[] args) {
     final String testModuleParam = Params.getParam(args, Params.TEST_MODULES);
     final String testClassnameFilter = Params.getParam(args, Params.TEST_NAME_FILTER);
@@ -1,12 +1,23 @@
 package ch.ahdis.matchbox.engine.cli;
 
+import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryMXBean;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
 
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.r5.context.ContextUtilities;
@@ -60,6 +71,7 @@ import org.hl7.fhir.validation.cli.services.StandAloneValidatorFetcher;
 import org.hl7.fhir.validation.cli.utils.EngineMode;
 import org.hl7.fhir.validation.cli.utils.VersionSourceInformation;
 
+import ch.ahdis.matchbox.engine.BulkTransformer;
 import ch.ahdis.matchbox.engine.CdaMappingEngine;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
 
@@ -72,11 +84,18 @@ import ch.ahdis.matchbox.engine.MatchboxEngine;
  */
 public class MatchboxService {
 
+  protected static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MatchboxService.class);
+
   public static final String CURRENT_DEFAULT_VERSION = "4.0";
   public static final String CURRENT_DEFAULT_FULL_VERSION = "4.0.1";
 
   private final PassiveExpiringSessionCache sessionCache;
 
+  /**
+   * The number of threads used by the bulk transforms.
+   */
+  private int transformThreads = Runtime.getRuntime().availableProcessors();
+
   public MatchboxService() {
     sessionCache = new PassiveExpiringSessionCache();
   }
@@ -298,9 +317,19 @@ public class MatchboxService {
     }
   }
 
+  public int getTransformThreads() {
+    return transformThreads;
+  }
+
+  public void setTransformThreads(int transformThreads) {
+    this.transformThreads = transformThreads;
+  }
+
   public void transform(CliContext cliContext, ValidationEngine validator) throws Exception {
-    if (cliContext.getSources().size() > 1)
-      throw new Exception("Can only have one source when doing a transform (found " + cliContext.getSources() + ")");
+    if (isBulkTransform(cliContext)) {
+      transformBulk(cliContext, validator);
+      return;
+    }
     if (cliContext.getTxServer() == null)
       throw new Exception("Must provide a terminology server when doing a transform");
     if (cliContext.getMap() == null)
@@ -330,6 +359,69 @@ public class MatchboxService {
     }
   }
 
+  /**
+   * A transform is done in bulk if there are several sources, a directory source, or a NDJSON source or output.
+   */
+  private boolean isBulkTransform(CliContext cliContext) {
+    if (cliContext.getSources().size() > 1)
+      return true;
+    if (cliContext.getOutput() != null && cliContext.getOutput().endsWith(".ndjson"))
+      return true;
+    return cliContext.getSources().stream().anyMatch(s -> s.endsWith(".ndjson") || new File(s).isDirectory());
+  }
+
+  /**
+   * Transforms each source file (each file of a source directory, each line of a NDJSON source) with the map, and
+   * writes the results to the NDJSON output as soon as they are available.
+   */
+  public void transformBulk(CliContext cliContext, ValidationEngine validator) throws Exception {
+    if (!(validator instanceof MatchboxEngine engine))
+      throw new Exception("A bulk transform requires a matchbox engine");
+    if (cliContext.getMap() == null)
+      throw new Exception("Must provide a map when doing a transform");
+    if (cliContext.getOutput() == null)
+      throw new Exception("Must provide an output file when doing a bulk transform");
+    ContextUtilities cu = new ContextUtilities(validator.getContext());
+    for (StructureDefinition sd : cu.allStructures()) {
+      if (!sd.hasSnapshot()) {
+        cu.generateSnapshot(sd);
+      }
+    }
+    validator.setMapLog(cliContext.getMapLog());
+    ExecutorService executor = BulkTransformer.newExecutor(transformThreads);
+    BulkTransformer transformer = new BulkTransformer(engine, cliContext.getMap(), executor, transformThreads);
+    try (Stream<byte[]> inputs = cliContext.getSources().stream().flatMap(MatchboxService::readBulkInputs);
+         Writer output = new OutputStreamWriter(new FileOutputStream(cliContext.getOutput()), StandardCharsets.UTF_8)) {
+      Iterator<byte[]> iterator = inputs.iterator();
+      transformer.transform(iterator, output);
+    } finally {
+      executor.shutdownNow();
+    }
+    log.info("Bulk transform to {}: {} resources transformed, {} failures", cliContext.getOutput(),
+        transformer.getTransformedCount(), transformer.getFailedCount());
+  }
+
+  private static Stream<byte[]> readBulkInputs(String source) {
+    try {
+      File file = new File(source);
+      if (file.isDirectory()) {
+        File[] files = file.listFiles(File::isFile);
+        if (files == null)
+          return Stream.empty();
+        Arrays.sort(files);
+        return Arrays.stream(files).flatMap(f -> readBulkInputs(f.getPath()));
+      }
+      if (source.endsWith(".ndjson")) {
+        return Files.lines(Path.of(source), StandardCharsets.UTF_8)
+            .filter(line -> !line.isBlank())
+            .map(BulkTransformer::fromNdjsonLine);
+      }
+      return Stream.of(Files.readAllBytes(file.toPath()));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
   public void compile(CliContext cliContext, ValidationEngine validator) throws Exception {
     if (cliContext.getSources().size() > 0)
       throw new Exception("Cannot specify sources when compling transform (found " + cliContext.getSources() + ")");
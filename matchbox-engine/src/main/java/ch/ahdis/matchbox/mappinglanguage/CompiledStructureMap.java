@@ -0,0 +1,128 @@
+package ch.ahdis.matchbox.mappinglanguage;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.hl7.fhir.r5.model.StructureMap;
+import org.hl7.fhir.r5.model.StructureMap.StructureMapGroupComponent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A StructureMap prepared for repeated transforms: the target StructureDefinition is resolved, the FHIRPath
+ * expressions of the rules are parsed, and the groups resolved during the transforms are kept for the next ones. The
+ * {@link MatchboxStructureMapUtilities} are reused between transforms, as their creation is costly.
+ * <p>
+ * It is only valid as long as the resources of the engine context and the target context are unchanged, see
+ * {@link #isUpToDate(SimpleWorkerContext, SimpleWorkerContext)}.
+ */
+public class CompiledStructureMap {
+
+	private final StructureMap map;
+
+	private final StructureDefinition targetStructureDefinition;
+
+	private final SimpleWorkerContext context;
+
+	private final SimpleWorkerContext targetContext;
+
+	/**
+	 * The revision of the resources of the context and target context when the map was compiled.
+	 */
+	private final long contextRevision;
+
+	private final long targetContextRevision;
+
+	/**
+	 * The groups and types resolved during the transforms, shared by all the utilities.
+	 */
+	private final Map<StructureMapGroupComponent, Map<String, Object>> resolutionCache =
+		Collections.synchronizedMap(new IdentityHashMap<>());
+
+	/**
+	 * The utilities that are not currently used by a transform.
+	 */
+	private final Queue<MatchboxStructureMapUtilities> idleUtilities = new ConcurrentLinkedQueue<>();
+
+	private final MatchboxEngine engine;
+
+	public CompiledStructureMap(final @NonNull StructureMap map,
+										 final @NonNull StructureDefinition targetStructureDefinition,
+										 final @NonNull SimpleWorkerContext context,
+										 final @NonNull SimpleWorkerContext targetContext,
+										 final @NonNull MatchboxEngine engine) throws FHIRException {
+		this.contextRevision = context.getResourceRevision();
+		this.targetContextRevision = targetContext.getResourceRevision();
+		this.map = map;
+		this.targetStructureDefinition = targetStructureDefinition;
+		this.context = context;
+		this.targetContext = targetContext;
+		this.engine = engine;
+
+		final MatchboxStructureMapUtilities utilities = this.createUtilities();
+		utilities.precompile(map);
+		this.idleUtilities.add(utilities);
+	}
+
+	/**
+	 * Returns whether no resource has been added to or removed from the contexts since the map was compiled.
+	 */
+	public boolean isUpToDate(final @NonNull SimpleWorkerContext context,
+									  final @NonNull SimpleWorkerContext targetContext) {
+		return context == this.context && targetContext == this.targetContext && !this.isOutdated();
+	}
+
+	/**
+	 * Returns whether a resource has been added to or removed from the contexts of the map since it was compiled, in
+	 * which case it can't be used anymore.
+	 */
+	public boolean isOutdated() {
+		return this.context.getResourceRevision() != this.contextRevision
+			|| this.targetContext.getResourceRevision() != this.targetContextRevision;
+	}
+
+	public StructureMap getMap() {
+		return this.map;
+	}
+
+	/**
+	 * Transforms the source element with the map.
+	 */
+	public Element transform(final @NonNull Element source) throws FHIRException {
+		MatchboxStructureMapUtilities utilities = this.idleUtilities.poll();
+		if (utilities == null) {
+			utilities = this.createUtilities();
+		}
+		try {
+			final List<Base> outputs = new ArrayList<>();
+			utilities.setServices(new TransformSupportServices(this.targetContext, outputs));
+			final Element target = Manager.build(this.targetContext, this.targetStructureDefinition);
+			utilities.transform(null, source, this.map, target);
+			target.populatePaths(null);
+			return target;
+		} finally {
+			utilities.setServices(null);
+			this.idleUtilities.add(utilities);
+		}
+	}
+
+	private MatchboxStructureMapUtilities createUtilities() {
+		final var utilities = new MatchboxStructureMapUtilities(this.context,
+																				  new TransformSupportServices(this.targetContext,
+																														 new ArrayList<>()),
+																				  this.engine);
+		utilities.setResolutionCache(this.resolutionCache);
+		return utilities;
+	}
+}
@@ -39,6 +39,7 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -49,6 +50,8 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 import lombok.Getter;
 import org.apache.commons.lang3.StringUtils;
@@ -130,6 +133,7 @@ import org.hl7.fhir.r5.terminologies.utilities.TerminologyCache.SourcedValueSet;
 import org.hl7.fhir.r5.terminologies.validation.VSCheckerException;
 import org.hl7.fhir.r5.terminologies.validation.ValueSetValidator;
 import org.hl7.fhir.r5.terminologies.ValueSetUtilities;
+import org.hl7.fhir.r5.terminologies.client.ITerminologyClient;
 import org.hl7.fhir.r5.terminologies.client.TerminologyClientManager;
 import org.hl7.fhir.r5.terminologies.client.TerminologyClientR5;
 import org.hl7.fhir.r5.terminologies.client.TerminologyClientContext;
@@ -241,6 +245,18 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   private boolean minimalMemory = false;
 
   private Map<String, Map<String, ResourceProxy>> allResourcesById = new HashMap<String, Map<String, ResourceProxy>>();
+  // matchbox patch: the maps of allResourcesById are shared between a context and its copies (e.g. the engine holding
+  // the FHIR core definitions and the engines of the IGs), they are only copied on the first write (copy-on-write)
+  private final Set<String> sharedResourceTypes = new HashSet<String>();
+  // matchbox patch: incremented each time a resource is added or removed, so that what is derived from the resources
+  // (e.g. the compiled StructureMaps) can be invalidated
+  private volatile long resourceRevision = 0;
+  // matchbox patch: returns the expansion of a value set that has been computed in advance (e.g. when the IG was
+  // installed), or null if there is none
+  private Function<ValueSet, ValueSet> precomputedExpansions;
+  // matchbox patch: validates a batch of codes on a terminology server with a dedicated operation, returns null if it
+  // can't be used for that server or batch
+  private BiFunction<ITerminologyClient, Bundle, Bundle> batchCodeValidation;
   // all maps are to the full URI
   private CanonicalResourceManager<CodeSystem> codeSystems = new CanonicalResourceManager<CodeSystem>(false, minimalMemory);
   private final Set<String> supportedCodeSystems = new HashSet<String>();
@@ -314,6 +330,8 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   protected void copy(BaseWorkerContext other) {
     synchronized (other.lock) { // tricky, because you need to lock this as well, but it's really not in use yet 
       allResourcesById.putAll(other.allResourcesById);
+      sharedResourceTypes.addAll(other.allResourcesById.keySet());
+      other.sharedResourceTypes.addAll(other.allResourcesById.keySet());
       codeSystems.copy(other.codeSystems);
       valueSets.copy(other.valueSets);
       maps.copy(other.maps);
@@ -355,28 +373,149 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
       userAgent = other.userAgent;
       terminologyClientManager.copy(other.terminologyClientManager);
       cachingAllowed = other.cachingAllowed;
+      precomputedExpansions = other.precomputedExpansions;
+      batchCodeValidation = other.batchCodeValidation;
     }
   }
   
   
+  /**
+   * matchbox patch: returns the map of the resources of the given type, that can be modified without modifying the
+   * context this one was copied from.
+   */
+  private Map<String, ResourceProxy> getWritableResourcesById(String type) {
+    Map<String, ResourceProxy> map = allResourcesById.get(type);
+    if (map == null) {
+      map = new HashMap<String, ResourceProxy>();
+      allResourcesById.put(type, map);
+    } else if (sharedResourceTypes.remove(type)) {
+      map = new HashMap<String, ResourceProxy>(map);
+      allResourcesById.put(type, map);
+    }
+    return map;
+  }
+
+  /**
+   * matchbox patch: sets the source of the value set expansions that have been computed in advance, they are used
+   * before expanding a value set locally or on the terminology server.
+   */
+  public void setPrecomputedExpansions(Function<ValueSet, ValueSet> precomputedExpansions) {
+    this.precomputedExpansions = precomputedExpansions;
+  }
+
+  /**
+   * matchbox patch: the expansion parameters that change the content of an expansion, the precomputed expansions can't
+   * be used with them.
+   */
+  private static final Set<String> CONTENT_EXPANSION_PARAMETERS = Set.of("activeOnly", "count", "offset", "filter",
+    "includeDesignations", "designation", "displayLanguage", "includeDefinition", "property", "system-version",
+    "check-system-version", "force-system-version", "exclude-system");
+
+  private static boolean hasContentExpansionParameters(Parameters parameters) {
+    for (ParametersParameterComponent parameter : parameters.getParameter()) {
+      if (CONTENT_EXPANSION_PARAMETERS.contains(parameter.getName())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * matchbox patch: sets the validation of the batches of codes with a dedicated operation of the terminology server,
+   * the batches are sent as a batch Bundle if it returns null.
+   */
+  public void setBatchCodeValidation(BiFunction<ITerminologyClient, Bundle, Bundle> batchCodeValidation) {
+    this.batchCodeValidation = batchCodeValidation;
+  }
+
+  /**
+   * matchbox patch: returns a number that changes each time a resource is added to or removed from the context.
+   */
+  public long getResourceRevision() {
+    return resourceRevision;
+  }
+
   public void cacheResource(Resource r) throws FHIRException {
     cacheResourceFromPackage(r, null);  
   }
+
+  /**
+   * matchbox patch: registers the OIDs of a code system that is registered as a proxy, as cacheResourceFromPackage
+   * does for the code systems that are cached.
+   */
+  public void cacheCodeSystemOids(String url, String version, Collection<String> oids) {
+    synchronized (lock) {
+      for (String oid : oids) {
+        oidCacheManual.computeIfAbsent(oid, k -> new HashSet<>()).add(new OIDDefinition("CodeSystem", oid, url, version, null, null));
+      }
+    }
+  }
+
+  /**
+   * matchbox patch: returns whether a canonical resource of the given type is registered with the URL, without fetching
+   * it, so that the resources registered as proxies are not parsed (hasResource() fetches them). The other types are
+   * looked up with hasResource().
+   */
+  public boolean hasCanonicalResource(String cls, String uri) {
+    if (uri == null) {
+      return false;
+    }
+    if ("StructureDefinition".equals(cls)) {
+      uri = ProfileUtilities.sdNs(uri, null);
+    }
+    String version = null;
+    if (uri.contains("|")) {
+      version = uri.substring(uri.lastIndexOf("|")+1);
+      uri = uri.substring(0, uri.lastIndexOf("|"));
+    }
+    if (uri.contains("#")) {
+      uri = uri.substring(0, uri.indexOf("#"));
+    }
+    CanonicalResourceManager<?> manager = getCanonicalResourceManager(cls);
+    if (manager == null) {
+      return hasResource(cls, uri);
+    }
+    synchronized (lock) {
+      return version == null ? manager.has(uri) : manager.has(uri, version);
+    }
+  }
+
+  private CanonicalResourceManager<?> getCanonicalResourceManager(String cls) {
+    if (cls == null) {
+      return null;
+    }
+    return switch (cls) {
+      case "StructureDefinition" -> structures;
+      case "ImplementationGuide" -> guides;
+      case "CapabilityStatement" -> capstmts;
+      case "Measure" -> measures;
+      case "Library" -> libraries;
+      case "ValueSet" -> valueSets;
+      case "CodeSystem" -> codeSystems;
+      case "NamingSystem" -> systems;
+      case "OperationDefinition" -> operations;
+      case "SearchParameter" -> searchParameters;
+      case "PlanDefinition" -> plans;
+      case "ConceptMap" -> maps;
+      case "StructureMap" -> transforms;
+      case "ActorDefinition" -> actors;
+      case "Requirements" -> requirements;
+      case "Questionnaire" -> questionnaires;
+      default -> null;
+    };
+  }
   
 
   public void registerResourceFromPackage(CanonicalResourceProxy r, PackageInformation packageInfo) throws FHIRException {    
     PackageHackerR5.fixLoadedResource(r, packageInfo);
 
     synchronized (lock) {
+      resourceRevision++;
       if (packageInfo != null) {
         packages.put(packageInfo.getVID(), packageInfo);
       }
       if (r.getId() != null) {
-        Map<String, ResourceProxy> map = allResourcesById.get(r.getType());
-        if (map == null) {
-          map = new HashMap<String, ResourceProxy>();
-          allResourcesById.put(r.getType(), map);
-        }
+        Map<String, ResourceProxy> map = getWritableResourcesById(r.getType());
         if ((packageInfo == null || !packageInfo.isExamplesPackage()) || !map.containsKey(r.getId())) {
           map.put(r.getId(), new ResourceProxy(r));
         }
@@ -453,16 +592,13 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
   public void cacheResourceFromPackage(Resource r, PackageInformation packageInfo) throws FHIRException {
  
     synchronized (lock) {   
+      resourceRevision++;
       if (packageInfo != null) {
         packages.put(packageInfo.getVID(), packageInfo);
       }
 
       if (r.getId() != null) {
-        Map<String, ResourceProxy> map = allResourcesById.get(r.fhirType());
-        if (map == null) {
-          map = new HashMap<String, ResourceProxy>();
-          allResourcesById.put(r.fhirType(), map);
-        }
+        Map<String, ResourceProxy> map = getWritableResourcesById(r.fhirType());
         if ((packageInfo == null || !packageInfo.isExamplesPackage()) || !map.containsKey(r.getId())) {
           map.put(r.getId(), new ResourceProxy(r));
         } else {
@@ -972,6 +1108,16 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
       }
     }
 
+    // matchbox patch: use the expansion computed in advance, it is flat and complete
+    if (precomputedExpansions != null && !hierarchical && !hasContentExpansionParameters(pIn)) {
+      ValueSet precomputed = precomputedExpansions.apply(vs);
+      if (precomputed != null) {
+        res = new ValueSetExpansionOutcome(precomputed);
+        txCache.cacheExpansion(cacheToken, res, TerminologyCache.TRANSIENT);
+        return res;
+      }
+    }
+
     if (!noLimits) {
       p.addParameter("count", expandCodesLimit);
       p.addParameter("offset", 0);
@@ -1168,12 +1314,25 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
     if (txLog != null) {
       txLog.clearLastId();
     }
-    Bundle resp = tc.getClient().validateBatch(batch);
+    // matchbox patch: a matchbox terminology server validates the whole batch in a single operation
+    Bundle resp = validateBatch(batchCodeValidation, tc.getClient(), batch);
     if (resp == null) {
       throw new FHIRException(formatMessage(I18nConstants.TX_SERVER_NO_BATCH_RESPONSE));          
     }
     return resp;
   }
+
+  /**
+   * matchbox patch: validates a batch with the batch code validation if it can be used, or sends it as a batch Bundle
+   * of requests otherwise.
+   */
+  public static Bundle validateBatch(BiFunction<ITerminologyClient, Bundle, Bundle> batchCodeValidation, ITerminologyClient client, Bundle batch) {
+    Bundle resp = batchCodeValidation != null ? batchCodeValidation.apply(client, batch) : null;
+    if (resp == null) {
+      resp = client.validateBatch(batch);
+    }
+    return resp;
+  }
   
   @Override
   public void validateCodeBatchByRef(ValidationOptions options, List<? extends CodingValidationRequest> codes, String vsUrl) {
@@ -2752,12 +2911,9 @@ public abstract class BaseWorkerContext extends I18nBase implements IWorkerConte
 
   public void dropResource(String fhirType, String id) {
     synchronized (lock) {
+      resourceRevision++;
 
-      Map<String, ResourceProxy> map = allResourcesById.get(fhirType);
-      if (map == null) {
-        map = new HashMap<String, ResourceProxy>();
-        allResourcesById.put(fhirType, map);
-      }
+      Map<String, ResourceProxy> map = getWritableResourcesById(fhirType);
       if (map.containsKey(id)) {
         map.remove(id); // this is a challenge because we might have more than one resource with this id (different versions)
       }
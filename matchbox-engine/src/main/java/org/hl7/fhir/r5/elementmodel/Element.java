@@ -1190,7 +1190,7 @@ public class Element extends Base implements NamedItem {
     this.path = path;
   }  
   
-  public void addMessage(ValidationMessage vm) {
+  public synchronized void addMessage(ValidationMessage vm) {
     if (messages == null) {
       messages = new ArrayList<>();
     }
@@ -1268,8 +1268,10 @@ public class Element extends Base implements NamedItem {
     return hasSource() ? source.getValidationInfo() : super.getValidationInfo();
   }
 
+  // matchbox patch: the validation state of the elements is synchronized, because the entries of a Bundle can be
+  // validated in parallel, and an element can be read or validated again while validating another entry
   @Override
-  public ValidationInfo addDefinition(StructureDefinition source, ElementDefinition defn, ValidationMode mode) {
+  public synchronized ValidationInfo addDefinition(StructureDefinition source, ElementDefinition defn, ValidationMode mode) {
     if (this.source != null) {
       return this.source.addDefinition(source, defn, mode);
     } else {
@@ -1277,6 +1279,31 @@ public class Element extends Base implements NamedItem {
     }
   }
 
+  @Override
+  public synchronized boolean hasValidated(StructureDefinition sd, ElementDefinition ed) {
+    return super.hasValidated(sd, ed);
+  }
+
+  @Override
+  public synchronized Object getUserData(String name) {
+    return super.getUserData(name);
+  }
+
+  @Override
+  public synchronized void setUserData(String name, Object value) {
+    super.setUserData(name, value);
+  }
+
+  @Override
+  public synchronized void clearUserData(String name) {
+    super.clearUserData(name);
+  }
+
+  @Override
+  public synchronized boolean hasUserData(String name) {
+    return super.hasUserData(name);
+  }
+
   public boolean hasSource() {
     return source != null;
   }
@@ -1621,14 +1648,14 @@ public class Element extends Base implements NamedItem {
     children.removeAll(rem);
   }
 
-  public void addSliceDefinition(StructureDefinition profile, ElementDefinition definition, ElementDefinition slice) {
+  public synchronized void addSliceDefinition(StructureDefinition profile, ElementDefinition definition, ElementDefinition slice) {
     if (sliceDefinitions == null) {
       sliceDefinitions = new ArrayList<>();
     }
     sliceDefinitions.add(new SliceDefinition(profile, definition, slice));
   }
 
-  public boolean hasSlice(StructureDefinition sd, String sliceName) {
+  public synchronized boolean hasSlice(StructureDefinition sd, String sliceName) {
     if (sliceDefinitions != null) {
       for (SliceDefinition def : sliceDefinitions) {
         if (def.profile == sd && sliceName.equals(def.definition.getSliceName())) {
@@ -84,6 +84,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Services in this class:
@@ -117,6 +118,8 @@ public class StructureMapUtilities {
   private final ProfileUtilities profileUtilities;
   private boolean exceptionsForChecks = true;
   private boolean debug;
+  // matchbox patch: the resolved groups and types can be kept out of the StructureMaps, see setResolutionCache()
+  private Map<StructureMapGroupComponent, Map<String, Object>> resolutionCache;
 
   public StructureMapUtilities(IWorkerContext worker, ITransformerServices services, ProfileKnowledgeProvider pkp) {
     super();
@@ -629,6 +632,83 @@ public class StructureMapUtilities {
     return services;
   }
 
+  // matchbox patch: allows to reuse the instance for several transforms
+  public void setServices(ITransformerServices services) {
+    this.services = services;
+  }
+
+  /**
+   * matchbox patch: sets the cache of the groups and types resolved while executing the maps. By default, they are
+   * stored in the user data of the maps, and are never invalidated when an imported map is updated.
+   */
+  public void setResolutionCache(Map<StructureMapGroupComponent, Map<String, Object>> resolutionCache) {
+    this.resolutionCache = resolutionCache;
+  }
+
+  private boolean hasResolution(StructureMapGroupComponent source, String kn) {
+    if (resolutionCache == null)
+      return source.hasUserData(kn);
+    Map<String, Object> resolutions = resolutionCache.get(source);
+    return resolutions != null && resolutions.containsKey(kn);
+  }
+
+  private Object getResolution(StructureMapGroupComponent source, String kn) {
+    if (resolutionCache == null)
+      return source.getUserData(kn);
+    return resolutionCache.get(source).get(kn);
+  }
+
+  private void setResolution(StructureMapGroupComponent source, String kn, Object value) {
+    if (resolutionCache == null)
+      source.setUserData(kn, value);
+    else
+      resolutionCache.computeIfAbsent(source, k -> new ConcurrentHashMap<String, Object>()).put(kn, value);
+  }
+
+  /**
+   * matchbox patch: parses the FHIRPath expressions of the rules ahead of the transforms, they are stored in the user
+   * data of the map elements as they would be during the execution. The expressions given by a variable are left
+   * to the execution.
+   */
+  public void precompile(StructureMap map) throws FHIRException {
+    for (StructureMapGroupComponent group : map.getGroup()) {
+      precompileRules(group.getRule());
+    }
+  }
+
+  private void precompileRules(List<StructureMapGroupRuleComponent> rules) {
+    for (StructureMapGroupRuleComponent rule : rules) {
+      for (StructureMapGroupRuleSourceComponent src : rule.getSource()) {
+        if ("@search".equals(src.getContext()) && src.hasElement())
+          precompileExpression(src, MAP_SEARCH_EXPRESSION, src.getElement());
+        if (src.hasCondition())
+          precompileExpression(src, MAP_WHERE_EXPRESSION, src.getCondition());
+        if (src.hasCheck())
+          precompileExpression(src, MAP_WHERE_CHECK, src.getCheck());
+        if (src.hasLogMessage())
+          precompileExpression(src, MAP_WHERE_LOG, src.getLogMessage());
+      }
+      for (StructureMapGroupRuleTargetComponent tgt : rule.getTarget()) {
+        if (tgt.getTransform() == StructureMapTransform.EVALUATE && tgt.hasParameter()) {
+          DataType p = tgt.getParameter().get(tgt.getParameter().size() - 1).getValue();
+          if (p instanceof StringType)
+            precompileExpression(tgt, MAP_EXPRESSION, ((StringType) p).getValue());
+        }
+      }
+      precompileRules(rule.getRule());
+    }
+  }
+
+  private void precompileExpression(Base element, String key, String expression) {
+    if (element.hasUserData(key))
+      return;
+    try {
+      element.setUserData(key, fpe.parse(expression));
+    } catch (Exception e) {
+      // the error is reported if the rule is executed
+    }
+  }
+
   public IWorkerContext getWorker() {
     return worker;
   }
@@ -828,8 +908,8 @@ public class StructureMapUtilities {
   private String determineTypeFromSourceType(StructureMap map, StructureMapGroupComponent source, Base base, String[] types) throws FHIRException {
     String type = base.fhirType();
     String kn = "type^" + type;
-    if (source.hasUserData(kn))
-      return source.getUserString(kn);
+    if (hasResolution(source, kn))
+      return (String) getResolution(source, kn);
 
     ResolvedGroup res = new ResolvedGroup(null, null);
     for (StructureMapGroupComponent grp : map.getGroup()) {
@@ -843,7 +923,7 @@ public class StructureMapUtilities {
     }
     if (res.getTargetMap() != null) {
       String result = getActualType(res.getTargetMap(), res.getTargetGroup().getInput().get(1).getType());
-      source.setUserData(kn, result);
+      setResolution(source, kn, result);
       return result;
     }
 
@@ -868,7 +948,7 @@ public class StructureMapUtilities {
     if (res.getTargetGroup() == null)
       throw new FHIRException("No matches found for default rule for '" + type + "' from " + map.getUrl());
     String result = getActualType(res.getTargetMap(), res.getTargetGroup().getInput().get(1).getType()); // should be .getType, but R2...
-    source.setUserData(kn, result);
+    setResolution(source, kn, result);
     return result;
   }
 
@@ -901,8 +981,8 @@ public class StructureMapUtilities {
 
   private ResolvedGroup resolveGroupByTypes(StructureMap map, String ruleid, StructureMapGroupComponent source, String srcType, String tgtType) throws FHIRException {
     String kn = "types^" + srcType + ":" + tgtType;
-    if (source.hasUserData(kn))
-      return (ResolvedGroup) source.getUserData(kn);
+    if (hasResolution(source, kn))
+      return (ResolvedGroup) getResolution(source, kn);
 
     ResolvedGroup res = new ResolvedGroup(null, null);
     for (StructureMapGroupComponent grp : map.getGroup()) {
@@ -915,7 +995,7 @@ public class StructureMapUtilities {
       }
     }
     if (res.getTargetMap() != null) {
-      source.setUserData(kn, res);
+      setResolution(source, kn, res);
       return res;
     }
 
@@ -939,7 +1019,7 @@ public class StructureMapUtilities {
     }
     if (res.getTargetGroup() == null)
       throw new FHIRException("No matches found for rule for '" + srcType + " to " + tgtType + "' from " + map.getUrl() + ", from rule '" + ruleid + "'");
-    source.setUserData(kn, res);
+    setResolution(source, kn, res);
     return res;
   }
 
@@ -1012,8 +1092,8 @@ public class StructureMapUtilities {
 
   private ResolvedGroup resolveGroupReference(StructureMap map, StructureMapGroupComponent source, String name) throws FHIRException {
     String kn = "ref^" + name;
-    if (source.hasUserData(kn))
-      return (ResolvedGroup) source.getUserData(kn);
+    if (hasResolution(source, kn))
+      return (ResolvedGroup) getResolution(source, kn);
 
     ResolvedGroup res = new ResolvedGroup(null, null);
     for (StructureMapGroupComponent grp : map.getGroup()) {
@@ -1026,7 +1106,7 @@ public class StructureMapUtilities {
       }
     }
     if (res.getTargetMap() != null) {
-      source.setUserData(kn, res);
+      setResolution(source, kn, res);
       return res;
     }
 
@@ -1052,7 +1132,7 @@ public class StructureMapUtilities {
     }
     if (res.getTargetGroup() == null)
       throw new FHIRException("No matches found for rule '" + name + "'. Reference found in " + map.getUrl());
-    source.setUserData(kn, res);
+    setResolution(source, kn, res);
     return res;
   }
 
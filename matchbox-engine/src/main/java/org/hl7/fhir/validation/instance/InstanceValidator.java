@@ -35,6 +35,8 @@ import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -46,11 +48,14 @@ import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import javax.annotation.Nonnull;
 
@@ -617,6 +622,21 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   private ContextUtilities cu;
   private boolean unknownCodeSystemsCauseErrors;
   private boolean noExperimentalContent;
+  private ForkJoinPool bundleEntryPool; // matchbox patch
+  private ch.ahdis.matchbox.engine.ChildDefinitionIndex childDefinitionIndex; // matchbox patch
+  private boolean bundleEntryFork; // matchbox patch
+
+  // matchbox patch: the minimum number of entries of a Bundle for them to be validated in parallel
+  private static final int PARALLEL_BUNDLE_MIN_ENTRIES = 32;
+
+  // matchbox patch: the fields of the validators that are not copied to the forks, because they hold the state of a
+  // validation or objects that are bound to their validator. All the other fields are configuration, they are copied
+  // by reflection so that the fields added by a new version of the core are copied too.
+  private static final Set<String> FORK_STATE_FIELDS = Set.of("fpe", "fetchCache", "resourceTracker", "time", "start",
+      "lastlog", "myEnableWhenEvaluator", "validatorServices", "profileUtilities", "crLookups", "logProgress",
+      "codingObserver", "validatedContent", "cu", "bundleEntryPool", "bundleEntryFork", "timeTracker", "trackedMessages",
+      "messagesToRemove", "statusWarnings", "session");
+  private static final List<Field> FORK_COPIED_FIELDS = getForkCopiedFields();
 
   public InstanceValidator(@Nonnull IWorkerContext theContext, @Nonnull IEvaluationContext hostServices, @Nonnull XVerExtensionManager xverManager, ValidatorSession session) {
     super(theContext, xverManager, false, session);
@@ -635,6 +655,101 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     codingObserver = new CodingsObserver(theContext, xverManager, debug, session);
   }
 
+  // matchbox patch: a validator is reused for other validations instead of being rebuilt, this clears the state of
+  // the previous validation and starts a new session. The configuration, the FHIRPath engine, the profile utilities
+  // and the context utilities are kept.
+  public void resetForReuse() {
+    fetchCache.clear();
+    resourceTracker.clear();
+    trackedMessages.clear();
+    messagesToRemove.clear();
+    statusWarnings.clear();
+    crLookups.clear();
+    validatedContent = null;
+    session.close();
+    session = new ValidatorSession();
+    boolean checkIPSCodes = codingObserver.isCheckIPSCodes();
+    codingObserver = new CodingsObserver(context, xverManager, debug, session);
+    codingObserver.setCheckIPSCodes(checkIPSCodes);
+  }
+
+  // matchbox patch: the parsed expressions are shared by the validators of all the engines, instead of being parsed
+  // again for each context
+  private ExpressionNode parseExpression(String expression) {
+    return ch.ahdis.matchbox.engine.FhirPathExpressionCache.getShared().parse(fpe, context.getVersion(), expression);
+  }
+
+  // matchbox patch: the entries of a large Bundle can be validated in parallel on a fork-join pool, null to validate
+  // them sequentially
+  public ForkJoinPool getBundleEntryPool() {
+    return bundleEntryPool;
+  }
+
+  public void setBundleEntryPool(ForkJoinPool bundleEntryPool) {
+    this.bundleEntryPool = bundleEntryPool;
+  }
+
+  // matchbox patch: the child and slice definitions of the elements of the profiles can be indexed once for all the
+  // validators of an engine, instead of being computed again by each validator, null to use the profile utilities
+  public ch.ahdis.matchbox.engine.ChildDefinitionIndex getChildDefinitionIndex() {
+    return childDefinitionIndex;
+  }
+
+  public void setChildDefinitionIndex(ch.ahdis.matchbox.engine.ChildDefinitionIndex childDefinitionIndex) {
+    this.childDefinitionIndex = childDefinitionIndex;
+  }
+
+  // matchbox patch: the child definitions of an element definition, from the index of the engine if it is set
+  private SourcedChildDefinitions getChildMap(StructureDefinition profile, ElementDefinition definition, boolean chillInsideOnly) {
+    if (childDefinitionIndex == null) {
+      return profileUtilities.getChildMap(profile, definition, chillInsideOnly);
+    }
+    return childDefinitionIndex.getChildMap(profileUtilities, profile, definition, chillInsideOnly);
+  }
+
+  // matchbox patch: the slice definitions of a sliced element definition, from the index of the engine if it is set
+  private List<ElementDefinition> getSliceList(StructureDefinition profile, ElementDefinition definition) {
+    if (childDefinitionIndex == null) {
+      return profileUtilities.getSliceList(profile, definition);
+    }
+    return childDefinitionIndex.getSliceList(profileUtilities, profile, definition);
+  }
+
+  // matchbox patch: a validator with the same configuration as this one, but its own validation state, that validates
+  // a group of entries of a Bundle. It doesn't log its progress, doesn't validate the entries in parallel, and doesn't
+  // cache anything in the user data of the definitions, which are shared with the other forks.
+  private InstanceValidator forkForBundleEntries() {
+    InstanceValidator fork = new InstanceValidator(context, externalHostServices, xverManager, new ValidatorSession());
+    try {
+      for (Field field : FORK_COPIED_FIELDS) {
+        field.set(fork, field.get(this));
+      }
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException("Unable to copy the configuration of the validator", e);
+    }
+    fork.fpe.setAllowDoubleQuotes(fpe.isAllowDoubleQuotes());
+    fork.fpe.setDoImplicitStringConversion(fpe.isDoImplicitStringConversion());
+    // the warnings that have already been given are not repeated by the fork
+    fork.statusWarnings.addAll(statusWarnings);
+    fork.bundleEntryFork = true;
+    return fork;
+  }
+
+  // matchbox patch: the configuration fields of the validators, see FORK_STATE_FIELDS
+  private static List<Field> getForkCopiedFields() {
+    List<Field> fields = new ArrayList<>();
+    for (Class<?> type = InstanceValidator.class; type != Object.class; type = type.getSuperclass()) {
+      for (Field field : type.getDeclaredFields()) {
+        int modifiers = field.getModifiers();
+        if (!Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers) && !FORK_STATE_FIELDS.contains(field.getName())) {
+          field.setAccessible(true);
+          fields.add(field);
+        }
+      }
+    }
+    return List.copyOf(fields);
+  }
+
   @Override
   public boolean isNoExtensibleWarnings() {
     return noExtensibleWarnings;
@@ -2546,7 +2661,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       } else if (ctxt.getType() == ExtensionContextType.FHIRPATH) {
         contexts.append("p:" + ctxt.getExpression());
         // The context is all elements that match the FHIRPath query found in the expression.
-        List<Base> res = fpe.evaluate(valContext, resource, valContext.getRootResource(), resource, fpe.parse(ctxt.getExpression()));
+        List<Base> res = fpe.evaluate(valContext, resource, valContext.getRootResource(), resource, parseExpression(ctxt.getExpression()));
         if (res.contains(container)) {
           ok = true;
         }
@@ -2566,7 +2681,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     } else {
       if (definition.hasContextInvariant()) {
         for (StringType s : definition.getContextInvariant()) {
-          if (!fpe.evaluateToBoolean(valContext, resource, valContext.getRootResource(), container, fpe.parse(s.getValue()))) {
+          if (!fpe.evaluateToBoolean(valContext, resource, valContext.getRootResource(), container, parseExpression(s.getValue()))) {
             if (definition.hasUserData(XVerExtensionManager.XVER_EXT_MARKER)) {
               warning(errors, NO_RULE_DATE, IssueType.STRUCTURE, container.line(), container.col(), stack.getLiteralPath(), false, I18nConstants.PROFILE_EXT_NOT_HERE, extUrl, s.getValue());              
               return true;
@@ -4536,15 +4651,13 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
   private IndexedElement getContainedById(Element container, String id) {
-    List<Element> contained = new ArrayList<Element>();
-    container.getNamedChildren("contained", contained);
-    for (int i = 0; i < contained.size(); i++) {
-      Element we = contained.get(i);
-      if (id.equals(we.getNamedChildValue(ID, false))) {
-        return new IndexedElement(i, we, null);
-      }
+    // matchbox patch: the contained resources are looked up in the index of the container instead of being scanned
+    ch.ahdis.matchbox.engine.ReferenceResolutionIndex index = ch.ahdis.matchbox.engine.ReferenceResolutionIndex.of(container);
+    int i = index.getContainedPosition(id);
+    if (i < 0) {
+      return null;
     }
-    return null;
+    return new IndexedElement(i, index.getContained().get(i), null);
   }
 
   public IWorkerContext getContext() {
@@ -4575,7 +4688,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     String fp = FHIRPathExpressionFixer.fixExpr(discriminator, null, context.getVersion());
     ExpressionNode expr = null;
     try {
-      expr = fpe.parse(fp);
+      expr = parseExpression(fp);
     } catch (Exception e) {
       if (STACK_TRACE) e.printStackTrace();
       throw new FHIRException(context.formatMessage(I18nConstants.DISCRIMINATOR_BAD_PATH, e.getMessage(), fp), e);
@@ -4608,7 +4721,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
           if (element == null)
             throw new DefinitionException(context.formatMessage(I18nConstants.UNABLE_TO_RESOLVE_ELEMENT__IN_PROFILE_, id, p));
         }
-        expr = fpe.parse(fp);
+        expr = parseExpression(fp);
         t2 = System.nanoTime();
         ted = fpe.evaluateDefinition(expr, profile, new TypedElementDefinition(element), srcProfile, dontFollowReference);
         timeTracker.sd(t2);
@@ -4987,6 +5100,14 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
   }
 
   private Element getEntryForSource(Element bundle, Element element) {
+    // matchbox patch: the entry is found through the parents of the element, the entries are only scanned if the
+    // parents are not set
+    if (element != null) {
+      Element entry = ch.ahdis.matchbox.engine.ReferenceResolutionIndex.of(bundle).getEntryOf(element);
+      if (entry != null) {
+        return entry;
+      }
+    }
     List<Element> entries = new ArrayList<Element>();
     bundle.getNamedChildren(ENTRY, entries);
     for (Element entry : entries) {
@@ -4997,6 +5118,37 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     return null;
   }
 
+  // matchbox patch: the entries that a reference may target are looked up in the index of the Bundle, and the core
+  // resolves the reference in these entries only, as it would in all the entries of the Bundle. The references that are
+  // not resolved are resolved again in all the entries, the core then looks for the possible matches in all of them.
+  @Override
+  protected IndexedElement getFromBundle(Element bundle, String ref, String fullUrl, List<ValidationMessage> errors, String path, String type, boolean isTransaction, BooleanHolder bh) {
+    if (ref == null || bh == null) {
+      return super.getFromBundle(bundle, ref, fullUrl, errors, path, type, isTransaction, bh);
+    }
+    ch.ahdis.matchbox.engine.ReferenceResolutionIndex index = ch.ahdis.matchbox.engine.ReferenceResolutionIndex.of(bundle);
+    List<ValidationMessage> candidateErrors = new ArrayList<>();
+    BooleanHolder candidateBh = new BooleanHolder(bh.ok());
+    IndexedElement res = super.getFromBundle(index.getCandidateEntries(ref), ref, fullUrl, candidateErrors, path, type, isTransaction, candidateBh);
+    if (res == null || res.getEntry() == null) {
+      return super.getFromBundle(bundle, ref, fullUrl, errors, path, type, isTransaction, bh);
+    }
+    errors.addAll(candidateErrors);
+    bh.set(candidateBh.ok());
+    res.setIndex(index.getEntryPosition(res.getEntry()));
+    return res;
+  }
+
+  // matchbox patch: the resources of a Bundle are looked up by full URL or type/id in the index of the Bundle instead
+  // of being searched by a scan of the entries
+  @Override
+  protected Base resolveInBundle(String url, Element bundle) {
+    if (url == null || bundle == null || !BUNDLE.equals(bundle.fhirType())) {
+      return super.resolveInBundle(url, bundle);
+    }
+    return ch.ahdis.matchbox.engine.ReferenceResolutionIndex.of(bundle).getResourceByUrl(url);
+  }
+
   private ResolvedReference makeExternalRef(Element external, String path) {
     ResolvedReference res = new ResolvedReference();
     res.setResource(external);
@@ -5237,13 +5389,15 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       }
 
       try {
-        n = fpe.parse(FHIRPathExpressionFixer.fixExpr(expression.toString(), null, context.getVersion()));
+        n = parseExpression(FHIRPathExpressionFixer.fixExpr(expression.toString(), null, context.getVersion()));
       } catch (FHIRLexerException e) {
         if (STACK_TRACE) e.printStackTrace();
         throw new FHIRException(context.formatMessage(I18nConstants.PROBLEM_PROCESSING_EXPRESSION__IN_PROFILE__PATH__, expression, profile.getVersionedUrl(), path, e.getMessage()));
       }
       timeTracker.fpe(t);
-      ed.setUserData(UserDataNames.validator_slice_expression_cache, n);
+      if (!bundleEntryFork) { // matchbox patch
+        ed.setUserData(UserDataNames.validator_slice_expression_cache, n);
+      }
     } else {
     }
 
@@ -6383,7 +6537,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     }
     
     // get the list of direct defined children, including slices
-    SourcedChildDefinitions childDefinitions = profileUtilities.getChildMap(profile, definition, false);
+    SourcedChildDefinitions childDefinitions = getChildMap(profile, definition, false); // matchbox patch
     if (childDefinitions.getList().isEmpty()) {
       if (actualType == null) {
         vi.setValid(false);
@@ -6413,8 +6567,14 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     // 4. check order if any slices are ordered. (todo)
         
     // 5. inspect each child for validity
-    for (ElementInfo ei : children) {
-      ok = checkChild(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, ei, extensionUrl, pct, mode) && ok;
+    // matchbox patch: the entries of a large Bundle can be validated in parallel
+    List<List<ElementInfo>> entryGroups = groupBundleEntries(valContext, resource, element, stack, children);
+    if (entryGroups != null) {
+      ok = checkChildrenWithParallelEntries(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, children, entryGroups, extensionUrl, pct, mode) && ok;
+    } else {
+      for (ElementInfo ei : children) {
+        ok = checkChild(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, ei, extensionUrl, pct, mode) && ok;
+      }
     }
 
     // check type invariants (after we've sliced the children)
@@ -6472,10 +6632,245 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       throw new DefinitionException(context.formatMessage(I18nConstants.UNABLE_TO_RESOLVE_ACTUAL_TYPE_, actualType));
     trackUsage(dt, valContext, element);
 
-    childDefinitions = profileUtilities.getChildMap(dt, dt.getSnapshot().getElement().get(0), false);
+    childDefinitions = getChildMap(dt, dt.getSnapshot().getElement().get(0), false); // matchbox patch
     return childDefinitions;
   }
 
+  // matchbox patch: the groups of entries of a Bundle that are validated in parallel, or null if the children of the
+  // element are validated sequentially. Only the entries of the validated Bundle itself are validated in parallel, once
+  // the references between them have been resolved: the entries that reference each other are in the same group, so
+  // that an entry is only validated by one thread, in the same order as by the sequential validation. The entries are
+  // validated sequentially if one of their elements, outside of their resources, has an id, because the ids are
+  // checked against all the elements of the Bundle.
+  private List<List<ElementInfo>> groupBundleEntries(ValidationContext valContext, Element resource, Element element, NodeStack stack, List<ElementInfo> children) {
+    if (bundleEntryPool == null || bundleEntryPool.getParallelism() < 2 || element != resource || stack.getParent() != null
+        || valContext.getResource() != resource || valContext.getRootResource() != resource
+        || !BUNDLE.equals(element.fhirType()) || !element.hasUserData(UserDataNames.validator_bundle_resolved) || codingObserver.isCheckIPSCodes()) {
+      return null;
+    }
+    List<ElementInfo> entries = new ArrayList<>();
+    for (ElementInfo ei : children) {
+      if (ENTRY.equals(ei.getElement().getName())) {
+        entries.add(ei);
+      }
+    }
+    if (entries.size() < PARALLEL_BUNDLE_MIN_ENTRIES) {
+      return null;
+    }
+    Map<Element, Integer> owners = new IdentityHashMap<>();
+    for (int i = 0; i < entries.size(); i++) {
+      if (!indexEntryResources(entries.get(i).getElement(), i, owners, false)) {
+        return null;
+      }
+    }
+    int[] roots = new int[entries.size()];
+    for (int i = 0; i < roots.length; i++) {
+      roots[i] = i;
+    }
+    for (int i = 0; i < entries.size(); i++) {
+      if (!linkReferencedEntries(entries.get(i).getElement(), i, owners, roots)) {
+        return null;
+      }
+    }
+
+    // the linked entries are assigned to the group of their first entry, the groups are filled in the order of the entries
+    int[] sizes = new int[entries.size()];
+    for (int i = 0; i < entries.size(); i++) {
+      sizes[findEntryRoot(roots, i)]++;
+    }
+    int groupSize = (entries.size() + bundleEntryPool.getParallelism() - 1) / bundleEntryPool.getParallelism();
+    int[] groupOfRoot = new int[entries.size()];
+    List<List<ElementInfo>> groups = new ArrayList<>();
+    int filled = 0;
+    for (int i = 0; i < entries.size(); i++) {
+      int root = findEntryRoot(roots, i);
+      if (root == i) {
+        if (groups.isEmpty() || filled >= groupSize) {
+          groups.add(new ArrayList<>());
+          filled = 0;
+        }
+        groupOfRoot[i] = groups.size() - 1;
+        filled += sizes[i];
+      }
+      groups.get(groupOfRoot[root]).add(entries.get(i));
+    }
+    return groups.size() < 2 ? null : groups;
+  }
+
+  // matchbox patch: indexes the resources of an entry, returns false if an element outside of its resources has an id
+  private boolean indexEntryResources(Element element, int entry, Map<Element, Integer> owners, boolean inResource) {
+    if (element.isResource()) {
+      owners.put(element, entry);
+      inResource = true;
+    } else if (!inResource && !Utilities.noString(element.getChildValue("id"))) {
+      return false;
+    }
+    if (element.hasChildren()) {
+      for (Element child : element.getChildren()) {
+        if (!indexEntryResources(child, entry, owners, inResource)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  // matchbox patch: links an entry to the entries that its references have been resolved to, returns false if a
+  // reference has been resolved to a resource that is not in an entry
+  private boolean linkReferencedEntries(Element element, int entry, Map<Element, Integer> owners, int[] roots) {
+    Object target = element.getUserData(UserDataNames.validator_bundle_resolution);
+    if (target != null) {
+      Integer other = owners.get(target);
+      if (other == null) {
+        return false;
+      }
+      int root = findEntryRoot(roots, entry);
+      int otherRoot = findEntryRoot(roots, other);
+      roots[Math.max(root, otherRoot)] = Math.min(root, otherRoot);
+    }
+    if (element.hasChildren()) {
+      for (Element child : element.getChildren()) {
+        if (!linkReferencedEntries(child, entry, owners, roots)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  // matchbox patch: the first entry of the linked entries
+  private static int findEntryRoot(int[] roots, int entry) {
+    while (roots[entry] != entry) {
+      roots[entry] = roots[roots[entry]];
+      entry = roots[entry];
+    }
+    return entry;
+  }
+
+  // matchbox patch: validates the children of a Bundle, its groups of entries being validated in parallel by forks of
+  // this validator. The children before the entries are validated first, then the entries, then the children after
+  // them, and the messages are added in the order of the children, as by the sequential validation. The warnings about
+  // the status of the definitions are only given once by the sequential validation: the same warnings given by the
+  // later groups are removed. Each fork has its own copy of the validation context of the Bundle, with its own internal
+  // references and slice records, that are added to the ones of the Bundle once the entries are validated.
+  private boolean checkChildrenWithParallelEntries(ValidationContext valContext, List<ValidationMessage> errors, StructureDefinition profile, ElementDefinition definition,
+      Element resource, Element element, String actualType, NodeStack stack, boolean inCodeableConcept, boolean checkDisplayInContext, List<ElementInfo> children,
+      List<List<ElementInfo>> entryGroups, String extensionUrl, PercentageTracker pct, ValidationMode mode) {
+    boolean ok = true;
+    int i = 0;
+    while (i < children.size() && !ENTRY.equals(children.get(i).getElement().getName())) {
+      ok = checkChild(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, children.get(i), extensionUrl, pct, mode) && ok;
+      i++;
+    }
+
+    prepareForConcurrentValidation(element);
+    List<InstanceValidator> forks = new ArrayList<>();
+    List<ValidationContext> forkContexts = new ArrayList<>();
+    List<List<ValidationMessage>> groupErrors = new ArrayList<>();
+    List<int[]> groupEnds = new ArrayList<>();
+    List<ForkJoinTask<Boolean>> tasks = new ArrayList<>();
+    for (List<ElementInfo> group : entryGroups) {
+      InstanceValidator fork = forkForBundleEntries();
+      ValidationContext forkContext = forkValidationContext(valContext, resource);
+      forkContexts.add(forkContext);
+      // the messages of the entries of a group are added to the same list, as they would be by the sequential
+      // validation, which checks some messages against the previous ones; the end of the messages of each entry is kept
+      List<ValidationMessage> groupMessages = new ArrayList<>();
+      int[] ends = new int[group.size()];
+      PercentageTracker groupPct = new PercentageTracker(0, element.fhirType(), profile.getVersionedUrl(), false);
+      forks.add(fork);
+      groupErrors.add(groupMessages);
+      groupEnds.add(ends);
+      tasks.add(bundleEntryPool.submit(() -> {
+        boolean groupOk = true;
+        for (int j = 0; j < group.size(); j++) {
+          groupOk = fork.checkChild(forkContext, groupMessages, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, group.get(j), extensionUrl, groupPct, mode) && groupOk;
+          ends[j] = groupMessages.size();
+        }
+        return groupOk;
+      }));
+    }
+    RuntimeException failure = null;
+    for (ForkJoinTask<Boolean> task : tasks) {
+      try {
+        ok = task.join() && ok;
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+
+    Map<ElementInfo, List<ValidationMessage>> entryErrors = new IdentityHashMap<>();
+    for (int g = 0; g < entryGroups.size(); g++) {
+      List<ElementInfo> group = entryGroups.get(g);
+      int[] ends = groupEnds.get(g);
+      for (int j = 0; j < group.size(); j++) {
+        entryErrors.put(group.get(j), groupErrors.get(g).subList(j == 0 ? 0 : ends[j - 1], ends[j]));
+      }
+      InstanceValidator fork = forks.get(g);
+      trackedMessages.addAll(fork.trackedMessages);
+      messagesToRemove.addAll(fork.messagesToRemove);
+      statusWarnings.addAll(fork.statusWarnings);
+      ValidationContext forkContext = forkContexts.get(g);
+      valContext.getInternalRefs().addAll(forkContext.getInternalRefs());
+      if (forkContext.getSliceRecords() != null) {
+        for (Map.Entry<String, List<ValidationMessage>> record : forkContext.getSliceRecords().entrySet()) {
+          valContext.sliceNotes(record.getKey(), record.getValue());
+        }
+      }
+    }
+    Map<String, ValidationMessage> statusMessages = new HashMap<>();
+    for (; i < children.size(); i++) {
+      ElementInfo ei = children.get(i);
+      List<ValidationMessage> messages = entryErrors.get(ei);
+      if (messages == null) {
+        ok = checkChild(valContext, errors, profile, definition, resource, element, actualType, stack, inCodeableConcept, checkDisplayInContext, ei, extensionUrl, pct, mode) && ok;
+        continue;
+      }
+      for (ValidationMessage vm : messages) {
+        if (Utilities.existsInList(vm.getMessageId(), I18nConstants.MSG_DEPENDS_ON_DEPRECATED, I18nConstants.MSG_DEPENDS_ON_WITHDRAWN, I18nConstants.MSG_DEPENDS_ON_RETIRED)) {
+          ValidationMessage first = statusMessages.putIfAbsent(vm.getMessageId() + "|" + vm.getMessage(), vm);
+          if (first != null && first != vm) {
+            continue;
+          }
+        }
+        errors.add(vm);
+      }
+    }
+    return ok;
+  }
+
+  // matchbox patch: a copy of the validation context of the Bundle for a fork, with empty internal references and slice
+  // records. The internal references are kept in the user data of the Bundle, they are replaced while the copy is made.
+  private ValidationContext forkValidationContext(ValidationContext valContext, Element resource) {
+    Object internalRefs = resource.getUserData(ValidationContext.INTERNAL_REFERENCES_NAME);
+    resource.setUserData(ValidationContext.INTERNAL_REFERENCES_NAME, new HashSet<String>());
+    try {
+      ValidationContext forkContext = valContext.forEntry(resource, valContext.getGroupingResource());
+      forkContext.setCheckSpecials(valContext.isCheckSpecials());
+      if (valContext.getSliceRecords() != null) {
+        forkContext.setSliceRecords(new HashMap<>());
+      }
+      return forkContext;
+    } finally {
+      resource.setUserData(ValidationContext.INTERNAL_REFERENCES_NAME, internalRefs);
+    }
+  }
+
+  // matchbox patch: builds the lazy indexes of the children of the elements, before they are read concurrently
+  private void prepareForConcurrentValidation(Element element) {
+    if (element.hasChildren()) {
+      element.getChildren().getByName(element.getChildren().get(0).getName());
+      for (Element child : element.getChildren()) {
+        prepareForConcurrentValidation(child);
+      }
+    }
+  }
+
   public boolean checkChild(ValidationContext valContext, List<ValidationMessage> errors, StructureDefinition profile, ElementDefinition definition,
     Element resource, Element element, String actualType, NodeStack stack, boolean inCodeableConcept, boolean checkDisplayInContext, ElementInfo ei, String extensionUrl, PercentageTracker pct, ValidationMode mode)
     throws FHIRException, DefinitionException {
@@ -6945,7 +7340,9 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
           break;
         }
       }
-      profile.setUserData(UserDataNames.keyview_usesMustSupport, usesMustSupport);
+      if (!bundleEntryFork) { // matchbox patch
+        profile.setUserData(UserDataNames.keyview_usesMustSupport, usesMustSupport);
+      }
     }
     String elementSupported = ei.getElement().getUserString(UserDataNames.keyview_elementSupported);
     String fixedValue = ei.getElement().getUserString(UserDataNames.keyview_hasFixed);
@@ -6968,7 +7365,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
         int count = 0;
         List<ElementDefinition> slices = null;
         if (ed.hasSlicing()) {
-          slices = profileUtilities.getSliceList(profile, ed);
+          slices = getSliceList(profile, ed); // matchbox patch
         }
         for (ElementInfo ei : children) {
           if (ei.definition == ed) {
@@ -7013,7 +7410,7 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
     if (ed.hasFixedCoding() && "http://loinc.org".equals(ed.getFixedCoding().getSystem())) {
       return ed.getFixedCoding().getCode();      
     }
-    SourcedChildDefinitions children = profileUtilities.getChildMap(profile, ed, true);
+    SourcedChildDefinitions children = getChildMap(profile, ed, true); // matchbox patch
     if (children != null) {
       for (ElementDefinition t : children.getList()) {
         if (t.getPath().endsWith(".code") && t.hasFixed()) {
@@ -7372,13 +7769,15 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
       long t = System.nanoTime();
       try {
         String expr = FHIRPathExpressionFixer.fixExpr(inv.getExpression(), inv.getKey(), context.getVersion());
-        n = fpe.parse(expr);
+        n = parseExpression(expr);
       } catch (FHIRException e) {
         ok = rule(errors, NO_RULE_DATE, IssueType.INVARIANT, element.line(), element.col(), path, false, I18nConstants.PROBLEM_PROCESSING_EXPRESSION__IN_PROFILE__PATH__, inv.getExpression(), profile.getVersionedUrl(), path, e.getMessage()) && ok;
         return false;
       }
       timeTracker.fpe(t);
-      inv.setUserData(UserDataNames.validator_expression_cache, n);
+      if (!bundleEntryFork) { // matchbox patch
+        inv.setUserData(UserDataNames.validator_expression_cache, n);
+      }
     }
     
     valContext.setProfile(profile);
@@ -7680,11 +8079,9 @@ public class InstanceValidator extends BaseValidator implements IResourceValidat
           for (ElementDefinitionConstraintComponent inv : ed.getConstraint()) {
             if (inv.hasExpression()) {
               try {
-                ExpressionNode n = (ExpressionNode) inv.getUserData(UserDataNames.validator_expression_cache);
-                if (n == null) {
-                  n = fpe.parse(FHIRPathExpressionFixer.fixExpr(inv.getExpression(), inv.getKey(), context.getVersion()));
-                  inv.setUserData(UserDataNames.validator_expression_cache, n);
-                }
+                // matchbox patch: the cached expressions are shared by all the engines, the type checking stores its
+                // result in the expression nodes, so it is done on an expression that is parsed again
+                ExpressionNode n = fpe.parse(FHIRPathExpressionFixer.fixExpr(inv.getExpression(), inv.getKey(), context.getVersion()));
                 fpe.check(null, sd.getKind() == StructureDefinitionKind.RESOURCE ? sd.getType() : "DomainResource", ed.getPath(), n);
               } catch (Exception e) {
                 System.out.println("Error processing structure [" + sd.getId() + "] path " + ed.getPath() + ":" + inv.getKey() + " ('" + inv.getExpression() + "'): " + e.getMessage());
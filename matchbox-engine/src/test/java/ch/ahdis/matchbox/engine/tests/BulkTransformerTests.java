@@ -0,0 +1,106 @@
+package ch.ahdis.matchbox.engine.tests;
+
+import ch.ahdis.matchbox.engine.BulkTransformer;
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.engine.MatchboxEngine.MatchboxEngineBuilder;
+import org.apache.commons.io.IOUtils;
+import org.hl7.fhir.r4.formats.JsonParser;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BulkTransformerTests {
+
+	private static final String MAP_URL = "http://ahdis.ch/matchbox/fml/qr2patgender";
+
+	private static MatchboxEngine engine;
+
+	private static ExecutorService executor;
+
+	@BeforeAll
+	static void setUpBeforeClass() throws Exception {
+		executor = BulkTransformer.newExecutor(4);
+		engine = new MatchboxEngineBuilder().getEngineR4();
+		engine.addCanonicalResource(engine.parseMap(getResource("/qr2patgender.map")));
+	}
+
+	@AfterAll
+	static void teardownClass() {
+		executor.shutdownNow();
+		engine = null;
+	}
+
+	@Test
+	void testResultsAreInInputOrder() throws Exception {
+		final String qr = getResource("/qr.json");
+		final List<byte[]> inputs = new ArrayList<>();
+		for (int i = 0; i < 40; ++i) {
+			inputs.add(qr.replace("\"female\"", i % 2 == 0 ? "\"female\"" : "\"male\"").getBytes(StandardCharsets.UTF_8));
+		}
+		final var transformer = new BulkTransformer(engine, MAP_URL, executor, 4);
+
+		final List<Resource> outputs = this.transform(transformer, inputs);
+
+		assertEquals(40, outputs.size());
+		for (int i = 0; i < 40; ++i) {
+			final var patient = assertInstanceOf(Patient.class, outputs.get(i));
+			assertEquals(i % 2 == 0 ? "FEMALE" : "MALE", patient.getGender().name(), "line " + i);
+		}
+		assertEquals(40, transformer.getTransformedCount());
+		assertEquals(0, transformer.getFailedCount());
+	}
+
+	@Test
+	void testFailureIsReplacedByOperationOutcome() throws Exception {
+		final byte[] qr = getResource("/qr.json").getBytes(StandardCharsets.UTF_8);
+		final List<byte[]> inputs = List.of(qr, "{\"resourceType\":".getBytes(StandardCharsets.UTF_8), qr);
+		final var transformer = new BulkTransformer(engine, MAP_URL, executor, 4);
+
+		final List<Resource> outputs = this.transform(transformer, inputs);
+
+		assertEquals(3, outputs.size());
+		assertInstanceOf(Patient.class, outputs.get(0));
+		assertInstanceOf(OperationOutcome.class, outputs.get(1));
+		assertInstanceOf(Patient.class, outputs.get(2));
+		assertEquals(2, transformer.getTransformedCount());
+		assertEquals(1, transformer.getFailedCount());
+		// the shared executor is still usable
+		assertFalse(executor.isShutdown());
+	}
+
+	@Test
+	void testFromNdjsonLine() {
+		assertEquals("{\"resourceType\":\"Patient\"}",
+						 new String(BulkTransformer.fromNdjsonLine(" {\"resourceType\":\"Patient\"} "), StandardCharsets.UTF_8));
+		assertEquals("<Patient xmlns=\"http://hl7.org/fhir\"/>",
+						 new String(BulkTransformer.fromNdjsonLine("\"<Patient xmlns=\\\"http://hl7.org/fhir\\\"/>\""),
+										StandardCharsets.UTF_8));
+	}
+
+	private List<Resource> transform(final BulkTransformer transformer,
+												final List<byte[]> inputs) throws Exception {
+		final var output = new StringWriter();
+		transformer.transform(inputs.iterator(), output);
+		final List<Resource> resources = new ArrayList<>();
+		for (final String line : output.toString().split("\n")) {
+			resources.add(new JsonParser().parse(line));
+		}
+		return resources;
+	}
+
+	private static String getResource(final String file) throws Exception {
+		return IOUtils.toString(BulkTransformerTests.class.getResourceAsStream("/mapping-language" + file),
+										StandardCharsets.UTF_8);
+	}
+}
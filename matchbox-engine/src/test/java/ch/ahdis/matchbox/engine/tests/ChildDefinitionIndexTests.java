@@ -0,0 +1,116 @@
+package ch.ahdis.matchbox.engine.tests;
+
+import ch.ahdis.matchbox.engine.ChildDefinitionIndex;
+import org.hl7.fhir.r5.conformance.profile.ProfileUtilities;
+import org.hl7.fhir.r5.conformance.profile.ProfileUtilities.SourcedChildDefinitions;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.ElementDefinition;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChildDefinitionIndexTests {
+
+	@Test
+	void testGetChildMap() throws Exception {
+		final var index = new ChildDefinitionIndex();
+		final var profileUtilities = new ProfileUtilities(new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing(),
+																		  null, null);
+		final StructureDefinition profile = new StructureDefinition().setUrl("http://example.org/Patient");
+		final ElementDefinition root = addElement(profile, "Patient", "Patient");
+		final ElementDefinition identifier = addElement(profile, "Patient.identifier", "Patient.identifier");
+		identifier.getSlicing().addDiscriminator().setType(ElementDefinition.DiscriminatorType.VALUE).setPath("system");
+		final ElementDefinition slice = addElement(profile, "Patient.identifier:ahv", "Patient.identifier");
+		slice.setSliceName("ahv");
+		addElement(profile, "Patient.identifier:ahv.system", "Patient.identifier.system");
+		addElement(profile, "Patient.name", "Patient.name");
+
+		final SourcedChildDefinitions children = index.getChildMap(profileUtilities, profile, root, false);
+		assertEquals(List.of("Patient.identifier", "Patient.identifier:ahv", "Patient.name"),
+						 children.getList().stream().map(ElementDefinition::getId).toList());
+		assertSame(children, index.getChildMap(profileUtilities, profile, root, false));
+		assertEquals(1, index.getHitCount());
+		assertEquals(1, index.getMissCount());
+
+		// The child definitions are indexed per 'chillInsideOnly' flag and per profile
+		assertNotSame(children, index.getChildMap(profileUtilities, profile, root, true));
+		final StructureDefinition other = profile.copy().setUrl("http://example.org/OtherPatient");
+		assertNotSame(children, index.getChildMap(profileUtilities, other, other.getSnapshot().getElementFirstRep(), false));
+		assertEquals(2, index.size());
+		assertEquals(3, index.getMissCount());
+
+		final List<ElementDefinition> slices = index.getSliceList(profileUtilities, profile, identifier);
+		assertEquals(List.of(slice), slices);
+		assertSame(slices, index.getSliceList(profileUtilities, profile, identifier));
+		assertEquals(2, index.getHitCount());
+
+		index.clear();
+		assertEquals(0, index.size());
+		index.getChildMap(profileUtilities, profile, root, false);
+		assertEquals(5, index.getMissCount());
+	}
+
+	@Test
+	void testLeastRecentlyUsedProfileIsRemoved() throws Exception {
+		final var index = new ChildDefinitionIndex();
+		final var profileUtilities = new ProfileUtilities(new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing(),
+																		  null, null);
+		final List<StructureDefinition> profiles = new ArrayList<>();
+		for (int i = 0; i <= 4096; ++i) {
+			final StructureDefinition profile = new StructureDefinition().setUrl("http://example.org/Patient" + i);
+			addElement(profile, "Patient", "Patient");
+			addElement(profile, "Patient.name", "Patient.name");
+			profiles.add(profile);
+		}
+		for (int i = 0; i < 4096; ++i) {
+			index.getChildMap(profileUtilities, profiles.get(i), profiles.get(i).getSnapshot().getElementFirstRep(), false);
+		}
+		// the first profile is used again, the second one is now the least recently used
+		index.getChildMap(profileUtilities, profiles.get(0), profiles.get(0).getSnapshot().getElementFirstRep(), false);
+		index.getChildMap(profileUtilities, profiles.get(4096), profiles.get(4096).getSnapshot().getElementFirstRep(), false);
+		assertEquals(4096, index.size());
+		assertEquals(1, index.getHitCount());
+
+		index.getChildMap(profileUtilities, profiles.get(0), profiles.get(0).getSnapshot().getElementFirstRep(), false);
+		assertEquals(2, index.getHitCount());
+		index.getChildMap(profileUtilities, profiles.get(1), profiles.get(1).getSnapshot().getElementFirstRep(), false);
+		assertEquals(2, index.getHitCount());
+	}
+
+	@Test
+	void testElementsWithoutIdAreNotIndexed() throws Exception {
+		final var index = new ChildDefinitionIndex();
+		final var profileUtilities = new ProfileUtilities(new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing(),
+																		  null, null);
+		final StructureDefinition profile = new StructureDefinition().setUrl("http://example.org/Patient");
+		addElement(profile, "Patient", "Patient");
+		final ElementDefinition identifier = profile.getSnapshot().addElement().setPath("Patient.identifier");
+		identifier.getSlicing().addDiscriminator().setType(ElementDefinition.DiscriminatorType.VALUE).setPath("system");
+		profile.getSnapshot().addElement().setPath("Patient.identifier.system");
+		final ElementDefinition slice = profile.getSnapshot().addElement().setPath("Patient.identifier").setSliceName("ahv");
+		profile.getSnapshot().addElement().setPath("Patient.identifier.value");
+
+		// the slice has the same path as the sliced element, but other children
+		assertEquals(List.of("Patient.identifier.system"),
+						 index.getChildMap(profileUtilities, profile, identifier, false).getList().stream()
+							 .map(ElementDefinition::getPath).toList());
+		// the profile utilities cache the child definitions by path too, other ones are used
+		final var otherProfileUtilities = new ProfileUtilities(profileUtilities.getContext(), null, null);
+		assertEquals(List.of("Patient.identifier.value"),
+						 index.getChildMap(otherProfileUtilities, profile, slice, false).getList().stream()
+							 .map(ElementDefinition::getPath).toList());
+		assertEquals(0, index.getHitCount());
+		assertEquals(2, index.getMissCount());
+		assertEquals(0, index.size());
+	}
+
+	private static ElementDefinition addElement(final StructureDefinition profile, final String id, final String path) {
+		final ElementDefinition element = profile.getSnapshot().addElement().setPath(path);
+		element.setId(id);
+		return element;
+	}
+}
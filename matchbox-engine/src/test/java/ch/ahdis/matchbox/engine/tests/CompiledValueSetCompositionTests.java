@@ -0,0 +1,71 @@
+package ch.ahdis.matchbox.engine.tests;
+
+import ch.ahdis.matchbox.engine.CompiledValueSetComposition;
+import ch.ahdis.matchbox.engine.CompiledValueSetComposition.Membership;
+import org.hl7.fhir.r5.model.Enumerations;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompiledValueSetCompositionTests {
+
+	private static final String ENUMERATED = "http://example.org/CodeSystem/enumerated";
+	private static final String FILTERED = "http://example.org/CodeSystem/filtered";
+
+	@Test
+	void testEvaluate() {
+		final var composition = new CompiledValueSetComposition(createValueSet().getCompose());
+
+		assertEquals(Membership.INCLUDED, composition.evaluate(ENUMERATED, "a"));
+		assertEquals(Membership.UNKNOWN, composition.evaluate(ENUMERATED, "c"));
+		assertEquals(Membership.UNKNOWN, composition.evaluate(FILTERED, "1234"));
+		assertEquals(Membership.EXCLUDED, composition.evaluate(FILTERED, "12a4"));
+		assertEquals(Membership.EXCLUDED, composition.evaluate(FILTERED, null));
+		assertEquals(Membership.EXCLUDED, composition.evaluate("http://example.org/CodeSystem/other", "a"));
+	}
+
+	@Test
+	void testGetCacheKey() {
+		final ValueSet valueSet = createValueSet();
+		final String key = CompiledValueSetComposition.getCacheKey(valueSet);
+		assertNotNull(key);
+		assertEquals(key, CompiledValueSetComposition.getCacheKey(createValueSet()));
+		assertFalse(valueSet.hasMeta());
+
+		valueSet.getCompose().getIncludeFirstRep().addConcept().setCode("c");
+		assertNotEquals(key, CompiledValueSetComposition.getCacheKey(valueSet));
+
+		// a concept replaced by another one, without meta, is detected
+		final ValueSet modified = createValueSet();
+		modified.getCompose().getIncludeFirstRep().getConcept().getFirst().setCode("z");
+		assertNotEquals(key, CompiledValueSetComposition.getCacheKey(modified));
+		final ValueSet otherSystemVersion = createValueSet();
+		otherSystemVersion.getCompose().getIncludeFirstRep().setVersion("2.0.0");
+		assertNotEquals(key, CompiledValueSetComposition.getCacheKey(otherSystemVersion));
+		final ValueSet otherFilter = createValueSet();
+		otherFilter.getCompose().getInclude().get(1).getFilterFirstRep().setValue("[0-9a-z]+");
+		assertNotEquals(key, CompiledValueSetComposition.getCacheKey(otherFilter));
+		// the concepts are not concatenated
+		final ValueSet merged = createValueSet();
+		merged.getCompose().getIncludeFirstRep().getConcept().removeLast();
+		merged.getCompose().getIncludeFirstRep().getConcept().getFirst().setCode("ab");
+		assertNotEquals(key, CompiledValueSetComposition.getCacheKey(merged));
+
+		valueSet.setUrl(null);
+		assertNull(CompiledValueSetComposition.getCacheKey(valueSet));
+	}
+
+	private static ValueSet createValueSet() {
+		final var valueSet = new ValueSet();
+		valueSet.setUrl("http://example.org/ValueSet/test");
+		valueSet.setVersion("1.0.0");
+		final var enumerated = valueSet.getCompose().addInclude().setSystem(ENUMERATED);
+		enumerated.addConcept().setCode("a");
+		enumerated.addConcept().setCode("b");
+		enumerated.addFilter().setProperty("concept").setOp(Enumerations.FilterOperator.ISA).setValue("b");
+		valueSet.getCompose().addInclude().setSystem(FILTERED)
+			.addFilter().setProperty("code").setOp(Enumerations.FilterOperator.REGEX).setValue("[0-9]+");
+		return valueSet;
+	}
+}
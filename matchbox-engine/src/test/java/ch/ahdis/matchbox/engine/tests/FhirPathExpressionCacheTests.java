@@ -0,0 +1,40 @@
+package ch.ahdis.matchbox.engine.tests;
+
+import ch.ahdis.matchbox.engine.FhirPathExpressionCache;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.fhirpath.ExpressionNode;
+import org.hl7.fhir.r5.fhirpath.FHIRLexer;
+import org.hl7.fhir.r5.fhirpath.FHIRPathEngine;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FhirPathExpressionCacheTests {
+
+	@Test
+	void testParse() throws Exception {
+		final var cache = new FhirPathExpressionCache(2);
+		final var fpe = new FHIRPathEngine(new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing());
+
+		final ExpressionNode node = cache.parse(fpe, "4.0.1", "name.exists()");
+		assertSame(node, cache.parse(fpe, "4.0.1", "name.exists()"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+
+		// The expressions are cached per FHIR version and parsing options
+		assertNotSame(node, cache.parse(fpe, "5.0.0", "name.exists()"));
+		fpe.setAllowDoubleQuotes(true);
+		assertNotSame(node, cache.parse(fpe, "4.0.1", "name.exists()"));
+		assertEquals(2, cache.size());
+
+		// An invalid expression is not cached
+		assertThrows(FHIRLexer.FHIRLexerException.class, () -> cache.parse(fpe, "4.0.1", "name.exists("));
+		assertEquals(2, cache.size());
+
+		cache.setMaxEntries(1);
+		assertEquals(1, cache.size());
+		cache.setMaxEntries(0);
+		assertEquals(0, cache.size());
+		assertNotSame(cache.parse(fpe, "4.0.1", "name"), cache.parse(fpe, "4.0.1", "name"));
+	}
+}
@@ -0,0 +1,86 @@
+package ch.ahdis.matchbox.engine.tests;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import org.hl7.fhir.r4.formats.JsonParser;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.ByteArrayInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests that the entries of a large Bundle are validated in parallel with the same messages as sequentially.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ParallelBundleValidationTests {
+	private static final String PROFILE = "http://hl7.org/fhir/StructureDefinition/Bundle";
+	private final MatchboxEngine engine;
+
+	public ParallelBundleValidationTests() {
+		this.engine = new MatchboxEngine.MatchboxEngineBuilder().getEngineR4();
+	}
+
+	@Test
+	void testSameOperationOutcome() throws Exception {
+		final byte[] bundle = new JsonParser().composeBytes(newBundle(100));
+
+		final boolean parallelBundleValidation = this.engine.isParallelBundleValidation();
+		try {
+			this.engine.setParallelBundleValidation(false);
+			final String sequential = this.validate(bundle);
+			this.engine.setParallelBundleValidation(true);
+			// the validation is repeated, the order of the messages must not depend on the scheduling of the threads
+			for (int i = 0; i < 5; ++i) {
+				assertEquals(sequential, this.validate(bundle));
+			}
+		} finally {
+			this.engine.setParallelBundleValidation(parallelBundleValidation);
+		}
+	}
+
+	private String validate(final byte[] bundle) throws Exception {
+		final OperationOutcome outcome = this.engine.validate(new ByteArrayInputStream(bundle), Manager.FhirFormat.JSON,
+																				PROFILE);
+		assertFalse(outcome.getIssue().isEmpty());
+		return new JsonParser().composeString(outcome);
+	}
+
+	/**
+	 * A collection of patients and of observations about them, every fourth observation having no status, with some
+	 * contained resources and some relative references.
+	 */
+	private static Bundle newBundle(final int patients) {
+		final var bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+		for (int i = 0; i < patients; ++i) {
+			final var patient = new Patient();
+			patient.setId("p" + i);
+			patient.addName().setFamily("Family " + i);
+			bundle.addEntry().setFullUrl("http://example.org/fhir/Patient/p" + i).setResource(patient);
+
+			final var observation = new Observation();
+			observation.setId("o" + i);
+			if (i % 4 != 0) {
+				// the status is required
+				observation.setStatus(Observation.ObservationStatus.FINAL);
+			}
+			observation.getCode().setText("Observation " + i);
+			if (i % 3 == 0) {
+				final var performer = new Patient();
+				performer.setId("performer");
+				observation.addContained(performer);
+				observation.addPerformer(new Reference("#performer"));
+			}
+			observation.setSubject(new Reference(i % 2 == 0 ? "Patient/p" + i : "http://example.org/fhir/Patient/p" + i));
+			bundle.addEntry().setFullUrl("http://example.org/fhir/Observation/o" + i).setResource(observation);
+		}
+		return bundle;
+	}
+}
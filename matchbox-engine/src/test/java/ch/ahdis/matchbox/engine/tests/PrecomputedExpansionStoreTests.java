@@ -0,0 +1,160 @@
+package ch.ahdis.matchbox.engine.tests;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine.MatchboxEngineBuilder;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
+import org.hl7.fhir.r5.context.BaseWorkerContext;
+import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PrecomputedExpansionStoreTests {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void testWriteAndLoad() throws Exception {
+		final var writer = new PrecomputedExpansionStore(this.directory);
+		writer.write("test.package", "1.0.0", List.of(createExpandedValueSet("1.0.0")));
+		assertTrue(Files.exists(this.directory.resolve(PrecomputedExpansionStore.getFileName("test.package", "1.0.0"))));
+		assertEquals(1, writer.size());
+
+		// A new store maps the written file
+		final var store = new PrecomputedExpansionStore(this.directory);
+		store.load();
+		assertEquals(1, store.size());
+
+		final ValueSet expansion = store.getExpansion("http://example.org/ValueSet/test", null);
+		assertNotNull(expansion);
+		assertEquals("1.0.0", expansion.getVersion());
+		assertEquals("http://example.org/CodeSystem/test", expansion.getCompose().getIncludeFirstRep().getSystem());
+		// The hierarchy is flattened
+		assertEquals(3, expansion.getExpansion().getContains().size());
+		final var child = expansion.getExpansion().getContains().get(1);
+		assertEquals("child", child.getCode());
+		assertEquals("Child", child.getDisplay());
+		assertTrue(child.getInactive());
+		assertTrue(expansion.getExpansion().getContains().get(0).getAbstract());
+		assertNull(expansion.getExpansion().getContains().get(2).getDisplay());
+
+		assertNotNull(store.getExpansion("http://example.org/ValueSet/test", "1.0.0"));
+		assertNull(store.getExpansion("http://example.org/ValueSet/test", "2.0.0"));
+		assertNull(store.getExpansion("http://example.org/ValueSet/other", null));
+
+		final var valueSet = new ValueSet();
+		valueSet.setUrl("http://example.org/ValueSet/test");
+		valueSet.setVersion("1.0.0");
+		valueSet.setName("Test");
+		final ValueSet expanded = store.expand(valueSet);
+		assertNotNull(expanded);
+		assertEquals("Test", expanded.getName());
+		assertEquals(3, expanded.getExpansion().getContains().size());
+		assertFalse(valueSet.hasExpansion());
+	}
+
+	@Test
+	void testRemove() throws Exception {
+		final var store = new PrecomputedExpansionStore(this.directory);
+		store.write("test.package", "1.0.0", List.of(createExpandedValueSet("1.0.0")));
+		store.write("test.package", "2.0.0", List.of(createExpandedValueSet("2.0.0")));
+		assertEquals(2, store.size());
+		assertNotNull(store.getExpansion("http://example.org/ValueSet/test", "1.0.0"));
+
+		store.remove("test.package", "1.0.0");
+		assertEquals(1, store.size());
+		assertNull(store.getExpansion("http://example.org/ValueSet/test", "1.0.0"));
+		assertEquals("2.0.0", store.getExpansion("http://example.org/ValueSet/test", null).getVersion());
+		assertFalse(Files.exists(this.directory.resolve(PrecomputedExpansionStore.getFileName("test.package", "1.0.0"))));
+	}
+
+	@Test
+	void testLatestVersion() throws Exception {
+		// the URL alone resolves to the latest version, whatever the order of the files
+		final var store = new PrecomputedExpansionStore(this.directory);
+		store.write("b.package", "1.0.0", List.of(createExpandedValueSet("1.0.0")));
+		store.write("a.package", "1.0.0", List.of(createExpandedValueSet("2.1.0")));
+		store.write("c.package", "1.0.0", List.of(createExpandedValueSet(null)));
+		assertEquals("2.1.0", store.getExpansion("http://example.org/ValueSet/test", null).getVersion());
+		assertEquals("1.0.0", store.getExpansion("http://example.org/ValueSet/test", "1.0.0").getVersion());
+
+		final var loaded = new PrecomputedExpansionStore(this.directory);
+		loaded.load();
+		assertEquals("2.1.0", loaded.getExpansion("http://example.org/ValueSet/test", null).getVersion());
+	}
+
+	@Test
+	void testRemovedFileIsClosed() throws Exception {
+		final var store = new PrecomputedExpansionStore(this.directory);
+		store.write("test.package", "1.0.0", List.of(createExpandedValueSet("1.0.0")));
+		assertTrue(store.contains("test.package", "1.0.0"));
+		// the file can be replaced while it is open
+		store.write("test.package", "1.0.0", List.of(createExpandedValueSet("1.0.0"), createOtherValueSet()));
+		assertEquals(2, store.size());
+		assertNotNull(store.getExpansion("http://example.org/ValueSet/other", null));
+
+		store.remove("test.package", "1.0.0");
+		assertFalse(store.contains("test.package", "1.0.0"));
+		assertNull(store.getExpansion("http://example.org/ValueSet/test", null));
+		try (final var files = Files.list(this.directory)) {
+			assertEquals(0, files.count());
+		}
+	}
+
+	@Test
+	void testExpansionParametersBypassTheStore() throws Exception {
+		final var store = new PrecomputedExpansionStore(this.directory);
+		store.write("test.package", "1.0.0", List.of(createExpandedValueSet("1.0.0")));
+		final var context = (BaseWorkerContext) new MatchboxEngineBuilder().getEngineR4().getContext();
+		context.setPrecomputedExpansions(store::expand);
+		final var valueSet = new ValueSet();
+		valueSet.setUrl("http://example.org/ValueSet/test");
+		valueSet.setVersion("1.0.0");
+		valueSet.getCompose().addInclude().setSystem("http://example.org/CodeSystem/test").addConcept().setCode("other");
+
+		final var precomputed = context.expandVS(valueSet, false, false, true, new Parameters());
+		assertNotNull(precomputed.getValueset());
+		assertEquals(3, precomputed.getValueset().getExpansion().getContains().size());
+
+		// the stored expansion contains the inactive concepts, it is not used when they are excluded
+		final var parameters = new Parameters();
+		parameters.addParameter("activeOnly", true);
+		final var expanded = context.expandVS(valueSet, false, false, true, parameters);
+		assertTrue(expanded.getValueset() == null
+						  || expanded.getValueset().getExpansion().getContains().stream().noneMatch(c -> "child".equals(c.getCode())));
+	}
+
+	private static ValueSet createOtherValueSet() {
+		final var valueSet = new ValueSet();
+		valueSet.setUrl("http://example.org/ValueSet/other");
+		valueSet.getExpansion().addContains().setSystem("http://example.org/CodeSystem/test").setCode("other");
+		return valueSet;
+	}
+
+	private static ValueSet createExpandedValueSet(final String version) {
+		final var valueSet = new ValueSet();
+		valueSet.setUrl("http://example.org/ValueSet/test");
+		valueSet.setVersion(version);
+		valueSet.getCompose().addInclude().setSystem("http://example.org/CodeSystem/test");
+		final var parent = valueSet.getExpansion().addContains()
+			.setSystem("http://example.org/CodeSystem/test")
+			.setCode("parent")
+			.setDisplay("Parent")
+			.setAbstract(true);
+		parent.addContains()
+			.setSystem("http://example.org/CodeSystem/test")
+			.setCode("child")
+			.setDisplay("Child")
+			.setInactive(true);
+		valueSet.getExpansion().addContains()
+			.setSystem("http://example.org/CodeSystem/test")
+			.setCode("other");
+		return valueSet;
+	}
+}
@@ -0,0 +1,119 @@
+package ch.ahdis.matchbox.engine.tests;
+
+import ch.ahdis.matchbox.engine.PreparsedPackageStore;
+import org.hl7.fhir.r5.model.CanonicalResource;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.Enumerations;
+import org.hl7.fhir.r5.model.Extension;
+import org.hl7.fhir.r5.model.StringType;
+import org.hl7.fhir.r5.model.StructureDefinition;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreparsedPackageStoreTests {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void testWriteAndOpen() throws Exception {
+		final var store = new PreparsedPackageStore(this.directory);
+		assertNull(store.open("test.package", "1.0.0", 42));
+
+		store.write("test.package", "1.0.0", 42, List.of(createStructureDefinition(), createCodeSystem()));
+		assertTrue(Files.exists(this.directory.resolve(PreparsedPackageStore.getFileName("test.package", "1.0.0"))));
+
+		final var entries = store.open("test.package", "1.0.0", 42);
+		assertNotNull(entries);
+		assertEquals(2, entries.size());
+
+		final var structureDefinitionEntry = entries.get(0);
+		assertEquals("StructureDefinition", structureDefinitionEntry.type());
+		assertEquals("test-profile", structureDefinitionEntry.id());
+		assertEquals("http://example.org/StructureDefinition/test-profile", structureDefinitionEntry.url());
+		assertEquals("1.0.0", structureDefinitionEntry.version());
+		assertEquals("constraint", structureDefinitionEntry.derivation());
+		assertNull(structureDefinitionEntry.supplements());
+		final var structureDefinition = (StructureDefinition) structureDefinitionEntry.parse();
+		assertEquals("http://hl7.org/fhir/StructureDefinition/Patient", structureDefinition.getBaseDefinition());
+		// The extensions of primitive values are kept
+		assertEquals("Titre", structureDefinition.getTitleElement().getExtensionFirstRep().getValue().primitiveValue());
+
+		final var codeSystemEntry = entries.get(1);
+		assertEquals("CodeSystem", codeSystemEntry.type());
+		assertEquals("http://example.org/CodeSystem/base", codeSystemEntry.supplements());
+		assertEquals("supplement", codeSystemEntry.content());
+		assertEquals(List.of("2.999.1"), codeSystemEntry.oids());
+		assertEquals(2, ((CodeSystem) codeSystemEntry.parse()).getConcept().size());
+		// An entry can be parsed again
+		assertEquals(2, ((CodeSystem) codeSystemEntry.parse()).getConcept().size());
+	}
+
+	@Test
+	void testOutdated() throws Exception {
+		final var store = new PreparsedPackageStore(this.directory);
+		store.write("test.package", "1.0.0", 42, List.<CanonicalResource>of(createCodeSystem()));
+
+		// The package has been re-installed
+		assertNull(store.open("test.package", "1.0.0", 43));
+		assertNull(store.open("test.package", "2.0.0", 42));
+
+		// A corrupted file is ignored
+		final Path path = this.directory.resolve(PreparsedPackageStore.getFileName("test.package", "1.0.0"));
+		final byte[] bytes = Files.readAllBytes(path);
+		Files.write(path, Arrays.copyOf(bytes, bytes.length - 10));
+		assertNull(store.open("test.package", "1.0.0", 42));
+
+		store.remove("test.package", "1.0.0");
+		assertFalse(Files.exists(path));
+	}
+
+	@Test
+	void testReplaceAndRemoveOpened() throws Exception {
+		final var store = new PreparsedPackageStore(this.directory);
+		store.write("test.package", "1.0.0", 42, List.<CanonicalResource>of(createCodeSystem()));
+		final var entries = store.open("test.package", "1.0.0", 42);
+		assertNotNull(entries);
+
+		// The package is re-installed and then uninstalled while its opened resources are still used
+		store.write("test.package", "1.0.0", 43, List.of(createStructureDefinition()));
+		assertEquals("StructureDefinition", store.open("test.package", "1.0.0", 43).get(0).type());
+		store.remove("test.package", "1.0.0");
+		assertFalse(Files.exists(this.directory.resolve(PreparsedPackageStore.getFileName("test.package", "1.0.0"))));
+
+		assertEquals(2, ((CodeSystem) entries.get(0).parse()).getConcept().size());
+	}
+
+	private static StructureDefinition createStructureDefinition() {
+		final var structureDefinition = new StructureDefinition();
+		structureDefinition.setId("test-profile");
+		structureDefinition.setUrl("http://example.org/StructureDefinition/test-profile");
+		structureDefinition.setVersion("1.0.0");
+		structureDefinition.setTitle("Title");
+		structureDefinition.getTitleElement().addExtension(new Extension(
+			"http://hl7.org/fhir/StructureDefinition/translation", new StringType("Titre")));
+		structureDefinition.setType("Patient");
+		structureDefinition.setBaseDefinition("http://hl7.org/fhir/StructureDefinition/Patient");
+		structureDefinition.setDerivation(StructureDefinition.TypeDerivationRule.CONSTRAINT);
+		return structureDefinition;
+	}
+
+	private static CodeSystem createCodeSystem() {
+		final var codeSystem = new CodeSystem();
+		codeSystem.setId("test-supplement");
+		codeSystem.setUrl("http://example.org/CodeSystem/test-supplement");
+		codeSystem.addIdentifier().setValue("urn:oid:2.999.1");
+		codeSystem.setSupplements("http://example.org/CodeSystem/base");
+		codeSystem.setContent(Enumerations.CodeSystemContentMode.SUPPLEMENT);
+		codeSystem.addConcept().setCode("a");
+		codeSystem.addConcept().setCode("b");
+		return codeSystem;
+	}
+}
@@ -0,0 +1,174 @@
+package ch.ahdis.matchbox.engine.tests;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.engine.ReferenceResolutionIndex;
+import org.hl7.fhir.r5.elementmodel.Element;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.model.Base;
+import org.hl7.fhir.r5.utils.XVerExtensionManager;
+import org.hl7.fhir.r5.utils.validation.ValidatorSession;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.BaseValidator;
+import org.hl7.fhir.validation.instance.InstanceValidator;
+import org.hl7.fhir.validation.instance.utils.IndexedElement;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the references resolved with the index of the Bundle resolve to the same elements, with the same
+ * messages, as the references resolved by the scans of the core validator.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ReferenceResolutionIndexTests {
+
+	private static final String BUNDLE = """
+		{"resourceType":"Bundle","type":"transaction","entry":[
+		{"fullUrl":"http://example.org/fhir/Patient/1","resource":{"resourceType":"Patient","id":"1"}},
+		{"fullUrl":"urn:uuid:6f4b8a36-4a0e-4c3b-9a9f-2f0d5a1b7c01","resource":{"resourceType":"Patient","id":"2"}},
+		{"fullUrl":"http://example.org/fhir/Patient/3","resource":{"resourceType":"Patient","id":"3"}},
+		{"fullUrl":"http://example.org/fhir/Patient/3","resource":{"resourceType":"Patient","id":"3"}},
+		{"resource":{"resourceType":"Patient","id":"5"}},
+		{"fullUrl":"http://other.org/fhir/Patient/6","resource":{"resourceType":"Patient","id":"6"}},
+		{"fullUrl":"http://example.org/fhir/Patient/7","resource":{"resourceType":"Patient"}},
+		{"fullUrl":"http://example.org/fhir/Observation/1","resource":{"resourceType":"Observation","id":"1",
+		 "contained":[{"resourceType":"Patient","id":"c1"},{"resourceType":"Patient","id":"c2"},
+		              {"resourceType":"Patient","id":"c1"}],
+		 "status":"final","code":{"text":"weight"}}}
+		]}""";
+
+	private static final List<String> REFERENCES = List.of(
+		"Patient/1", "http://example.org/fhir/Patient/1", "Patient/1/_history/2", "urn:uuid:6f4b8a36-4a0e-4c3b-9a9f-2f0d5a1b7c01",
+		"Patient/2", "Patient/3", "Patient/5", "Patient/6", "http://other.org/fhir/Patient/6", "Patient/7", "Patient/404",
+		"Observation/1", "Patient/c1", "#c1", "Patient?identifier=http://example.org|1", "1");
+
+	private static final List<String> SOURCE_FULL_URLS = List.of("http://example.org/fhir/Observation/1",
+																					 "urn:uuid:0b5d0b4e-94e6-4f73-9d39-41c2b7a8e5f0");
+
+	private final MatchboxEngine engine;
+	private final Method getFromBundle;
+	private final Method resolveInBundle;
+
+	public ReferenceResolutionIndexTests() throws Exception {
+		this.engine = new MatchboxEngine.MatchboxEngineBuilder().getEngineR4();
+		this.getFromBundle = BaseValidator.class.getDeclaredMethod("getFromBundle", Element.class, String.class,
+																						String.class, List.class, String.class,
+																						String.class, boolean.class,
+																						BaseValidator.BooleanHolder.class);
+		this.getFromBundle.setAccessible(true);
+		this.resolveInBundle = BaseValidator.class.getDeclaredMethod("resolveInBundle", String.class, Element.class);
+		this.resolveInBundle.setAccessible(true);
+	}
+
+	@Test
+	void testGetFromBundle() throws Exception {
+		final Element bundle = this.parseBundle();
+		final InstanceValidator indexed = this.engine.getValidator(Manager.FhirFormat.JSON);
+		final BaseValidator scanned = this.newCoreValidator();
+
+		for (final String sourceFullUrl : SOURCE_FULL_URLS) {
+			for (final String reference : REFERENCES) {
+				for (final String type : List.of("transaction", "collection")) {
+					final String label = reference + " from " + sourceFullUrl + " in a " + type;
+					final Resolution expected = this.getFromBundle(scanned, bundle, reference, sourceFullUrl, type);
+					final Resolution actual = this.getFromBundle(indexed, bundle, reference, sourceFullUrl, type);
+					assertEquals(expected, actual, label);
+				}
+			}
+		}
+		// the relative references are not resolved without the full URL of their source
+		assertEquals(this.getFromBundle(scanned, bundle, "Patient/1", null, "transaction"),
+						 this.getFromBundle(indexed, bundle, "Patient/1", null, "transaction"));
+	}
+
+	@Test
+	void testResolveInBundle() throws Exception {
+		final Element bundle = this.parseBundle();
+		final InstanceValidator indexed = this.engine.getValidator(Manager.FhirFormat.JSON);
+		final BaseValidator scanned = this.newCoreValidator();
+
+		for (final String reference : REFERENCES) {
+			assertSame(this.resolveInBundle.invoke(scanned, reference, bundle),
+						  this.resolveInBundle.invoke(indexed, reference, bundle), reference);
+		}
+		// the resources without id are not indexed by 'type/null'
+		assertNotNull(this.resolveInBundle.invoke(scanned, "Patient/null", bundle));
+		assertNull(this.resolveInBundle.invoke(indexed, "Patient/null", bundle));
+	}
+
+	@Test
+	void testContained() throws Exception {
+		final Element observation = this.parseBundle().getChildren("entry").get(7).getNamedChild("resource", false);
+		final ReferenceResolutionIndex index = ReferenceResolutionIndex.of(observation);
+		final List<Element> contained = observation.getChildren("contained");
+
+		for (final String id : List.of("c1", "c2", "c3", "")) {
+			// the first contained resource with the id, as found by the scan of the validator
+			int expected = -1;
+			for (int i = 0; i < contained.size(); ++i) {
+				if (id.equals(contained.get(i).getNamedChildValue("id", false))) {
+					expected = i;
+					break;
+				}
+			}
+			assertEquals(expected, index.getContainedPosition(id), id);
+			if (expected >= 0) {
+				assertSame(contained.get(expected), index.getContained().get(expected));
+			}
+		}
+	}
+
+	private Element parseBundle() throws Exception {
+		return Manager.parseSingle(this.engine.getContext(),
+											new ByteArrayInputStream(BUNDLE.getBytes(StandardCharsets.UTF_8)),
+											Manager.FhirFormat.JSON);
+	}
+
+	/**
+	 * A validator of the core, which resolves the references by scanning the entries.
+	 */
+	private BaseValidator newCoreValidator() {
+		return new BaseValidator(this.engine.getContext(), new XVerExtensionManager(this.engine.getContext()), false,
+										 new ValidatorSession());
+	}
+
+	private Resolution getFromBundle(final BaseValidator validator,
+												final Element bundle,
+												final String reference,
+												final String sourceFullUrl,
+												final String type) throws Exception {
+		final List<ValidationMessage> messages = new ArrayList<>();
+		final var bh = new BaseValidator.BooleanHolder();
+		final var res = (IndexedElement) this.getFromBundle.invoke(validator, bundle, reference, sourceFullUrl, messages,
+																					  "Bundle.entry[0].resource.subject", type,
+																					  "transaction".equals(type), bh);
+		return new Resolution(res == null ? -1 : res.getIndex(),
+									 res == null ? null : res.getMatch(),
+									 res == null ? null : res.getEntry(),
+									 messages.stream().map(m -> m.getLevel() + " " + m.getMessageId() + " " + m.getMessage()).toList(),
+									 bh.ok());
+	}
+
+	/**
+	 * The result of the resolution of a reference; the elements are compared by identity.
+	 */
+	private record Resolution(int index, Base match, Base entry, List<String> messages, boolean ok) {
+		@Override
+		public boolean equals(final Object o) {
+			return o instanceof final Resolution other && this.index == other.index && this.match == other.match
+				&& this.entry == other.entry && this.messages.equals(other.messages) && this.ok == other.ok;
+		}
+
+		@Override
+		public int hashCode() {
+			return this.index;
+		}
+	}
+}
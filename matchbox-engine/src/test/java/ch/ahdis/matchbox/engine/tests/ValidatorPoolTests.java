@@ -0,0 +1,115 @@
+package ch.ahdis.matchbox.engine.tests;
+
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import ch.ahdis.matchbox.engine.ValidationPolicyAdvisor;
+import org.hl7.fhir.r5.elementmodel.Manager;
+import org.hl7.fhir.r5.utils.validation.constants.ReferenceValidationPolicy;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.hl7.fhir.validation.instance.InstanceValidator;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestInstance;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Tests that the validators reused by an engine validate as the validators it creates.
+ */
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+class ValidatorPoolTests {
+	private static final String PROFILE = "http://hl7.org/fhir/StructureDefinition/CarePlan";
+	private final MatchboxEngine engine;
+	private final String careplanRaw;
+
+	public ValidatorPoolTests() throws IOException {
+		this.engine = new MatchboxEngine.MatchboxEngineBuilder().getEngineR4();
+		this.careplanRaw = new String(ValidatorPoolTests.class.getResourceAsStream("/r4-samples/careplan.xml").readAllBytes(),
+												StandardCharsets.UTF_8);
+	}
+
+	@Test
+	void testBorrowedValidatorUsedTwice() throws Exception {
+		final String invalid = this.careplanRaw.replace("{{INTENT}}", "non-existent-code");
+		final String valid = this.careplanRaw.replace("{{INTENT}}", "plan");
+
+		// the first validation creates the validator, the next ones borrow it from the pool
+		final List<String> first = this.validatePooled(invalid);
+		assertEquals(first, this.validatePooled(invalid));
+		assertEquals(this.validatePooled(valid), this.validateFresh(valid));
+		assertEquals(first, this.validatePooled(invalid));
+		assertEquals(first, this.validateFresh(invalid));
+	}
+
+	@Test
+	void testChangedSettingsAreApplied() throws Exception {
+		final String careplan = this.careplanRaw.replace("{{INTENT}}", "plan")
+			.replace("<status value=\"active\"/>",
+						"<extension url=\"http://example.org/StructureDefinition/unknown\"><valueString value=\"a\"/></extension>" +
+							"<status value=\"active\"/>");
+		final boolean anyExtensionsAllowed = this.engine.isAnyExtensionsAllowed();
+		try {
+			final List<String> before = this.validatePooled(careplan);
+			assertEquals(before, this.validateFresh(careplan));
+
+			// the pooled validators have been created with the previous setting
+			this.engine.setAnyExtensionsAllowed(!anyExtensionsAllowed);
+			final List<String> after = this.validatePooled(careplan);
+			assertEquals(after, this.validateFresh(careplan));
+			assertNotEquals(before, after);
+		} finally {
+			this.engine.setAnyExtensionsAllowed(anyExtensionsAllowed);
+		}
+	}
+
+	@Test
+	void testModifiedExtensionDomainsAreApplied() throws Exception {
+		final String careplan = this.careplanRaw.replace("{{INTENT}}", "plan")
+			.replace("<status value=\"active\"/>",
+						"<extension url=\"http://example.org/StructureDefinition/unknown\"><valueString value=\"a\"/></extension>" +
+							"<status value=\"active\"/>");
+		final boolean anyExtensionsAllowed = this.engine.isAnyExtensionsAllowed();
+		try {
+			this.engine.setAnyExtensionsAllowed(false);
+			final List<String> before = this.validatePooled(careplan);
+
+			// the extension domains are modified in place, not with a setter
+			this.engine.getExtensionDomains().add("http://example.org");
+			final List<String> after = this.validatePooled(careplan);
+			assertEquals(after, this.validateFresh(careplan));
+			assertNotEquals(before, after);
+		} finally {
+			this.engine.getExtensionDomains().remove("http://example.org");
+			this.engine.setAnyExtensionsAllowed(anyExtensionsAllowed);
+		}
+	}
+
+	private List<String> validatePooled(final String resource) throws Exception {
+		return summarize(this.engine.validate(Manager.FhirFormat.XML,
+														  new ByteArrayInputStream(resource.getBytes(StandardCharsets.UTF_8)),
+														  PROFILE));
+	}
+
+	/**
+	 * Validates the resource with a new validator, configured as the engine configures the validators it borrows.
+	 */
+	private List<String> validateFresh(final String resource) throws Exception {
+		final InstanceValidator validator = this.engine.getValidator(Manager.FhirFormat.XML);
+		validator.setPolicyAdvisor(new ValidationPolicyAdvisor(ReferenceValidationPolicy.CHECK_VALID));
+		final List<ValidationMessage> messages = new ArrayList<>();
+		validator.validate(null, messages, new ByteArrayInputStream(resource.getBytes(StandardCharsets.UTF_8)),
+								 Manager.FhirFormat.XML, new ArrayList<>(List.of(this.engine.getStructureDefinitionR5(PROFILE))));
+		return summarize(this.engine.filterValidationMessages(messages));
+	}
+
+	private static List<String> summarize(final List<ValidationMessage> messages) {
+		return messages.stream()
+			.map(message -> message.getLevel() + " " + message.getLocation() + " " + message.getMessage())
+			.toList();
+	}
+}
@@ -0,0 +1,85 @@
+package ch.ahdis.matchbox.engine.tests;
+
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.Enumerations;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Field;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests that the resources indexed by id are shared between a worker context and its copies, without the copies
+ * modifying the index of the context they have been copied from.
+ */
+class WorkerContextCopyTests {
+
+	@Test
+	void testResourcesCachedInCopy() throws Exception {
+		final var source = new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing();
+		source.cacheResource(newValueSet("a"));
+		final var copy = new SimpleWorkerContext(source);
+		assertNotNull(copy.fetchResourceById("ValueSet", "a"));
+		final int codeSystems = getAllResourcesById(source).get("CodeSystem").size();
+
+		copy.cacheResource(newValueSet("b"));
+		copy.cacheResource(newCodeSystem("c"));
+
+		assertNotNull(copy.fetchResourceById("ValueSet", "a"));
+		assertNotNull(copy.fetchResourceById("ValueSet", "b"));
+		assertNotNull(copy.fetchResourceById("CodeSystem", "c"));
+		assertNull(source.fetchResourceById("ValueSet", "b"));
+		assertNull(source.fetchResourceById("CodeSystem", "c"));
+		assertEquals(1, getAllResourcesById(source).get("ValueSet").size());
+		assertEquals(codeSystems, getAllResourcesById(source).get("CodeSystem").size());
+		assertNotSame(getAllResourcesById(source).get("ValueSet"), getAllResourcesById(copy).get("ValueSet"));
+
+		// nor does the source modify its copy
+		source.cacheResource(newValueSet("d"));
+		assertNull(copy.fetchResourceById("ValueSet", "d"));
+	}
+
+	@Test
+	void testResourceDroppedFromCopy() throws Exception {
+		final var source = new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing();
+		source.cacheResource(newValueSet("a"));
+		final var copy = new SimpleWorkerContext(source);
+
+		copy.dropResource("ValueSet", "a");
+
+		assertNull(copy.fetchResourceById("ValueSet", "a"));
+		assertNotNull(source.fetchResourceById("ValueSet", "a"));
+		assertEquals(1, source.fetchResourcesByType(ValueSet.class).size());
+		assertEquals(1, getAllResourcesById(source).get("ValueSet").size());
+	}
+
+	private static ValueSet newValueSet(final String id) {
+		final var valueSet = new ValueSet();
+		valueSet.setId(id);
+		valueSet.setUrl("http://example.org/ValueSet/" + id);
+		valueSet.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		return valueSet;
+	}
+
+	private static CodeSystem newCodeSystem(final String id) {
+		final var codeSystem = new CodeSystem();
+		codeSystem.setId(id);
+		codeSystem.setUrl("http://example.org/CodeSystem/" + id);
+		codeSystem.setStatus(Enumerations.PublicationStatus.ACTIVE);
+		codeSystem.setContent(Enumerations.CodeSystemContentMode.COMPLETE);
+		return codeSystem;
+	}
+
+	/**
+	 * Returns the private index of the resources by type and id of a context.
+	 */
+	@SuppressWarnings("unchecked")
+	private static Map<String, Map<String, ?>> getAllResourcesById(final SimpleWorkerContext context) throws Exception {
+		final Field field = context.getClass().getSuperclass().getDeclaredField("allResourcesById");
+		field.setAccessible(true);
+		return (Map<String, Map<String, ?>>) field.get(context);
+	}
+}
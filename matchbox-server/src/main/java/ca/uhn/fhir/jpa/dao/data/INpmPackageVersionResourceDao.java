@@ -71,6 +71,15 @@ public interface INpmPackageVersionResourceDao extends JpaRepository<NpmPackageV
 	Slice<NpmPackageVersionResourceEntity> findByResourceType(Pageable thePage,
 																				 @Param("resourceType") String theResourceType);
 
+	@Query("SELECT e FROM NpmPackageVersionResourceEntity e WHERE e.myResourceType = :resourceType AND e.myPackageVersion.myPackageId = :packageId AND e.myPackageVersion.myVersionId = :versionId ORDER BY e.myId")
+	Slice<NpmPackageVersionResourceEntity> findByResourceTypeByPackageVersion(Pageable thePage,
+																									  @Param("resourceType") String theResourceType,
+																									  @Param("packageId") String thePackageId,
+																									  @Param("versionId") String theVersionId);
+
+	@Query("SELECT e.myId FROM NpmPackageVersionResourceEntity e WHERE e.myResourceType = :resourceType AND (e.myFilename IS NULL OR e.myFilename LIKE '%.json') ORDER BY e.myId")
+	List<Long> findUntitledIdsByResourceType(@Param("resourceType") String theResourceType);
+
 	@Query("SELECT e FROM NpmPackageVersionResourceEntity e WHERE e.myResourceType = :resourceType AND e.myId = :id")
 	Slice<NpmPackageVersionResourceEntity> findByResourceTypeById(Pageable thePage,
 																					  @Param("resourceType") String theResourceType,
@@ -23,6 +23,8 @@ import ca.uhn.fhir.jpa.validation.ValidatorPolicyAdvisor;
 import ca.uhn.fhir.jpa.validation.ValidatorResourceFetcher;
 import ch.ahdis.matchbox.validation.ValidationProvider;
 import ch.ahdis.matchbox.providers.CodeSystemResourceProvider;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
 import ch.ahdis.matchbox.config.MatchboxJpaConfig;
 import ch.ahdis.matchbox.questionnaire.QuestionnaireResourceProvider;
 import ch.ahdis.matchbox.providers.StructureDefinitionResourceProvider;
@@ -182,8 +184,10 @@ public class FhirServerConfigR4 {
 	}
 
 	@Bean
-	public ValueSetCodeValidationProvider valueSetCodeValidationProvider(final FhirContext fhirContext) {
-		return new ValueSetCodeValidationProvider(fhirContext);
+	public ValueSetCodeValidationProvider valueSetCodeValidationProvider(final FhirContext fhirContext,
+																							  final MatchboxFhirContextProperties matchboxFhirContextProperties,
+																							  final PrecomputedExpansionStore precomputedExpansionStore) {
+		return new ValueSetCodeValidationProvider(fhirContext, matchboxFhirContextProperties, precomputedExpansionStore);
 	}
 
 }
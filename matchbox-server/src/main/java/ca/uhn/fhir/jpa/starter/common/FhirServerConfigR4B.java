@@ -22,6 +22,8 @@ import ca.uhn.fhir.jpa.starter.annotations.OnR4BCondition;
 import ca.uhn.fhir.jpa.validation.ValidatorPolicyAdvisor;
 import ca.uhn.fhir.jpa.validation.ValidatorResourceFetcher;
 import ch.ahdis.matchbox.validation.ValidationProvider;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
 import ch.ahdis.matchbox.config.MatchboxJpaConfig;
 import ch.ahdis.matchbox.questionnaire.QuestionnaireResourceProvider;
 import ch.ahdis.matchbox.providers.StructureDefinitionResourceProvider;
@@ -172,8 +174,10 @@ public class FhirServerConfigR4B {
 	}
 
 	@Bean
-	public ValueSetCodeValidationProvider valueSetCodeValidationProvider(final FhirContext fhirContext) {
-		return new ValueSetCodeValidationProvider(fhirContext);
+	public ValueSetCodeValidationProvider valueSetCodeValidationProvider(final FhirContext fhirContext,
+																							  final MatchboxFhirContextProperties matchboxFhirContextProperties,
+																							  final PrecomputedExpansionStore precomputedExpansionStore) {
+		return new ValueSetCodeValidationProvider(fhirContext, matchboxFhirContextProperties, precomputedExpansionStore);
 	}
 
 }
@@ -10,6 +10,8 @@ import ca.uhn.fhir.jpa.starter.AppProperties;
 import ca.uhn.fhir.jpa.starter.annotations.OnR5Condition;
 import ca.uhn.fhir.jpa.validation.ValidatorPolicyAdvisor;
 import ca.uhn.fhir.jpa.validation.ValidatorResourceFetcher;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
 import ch.ahdis.matchbox.config.MatchboxJpaConfig;
 import ch.ahdis.matchbox.mappinglanguage.StructureMapListProvider;
 import ch.ahdis.matchbox.packages.ImplementationGuideProviderR5;
@@ -169,7 +171,9 @@ public class FhirServerConfigR5 {
 	}
 
 	@Bean
-	public ValueSetCodeValidationProvider valueSetCodeValidationProvider(final FhirContext fhirContext) {
-		return new ValueSetCodeValidationProvider(fhirContext);
+	public ValueSetCodeValidationProvider valueSetCodeValidationProvider(final FhirContext fhirContext,
+																							  final MatchboxFhirContextProperties matchboxFhirContextProperties,
+																							  final PrecomputedExpansionStore precomputedExpansionStore) {
+		return new ValueSetCodeValidationProvider(fhirContext, matchboxFhirContextProperties, precomputedExpansionStore);
 	}
 }
@@ -139,6 +139,9 @@ public class CliContext {
   @JsonProperty("securityChecks")
   private boolean securityChecks = false;
 
+  @JsonProperty("parallelBundleValidation")
+  private boolean parallelBundleValidation = false;
+
   @JsonProperty("crumbTrails")
   private boolean crumbTrails = false;
 
@@ -593,6 +596,16 @@ public class CliContext {
     this.securityChecks = securityChecks;
   }
 
+  @JsonProperty("parallelBundleValidation")
+  public boolean isParallelBundleValidation() {
+    return parallelBundleValidation;
+  }
+
+  @JsonProperty("parallelBundleValidation")
+  public void setParallelBundleValidation(boolean parallelBundleValidation) {
+    this.parallelBundleValidation = parallelBundleValidation;
+  }
+
   public boolean isCrumbTrails() {
     return crumbTrails;
   }
@@ -682,6 +695,7 @@ public class CliContext {
         && wantInvariantsInMessages == that.wantInvariantsInMessages
         && doImplicitFHIRPathStringConversion == that.doImplicitFHIRPathStringConversion
         && securityChecks == that.securityChecks
+        && parallelBundleValidation == that.parallelBundleValidation
         && crumbTrails == that.crumbTrails
         && forPublication == that.forPublication
         && showMessageIds == that.showMessageIds
@@ -729,6 +743,7 @@ public class CliContext {
         wantInvariantsInMessages,
         doImplicitFHIRPathStringConversion,
         securityChecks,
+        parallelBundleValidation,
         crumbTrails,
         forPublication,
         showMessageIds,
@@ -789,6 +804,7 @@ public class CliContext {
         ", level=" + level +
         ", mode=" + mode +
         ", securityChecks=" + securityChecks +
+        ", parallelBundleValidation=" + parallelBundleValidation +
         ", crumbTrails=" + crumbTrails +
         ", forPublication=" + forPublication +
         ", showMessageIds=" + showMessageIds +
@@ -833,6 +849,7 @@ public class CliContext {
 	// addExtension(ext, "htmlInMarkdownCheck", new BooleanType(this.htmlInMarkdownCheck == HtmlInMarkdownCheck.ERROR));
 
 	addExtension(ext, "securityChecks", new BooleanType(this.securityChecks));
+	addExtension(ext, "parallelBundleValidation", new BooleanType(this.parallelBundleValidation));
 	addExtension(ext, "crumbTrails", new BooleanType(this.crumbTrails));
 	addExtension(ext, "forPublication", new BooleanType(this.forPublication));
 	addExtension(ext, "showMessageIds", new BooleanType(this.showMessageIds));
@@ -4,6 +4,7 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -35,4 +36,368 @@ public class MatchboxFhirContextProperties {
 	public void setDevMode(final boolean devMode) {
 		this.devMode = devMode;
 	}
+
+	/**
+	 * The number of threads validating the items of a $validate-batch request.
+	 */
+	private int batchValidationThreads = Runtime.getRuntime().availableProcessors();
+
+	public int getBatchValidationThreads() {
+		return this.batchValidationThreads;
+	}
+
+	public void setBatchValidationThreads(final int batchValidationThreads) {
+		this.batchValidationThreads = batchValidationThreads;
+	}
+
+	/**
+	 * The number of threads transforming the resources of a $transform-bulk request.
+	 */
+	private int bulkTransformThreads = Runtime.getRuntime().availableProcessors();
+
+	public int getBulkTransformThreads() {
+		return this.bulkTransformThreads;
+	}
+
+	public void setBulkTransformThreads(final int bulkTransformThreads) {
+		this.bulkTransformThreads = bulkTransformThreads;
+	}
+
+	/**
+	 * The number of threads fetching, decompressing and parsing the packages of an engine when it is created.
+	 */
+	private int packageLoadingThreads = Runtime.getRuntime().availableProcessors();
+
+	public int getPackageLoadingThreads() {
+		return this.packageLoadingThreads;
+	}
+
+	public void setPackageLoadingThreads(final int packageLoadingThreads) {
+		this.packageLoadingThreads = packageLoadingThreads;
+	}
+
+	private EngineCache engineCache = new EngineCache();
+
+	public EngineCache getEngineCache() {
+		return this.engineCache;
+	}
+
+	public void setEngineCache(final EngineCache engineCache) {
+		this.engineCache = engineCache;
+	}
+
+	private ValidationResultCache validationResultCache = new ValidationResultCache();
+
+	public ValidationResultCache getValidationResultCache() {
+		return this.validationResultCache;
+	}
+
+	public void setValidationResultCache(final ValidationResultCache validationResultCache) {
+		this.validationResultCache = validationResultCache;
+	}
+
+	private ExpansionCache expansionCache = new ExpansionCache();
+
+	public ExpansionCache getExpansionCache() {
+		return this.expansionCache;
+	}
+
+	public void setExpansionCache(final ExpansionCache expansionCache) {
+		this.expansionCache = expansionCache;
+	}
+
+	private ExpansionStore expansionStore = new ExpansionStore();
+
+	public ExpansionStore getExpansionStore() {
+		return this.expansionStore;
+	}
+
+	public void setExpansionStore(final ExpansionStore expansionStore) {
+		this.expansionStore = expansionStore;
+	}
+
+	private PackageCache packageCache = new PackageCache();
+
+	public PackageCache getPackageCache() {
+		return this.packageCache;
+	}
+
+	public void setPackageCache(final PackageCache packageCache) {
+		this.packageCache = packageCache;
+	}
+
+	private ExpressionCache expressionCache = new ExpressionCache();
+
+	public ExpressionCache getExpressionCache() {
+		return this.expressionCache;
+	}
+
+	public void setExpressionCache(final ExpressionCache expressionCache) {
+		this.expressionCache = expressionCache;
+	}
+
+	private PackageStore packageStore = new PackageStore();
+
+	public PackageStore getPackageStore() {
+		return this.packageStore;
+	}
+
+	public void setPackageStore(final PackageStore packageStore) {
+		this.packageStore = packageStore;
+	}
+
+	/**
+	 * The properties in 'matchbox.fhir.context.expansionStore', they configure the value set expansions that are
+	 * computed when an IG is installed and persisted.
+	 */
+	public static class ExpansionStore {
+
+		/**
+		 * Whether the value sets are expanded when an IG is installed.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * The directory of the stored expansions.
+		 */
+		private String directory = "./database/expansions";
+
+		public boolean isEnabled() {
+			return this.enabled;
+		}
+
+		public void setEnabled(final boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getDirectory() {
+			return this.directory;
+		}
+
+		public void setDirectory(final String directory) {
+			this.directory = directory;
+		}
+	}
+
+	/**
+	 * The properties in 'matchbox.fhir.context.packageStore', they configure the conformance resources of the packages
+	 * that are stored pre-parsed when an engine loads them, to speed up the creation of the next engines.
+	 */
+	public static class PackageStore {
+
+		/**
+		 * Whether the pre-parsed resources are stored and used.
+		 */
+		private boolean enabled = false;
+
+		/**
+		 * The directory of the pre-parsed resources.
+		 */
+		private String directory = "./database/packages";
+
+		public boolean isEnabled() {
+			return this.enabled;
+		}
+
+		public void setEnabled(final boolean enabled) {
+			this.enabled = enabled;
+		}
+
+		public String getDirectory() {
+			return this.directory;
+		}
+
+		public void setDirectory(final String directory) {
+			this.directory = directory;
+		}
+	}
+
+	/**
+	 * The properties in 'matchbox.fhir.context.packageCache', they bound the cache of the decompressed packages that
+	 * are loaded by the engines.
+	 */
+	public static class PackageCache {
+
+		/**
+		 * The maximum size (in MB) of the decompressed files of the cached packages, 0 (the default) to disable the cache.
+		 */
+		private long maxSizeMb = 0;
+
+		public long getMaxSizeMb() {
+			return this.maxSizeMb;
+		}
+
+		public void setMaxSizeMb(final long maxSizeMb) {
+			this.maxSizeMb = maxSizeMb;
+		}
+	}
+
+	/**
+	 * The properties in 'matchbox.fhir.context.expressionCache', they bound the cache of the FHIRPath expressions
+	 * parsed by the validators of all the engines.
+	 */
+	public static class ExpressionCache {
+
+		/**
+		 * The maximum number of cached expressions, 0 to disable the cache.
+		 */
+		private int maxEntries = 10_000;
+
+		public int getMaxEntries() {
+			return this.maxEntries;
+		}
+
+		public void setMaxEntries(final int maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+	}
+
+	/**
+	 * The properties in 'matchbox.fhir.context.expansionCache', they bound the cache of the value set expansions of
+	 * ValueSet/$validate-code.
+	 */
+	public static class ExpansionCache {
+
+		/**
+		 * The time to live (in minutes) of a cache ID that is not used.
+		 */
+		private long timeToLiveMinutes = 5;
+
+		/**
+		 * The maximum estimated heap size (in MB) of the cached expansions, 0 for no limit.
+		 */
+		private long maxSizeMb = 256;
+
+		public long getTimeToLiveMinutes() {
+			return this.timeToLiveMinutes;
+		}
+
+		public void setTimeToLiveMinutes(final long timeToLiveMinutes) {
+			this.timeToLiveMinutes = timeToLiveMinutes;
+		}
+
+		public long getMaxSizeMb() {
+			return this.maxSizeMb;
+		}
+
+		public void setMaxSizeMb(final long maxSizeMb) {
+			this.maxSizeMb = maxSizeMb;
+		}
+	}
+
+	/**
+	 * The properties in 'matchbox.fhir.context.validationResultCache', they configure the cache of validation results.
+	 */
+	public static class ValidationResultCache {
+
+		/**
+		 * The maximum number of cached validation results, 0 to disable the cache.
+		 */
+		private int maxEntries = 0;
+
+		public int getMaxEntries() {
+			return this.maxEntries;
+		}
+
+		public void setMaxEntries(final int maxEntries) {
+			this.maxEntries = maxEntries;
+		}
+	}
+
+	/**
+	 * The properties in 'matchbox.fhir.context.engineCache', they bound the cache of validation engines.
+	 */
+	public static class EngineCache {
+
+		/**
+		 * The maximum number of engines kept in the cache, 0 for no limit.
+		 */
+		private int maxEngines = 16;
+
+		/**
+		 * The maximum estimated heap size (in MB) of the cached engines, 0 for no limit.
+		 */
+		private long maxSizeMb = 2048;
+
+		/**
+		 * The time to live (in minutes) of the engines that are not pinned.
+		 */
+		private long timeToLiveMinutes = 60;
+
+		/**
+		 * The eviction policy used when the cache is over its limits.
+		 */
+		private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+
+		/**
+		 * The IGs (package id, optionally with '#version') whose engines are never evicted.
+		 */
+		private List<String> pinnedIgs = new ArrayList<>();
+
+		public int getMaxEngines() {
+			return this.maxEngines;
+		}
+
+		public void setMaxEngines(final int maxEngines) {
+			this.maxEngines = maxEngines;
+		}
+
+		public long getMaxSizeMb() {
+			return this.maxSizeMb;
+		}
+
+		public void setMaxSizeMb(final long maxSizeMb) {
+			this.maxSizeMb = maxSizeMb;
+		}
+
+		public long getTimeToLiveMinutes() {
+			return this.timeToLiveMinutes;
+		}
+
+		public void setTimeToLiveMinutes(final long timeToLiveMinutes) {
+			this.timeToLiveMinutes = timeToLiveMinutes;
+		}
+
+		public EvictionPolicy getEvictionPolicy() {
+			return this.evictionPolicy;
+		}
+
+		public void setEvictionPolicy(final EvictionPolicy evictionPolicy) {
+			this.evictionPolicy = evictionPolicy;
+		}
+
+		public List<String> getPinnedIgs() {
+			return this.pinnedIgs;
+		}
+
+		public void setPinnedIgs(final List<String> pinnedIgs) {
+			this.pinnedIgs = pinnedIgs;
+		}
+
+		/**
+		 * Returns whether the engine of the given IG ('id#version') shall be pinned in the cache.
+		 */
+		public boolean isPinned(final @Nullable String ig) {
+			if (ig == null) {
+				return false;
+			}
+			final String packageId = ig.contains("#") ? ig.substring(0, ig.indexOf('#')) : ig;
+			return this.pinnedIgs.contains(ig) || this.pinnedIgs.contains(packageId);
+		}
+	}
+
+	/**
+	 * The eviction policies of the engine cache. Both are weighted by the estimated size of the engines, so that a
+	 * large engine is evicted before a small one that has been used in the same way.
+	 */
+	public enum EvictionPolicy {
+		/**
+		 * Least recently used: the score is the idle time multiplied by the estimated size.
+		 */
+		LRU,
+		/**
+		 * Least frequently used: the score is the estimated size divided by the number of hits.
+		 */
+		LFU
+	}
 }
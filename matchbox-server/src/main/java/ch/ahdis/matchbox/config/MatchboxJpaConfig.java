@@ -1,10 +1,14 @@
 package ch.ahdis.matchbox.config;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
 
 import javax.annotation.Nullable;
 
 import ch.ahdis.matchbox.CliContext;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
+import ch.ahdis.matchbox.engine.PreparsedPackageStore;
 import ch.ahdis.matchbox.interceptors.*;
 import ch.ahdis.matchbox.mappinglanguage.StructureMapListProvider;
 import ch.ahdis.matchbox.packages.*;
@@ -261,6 +265,26 @@ public class MatchboxJpaConfig extends StarterJpaConfig {
 		return new MatchboxEngineSupport(matchboxFhirContextProperties);
 	}
 
+	@Bean
+	public PrecomputedExpansionStore getPrecomputedExpansionStore(final MatchboxFhirContextProperties matchboxFhirContextProperties) throws IOException {
+		final var config = matchboxFhirContextProperties.getExpansionStore();
+		final var store = new PrecomputedExpansionStore(Path.of(config.getDirectory()));
+		if (config.isEnabled()) {
+			store.load();
+		}
+		return store;
+	}
+
+	@Bean
+	public PreparsedPackageStore getPreparsedPackageStore(final MatchboxFhirContextProperties matchboxFhirContextProperties) {
+		return new PreparsedPackageStore(Path.of(matchboxFhirContextProperties.getPackageStore().getDirectory()));
+	}
+
+	@Bean
+	public DecodedPackageCache getDecodedPackageCache(final MatchboxFhirContextProperties matchboxFhirContextProperties) {
+		return new DecodedPackageCache(matchboxFhirContextProperties.getPackageCache());
+	}
+
 	@Bean
 	public IJobCoordinator batch2JobCoordinator() {
 
@@ -1,6 +1,11 @@
 package ch.ahdis.matchbox.mappinglanguage;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -48,6 +53,8 @@ import ca.uhn.fhir.rest.server.RestfulServerUtils;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 import ch.ahdis.matchbox.CliContext;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import ch.ahdis.matchbox.engine.BulkTransformer;
 import ch.ahdis.matchbox.util.MatchboxEngineSupport;
 import ch.ahdis.matchbox.providers.StructureMapResourceProvider;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
@@ -58,6 +65,7 @@ import org.hl7.fhir.r5.model.*;
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * StructureMapTransformProvider
@@ -67,8 +75,18 @@ public class StructureMapTransformProvider extends StructureMapResourceProvider
 	@Autowired
 	protected MatchboxEngineSupport matchboxEngineSupport;
 
+	@Autowired
+	private MatchboxFhirContextProperties matchboxFhirContextProperties;
+
+	private static final String NDJSON_CONTENT_TYPE = "application/fhir+ndjson";
+
 	private final FhirContext fhirR5Context = FhirContext.forR5Cached();
 
+	/**
+	 * The executor of the bulk transforms, shared by the requests, see {@link #getBulkTransformExecutor()}.
+	 */
+	private ExecutorService bulkTransformExecutor;
+
 	@Override
 	public MethodOutcome create(final HttpServletRequest theRequest,
 										 @ResourceParam final IBaseResource theResource,
@@ -222,6 +240,60 @@ public class StructureMapTransformProvider extends StructureMapResourceProvider
 		}
 	}
 
+	/**
+	 * Transforms many resources with the same StructureMap. The map is given by its canonical URL in the 'source' query
+	 * parameter, and the resources are sent as NDJSON: each line is either a JSON resource, or a JSON string that
+	 * contains an XML document (e.g. a CDA document). The transformed resources are streamed back as NDJSON, in the
+	 * order of the inputs; a resource that could not be transformed is replaced by an OperationOutcome.
+	 */
+	@Operation(name = "$transform-bulk", type = StructureMap.class, manualResponse = true, manualRequest = true,
+		idempotent = false)
+	public void bulkTransform(final HttpServletRequest theServletRequest,
+									  final HttpServletResponse theServletResponse) throws IOException {
+		final String[] sources = theServletRequest.getParameterMap().get("source");
+		if (sources == null || sources.length != 1) {
+			throw new InvalidRequestException("The 'source' parameter must be provided once");
+		}
+		final String source = sources[0];
+
+		final CliContext cliContext = new CliContext(this.cliContext);
+		final MatchboxEngine matchboxEngine = this.matchboxEngineSupport.getMatchboxEngine(source, cliContext, true,
+																													false);
+		if (matchboxEngine == null) {
+			throw new UnprocessableEntityException("The Matchbox engine could not be initialized");
+		}
+		final BulkTransformer transformer;
+		try {
+			transformer = new BulkTransformer(matchboxEngine, source, this.getBulkTransformExecutor(),
+														 this.matchboxFhirContextProperties.getBulkTransformThreads());
+		} catch (final Exception e) {
+			throw new UnprocessableEntityException(e.getMessage());
+		}
+
+		theServletResponse.setContentType(NDJSON_CONTENT_TYPE);
+		theServletResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		try (final var reader = new BufferedReader(new InputStreamReader(theServletRequest.getInputStream(),
+																								StandardCharsets.UTF_8));
+			  final var writer = new OutputStreamWriter(theServletResponse.getOutputStream(), StandardCharsets.UTF_8)) {
+			final Iterator<byte[]> inputs = reader.lines()
+				.filter(line -> !line.isBlank())
+				.map(BulkTransformer::fromNdjsonLine)
+				.iterator();
+			transformer.transform(inputs, writer);
+		}
+	}
+
+	/**
+	 * Returns the executor of the bulk transforms, it is created on first use.
+	 */
+	private synchronized ExecutorService getBulkTransformExecutor() {
+		if (this.bulkTransformExecutor == null) {
+			this.bulkTransformExecutor = BulkTransformer.newExecutor(
+				this.matchboxFhirContextProperties.getBulkTransformThreads());
+		}
+		return this.bulkTransformExecutor;
+	}
+
 	@Operation(name = "$convert", type = StructureMap.class, idempotent = true, returnParameters = {
 		@OperationParam(name = "output", type = IBase.class, min = 1, max = 1)})
 	public IBaseResource convert(@OperationParam(name = "input", min = 1, max = 1) final IBaseResource content,
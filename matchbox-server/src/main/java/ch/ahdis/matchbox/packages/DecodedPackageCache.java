@@ -0,0 +1,211 @@
+package ch.ahdis.matchbox.packages;
+
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * The cache of the decompressed packages, shared by the package loaders of all the engines, so that a package is not
+ * fetched from the database and decompressed again each time an engine that depends on it is created.
+ * <p>
+ * The packages are cached by id and version, with the timestamp of the installed package: a package that has been
+ * re-installed is not returned. The total size of the decompressed files is bounded: when it is exceeded, the least
+ * recently used packages are evicted. The cached packages are only read, they are shared between threads. A package
+ * that is requested by several threads at the same time is only decompressed once.
+ * <p>
+ * The cache is disabled by default. The resources that the engines register lazily keep the content of their own
+ * file, which is therefore not released by the eviction of their package; the bound applies to the rest of the
+ * packages (the other files and folders, and the packages that are no longer used by an engine).
+ *
+ * @see MatchboxFhirContextProperties.PackageCache
+ */
+public class DecodedPackageCache {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(DecodedPackageCache.class);
+
+	/**
+	 * The maximum size of the cached packages, in bytes, 0 to disable the cache.
+	 */
+	private final long maxSize;
+
+	/**
+	 * The packages, by 'id#version', in access order.
+	 */
+	private final LinkedHashMap<String, CachedPackage> packages = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * The packages that are being decompressed, by 'id#version#timestamp'.
+	 */
+	private final Map<String, CompletableFuture<NpmPackage>> loading = new HashMap<>();
+
+	private long size = 0;
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	public DecodedPackageCache(final MatchboxFhirContextProperties.@NonNull PackageCache config) {
+		this.maxSize = Math.max(0, config.getMaxSizeMb()) * 1024 * 1024;
+	}
+
+	/**
+	 * Returns the cached package, or {@code null} if it is not cached or has been cached for another timestamp.
+	 *
+	 * @param packageTimestamp the timestamp of the installed package.
+	 */
+	public synchronized @Nullable NpmPackage get(final @NonNull String packageId,
+																final @NonNull String packageVersion,
+																final long packageTimestamp) {
+		final CachedPackage cached = this.packages.get(packageId + "#" + packageVersion);
+		if (cached == null || cached.timestamp != packageTimestamp) {
+			++this.missCount;
+			return null;
+		}
+		++this.hitCount;
+		return cached.npmPackage;
+	}
+
+	/**
+	 * Returns the cached package, or decompresses and caches it. If the package is already being decompressed by another
+	 * thread, waits for it instead of decompressing it again.
+	 *
+	 * @param packageTimestamp the timestamp of the installed package.
+	 * @param loader           the decompression of the package.
+	 * @throws IOException if the package can't be decompressed.
+	 */
+	public @NonNull NpmPackage get(final @NonNull String packageId,
+											 final @NonNull String packageVersion,
+											 final long packageTimestamp,
+											 final @NonNull PackageLoader loader) throws IOException {
+		final String key = packageId + "#" + packageVersion + "#" + packageTimestamp;
+		final CompletableFuture<NpmPackage> future;
+		final boolean owner;
+		synchronized (this) {
+			final NpmPackage cached = this.get(packageId, packageVersion, packageTimestamp);
+			if (cached != null) {
+				return cached;
+			}
+			final CompletableFuture<NpmPackage> pending = this.loading.get(key);
+			owner = pending == null;
+			future = owner ? new CompletableFuture<>() : pending;
+			if (owner) {
+				this.loading.put(key, future);
+			}
+		}
+		if (!owner) {
+			try {
+				return future.join();
+			} catch (final CompletionException e) {
+				if (e.getCause() instanceof final IOException ioException) {
+					throw ioException;
+				}
+				throw e;
+			}
+		}
+
+		try {
+			final NpmPackage npmPackage = loader.load();
+			this.put(packageId, packageVersion, packageTimestamp, npmPackage);
+			future.complete(npmPackage);
+			return npmPackage;
+		} catch (final IOException | RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			synchronized (this) {
+				this.loading.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Caches a decompressed package, and evicts the least recently used packages if the cache is full.
+	 *
+	 * @param packageTimestamp the timestamp of the installed package.
+	 */
+	public synchronized void put(final @NonNull String packageId,
+										  final @NonNull String packageVersion,
+										  final long packageTimestamp,
+										  final @NonNull NpmPackage npmPackage) {
+		final long packageSize = getSize(npmPackage);
+		if (this.maxSize == 0 || packageSize > this.maxSize) {
+			return;
+		}
+		this.remove(packageId, packageVersion);
+		this.packages.put(packageId + "#" + packageVersion, new CachedPackage(npmPackage, packageTimestamp, packageSize));
+		this.size += packageSize;
+
+		final var iterator = this.packages.entrySet().iterator();
+		while (this.size > this.maxSize && iterator.hasNext()) {
+			final var entry = iterator.next();
+			log.debug("Evicting the decompressed package {} (size of the cache: {} bytes)", entry.getKey(), this.size);
+			iterator.remove();
+			this.size -= entry.getValue().size;
+		}
+	}
+
+	/**
+	 * Removes a package from the cache, e.g. when it is uninstalled.
+	 */
+	public synchronized void remove(final @NonNull String packageId,
+											  final @NonNull String packageVersion) {
+		final CachedPackage removed = this.packages.remove(packageId + "#" + packageVersion);
+		if (removed != null) {
+			this.size -= removed.size;
+		}
+	}
+
+	/**
+	 * Returns the number of cached packages.
+	 */
+	public synchronized int size() {
+		return this.packages.size();
+	}
+
+	/**
+	 * Returns the size of the decompressed files of the cached packages, in bytes.
+	 */
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	public synchronized long getHitCount() {
+		return this.hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return this.missCount;
+	}
+
+	/**
+	 * Returns the size of the decompressed files of a package.
+	 */
+	static long getSize(final NpmPackage npmPackage) {
+		long size = 0;
+		for (final NpmPackage.NpmPackageFolder folder : npmPackage.getFolders().values()) {
+			for (final byte[] content : folder.getContent().values()) {
+				size += content.length;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * The decompression of a package that is not cached.
+	 */
+	@FunctionalInterface
+	public interface PackageLoader {
+		@NonNull NpmPackage load() throws IOException;
+	}
+
+	private record CachedPackage(NpmPackage npmPackage, long timestamp, long size) {
+	}
+}
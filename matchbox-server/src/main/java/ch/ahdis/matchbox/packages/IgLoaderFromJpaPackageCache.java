@@ -22,27 +22,39 @@ import java.io.ByteArrayInputStream;
  */
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import javax.annotation.Nonnull;
 
+import ch.ahdis.matchbox.engine.PreparsedPackageStore;
 import ch.ahdis.matchbox.engine.exception.MatchboxUnsupportedFhirVersionException;
 import ch.ahdis.matchbox.util.MatchboxServerUtils;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.hl7.fhir.convertors.factory.VersionConvertorFactory_30_50;
 import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
 import org.hl7.fhir.convertors.factory.VersionConvertorFactory_43_50;
 import org.hl7.fhir.r4.model.ConceptMap.ConceptMapGroupComponent;
 import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r5.context.CanonicalResourceManager;
 import org.hl7.fhir.r5.context.SimpleWorkerContext;
 import org.hl7.fhir.r5.model.CanonicalResource;
 import org.hl7.fhir.r5.model.ImplementationGuide;
+import org.hl7.fhir.r5.model.PackageInformation;
 import org.hl7.fhir.r5.model.Resource;
 import org.hl7.fhir.utilities.ByteProvider;
 import org.hl7.fhir.utilities.TextFile;
+import org.hl7.fhir.utilities.json.model.JsonObject;
 import org.hl7.fhir.utilities.npm.FilesystemPackageCacheManager;
 import org.hl7.fhir.utilities.npm.NpmPackage;
 import org.hl7.fhir.validation.IgLoader;
@@ -62,6 +74,9 @@ import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
 import ca.uhn.fhir.jpa.packages.JpaPackageCache;
 import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager.PackageContents;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import static ch.ahdis.matchbox.engine.MatchboxEngine.*;
 
@@ -80,21 +95,42 @@ public class IgLoaderFromJpaPackageCache extends IgLoader {
 	private DaoRegistry myDaoRegistry;
 	private IBinaryStorageSvc myBinaryStorageSvc;
 	private PlatformTransactionManager myTxManager;
+	private final @Nullable PreparsedPackageStore myPreparsedPackageStore;
+	private final @Nullable DecodedPackageCache myDecodedPackageCache;
+	private final Executor myExecutor;
 
 	private final Map<FhirVersionEnum, FhirContext> myVersionToContext = Collections.synchronizedMap(new HashMap<>());
 
 	private FhirContext myCtx;
 
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private static final String[] RESOURCE_TYPES = {"NamingSystem", "CapabilityStatement", "CodeSystem", "ValueSet",
+		"StructureDefinition", "Measure", "Library", "ConceptMap", "SearchParameter", "StructureMap", "Questionnaire",
+		"OperationDefinition", "ActorDefinition", "Requirements"};
+
+	/**
+	 * The types of resources that are parsed when a package is loaded, because the context registers their OIDs. The
+	 * OIDs of the code systems are stored by the pre-parsed package store, they are only parsed eagerly from the
+	 * packages.
+	 */
+	private static final Set<String> EAGER_RESOURCE_TYPES = Set.of("NamingSystem", "CodeSystem");
+
 	public IgLoaderFromJpaPackageCache(FilesystemPackageCacheManager packageCacheManager, SimpleWorkerContext context,
 			String theVersion, boolean debug, IHapiPackageCacheManager myPackageCacheManager,
 			INpmPackageVersionDao myNpmPackageVersionDao, DaoRegistry myDaoRegistry, IBinaryStorageSvc myBinaryStorageSvc,
-			PlatformTransactionManager myTxManager) {
+			PlatformTransactionManager myTxManager, @Nullable PreparsedPackageStore myPreparsedPackageStore,
+			@Nullable DecodedPackageCache myDecodedPackageCache, @Nullable Executor myExecutor) {
 		super(packageCacheManager, context, theVersion, debug);
 		this.myPackageCacheManager = myPackageCacheManager;
 		this.myNpmPackageVersionDao = myNpmPackageVersionDao;
 		this.myDaoRegistry = myDaoRegistry;
 		this.myBinaryStorageSvc = myBinaryStorageSvc;
 		this.myTxManager = myTxManager;
+		this.myPreparsedPackageStore = myPreparsedPackageStore;
+		this.myDecodedPackageCache = myDecodedPackageCache;
+		// without executor, the packages are loaded in the calling thread
+		this.myExecutor = myExecutor != null ? myExecutor : Runnable::run;
 		this.myCtx = FhirContext.forCached(FhirVersionEnum.forVersionString(theVersion));
 	}
 
@@ -173,169 +209,484 @@ public class IgLoaderFromJpaPackageCache extends IgLoader {
 	@Override
 	public void loadIg(List<ImplementationGuide> igs, Map<String, ByteProvider> binaries, String src, boolean recursive)
 			throws IOException, FHIRException {
+		// the packages and their dependencies are fetched, decompressed and parsed concurrently, but they are registered
+		// in the context one after the other, in the order of the recursive loading (dependencies first), so that the
+		// duplicate canonical resources are detected as before
+		final List<CompletableFuture<PreparedPackage>> packages = new ArrayList<>();
+		this.collectPackages(src, new HashSet<>(getContext().getLoadedPackages()), new HashMap<>(), packages);
+		for (CompletableFuture<PreparedPackage> prepared : packages) {
+			this.registerPackage(join(prepared));
+		}
+	}
 
+	/**
+	 * Returns the package that is loaded instead of a package, or {@code null} if the package itself is loaded.
+	 */
+	private @Nullable String getReplacement(String src) {
 		switch (FhirVersionEnum.forVersionString(this.getVersion())) {
 			case R4, R4B -> {
 				if (src.startsWith("hl7.terminology.") && !PACKAGE_R4_TERMINOLOGY.equals(src)) {
-					log.debug("Replacing '{}' with '{}'", src, PACKAGE_R4_TERMINOLOGY);
-					loadIg(igs, binaries, PACKAGE_R4_TERMINOLOGY, recursive);
-					return;
+					return PACKAGE_R4_TERMINOLOGY;
 				}
 				if (src.startsWith("hl7.terminology#")) {
-					log.debug("Replacing '{}' with '{}'", src, PACKAGE_R4_TERMINOLOGY);
-					loadIg(igs, binaries, PACKAGE_R4_TERMINOLOGY, recursive);
-					return;
+					return PACKAGE_R4_TERMINOLOGY;
 				}
 			}
 			case R5 -> {
 				if (src.startsWith("hl7.terminology.") && !PACKAGE_R5_TERMINOLOGY.equals(src)) {
-					log.debug("Replacing '{}' with '{}'", src, PACKAGE_R5_TERMINOLOGY);
-					loadIg(igs, binaries, PACKAGE_R5_TERMINOLOGY, recursive);
-					return;
+					return PACKAGE_R5_TERMINOLOGY;
 				}
 				if (src.startsWith("hl7.terminology#")) {
-					log.debug("Replacing '{}' with '{}'", src, PACKAGE_R5_TERMINOLOGY);
-					loadIg(igs, binaries, PACKAGE_R5_TERMINOLOGY, recursive);
-					return;
+					return PACKAGE_R5_TERMINOLOGY;
 				}
 			}
 			default -> throw new MatchboxUnsupportedFhirVersionException("IgLoaderFromJpaPackageCache",
 																							 this.myCtx.getVersion().getVersion());
 		};
 		if (src.equals("hl7.fhir.cda#dev")) {
-			log.debug("Replacing 'hl7.fhir.cda#dev' with '{}'", PACKAGE_CDA_UV_CORE);
-			loadIg(igs, binaries, PACKAGE_CDA_UV_CORE, recursive);
-			return;
+			return PACKAGE_CDA_UV_CORE;
 		}
 		if (src.equals("ch.fhir.ig.ch-epr-term#current")) {
-			final var replace = "ch.fhir.ig.ch-epr-term#2.0.x";
-			log.debug("Replacing 'ch.fhir.ig.ch-epr-term#current' with '{}'", replace);
-			loadIg(igs, binaries, replace, recursive);
-			return;
+			return "ch.fhir.ig.ch-epr-term#2.0.x";
 		}
 		if ("hl7.fhir.uv.extensions#current".equals(src)) {
-			log.debug("Replacing 'hl7.fhir.uv.extensions#current' with '{}'", PACKAGE_UV_EXTENSIONS);
-			loadIg(igs, binaries, PACKAGE_UV_EXTENSIONS, recursive);
-			return;
+			return PACKAGE_UV_EXTENSIONS;
 		}
 		if ("hl7.fhir.uv.extensions.r5#1.0.0".equals(src)) {
-			log.debug("Replacing 'hl7.fhir.uv.extensions.r5#1.0.0' with '{}'", PACKAGE_UV_EXTENSIONS);
-			loadIg(igs, binaries, PACKAGE_UV_EXTENSIONS, recursive);
-			return;
+			return PACKAGE_UV_EXTENSIONS;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the package that is finally loaded for a package, after all the replacements.
+	 */
+	private String replacePackage(String src) {
+		for (String replacement = getReplacement(src); replacement != null; replacement = getReplacement(src)) {
+			src = replacement;
 		}
-		if (getContext().getLoadedPackages().contains(src)) {
+		return src;
+	}
+
+	/**
+	 * Returns whether a package has to be loaded, i.e. it is neither loaded yet nor an R4 package in an R5 context.
+	 *
+	 * @param loaded the packages that are already loaded or collected.
+	 */
+	private boolean isLoadable(String src, Set<String> loaded) {
+		if (loaded.contains(src)) {
 			log.debug("Package '{}' already in context", src);
-			return;
+			return false;
 		}
 		if (this.getVersion()!=null && getVersion().equals("5.0.0") && (src.startsWith("hl7.fhir.r4.core") || src.startsWith("hl7.fhir.uv.extensions.r4")) ) {
 			log.debug("do not load r4 in a r5 context: '{}'", src);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Collects a package and its dependencies, in the order in which they were loaded recursively: the dependencies
+	 * first. The dependencies of a package are fetched concurrently, and each package is prepared as soon as its
+	 * dependencies have been collected.
+	 *
+	 * @param loaded      the packages that are already loaded or collected.
+	 * @param resolutions the packages that are fetched from the cache, by name.
+	 * @param packages    the collected packages, that are being prepared.
+	 */
+	private void collectPackages(String src, Set<String> loaded, Map<String, CompletableFuture<NpmPackage>> resolutions,
+										  List<CompletableFuture<PreparedPackage>> packages) {
+		final String replacement = getReplacement(src);
+		if (replacement != null) {
+			log.debug("Replacing '{}' with '{}'", src, replacement);
+			this.collectPackages(replacement, loaded, resolutions, packages);
 			return;
 		}
-		new TransactionTemplate(myTxManager).execute(tx -> {
-			String version = null;
-			String id = src;
-			if (src.contains("#")) {
-				version = src.substring(src.indexOf("#") + 1);
-				id = src.substring(0, src.indexOf("#"));
-			}
-			NpmPackage npm = ((JpaPackageCache) myPackageCacheManager).loadPackageFromCacheOnly(id, version);
-			if (npm == null) {
-				log.error("Package not found: " + id +" "+version );
-				return null;
+		if (!this.isLoadable(src, loaded)) {
+			return;
+		}
+		final String id = src.contains("#") ? src.substring(0, src.indexOf("#")) : src;
+		NpmPackage npm = join(this.resolvePackage(src, resolutions));
+		if (npm == null) {
+			log.error("Package not found: " + src);
+			return;
+		}
+		if (id.startsWith("hl7.terminology")) {
+			for (final String dependency : npm.dependencies()) {
+				// FHIR Core should be loaded manually, see MatchboxEngineSupport.getMatchboxEngineNotSynchronized()
+				log.info("Ignoring dependency '{}' for '{}'", dependency, id);
 			}
+		} else {
 			for (final String dependency : npm.dependencies()) {
-				if (id.startsWith("hl7.terminology")) {
-					// FHIR Core should be loaded manually, see MatchboxEngineSupport.getMatchboxEngineNotSynchronized()
-					log.info("Ignoring dependency '{}' for '{}'", dependency, id);
-					continue;
+				final String replaced = replacePackage(dependency);
+				if (!loaded.contains(replaced)) {
+					this.resolvePackage(replaced, resolutions);
 				}
+			}
+			for (final String dependency : npm.dependencies()) {
 				log.debug("Loading depending package " + dependency + " for "+src);
-				try {
-					loadIg(igs, binaries, dependency, recursive);
-				} catch (FHIRException | IOException e) {
-					throw new RuntimeException(Msg.code(1305) + "Failed to load dependency " + dependency);
-				}
-				log.debug("Finished loading depending package " + dependency + " for "+ src);
+				this.collectPackages(dependency, loaded, resolutions, packages);
 			}
-			// use above version because of potential .x version we resolve in the cache
-			version = npm.version();
-			Optional<NpmPackageVersionEntity> npmPackage = myNpmPackageVersionDao.findByPackageIdAndVersion(id, version);
-			if (npmPackage.isPresent()) {
-				int count = 0;
-				log.debug("Loading package " + src);
-
-				// this way we have 0.5 seconds per 100 resources (eg hl7.fhir.r4.core has 15 seconds for 3128 resources)
-				NpmPackage pi = this.loadPackage(npmPackage.get());
-				getContext().getLoadedPackages().add(pi.name() + "#" + pi.version());
+		}
+		// use above version because of potential .x version we resolve in the cache
+		final String version = npm.version();
+		loaded.add(id + "#" + version);
+		packages.add(CompletableFuture.supplyAsync(
+			() -> new TransactionTemplate(myTxManager).execute(tx -> this.preparePackage(id, version, src)),
+			myExecutor));
+	}
+
+	/**
+	 * Starts fetching a package from the cache, unless it is already being fetched.
+	 */
+	private CompletableFuture<NpmPackage> resolvePackage(String src,
+																		  Map<String, CompletableFuture<NpmPackage>> resolutions) {
+		return resolutions.computeIfAbsent(src, s -> CompletableFuture.supplyAsync(() -> {
+			final String id = src.contains("#") ? src.substring(0, src.indexOf("#")) : src;
+			final String version = src.contains("#") ? src.substring(src.indexOf("#") + 1) : null;
+			return new TransactionTemplate(myTxManager).execute(tx -> {
+				// an installed version is taken from the cache of the decompressed packages, the other versions (e.g. '1.0.x'
+				// or the current version) are resolved by the package cache
+				if (version != null) {
+					Optional<NpmPackageVersionEntity> npmPackage = myNpmPackageVersionDao.findByPackageIdAndVersion(id, version);
+					if (npmPackage.isPresent()) {
+						return this.loadPackage(npmPackage.get());
+					}
+				}
+				return ((JpaPackageCache) myPackageCacheManager).loadPackageFromCacheOnly(id, version);
+			});
+		}, myExecutor));
+	}
+
+	/**
+	 * Decompresses a package and parses the resources that are loaded eagerly, or opens its pre-parsed resources.
+	 */
+	private PreparedPackage preparePackage(String id, String version, String src) {
+		Optional<NpmPackageVersionEntity> npmPackage = myNpmPackageVersionDao.findByPackageIdAndVersion(id, version);
+		if (npmPackage.isEmpty()) {
+			throw new RuntimeException(Msg.code(1305) + "Failed to load package resource " + src);
+		}
+		log.debug("Loading package " + src);
+		final PreparedPackage preparsed = this.preparePreparsedPackage(npmPackage.get());
+		if (preparsed != null) {
+			return preparsed;
+		}
+
+		// this way we have 0.5 seconds per 100 resources (eg hl7.fhir.r4.core has 15 seconds for 3128 resources)
+		NpmPackage pi = this.loadPackage(npmPackage.get());
+		final PackageInformation packageInfo = new PackageInformation(pi);
+		final List<PreparedResource> resources = new ArrayList<>();
+		try {
+			// the resources are parsed when they are first fetched, unless all of them are parsed to be stored
+			final Map<String, JsonObject> index = myPreparsedPackageStore == null ? getPackageIndex(pi) : Map.of();
+			for (String s : pi.listResources(RESOURCE_TYPES)) {
+				final JsonObject info = index.get(s);
+				if (info != null && info.asString("id") != null
+					&& !EAGER_RESOURCE_TYPES.contains(info.asString("resourceType"))) {
+					// the proxy only keeps the content of its file, not the package. A malformed file is skipped now, as it
+					// would be if it were parsed
+					final byte[] content;
+					try {
+						content = pi.getFolders().get("package").fetchFile(s);
+						checkWellFormed(content, s);
+					} catch (IOException e) {
+						log.error(s, e);
+						continue;
+					}
+					final String fhirVersion = pi.fhirVersion();
+					resources.add(new PreparedResource(null,
+																  new LazyCanonicalResource(info.asString("resourceType"),
+																									 info.asString("id"),
+																									 info.asString("url"),
+																									 info.asString("version"),
+																									 info.asString("supplements"),
+																									 getDerivation(info),
+																									 info.asString("content"),
+																									 () -> this.parsePackageResource(fhirVersion, content, s)),
+																  List.of()));
+					continue;
+				}
+				Resource r = null;
 				try {
-					for (String s : pi.listResources("NamingSystem", "CapabilityStatement", "CodeSystem", "ValueSet", "StructureDefinition", "Measure", "Library",
-					"ConceptMap", "SearchParameter", "StructureMap", "Questionnaire", "OperationDefinition","ActorDefinition","Requirements")) {
-						++count;
-						Resource r = null;
-						try {
-							r = loadResourceByVersion(npm.fhirVersion(), TextFile.streamToBytes(pi.load("package", s)), s);
-							// https://github.com/ahdis/matchbox/issues/227
-							if (r instanceof org.hl7.fhir.r5.model.StructureMap ) {
-								cleanModifierExtensions((org.hl7.fhir.r5.model.StructureMap) r);
-							}			
-							if (r instanceof org.hl7.fhir.r5.model.ConceptMap ) {
-								cleanModifierExtensions((org.hl7.fhir.r5.model.ConceptMap) r);
-							}			
-							if (r instanceof CanonicalResource) {
-								CanonicalResource m = (CanonicalResource) r;
-								String url = m.getUrl();
-								if (this.getContext().hasResource(r.getClass(), url)) {
-									log.error("Duplicate canonical resource: " + r.getClass().getName() + " from package " +pi.name() + "#" + pi.version() + " with url " + url);
-								} else {
-									this.getContext().cacheResource(r);
-								}
-							} else {
-								log.error("Resource is not a CanonicalResource: " + r.getClass().getName() + " from package " +pi.name() + "#" + pi.version());
-							}
-						} catch (FHIRException e) {
-							log.error(s, e);
-						} catch (IOException e) {
-							log.error(s, e);
-						}
+					r = this.parsePackageResource(pi.fhirVersion(), TextFile.streamToBytes(pi.load("package", s)), s);
+					if (r instanceof CanonicalResource) {
+						resources.add(new PreparedResource((CanonicalResource) r, null, List.of()));
+					} else {
+						log.error("Resource is not a CanonicalResource: " + r.getClass().getName() + " from package " +pi.name() + "#" + pi.version());
 					}
+				} catch (FHIRException e) {
+					log.error(s, e);
 				} catch (IOException e) {
-					log.error("Error reading package", e);
-					return null;
+					log.error(s, e);
+				}
+			}
+		} catch (IOException e) {
+			log.error("Error reading package", e);
+			return new PreparedPackage(pi.name() + "#" + pi.version(), packageInfo, resources, null);
+		}
+		return new PreparedPackage(pi.name() + "#" + pi.version(), packageInfo, resources,
+											myPreparsedPackageStore != null ? npmPackage.get() : null);
+	}
+
+	/**
+	 * Registers the prepared resources of a package in the context, and stores the parsed resources if needed.
+	 */
+	private void registerPackage(PreparedPackage prepared) {
+		getContext().getLoadedPackages().add(prepared.name());
+		final List<CanonicalResource> canonicalResources = new ArrayList<>();
+		for (PreparedResource r : prepared.resources()) {
+			if (r.resource() != null) {
+				canonicalResources.add(r.resource());
+				this.cacheCanonicalResource(r.resource(), prepared.name());
+			} else if (this.registerLazyResource(r.proxy(), prepared.packageInfo()) && !r.oids().isEmpty()
+				&& r.proxy().getUrl() != null) {
+				this.getContext().cacheCodeSystemOids(r.proxy().getUrl(), r.proxy().getVersion(), r.oids());
+			}
+		}
+		log.debug("Finished loading " + prepared.resources().size() + " conformance resources for package " + prepared.name());
+		if (prepared.packageToStore() != null) {
+			this.storePreparsedPackage(prepared.packageToStore(), canonicalResources);
+		}
+	}
+
+	/**
+	 * Waits for a package to be fetched or prepared, and rethrows its failure.
+	 */
+	private static <T> T join(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException runtimeException) {
+				throw runtimeException;
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Parses a conformance resource of a package and converts it to R5.
+	 */
+	private Resource parsePackageResource(String fhirVersion, byte[] content, String file) throws IOException {
+		Resource r = loadResourceByVersion(fhirVersion, content, file);
+		// https://github.com/ahdis/matchbox/issues/227
+		if (r instanceof org.hl7.fhir.r5.model.StructureMap ) {
+			cleanModifierExtensions((org.hl7.fhir.r5.model.StructureMap) r);
+		}
+		if (r instanceof org.hl7.fhir.r5.model.ConceptMap ) {
+			cleanModifierExtensions((org.hl7.fhir.r5.model.ConceptMap) r);
+		}
+		return r;
+	}
+
+	/**
+	 * Checks that the JSON content of a resource is well-formed, without parsing the resource.
+	 *
+	 * @throws IOException if the content is not well-formed.
+	 */
+	static void checkWellFormed(byte[] content, String file) throws IOException {
+		if (!file.endsWith(".json")) {
+			return;
+		}
+		try (JsonParser parser = JSON_FACTORY.createParser(content)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("The content of " + file + " is not a JSON object");
+			}
+			parser.skipChildren();
+			if (parser.nextToken() != null) {
+				throw new IOException("Unexpected content after the JSON object of " + file);
+			}
+		}
+	}
+
+	/**
+	 * Returns the entries of the index of the resources of a package, by file name.
+	 */
+	private static Map<String, JsonObject> getPackageIndex(NpmPackage pi) throws IOException {
+		final Map<String, JsonObject> index = new HashMap<>();
+		final NpmPackage.NpmPackageFolder folder = pi.getFolders().get("package");
+		if (folder != null && folder.index() != null) {
+			for (JsonObject file : folder.index().getJsonObjects("files")) {
+				if (file.asString("filename") != null && file.asString("resourceType") != null) {
+					index.put(file.asString("filename"), file);
 				}
+			}
+		}
+		return index;
+	}
 
-				log.debug("Finished loading " + count + " conformance resources for package " + pi.name() + "#" + pi.version());
+	/**
+	 * Returns the derivation of a StructureDefinition from its package index entry. Older indexes don't contain it; the
+	 * extension definitions are then known to be constraints, and the other StructureDefinitions are parsed when they
+	 * are registered, to find the types they define.
+	 */
+	private static String getDerivation(JsonObject info) {
+		if (info.asString("derivation") == null && "StructureDefinition".equals(info.asString("resourceType"))
+			&& "Extension".equals(info.asString("type"))
+			&& !"http://hl7.org/fhir/StructureDefinition/Extension".equals(info.asString("url"))) {
+			return "constraint";
+		}
+		return info.asString("derivation");
+	}
 
-				// with hsql or psql this slow around 7 seconds per 100 resources (oe dev)
-				// machine)
-				// lets load the package directly
-//				List<NpmPackageVersionResourceEntity> resources = npmPackage.get().getResources();
-//				for (NpmPackageVersionResourceEntity resource: resources) {
-//					++count;
-//					if (count % 100 == 0) {
-//						log.info(" ... loading "+count);
-//					}
-//					this.getContext().cacheResource(loadPackageEntity(resource));
-//				}
-//s				this.getContext().getLoadedPackages().add(id + "#" + version);
+	/**
+	 * Registers a lazily parsed resource in the context, unless a resource with the same URL is already registered.
+	 *
+	 * @return whether the resource has been registered.
+	 */
+	private boolean registerLazyResource(LazyCanonicalResource r, PackageInformation packageInfo) {
+		if (this.getContext().hasCanonicalResource(r.getType(), r.getUrl())) {
+			log.error("Duplicate canonical resource: " + r.getType() + " from package " + packageInfo.getVID() + " with url " + r.getUrl());
+			return false;
+		}
+		this.getContext().registerResourceFromPackage(r, packageInfo);
+		return true;
+	}
 
+	/**
+	 * Returns whether a pre-parsed resource is parsed when the package is loaded: the naming systems, whose OIDs are
+	 * registered by the context, and the resources without id, that can't be registered lazily.
+	 */
+	private static boolean isParsedEagerly(PreparsedPackageStore.Entry entry) {
+		return "NamingSystem".equals(entry.type()) || entry.id() == null;
+	}
+
+	private void cacheCanonicalResource(CanonicalResource r, String packageName) {
+		String url = r.getUrl();
+		if (this.getContext().hasCanonicalResource(r.fhirType(), url)) {
+			log.error("Duplicate canonical resource: " + r.getClass().getName() + " from package " + packageName + " with url " + url);
+		} else {
+			this.getContext().cacheResource(r);
+		}
+	}
 
-			} else {
-				throw new RuntimeException(Msg.code(1305) + "Failed to load package resource " + src);
+	/**
+	 * Prepares the pre-parsed resources of a package, if they have been stored for the installed package. The package
+	 * itself is then neither fetched nor decompressed.
+	 *
+	 * @return the prepared package, or {@code null} if the package has to be loaded.
+	 */
+	private @Nullable PreparedPackage preparePreparsedPackage(NpmPackageVersionEntity thePackageVersion) {
+		if (myPreparsedPackageStore == null) {
+			return null;
+		}
+		final String packageName = thePackageVersion.getPackageId() + "#" + thePackageVersion.getVersionId();
+		final List<PreparsedPackageStore.Entry> entries = myPreparsedPackageStore.open(thePackageVersion.getPackageId(),
+																												  thePackageVersion.getVersionId(),
+																												  getTimestamp(thePackageVersion));
+		if (entries == null) {
+			return null;
+		}
+		// the naming systems are parsed to register their OIDs, the other resources are parsed when they are first fetched
+		final List<PreparedResource> resources = new ArrayList<>(entries.size());
+		try {
+			for (final PreparsedPackageStore.Entry entry : entries) {
+				if (isParsedEagerly(entry)) {
+					resources.add(new PreparedResource((CanonicalResource) entry.parse(), null, List.of()));
+				} else {
+					resources.add(new PreparedResource(null,
+																  new LazyCanonicalResource(entry.type(), entry.id(), entry.url(),
+																									 entry.version(), entry.supplements(),
+																									 entry.derivation(), entry.content(),
+																									 entry::parse),
+																  entry.oids()));
+				}
 			}
+		} catch (IOException | FHIRException e) {
+			log.warn("Unable to parse the pre-parsed resources of " + packageName + ", loading the package", e);
 			return null;
-		});
+		}
+		final var packageInfo = new PackageInformation(thePackageVersion.getPackageId(), thePackageVersion.getVersionId(),
+																	  thePackageVersion.getFhirVersionId(),
+																	  thePackageVersion.getUpdatedTime());
+		return new PreparedPackage(packageName, packageInfo, resources, null);
+	}
+
+	private void storePreparsedPackage(NpmPackageVersionEntity thePackageVersion, List<CanonicalResource> resources) {
+		if (myPreparsedPackageStore == null) {
+			return;
+		}
+		try {
+			myPreparsedPackageStore.write(thePackageVersion.getPackageId(), thePackageVersion.getVersionId(),
+													getTimestamp(thePackageVersion), resources);
+		} catch (IOException | RuntimeException e) {
+			log.warn("Unable to store the pre-parsed resources of " + thePackageVersion.getPackageId() + "#"
+						+ thePackageVersion.getVersionId(), e);
+		}
+	}
+
+	private static long getTimestamp(NpmPackageVersionEntity thePackageVersion) {
+		return thePackageVersion.getUpdatedTime() == null ? 0 : thePackageVersion.getUpdatedTime().getTime();
+	}
+
+	/**
+	 * A package whose resources are ready to be registered in the context.
+	 *
+	 * @param resources      the resources, in the order in which they are registered.
+	 * @param packageToStore the package whose parsed resources are stored once registered, or {@code null}.
+	 */
+	private record PreparedPackage(String name,
+											 PackageInformation packageInfo,
+											 List<PreparedResource> resources,
+											 @Nullable NpmPackageVersionEntity packageToStore) {
+	}
+
+	/**
+	 * A resource of a package, either parsed or registered lazily with its proxy.
+	 *
+	 * @param oids the OIDs of a lazily registered CodeSystem.
+	 */
+	private record PreparedResource(@Nullable CanonicalResource resource,
+											  @Nullable LazyCanonicalResource proxy,
+											  List<String> oids) {
 	}
 
+	/**
+	 * A conformance resource of a package, registered in the context with the information of the package index, and
+	 * only parsed when it is first fetched.
+	 */
+	private static class LazyCanonicalResource extends CanonicalResourceManager.CanonicalResourceProxy {
+		private final Callable<Resource> parser;
+
+		LazyCanonicalResource(String type, String id, String url, String version, String supplements, String derivation,
+									 String content, Callable<Resource> parser) {
+			super(type, id, url, version, supplements, derivation, content);
+			// the constructor of the proxy ignores the derivation, the type manager would then parse all the profiles
+			setDerivation(derivation);
+			this.parser = parser;
+		}
+
+		@Override
+		public CanonicalResource loadResource() throws FHIRException {
+			try {
+				return (CanonicalResource) this.parser.call();
+			} catch (Exception e) {
+				log.error("Failed to load " + getType() + " " + getUrl(), e);
+				throw new FHIRException("Failed to load " + getType() + " " + getUrl(), e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the decompressed package, from the cache of the decompressed packages if it has already been loaded.
+	 */
 	private NpmPackage loadPackage(NpmPackageVersionEntity thePackageVersion) {
-		PackageContents content = loadPackageContents(thePackageVersion);
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(content.getBytes());
 		try {
-			return NpmPackage.fromPackage(inputStream);
+			if (myDecodedPackageCache != null) {
+				return myDecodedPackageCache.get(thePackageVersion.getPackageId(), thePackageVersion.getVersionId(),
+															getTimestamp(thePackageVersion),
+															() -> this.decompressPackage(thePackageVersion));
+			}
+			return this.decompressPackage(thePackageVersion);
 		} catch (IOException e) {
 			throw new InternalErrorException(Msg.code(1294) + e);
 		}
 	}
 
+	private NpmPackage decompressPackage(NpmPackageVersionEntity thePackageVersion) throws IOException {
+		PackageContents content = loadPackageContents(thePackageVersion);
+		return NpmPackage.fromPackage(new ByteArrayInputStream(content.getBytes()));
+	}
+
 	private IHapiPackageCacheManager.PackageContents loadPackageContents(NpmPackageVersionEntity thePackageVersion) {
 		final var binary = MatchboxServerUtils.getBinaryFromId(thePackageVersion.getPackageBinary().getId(), myDaoRegistry);
 		try {
@@ -0,0 +1,206 @@
+package ch.ahdis.matchbox.terminology;
+
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * The cache of the expanded value sets of the terminology endpoint, per cache ID (i.e. per validator session).
+ * <p>
+ * A cache ID expires when it has not been used during its time to live. The total estimated size of the cached
+ * expansions is bounded: when it is exceeded, the least recently used cache IDs are evicted. The indices of identical
+ * expansions are shared between value sets and cache IDs, by content hash, and are only counted once; an index is
+ * released when no cache ID refers to it anymore.
+ *
+ * @see MatchboxFhirContextProperties.ExpansionCache
+ */
+public class ExpandedValueSetCache {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ExpandedValueSetCache.class);
+
+	private final long timeToLiveMillis;
+
+	/**
+	 * The source of the current time, in milliseconds.
+	 */
+	private final LongSupplier clock;
+
+	/**
+	 * The maximum estimated size of the cached indices, in bytes, 0 for no limit.
+	 */
+	private final long maxSize;
+
+	/**
+	 * The cache IDs, in access order.
+	 */
+	private final LinkedHashMap<String, CacheIdEntry> cacheIds = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * The indices, by content hash.
+	 */
+	private final Map<String, SharedIndex> indices = new HashMap<>(64);
+
+	private long estimatedSize = 0;
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	public ExpandedValueSetCache(final MatchboxFhirContextProperties.@NonNull ExpansionCache config) {
+		this(config, System::currentTimeMillis);
+	}
+
+	ExpandedValueSetCache(final MatchboxFhirContextProperties.@NonNull ExpansionCache config,
+								 final @NonNull LongSupplier clock) {
+		this.clock = clock;
+		this.timeToLiveMillis = TimeUnit.MINUTES.toMillis(Math.max(1, config.getTimeToLiveMinutes()));
+		this.maxSize = Math.max(0, config.getMaxSizeMb()) * 1024 * 1024;
+	}
+
+	/**
+	 * Returns the cached index of a value set expansion, or {@code null} if there is none.
+	 */
+	public synchronized @Nullable ExpandedValueSetIndex get(final @Nullable String cacheId,
+																			  final @NonNull String valueSetUrl) {
+		final long now = this.clock.getAsLong();
+		this.expire(now);
+		final CacheIdEntry entry = cacheId == null ? null : this.cacheIds.get(cacheId);
+		if (entry != null) {
+			// The entry has been moved to the end of the access order
+			entry.lastAccess = now;
+		}
+		final ExpandedValueSetIndex index = entry == null ? null : entry.indices.get(valueSetUrl);
+		if (index == null) {
+			++this.missCount;
+			return null;
+		}
+		++this.hitCount;
+		return index;
+	}
+
+	/**
+	 * Caches the index of a value set expansion for a cache ID. If an identical expansion is already cached, its index
+	 * is reused.
+	 *
+	 * @return the cached index, that should be used instead of the given one.
+	 */
+	public synchronized @NonNull ExpandedValueSetIndex put(final @NonNull String cacheId,
+																			 final @NonNull String valueSetUrl,
+																			 final @NonNull ExpandedValueSetIndex index) {
+		final long now = this.clock.getAsLong();
+		this.expire(now);
+		if (this.maxSize > 0 && index.getEstimatedSize() > this.maxSize) {
+			log.debug("The expansion of '{}' is too large to be cached ({} bytes)", valueSetUrl, index.getEstimatedSize());
+			return index;
+		}
+
+		final SharedIndex shared = this.indices.computeIfAbsent(index.getContentHash(), hash -> {
+			this.estimatedSize += index.getEstimatedSize();
+			return new SharedIndex(index);
+		});
+		++shared.references;
+
+		final CacheIdEntry entry = this.cacheIds.computeIfAbsent(cacheId, k -> new CacheIdEntry());
+		entry.lastAccess = now;
+		final ExpandedValueSetIndex previous = entry.indices.put(valueSetUrl, shared.index);
+		if (previous != null) {
+			this.release(previous);
+		}
+
+		this.evict(cacheId);
+		return shared.index;
+	}
+
+	/**
+	 * Returns the number of cache IDs.
+	 */
+	public synchronized int size() {
+		return this.cacheIds.size();
+	}
+
+	/**
+	 * Returns the number of distinct cached indices.
+	 */
+	public synchronized int getIndexCount() {
+		return this.indices.size();
+	}
+
+	/**
+	 * Returns the estimated size of the distinct cached indices, in bytes.
+	 */
+	public synchronized long getEstimatedSize() {
+		return this.estimatedSize;
+	}
+
+	public synchronized long getHitCount() {
+		return this.hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return this.missCount;
+	}
+
+	/**
+	 * Removes the cache IDs that have not been used during their time to live. As the cache IDs are in access order,
+	 * the expired ones are first.
+	 */
+	private void expire(final long now) {
+		final var iterator = this.cacheIds.entrySet().iterator();
+		while (iterator.hasNext()) {
+			final var entry = iterator.next();
+			if (now - entry.getValue().lastAccess < this.timeToLiveMillis) {
+				break;
+			}
+			log.debug("Cache ID '{}' has expired", entry.getKey());
+			iterator.remove();
+			entry.getValue().indices.values().forEach(this::release);
+		}
+	}
+
+	/**
+	 * Evicts the least recently used cache IDs, except the current one, while the estimated size exceeds the limit.
+	 */
+	private void evict(final String currentCacheId) {
+		if (this.maxSize == 0) {
+			return;
+		}
+		final var iterator = this.cacheIds.entrySet().iterator();
+		while (this.estimatedSize > this.maxSize && iterator.hasNext()) {
+			final var entry = iterator.next();
+			if (entry.getKey().equals(currentCacheId)) {
+				continue;
+			}
+			log.debug("Evicting cache ID '{}' (estimated size of the cache: {} bytes)", entry.getKey(), this.estimatedSize);
+			iterator.remove();
+			entry.getValue().indices.values().forEach(this::release);
+		}
+	}
+
+	private void release(final ExpandedValueSetIndex index) {
+		final SharedIndex shared = this.indices.get(index.getContentHash());
+		if (shared != null && --shared.references == 0) {
+			this.indices.remove(index.getContentHash());
+			this.estimatedSize -= index.getEstimatedSize();
+		}
+	}
+
+	private static class CacheIdEntry {
+		private final Map<String, ExpandedValueSetIndex> indices = new HashMap<>(20);
+		private long lastAccess;
+	}
+
+	private static class SharedIndex {
+		private final ExpandedValueSetIndex index;
+		private int references = 0;
+
+		private SharedIndex(final ExpandedValueSetIndex index) {
+			this.index = index;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+package ch.ahdis.matchbox.terminology;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.hl7.fhir.r5.model.ValueSet;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A compact index of the codes of an expanded value set, to check the membership of a code in constant time.
+ * <p>
+ * It is built once from the expansion, which is not kept afterward: the codes are stored per system in open-addressing
+ * hash sets, that are much smaller than the {@link ValueSet} object graph. The index is immutable and can be used
+ * concurrently. Its content hash identifies the indexed codes, so that the identical expansions of different value sets
+ * or cache IDs can share the same index.
+ **/
+public class ExpandedValueSetIndex {
+
+	/**
+	 * The key of the codes that have no system.
+	 */
+	private static final String NO_SYSTEM = "";
+
+	private static final String CONTENT_DIGEST = "SHA3-256";
+
+	/**
+	 * A rough estimation of the heap size of a String, excluding its characters.
+	 */
+	private static final int STRING_OVERHEAD = 40;
+
+	/**
+	 * The system of the first include of the composition, used to infer the system of the codings that have none.
+	 */
+	private final @Nullable String firstIncludedSystem;
+
+	private final Map<String, CodeSet> codesBySystem;
+
+	private final int size;
+
+	private final String contentHash;
+
+	private final long estimatedSize;
+
+	private final LongAdder hitCount = new LongAdder();
+
+	private final LongAdder missCount = new LongAdder();
+
+	/**
+	 * Builds the index of an expanded value set.
+	 */
+	public ExpandedValueSetIndex(final @NonNull ValueSet valueSet) {
+		this.firstIncludedSystem = valueSet.getCompose().getInclude().isEmpty()
+			? null
+			: valueSet.getCompose().getInclude().getFirst().getSystem();
+
+		final MessageDigest digest = DigestUtils.getDigest(CONTENT_DIGEST);
+		if (this.firstIncludedSystem != null) {
+			digest.update(this.firstIncludedSystem.getBytes(StandardCharsets.UTF_8));
+		}
+		final Map<String, CodeSet> codesBySystem = new HashMap<>(4);
+		this.indexContains(valueSet.getExpansion().getContains(), codesBySystem, digest);
+		int size = 0;
+		long estimatedSize = 64;
+		for (final var entry : codesBySystem.entrySet()) {
+			size += entry.getValue().size();
+			estimatedSize += 32 + STRING_OVERHEAD + entry.getKey().length() + entry.getValue().estimateSize();
+		}
+		this.codesBySystem = Map.copyOf(codesBySystem);
+		this.size = size;
+		this.contentHash = Hex.encodeHexString(digest.digest());
+		this.estimatedSize = estimatedSize;
+	}
+
+	/**
+	 * Returns whether the code of the given system is in the expansion.
+	 */
+	public boolean contains(final @Nullable String system, final @Nullable String code) {
+		final CodeSet codes = this.codesBySystem.get(system == null ? NO_SYSTEM : system);
+		if (code != null && codes != null && codes.contains(code)) {
+			this.hitCount.increment();
+			return true;
+		}
+		this.missCount.increment();
+		return false;
+	}
+
+	public @Nullable String getFirstIncludedSystem() {
+		return this.firstIncludedSystem;
+	}
+
+	/**
+	 * Returns the number of distinct codes in the expansion.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Returns the SHA3-256 hash of the indexed codes and of the first included system, as an hexadecimal string.
+	 */
+	public String getContentHash() {
+		return this.contentHash;
+	}
+
+	/**
+	 * Returns a rough estimation of the heap size of the index, in bytes.
+	 */
+	public long getEstimatedSize() {
+		return this.estimatedSize;
+	}
+
+	public long getHitCount() {
+		return this.hitCount.sum();
+	}
+
+	public long getMissCount() {
+		return this.missCount.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "ExpandedValueSetIndex[systems=%d, codes=%d, hits=%d, misses=%d]".formatted(
+			this.codesBySystem.size(), this.size, this.getHitCount(), this.getMissCount());
+	}
+
+	private void indexContains(final List<ValueSet.ValueSetExpansionContainsComponent> contains,
+										final Map<String, CodeSet> codesBySystem,
+										final MessageDigest digest) {
+		for (final var item : contains) {
+			if (item.hasCode()) {
+				final String system = item.hasSystem() ? item.getSystem() : NO_SYSTEM;
+				codesBySystem.computeIfAbsent(system, k -> new CodeSet(contains.size())).add(item.getCode());
+				digest.update((system + '\0' + item.getCode() + '\n').getBytes(StandardCharsets.UTF_8));
+			}
+			if (item.hasContains()) {
+				this.indexContains(item.getContains(), codesBySystem, digest);
+			}
+		}
+	}
+
+	/**
+	 * A set of codes, with open addressing and linear probing. The table is kept at most half full.
+	 */
+	static class CodeSet {
+		private String[] table;
+		private int size = 0;
+
+		CodeSet(final int expectedSize) {
+			this.table = new String[tableSizeFor(expectedSize)];
+		}
+
+		void add(final String code) {
+			if (2 * (this.size + 1) > this.table.length) {
+				this.resize();
+			}
+			if (insert(this.table, code)) {
+				++this.size;
+			}
+		}
+
+		boolean contains(final String code) {
+			final int mask = this.table.length - 1;
+			int i = spread(code.hashCode()) & mask;
+			String current;
+			while ((current = this.table[i]) != null) {
+				if (current.equals(code)) {
+					return true;
+				}
+				i = (i + 1) & mask;
+			}
+			return false;
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		long estimateSize() {
+			long estimatedSize = 16L + 4L * this.table.length;
+			for (final String code : this.table) {
+				if (code != null) {
+					estimatedSize += STRING_OVERHEAD + code.length();
+				}
+			}
+			return estimatedSize;
+		}
+
+		private void resize() {
+			final String[] newTable = new String[this.table.length * 2];
+			for (final String code : this.table) {
+				if (code != null) {
+					insert(newTable, code);
+				}
+			}
+			this.table = newTable;
+		}
+
+		private static boolean insert(final String[] table, final String code) {
+			final int mask = table.length - 1;
+			int i = spread(code.hashCode()) & mask;
+			String current;
+			while ((current = table[i]) != null) {
+				if (current.equals(code)) {
+					return false;
+				}
+				i = (i + 1) & mask;
+			}
+			table[i] = code;
+			return true;
+		}
+
+		private static int spread(final int hash) {
+			return hash ^ (hash >>> 16);
+		}
+
+		private static int tableSizeFor(final int expectedSize) {
+			final int minimum = Math.max(4, 2 * expectedSize);
+			return Integer.highestOneBit(minimum - 1) << 1;
+		}
+	}
+}
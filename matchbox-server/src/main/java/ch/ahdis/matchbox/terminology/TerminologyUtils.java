@@ -1,9 +1,14 @@
 package ch.ahdis.matchbox.terminology;
 
+import ch.ahdis.matchbox.engine.exception.MatchboxUnsupportedFhirVersionException;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_43_50;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r5.model.CodeableConcept;
 import org.hl7.fhir.r5.model.Coding;
 import org.hl7.fhir.r5.model.OperationOutcome;
 import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.r5.model.Resource;
 
 import javax.annotation.Nullable;
 
@@ -97,4 +102,17 @@ public class TerminologyUtils {
 			.setDetails(new CodeableConcept().setText(message));
 		return oo;
 	}
+
+	/**
+	 * Converts a R4, R4B or R5 resource to R5.
+	 */
+	public static Resource convertToR5(final IBaseResource resource) {
+		return switch (resource) {
+			case final Resource resourceR5 -> resourceR5;
+			case final org.hl7.fhir.r4.model.Resource resourceR4 -> VersionConvertorFactory_40_50.convertResource(resourceR4);
+			case final org.hl7.fhir.r4b.model.Resource resourceR4B -> VersionConvertorFactory_43_50.convertResource(resourceR4B);
+			default -> throw new MatchboxUnsupportedFhirVersionException("TerminologyUtils",
+																							 resource.getStructureFhirVersionEnum());
+		};
+	}
 }
@@ -6,8 +6,11 @@ import ca.uhn.fhir.context.support.ValidationSupportContext;
 import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
 import ca.uhn.fhir.rest.annotation.*;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import ch.ahdis.matchbox.engine.CompiledValueSetComposition;
+import ch.ahdis.matchbox.engine.CompiledValueSetComposition.Membership;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
 import ch.ahdis.matchbox.engine.exception.MatchboxUnsupportedFhirVersionException;
-import org.apache.commons.collections4.map.PassiveExpiringMap;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
 import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
@@ -18,7 +21,9 @@ import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IDomainResource;
 import org.hl7.fhir.r5.model.CodeableConcept;
 import org.hl7.fhir.r5.model.Coding;
+import org.hl7.fhir.r5.model.OperationOutcome;
 import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.r5.model.Resource;
 import org.hl7.fhir.r5.model.ValueSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,14 +31,17 @@ import org.slf4j.LoggerFactory;
 import jakarta.servlet.http.HttpServletResponse;
 
 import java.util.*;
-import java.util.concurrent.TimeUnit;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static ch.ahdis.matchbox.terminology.TerminologyUtils.*;
 import static java.util.Objects.requireNonNull;
 
 /**
- * The HAPI FHIR provider for the ValueSet/$validate-code operation.
+ * The HAPI FHIR provider for the ValueSet/$validate-code and ValueSet/$batch-validate-code operations.
  * <p>
  * It currently only supports FHIR R4 value sets.
  *
@@ -42,22 +50,62 @@ import static java.util.Objects.requireNonNull;
 public class ValueSetCodeValidationProvider implements IResourceProvider {
 	private static final Logger log = LoggerFactory.getLogger(ValueSetCodeValidationProvider.class);
 
+	/**
+	 * The maximum number of cached compositions.
+	 */
+	private static final int MAX_COMPILED_COMPOSITIONS = 1000;
+
+	/**
+	 * The name of the operation that validates many codings in one request.
+	 */
+	public static final String BATCH_VALIDATE_CODE_OPERATION = "$batch-validate-code";
+
 	private final FhirContext fhirContext;
 
 	private final InMemoryTerminologyServerValidationSupport inMemoryTerminologySupport;
 
 	/**
-	 * A cache that stores a mapping from value set URLs to expanded value sets, per cache ID.
+	 * A cache that stores a mapping from value set URLs to the indices of the expanded value sets, per cache ID.
 	 */
-	private final Map<String, Map<String, ValueSet>> valueSetCache =
-		new PassiveExpiringMap<>(5, TimeUnit.MINUTES);
+	private final ExpandedValueSetCache valueSetCache;
+
+	/**
+	 * The compiled compositions of the value sets that could not be expanded, in access order.
+	 */
+	private final Map<String, CompiledValueSetComposition> compositionCache =
+		new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, CompiledValueSetComposition> eldest) {
+				return this.size() > MAX_COMPILED_COMPOSITIONS;
+			}
+		};
+
+	/**
+	 * The expansions that have been computed when the IGs were installed.
+	 */
+	private final PrecomputedExpansionStore precomputedExpansionStore;
 
 	private final ValueSetExpansionOptions expansionOptions = new ValueSetExpansionOptions();
 
 	private final ValidationSupportContext validationSupportContext;
 
-	public ValueSetCodeValidationProvider(final FhirContext fhirContext) {
+	/**
+	 * The number of threads answering the validations of a $batch-validate-code request.
+	 */
+	private final int batchThreads;
+
+	/**
+	 * The executor of the batch validations, see {@link #getBatchExecutor()}.
+	 */
+	private ExecutorService batchExecutor;
+
+	public ValueSetCodeValidationProvider(final FhirContext fhirContext,
+														  final MatchboxFhirContextProperties matchboxFhirContextProperties,
+														  final PrecomputedExpansionStore precomputedExpansionStore) {
 		this.fhirContext = requireNonNull(fhirContext);
+		this.precomputedExpansionStore = requireNonNull(precomputedExpansionStore);
+		this.valueSetCache = new ExpandedValueSetCache(matchboxFhirContextProperties.getExpansionCache());
+		this.batchThreads = Math.max(1, matchboxFhirContextProperties.getBatchValidationThreads());
 		this.expansionOptions.setFailOnMissingCodeSystem(false);
 		this.inMemoryTerminologySupport =
 			new InMemoryTerminologyServerValidationSupport(fhirContext);
@@ -72,17 +120,87 @@ public class ValueSetCodeValidationProvider implements IResourceProvider {
 	public IAnyResource validateCode(@ResourceParam final IBaseParameters baseParameters,
 												final HttpServletResponse servletResponse) {
 		Objects.requireNonNull(baseParameters, "baseParameters is null in ValueSetCodeValidationProvider.validateCode");
-		// Convert the incoming parameters to R5, to handle a single FHIR version in the method
-		final Parameters request = switch (baseParameters) {
-			case final Parameters parametersR5 -> parametersR5;
-			case final org.hl7.fhir.r4.model.Parameters parametersR4 ->
-				(Parameters) VersionConvertorFactory_40_50.convertResource(parametersR4);
-			case final org.hl7.fhir.r4b.model.Parameters parametersR4B ->
-				(Parameters) VersionConvertorFactory_43_50.convertResource(parametersR4B);
-			default -> throw new MatchboxUnsupportedFhirVersionException("CodeSystemCodeValidationProvider",
-																							 baseParameters.getStructureFhirVersionEnum());
+		final Resource response = this.validateCode(this.convertParametersToR5(baseParameters));
+		if (response instanceof OperationOutcome) {
+			servletResponse.setStatus(422);
+		}
+		return response;
+	}
+
+	/**
+	 * Validates many codings in one request: each 'validation' parameter contains the parameters of a
+	 * ValueSet/$validate-code request as resource, and the response contains the responses in the same order.
+	 * <p>
+	 * The validations are answered in parallel on the batch executor, from the same caches as ValueSet/$validate-code.
+	 * This saves the
+	 * validator an HTTP round trip per coding when it validates codes in batch.
+	 */
+	@Operation(name = BATCH_VALIDATE_CODE_OPERATION, idempotent = true)
+	public IAnyResource batchValidateCode(@ResourceParam final IBaseParameters baseParameters,
+													  final HttpServletResponse servletResponse) {
+		Objects.requireNonNull(baseParameters, "baseParameters is null in ValueSetCodeValidationProvider.batchValidateCode");
+		final Parameters request = this.convertParametersToR5(baseParameters);
+		final List<Parameters> validations = new ArrayList<>(request.getParameter().size());
+		for (final var parameter : request.getParameters("validation")) {
+			if (!(parameter.getResource() instanceof final Parameters validation)) {
+				servletResponse.setStatus(422);
+				return mapErrorToOperationOutcome("Each 'validation' parameter must contain a Parameters resource");
+			}
+			validations.add(validation);
+		}
+		log.debug("Validating {} codes in batch", validations.size());
+
+		final List<Future<Resource>> futures = new ArrayList<>(validations.size());
+		for (final Parameters validation : validations) {
+			futures.add(this.getBatchExecutor().submit(() -> this.validateCode(validation)));
+		}
+
+		// The responses are in the order of the requests
+		final var response = new Parameters();
+		for (final Future<Resource> future : futures) {
+			response.addParameter().setName("validation").setResource(this.getBatchItemResult(future));
+		}
+		return switch (this.fhirContext.getVersion().getVersion()) {
+			case R4 -> VersionConvertorFactory_40_50.convertResource(response);
+			case R4B -> VersionConvertorFactory_43_50.convertResource(response);
+			case R5 -> response;
+			default -> throw new MatchboxUnsupportedFhirVersionException("ValueSetCodeValidationProvider",
+																							 this.fhirContext.getVersion().getVersion());
 		};
+	}
 
+	private Resource getBatchItemResult(final Future<Resource> future) {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return mapErrorToOperationOutcome("The validation has been interrupted");
+		} catch (final ExecutionException e) {
+			log.error("Error during the code validation", e.getCause());
+			return mapErrorToOperationOutcome("Error during the code validation: %s".formatted(e.getCause().getMessage()));
+		}
+	}
+
+	/**
+	 * Returns the executor of the batch validations, it is created on first use.
+	 */
+	private synchronized ExecutorService getBatchExecutor() {
+		if (this.batchExecutor == null) {
+			final var threadCounter = new AtomicInteger();
+			this.batchExecutor = Executors.newFixedThreadPool(this.batchThreads, runnable -> {
+				final var thread = new Thread(runnable, "matchbox-batch-validate-code-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return this.batchExecutor;
+	}
+
+	/**
+	 * Validates the coding or codeable concept of a ValueSet/$validate-code request. Returns the response parameters,
+	 * or an OperationOutcome if the request is invalid.
+	 */
+	private Resource validateCode(final Parameters request) {
 		final String valueSetMode = request.hasParameter("valueSetMode")
 			? request.getParameterValue("valueSetMode").toString()
 			: "DEFAULT";
@@ -110,13 +228,11 @@ public class ValueSetCodeValidationProvider implements IResourceProvider {
 		// parameter profile-url "http://hl7.org/fhir/ExpansionProfile/dc8fd4bc-091a-424a-8a3b-6198ef146891"
 
 		if (!request.hasParameter("coding") && !request.hasParameter("codeableConcept")) {
-			servletResponse.setStatus(422);
 			return mapErrorToOperationOutcome("Missing parameter 'coding' or 'codeableConcept' in the request");
 		}
 
 		if (!(request.getParameterValue("coding") instanceof Coding)
 			&& !(request.getParameterValue("codeableConcept") instanceof CodeableConcept)) {
-			servletResponse.setStatus(422);
 			// The original error message is:
 			//    Unable to find code to validate (looked for coding | codeableConcept | code)
 			return mapErrorToOperationOutcome("Unable to find code to validate (looked for 'coding' and 'codeableConcept')");
@@ -148,17 +264,35 @@ public class ValueSetCodeValidationProvider implements IResourceProvider {
 
 		String url = null;
 		ValueSet valueSet = null;
-		boolean cachedValueSet = false;
+		ExpandedValueSetIndex index = null;
 		if (request.hasParameter("url")) {
 			url = request.getParameterValue("url").toString();
-			valueSet = this.getExpandedValueSet(cacheId, url);
-			cachedValueSet = true;
+			index = this.valueSetCache.get(cacheId, url);
 		} else if (request.hasParameter("valueSet")) {
 			valueSet = (ValueSet) request.getParameter("valueSet").getResource();
 			url = valueSet.getUrl();
 		}
 
-		if (valueSet == null) {
+		if (index == null && url != null) {
+			// The expansion may have been computed when the IG was installed
+			final String valueSetVersion = valueSet != null
+				? valueSet.getVersion()
+				: (request.hasParameter("valueSetVersion") ? request.getParameterValue("valueSetVersion").toString() : null);
+			final ValueSet precomputed = this.precomputedExpansionStore.getExpansion(url, valueSetVersion);
+			if (precomputed != null) {
+				log.debug("Using the precomputed expansion of ValueSet '{}'", url);
+				index = new ExpandedValueSetIndex(precomputed);
+				if (index.isEmpty()) {
+					log.debug("OK - precomputed expansion is empty");
+					return createSuccessfulResponseParameters(codings.getFirst());
+				}
+				if (cacheId != null) {
+					index = this.valueSetCache.put(cacheId, url, index);
+				}
+			}
+		}
+
+		if (valueSet == null && index == null) {
 			// That value set is not cached
 			log.debug("OK - cache miss, value set is null");
 			return createSuccessfulResponseParameters(codings.getFirst());
@@ -169,22 +303,31 @@ public class ValueSetCodeValidationProvider implements IResourceProvider {
 			log.debug("Validating codeableConcept '{}' in ValueSet '{}'", codeableConcept, url);
 		}
 
-		if (!cachedValueSet) {
-			// We have to expand the value set
-			final IValidationSupport.ValueSetExpansionOutcome result = this.inMemoryTerminologySupport.expandValueSet(
-				this.validationSupportContext,
-				this.expansionOptions,
-				valueSet);
-			if (result == null || result.getValueSet() == null) {
-				// The value set expansion has failed; this means it may be too complex for the current implementation
+		if (index == null) {
+			// The value sets that could not be expanded before are not expanded again
+			final String compositionKey = CompiledValueSetComposition.getCacheKey(valueSet);
+			CompiledValueSetComposition composition = this.getCompiledComposition(compositionKey);
+			IValidationSupport.ValueSetExpansionOutcome result = null;
+			if (composition == null) {
+				// We have to expand the value set
+				result = this.inMemoryTerminologySupport.expandValueSet(
+					this.validationSupportContext,
+					this.expansionOptions,
+					valueSet);
+				if (result == null || result.getValueSet() == null) {
+					// The value set expansion has failed; this means it may be too complex for the current implementation
+					log.debug(" - expansion failed");
+					composition = new CompiledValueSetComposition(valueSet.getCompose());
+					this.cacheCompiledComposition(compositionKey, composition);
+				}
+			}
+			if (composition != null) {
 				// We try to infer the code membership from the value set definition as a last resort
-				log.debug(" - expansion failed");
-
 				for (final var validatedCoding : codings) {
-					final var membership = this.evaluateCodeInComposition(validatedCoding, valueSet.getCompose());
-					if (membership == CodeMembership.EXCLUDED) {
+					final var membership = composition.evaluate(validatedCoding.getSystem(), validatedCoding.getCode());
+					if (membership == Membership.EXCLUDED) {
 						log.debug(" - code '{}' is excluded from value set composition", validatedCoding.getCode());
-					} else if (membership == CodeMembership.INCLUDED) {
+					} else if (membership == Membership.INCLUDED) {
 						log.debug(" - code '{}' is included in value set composition", validatedCoding.getCode());
 						// We can stop here, we've found a 'Coding' explicitly included
 						return createSuccessfulResponseParameters(validatedCoding);
@@ -203,6 +346,7 @@ public class ValueSetCodeValidationProvider implements IResourceProvider {
 			}
 
 			// Value set is expanded, convert it to R5 for internal use
+			final ValueSet requestedValueSet = valueSet;
 			final var baseValueSet = (IDomainResource) result.getValueSet();
 			if (baseValueSet instanceof final ValueSet valueSetR5) {
 				valueSet = valueSetR5;
@@ -215,26 +359,33 @@ public class ValueSetCodeValidationProvider implements IResourceProvider {
 																				  baseValueSet.getStructureFhirVersionEnum());
 			}
 
+			if (!valueSet.hasCompose()) {
+				// The in-memory expansion does not keep the composition, its first system is used to infer the systems
+				valueSet.setCompose(requestedValueSet.getCompose());
+			}
+
 			if (valueSet.getExpansion().getContains().isEmpty()) {
 				// The value set expansion is successful but empty
 				log.debug("OK - expansion successful but empty");
 				return createSuccessfulResponseParameters(codings.getFirst());
 			}
 
+			// Index the expansion once, the expanded value set is not kept
+			index = new ExpandedValueSetIndex(valueSet);
 			if (cacheId != null) {
-				this.cacheExpandedValueSet(cacheId, url, valueSet);
+				index = this.valueSetCache.put(cacheId, url, index);
 			}
 		}
 
 		for (final var validatedCoding : codings) {
-			if (this.evaluateCodingInExpandedValueSet(validatedCoding, valueSet, inferSystem)) {
+			if (this.evaluateCodingInExpandedValueSet(validatedCoding, index, inferSystem)) {
 				return createSuccessfulResponseParameters(validatedCoding);
 			}
 		}
 		return createErrorResponseParameters(
 			"The provided Coding/CodeableConcept is not in the value set '%s' (expansion contains %d codes)".formatted(
 				url,
-				valueSet.getExpansion().getContains().size()
+				index.size()
 			),
 			coding,
 			codeableConcept
@@ -245,84 +396,55 @@ public class ValueSetCodeValidationProvider implements IResourceProvider {
 	 * Try to infer from an expanded value set if a coding is included or excluded.
 	 */
 	private boolean evaluateCodingInExpandedValueSet(final Coding coding,
-												                final ValueSet valueSet,
+												                final ExpandedValueSetIndex index,
 												                final boolean inferSystem) {
 		if (inferSystem && !coding.hasSystem()) {
 			// Infer the coding system as the first included system in the composition
-			coding.setSystem(valueSet.getCompose().getIncludeFirstRep().getSystem());
+			coding.setSystem(index.getFirstIncludedSystem());
 		}
 
-		if (this.validateCodeInExpandedValueSet(coding, valueSet)) {
-			log.debug("OK - present in expanded value set (expansion contains {} codes)",
-						 valueSet.getExpansion().getContains().size());
+		if (index.contains(coding.getSystem(), coding.getCode())) {
+			log.debug("OK - present in expanded value set ({})", index);
 			return true;
 		}
-		log.debug("FAIL - not present in expanded value set (expansion contains {} codes)",
-					 valueSet.getExpansion().getContains().size());
+		log.debug("FAIL - not present in expanded value set ({})", index);
 		return false;
 	}
 
 	/**
-	 * Try to infer from a value set composition (we failed to expand it) if a given code is explicitly included or
-	 * excluded.
+	 * Converts the incoming parameters to R5, to handle a single FHIR version in the methods.
 	 */
-	private CodeMembership evaluateCodeInComposition(final Coding coding,
-																	 final ValueSet.ValueSetComposeComponent compose) {
-		int mayBeIncludedByInclude = 0;
-		for (final var include : compose.getInclude()) {
-			if (include.hasSystem() && !include.getSystem().equals(coding.getSystem())) {
-				continue;
-			}
-
-			for (final var concept : include.getConcept()) {
-				if (concept.getCode().equals(coding.getCode())) {
-					return CodeMembership.INCLUDED;
-				}
-			}
+	private Parameters convertParametersToR5(final IBaseParameters baseParameters) {
+		return switch (baseParameters) {
+			case final Parameters parametersR5 -> parametersR5;
+			case final org.hl7.fhir.r4.model.Parameters parametersR4 ->
+				(Parameters) VersionConvertorFactory_40_50.convertResource(parametersR4);
+			case final org.hl7.fhir.r4b.model.Parameters parametersR4B ->
+				(Parameters) VersionConvertorFactory_43_50.convertResource(parametersR4B);
+			default -> throw new MatchboxUnsupportedFhirVersionException("ValueSetCodeValidationProvider",
+																							 baseParameters.getStructureFhirVersionEnum());
+		};
+	}
 
-			for (final var filter : include.getFilter()) {
-				if ("regex".equals(filter.getOp().toCode())) {
-					final var pattern = Pattern.compile(filter.getValue());
-					// Try to match the full code with the regex
-					if (!pattern.matcher(coding.getCode()).matches()) {
-						return CodeMembership.EXCLUDED;
-					}
-				}
-			}
-			++mayBeIncludedByInclude;
+	/**
+	 * Returns the cached composition of a value set that could not be expanded, or {@code null}.
+	 */
+	private @Nullable CompiledValueSetComposition getCompiledComposition(final @Nullable String key) {
+		if (key == null) {
+			return null;
 		}
-
-		if (mayBeIncludedByInclude > 0) {
-			return CodeMembership.UNKNOWN;
+		synchronized (this.compositionCache) {
+			return this.compositionCache.get(key);
 		}
-
-		// The system is not present in the composition
-		return CodeMembership.EXCLUDED;
-	}
-
-	private @Nullable ValueSet getExpandedValueSet(final String cacheId,
-																  final String valueSetUrl) {
-		return Optional.ofNullable(this.valueSetCache.get(cacheId))
-			.map(m -> m.get(valueSetUrl))
-			.orElse(null);
 	}
 
-	private void cacheExpandedValueSet(final String cacheId,
-												  final String valueSetUrl,
-												  final ValueSet valueSet) {
-		this.valueSetCache
-			.computeIfAbsent(cacheId, k -> new HashMap<>(20))
-			.put(valueSetUrl, valueSet);
-	}
-
-	private boolean validateCodeInExpandedValueSet(final Coding coding,
-																  final ValueSet valueSet) {
-		for (final var item : valueSet.getExpansion().getContains()) {
-			if (item.getSystem().equals(coding.getSystem()) && item.getCode().equals(coding.getCode())) {
-				return true;
+	private void cacheCompiledComposition(final @Nullable String key,
+													  final CompiledValueSetComposition composition) {
+		if (key != null) {
+			synchronized (this.compositionCache) {
+				this.compositionCache.put(key, composition);
 			}
 		}
-		return false;
 	}
 
 	@Override
@@ -349,8 +471,4 @@ public class ValueSetCodeValidationProvider implements IResourceProvider {
 			return context;
 		}
 	}
-
-	enum CodeMembership {
-		INCLUDED, EXCLUDED, UNKNOWN
-	}
 }
@@ -0,0 +1,178 @@
+package ch.ahdis.matchbox.terminology;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
+import ca.uhn.fhir.parser.IParser;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.PrePopulatedValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r5.model.CodeSystem;
+import org.hl7.fhir.r5.model.Enumerations.CodeSystemContentMode;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static ch.ahdis.matchbox.terminology.TerminologyUtils.convertToR5;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Expands the value sets of installed packages in advance, and writes their expansions in the
+ * {@link PrecomputedExpansionStore}.
+ * <p>
+ * The value sets are expanded in memory, with the code systems and value sets of the given packages. As the stored
+ * expansions are used instead of expanding the value sets later, only the value sets whose expansion is known to be
+ * complete are stored: those that only include enumerated concepts, or code systems whose content is complete in the
+ * packages.
+ **/
+public class ValueSetExpansionPrecomputer {
+	private static final Logger log = LoggerFactory.getLogger(ValueSetExpansionPrecomputer.class);
+
+	/**
+	 * The maximum number of concepts of a stored expansion; larger expansions may be truncated and are not stored.
+	 */
+	private static final int MAX_EXPANSION_SIZE = 100_000;
+
+	private final FhirContext fhirContext;
+
+	private final PrecomputedExpansionStore store;
+
+	public ValueSetExpansionPrecomputer(final @NonNull FhirContext fhirContext,
+													final @NonNull PrecomputedExpansionStore store) {
+		this.fhirContext = requireNonNull(fhirContext);
+		this.store = requireNonNull(store);
+	}
+
+	/**
+	 * Expands the value sets of the packages, and stores their expansions (one file per package). The packages whose
+	 * expansions are already stored (e.g. the dependencies shared with a previously installed package) are not expanded
+	 * again, their code systems are only used by the expansions of the other packages.
+	 *
+	 * @param packages the packages, the code systems of all of them are available to the expansions.
+	 */
+	public void precompute(final @NonNull Collection<NpmPackage> packages) {
+		final long start = System.currentTimeMillis();
+		final var prePopulatedSupport = new PrePopulatedValidationSupport(this.fhirContext);
+		final Set<String> completeCodeSystems = new HashSet<>();
+		final Map<NpmPackage, List<IBaseResource>> valueSetsByPackage = new LinkedHashMap<>();
+		for (final NpmPackage npmPackage : packages) {
+			for (final IBaseResource codeSystem : this.readResources(npmPackage, "CodeSystem")) {
+				prePopulatedSupport.addCodeSystem(codeSystem);
+				if (convertToR5(codeSystem) instanceof final CodeSystem codeSystemR5
+					&& codeSystemR5.getContent() == CodeSystemContentMode.COMPLETE) {
+					completeCodeSystems.add(codeSystemR5.getUrl());
+				}
+			}
+			if (this.store.contains(npmPackage.id(), npmPackage.version())) {
+				log.debug("The value set expansions of {}#{} are already stored", npmPackage.id(), npmPackage.version());
+				continue;
+			}
+			final List<IBaseResource> valueSets = this.readResources(npmPackage, "ValueSet");
+			valueSets.forEach(prePopulatedSupport::addValueSet);
+			valueSetsByPackage.put(npmPackage, valueSets);
+		}
+
+		final var inMemoryTerminologySupport = new InMemoryTerminologyServerValidationSupport(this.fhirContext);
+		final var validationSupportContext = new ValidationSupportContext(
+			new ValidationSupportChain(prePopulatedSupport, inMemoryTerminologySupport));
+		final var expansionOptions = new ValueSetExpansionOptions();
+		// The value sets that include the whole content of a missing code system have already been discarded
+		expansionOptions.setFailOnMissingCodeSystem(false);
+		expansionOptions.setCount(MAX_EXPANSION_SIZE);
+
+		int count = 0;
+		for (final var entry : valueSetsByPackage.entrySet()) {
+			final List<ValueSet> expansions = new ArrayList<>(entry.getValue().size());
+			for (final IBaseResource valueSet : entry.getValue()) {
+				final var valueSetR5 = (ValueSet) convertToR5(valueSet);
+				if (!valueSetR5.hasUrl() || !isExpansionComplete(valueSetR5, completeCodeSystems)) {
+					continue;
+				}
+				try {
+					final IValidationSupport.ValueSetExpansionOutcome outcome =
+						inMemoryTerminologySupport.expandValueSet(validationSupportContext, expansionOptions, valueSet);
+					if (outcome != null && outcome.getValueSet() != null) {
+						final var expanded = (ValueSet) convertToR5(outcome.getValueSet());
+						if (expanded.getExpansion().getContains().size() >= MAX_EXPANSION_SIZE) {
+							log.debug("The expansion of the value set '{}' is too large to be stored", valueSetR5.getUrl());
+							continue;
+						}
+						// The expansion does not keep the composition, it is needed to infer the systems
+						expanded.setUrl(valueSetR5.getUrl());
+						expanded.setVersion(valueSetR5.getVersion());
+						expanded.setCompose(valueSetR5.getCompose());
+						expansions.add(expanded);
+					}
+				} catch (final Exception e) {
+					log.debug("Unable to expand the value set '{}'", valueSetR5.getUrl(), e);
+				}
+			}
+			try {
+				this.store.write(entry.getKey().id(), entry.getKey().version(), expansions);
+				count += expansions.size();
+			} catch (final IOException e) {
+				log.error("Unable to store the precomputed expansions of {}#{}", entry.getKey().id(),
+							 entry.getKey().version(), e);
+			}
+		}
+		log.info("Precomputed {} value set expansions in {} ms", count, System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Returns whether the expansion of a value set only depends on the content of the packages.
+	 */
+	static boolean isExpansionComplete(final ValueSet valueSet, final Set<String> completeCodeSystems) {
+		if (!valueSet.hasCompose()) {
+			return false;
+		}
+		for (final var include : valueSet.getCompose().getInclude()) {
+			if (include.hasValueSet() || !include.hasSystem()) {
+				return false;
+			}
+			if (include.hasConcept() && !include.hasFilter()) {
+				continue;
+			}
+			if (!completeCodeSystems.contains(include.getSystem())) {
+				return false;
+			}
+		}
+		for (final var exclude : valueSet.getCompose().getExclude()) {
+			if (exclude.hasValueSet()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private List<IBaseResource> readResources(final NpmPackage npmPackage, final String type) {
+		final IParser parser = this.fhirContext.newJsonParser();
+		final List<IBaseResource> resources = new ArrayList<>();
+		try {
+			for (final String file : npmPackage.listResources(type)) {
+				try (final InputStream stream = npmPackage.loadResource(file)) {
+					resources.add(parser.parseResource(stream));
+				} catch (final Exception e) {
+					log.debug("Unable to parse '{}' of {}#{}", file, npmPackage.id(), npmPackage.version(), e);
+				}
+			}
+		} catch (final IOException e) {
+			log.warn("Unable to list the {} resources of {}#{}", type, npmPackage.id(), npmPackage.version(), e);
+		}
+		return resources;
+	}
+}
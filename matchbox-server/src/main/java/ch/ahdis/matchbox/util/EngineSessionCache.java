@@ -7,9 +7,9 @@
 * Licensed under the Apache License, Version 2.0 (the "License");
 * you may not use this file except in compliance with the License.
 * You may obtain a copy of the License at
-* 
+*
 *      http://www.apache.org/licenses/LICENSE-2.0
-* 
+*
 * Unless required by applicable law or agreed to in writing, software
 * distributed under the License is distributed on an "AS IS" BASIS,
 * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
@@ -20,95 +20,369 @@
 
 package ch.ahdis.matchbox.util;
 
-import java.util.Set;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
 
-import org.apache.commons.collections4.map.PassiveExpiringMap;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 import org.hl7.fhir.validation.ValidationEngine;
-import org.hl7.fhir.validation.cli.services.PassiveExpiringSessionCache;
+import org.hl7.fhir.validation.cli.services.SessionCache;
+
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties.EvictionPolicy;
 
 /**
  * @author Oliver Egger
- * 
- *         We want to have a validation engines also that are not timed out as
- *         in the parent class.
+ *
+ *         A bounded cache of validation engines. Pinned engines (the default engine, the preloaded IGs and the
+ *         configured pinned IGs) are never evicted; the other engines expire after their time to live, and are
+ *         evicted when the cache goes over its maximum number of engines or its maximum estimated size.
+ *         <p>
+ *         Reads are lock-free, so that fetching a cached engine never waits for an engine being cached or evicted;
+ *         the writes are synchronized.
  */
-public class EngineSessionCache extends PassiveExpiringSessionCache {
+public class EngineSessionCache implements SessionCache {
+
+    protected static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(EngineSessionCache.class);
+
+    private final Map<String, CachedEngine> cachedSessions = new ConcurrentHashMap<>();
+    private final Map<ValidationEngine, String> cachedSessionIds = Collections.synchronizedMap(new IdentityHashMap<>());
 
-    private final Map<String, ValidationEngine> cachedSessionsNoTimeout = new java.util.HashMap<String, ValidationEngine>();
-    private final Map<ValidationEngine, String> cachedSessionIdsNoTimeout = new java.util.HashMap<ValidationEngine, String>();
-    private final PassiveExpiringMap<ValidationEngine, String> cachedSessionIds;
+    private final int maxEngines;
+    private final long maxSizeBytes;
+    private final long timeToLiveMillis;
+    private final EvictionPolicy evictionPolicy;
+    private final ToLongFunction<ValidationEngine> sizeEstimator;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder expirationCount = new LongAdder();
 
     public EngineSessionCache() {
-        cachedSessionIds = new PassiveExpiringMap<>(TIME_TO_LIVE, TIME_UNIT);
+        this(new MatchboxFhirContextProperties.EngineCache(), engine -> 0);
+    }
+
+    /**
+     * @param config        The configuration of the cache limits.
+     * @param sizeEstimator The estimator of the retained heap size (in bytes) of an engine, it's called once when the
+     *                      engine is cached.
+     */
+    public EngineSessionCache(final MatchboxFhirContextProperties.@NonNull EngineCache config,
+                              final @NonNull ToLongFunction<ValidationEngine> sizeEstimator) {
+        this.maxEngines = config.getMaxEngines();
+        this.maxSizeBytes = config.getMaxSizeMb() * 1024 * 1024;
+        this.timeToLiveMillis = TimeUnit.MINUTES.toMillis(config.getTimeToLiveMinutes());
+        this.evictionPolicy = Objects.requireNonNull(config.getEvictionPolicy());
+        this.sizeEstimator = Objects.requireNonNull(sizeEstimator);
     }
 
     /**
      * Returns the stored {@link ValidationEngine} associated with the passed in
      * session id, if one such instance exists.
-     * 
+     *
      * @param sessionId The {@link String} session id.
      * @return The {@link ValidationEngine} associated with the passed in id, or
      *         null if none exists.
      */
     @Override
-    public ValidationEngine fetchSessionValidatorEngine(String sessionId) {
-        if (cachedSessionsNoTimeout.containsKey(sessionId)) {
-            return cachedSessionsNoTimeout.get(sessionId);
+    public ValidationEngine fetchSessionValidatorEngine(final String sessionId) {
+        final CachedEngine cached = this.cachedSessions.get(sessionId);
+        if (cached == null) {
+            this.missCount.increment();
+            return null;
         }
-        return super.fetchSessionValidatorEngine(sessionId);
+        final long now = System.currentTimeMillis();
+        if (this.isExpired(cached, now)) {
+            this.removeExpiredSessions();
+            this.missCount.increment();
+            return null;
+        }
+        this.hitCount.increment();
+        cached.hits.increment();
+        cached.lastAccess = now;
+        return cached.engine;
     }
 
     /**
      * Returns the set of stored session ids.
-     * 
+     *
      * @return {@link Set} of session ids.
      */
     @Override
     public Set<String> getSessionIds() {
-        Set<String> mergedSet = new HashSet<String>();
-        mergedSet.addAll(super.getSessionIds());
-        mergedSet.addAll(cachedSessionsNoTimeout.keySet());
-        return mergedSet;
+        final long now = System.currentTimeMillis();
+        return this.cachedSessions.values().stream()
+            .filter(cached -> !this.isExpired(cached, now))
+            .map(cached -> cached.sessionId)
+            .collect(Collectors.toSet());
     }
 
     /**
-     * Stores the initialized {@link ValidationEngine} in the cache forever. If a
-     * null key is
-     * passed in, a new key is generated and returned.
-     * 
+     * Stores the initialized {@link ValidationEngine} in the cache forever, it will never be evicted.
+     *
      * @param sessionId        The {@link String} key to associate with this stored
      *                         {@link ValidationEngine}
      * @param validationEngine The {@link ValidationEngine} instance to cache.
      * @return The {@link String} id that will be associated with the stored
      *         {@link ValidationEngine}
      */
-    public String cacheSessionForEver(String sessionId, ValidationEngine validationEngine) {
-        cachedSessionsNoTimeout.put(sessionId, validationEngine);
-        cachedSessionIdsNoTimeout.put(validationEngine, sessionId);
-        return sessionId;
+    public String cacheSessionForEver(final String sessionId, final ValidationEngine validationEngine) {
+        return this.cacheSession(sessionId, validationEngine, true);
+    }
+
+    @Override
+    public String cacheSession(final ValidationEngine validationEngine) {
+        return this.cacheSession(null, validationEngine, false);
     }
 
-    public String cacheSession(String sessionId, ValidationEngine validationEngine) {
-        String id = super.cacheSession(sessionId, validationEngine);
-        cachedSessionIds.put(validationEngine, id);
+    @Override
+    public String cacheSession(final String sessionId, final ValidationEngine validationEngine) {
+        return this.cacheSession(sessionId, validationEngine, false);
+    }
+
+    /**
+     * Stores the initialized {@link ValidationEngine} in the cache. If a null key is passed in, a new key is generated
+     * and returned.
+     *
+     * @param sessionId        The {@link String} key to associate with this stored {@link ValidationEngine}
+     * @param validationEngine The {@link ValidationEngine} instance to cache.
+     * @param pinned           Whether the engine shall never expire nor be evicted.
+     * @return The {@link String} id that will be associated with the stored {@link ValidationEngine}
+     */
+    public synchronized String cacheSession(@Nullable String sessionId,
+                                            final @NonNull ValidationEngine validationEngine,
+                                            final boolean pinned) {
+        if (sessionId == null) {
+            sessionId = UUID.randomUUID().toString();
+        }
+        final var cached = new CachedEngine(sessionId, validationEngine, pinned,
+                                            this.sizeEstimator.applyAsLong(validationEngine));
+        final CachedEngine previous = this.cachedSessions.put(sessionId, cached);
+        if (previous != null) {
+            this.cachedSessionIds.remove(previous.engine);
+        }
+        this.cachedSessionIds.put(validationEngine, sessionId);
+        log.debug("Cached engine {} (pinned: {}, estimated size: {} MB)", sessionId, pinned,
+                  cached.estimatedSize / (1024 * 1024));
+        this.evictIfNeeded();
         return sessionId;
     }
 
     @Override
-    public boolean sessionExists(String sessionId) {
-        return super.sessionExists(sessionId) || cachedSessionsNoTimeout.containsKey(sessionId);
+    public boolean sessionExists(final String sessionId) {
+        final CachedEngine cached = this.cachedSessions.get(sessionId);
+        return cached != null && !this.isExpired(cached, System.currentTimeMillis());
+    }
+
+    public String getSessionId(final ValidationEngine validationEngine) {
+        return this.cachedSessionIds.get(validationEngine);
+    }
+
+    @Override
+    public synchronized void cleanUp() {
+        this.removeExpiredSessions();
+    }
+
+    /**
+     * Returns a snapshot of the cache statistics.
+     */
+    public Statistics getStatistics() {
+        long estimatedSize = 0;
+        int pinned = 0;
+        for (final CachedEngine cached : this.cachedSessions.values()) {
+            estimatedSize += cached.estimatedSize;
+            if (cached.pinned) {
+                ++pinned;
+            }
+        }
+        return new Statistics(this.cachedSessions.size(), pinned, estimatedSize, this.hitCount.sum(),
+                              this.missCount.sum(), this.evictionCount.sum(), this.expirationCount.sum());
+    }
+
+    private boolean isExpired(final CachedEngine cached, final long now) {
+        return !cached.pinned && now - cached.created > this.timeToLiveMillis;
+    }
+
+    /**
+     * Removes the engines that are not pinned and have outlived their time to live.
+     */
+    private synchronized void removeExpiredSessions() {
+        final long now = System.currentTimeMillis();
+        for (final CachedEngine cached : this.cachedSessions.values()) {
+            if (this.isExpired(cached, now) && this.cachedSessions.remove(cached.sessionId, cached)) {
+                this.cachedSessionIds.remove(cached.engine);
+                this.expirationCount.increment();
+                log.info("Engine {} has expired and was removed from the cache", cached.sessionId);
+            }
+        }
+    }
+
+    /**
+     * Evicts engines that are not pinned, until the cache is within its limits.
+     */
+    private void evictIfNeeded() {
+        this.removeExpiredSessions();
+        while (this.isOverLimits()) {
+            final CachedEngine victim = this.findEvictionVictim();
+            if (victim == null) {
+                log.warn("The engine cache is over its limits, but only contains pinned engines");
+                return;
+            }
+            this.cachedSessions.remove(victim.sessionId, victim);
+            this.cachedSessionIds.remove(victim.engine);
+            this.evictionCount.increment();
+            log.info("Engine {} was evicted from the cache (estimated size: {} MB, hits: {})", victim.sessionId,
+                     victim.estimatedSize / (1024 * 1024), victim.hits.sum());
+        }
+    }
+
+    private boolean isOverLimits() {
+        if (this.maxEngines > 0 && this.cachedSessions.size() > this.maxEngines) {
+            return true;
+        }
+        if (this.maxSizeBytes > 0) {
+            long estimatedSize = 0;
+            for (final CachedEngine cached : this.cachedSessions.values()) {
+                estimatedSize += cached.estimatedSize;
+            }
+            return estimatedSize > this.maxSizeBytes;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the unpinned engine with the highest eviction score, or {@code null} if all engines are pinned.
+     */
+    private @Nullable CachedEngine findEvictionVictim() {
+        final long now = System.currentTimeMillis();
+        CachedEngine victim = null;
+        double victimScore = -1;
+        for (final CachedEngine cached : this.cachedSessions.values()) {
+            if (cached.pinned) {
+                continue;
+            }
+            // the size is offset by one, so that engines without a size estimation are still ordered
+            final double size = cached.estimatedSize + 1.0;
+            final double score = switch (this.evictionPolicy) {
+                case LRU -> (now - cached.lastAccess + 1.0) * size;
+                case LFU -> size / (cached.hits.sum() + 1.0);
+            };
+            if (score > victimScore) {
+                victim = cached;
+                victimScore = score;
+            }
+        }
+        return victim;
+    }
+
+    private static class CachedEngine {
+        private final String sessionId;
+        private final ValidationEngine engine;
+        private final boolean pinned;
+        private final long estimatedSize;
+        private final long created;
+        private final LongAdder hits = new LongAdder();
+        private volatile long lastAccess;
+
+        private CachedEngine(final String sessionId,
+                             final ValidationEngine engine,
+                             final boolean pinned,
+                             final long estimatedSize) {
+            this.sessionId = sessionId;
+            this.engine = engine;
+            this.pinned = pinned;
+            this.estimatedSize = estimatedSize;
+            this.created = System.currentTimeMillis();
+            this.lastAccess = this.created;
+        }
     }
 
-    public String getSessionId(ValidationEngine validationEngine) {
-        if (cachedSessionIdsNoTimeout.containsKey(validationEngine)) {
-            return cachedSessionIdsNoTimeout.get(validationEngine);
+    /**
+     * A snapshot of the engine cache statistics.
+     */
+    public static class Statistics {
+        private final int size;
+        private final int pinnedSize;
+        private final long estimatedSizeBytes;
+        private final long hitCount;
+        private final long missCount;
+        private final long evictionCount;
+        private final long expirationCount;
+
+        public Statistics(final int size,
+                          final int pinnedSize,
+                          final long estimatedSizeBytes,
+                          final long hitCount,
+                          final long missCount,
+                          final long evictionCount,
+                          final long expirationCount) {
+            this.size = size;
+            this.pinnedSize = pinnedSize;
+            this.estimatedSizeBytes = estimatedSizeBytes;
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.evictionCount = evictionCount;
+            this.expirationCount = expirationCount;
+        }
+
+        /**
+         * The number of cached engines.
+         */
+        public int getSize() {
+            return this.size;
         }
-        if (cachedSessionIds.containsKey(validationEngine)) {
-            return cachedSessionIds.get(validationEngine);
+
+        /**
+         * The number of cached engines that are pinned.
+         */
+        public int getPinnedSize() {
+            return this.pinnedSize;
         }
-        return null;
-   }
 
+        /**
+         * The sum of the estimated retained heap size of the cached engines.
+         */
+        public long getEstimatedSizeBytes() {
+            return this.estimatedSizeBytes;
+        }
+
+        public long getHitCount() {
+            return this.hitCount;
+        }
+
+        public long getMissCount() {
+            return this.missCount;
+        }
+
+        public long getEvictionCount() {
+            return this.evictionCount;
+        }
+
+        public long getExpirationCount() {
+            return this.expirationCount;
+        }
+
+        @Override
+        public String toString() {
+            return "EngineSessionCache.Statistics{" +
+                "size=" + size +
+                ", pinnedSize=" + pinnedSize +
+                ", estimatedSizeBytes=" + estimatedSizeBytes +
+                ", hitCount=" + hitCount +
+                ", missCount=" + missCount +
+                ", evictionCount=" + evictionCount +
+                ", expirationCount=" + expirationCount +
+                '}';
+        }
+    }
 }
@@ -2,6 +2,12 @@ package ch.ahdis.matchbox.util;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.ahdis.matchbox.CliContext;
 import ch.ahdis.matchbox.EngineLoggingService;
@@ -10,7 +16,9 @@ import ch.ahdis.matchbox.engine.exception.IgLoadException;
 import ch.ahdis.matchbox.engine.exception.MatchboxEngineCreationException;
 import ch.ahdis.matchbox.engine.exception.TerminologyServerException;
 
+import ch.ahdis.matchbox.packages.DecodedPackageCache;
 import ch.ahdis.matchbox.packages.IgLoaderFromJpaPackageCache;
+import ch.ahdis.matchbox.validation.ValidationResultCache;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
@@ -32,8 +40,11 @@ import ca.uhn.fhir.jpa.dao.data.INpmPackageVersionDao;
 import ca.uhn.fhir.jpa.dao.data.INpmPackageVersionResourceDao;
 import ca.uhn.fhir.jpa.model.entity.NpmPackageVersionResourceEntity;
 import ca.uhn.fhir.jpa.packages.IHapiPackageCacheManager;
+import ch.ahdis.matchbox.engine.FhirPathExpressionCache;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
 import ch.ahdis.matchbox.engine.MatchboxEngine.MatchboxEngineBuilder;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
+import ch.ahdis.matchbox.engine.PreparsedPackageStore;
 import ch.ahdis.matchbox.engine.ValidationPolicyAdvisor;
 
 
@@ -41,10 +52,36 @@ public class MatchboxEngineSupport {
 	
 	protected static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(MatchboxEngineSupport.class);
 
-	public static MatchboxEngine mainEngine = null;
-	private EngineSessionCache sessionCache;
-	
-	private boolean initialized = false;
+	/**
+	 * A rough estimation of the retained heap size of a conformance resource loaded in an engine context, used to
+	 * weight the engines in the cache.
+	 */
+	private static final long ESTIMATED_RESOURCE_SIZE = 32 * 1024;
+
+	public static volatile MatchboxEngine mainEngine = null;
+	private final EngineSessionCache sessionCache;
+
+	/**
+	 * The cache of the validation results, it is cleared when the engines are reloaded.
+	 */
+	private final ValidationResultCache validationResultCache;
+
+	/**
+	 * The lock held while the main engine is created or modified.
+	 */
+	private final Object mainEngineLock = new Object();
+
+	/**
+	 * The engines that are being created, by session id.
+	 */
+	private final Map<String, CompletableFuture<MatchboxEngine>> enginesInCreation = new ConcurrentHashMap<>();
+
+	private volatile boolean initialized = false;
+
+	/**
+	 * The executor of the package loading, see {@link #getPackageLoadingExecutor()}.
+	 */
+	private ExecutorService packageLoadingExecutor;
 
 	@Autowired
 	private DaoRegistry myDaoRegistry;
@@ -68,11 +105,23 @@ public class MatchboxEngineSupport {
 	@Autowired
 	private CliContext cliContext;
 
+	@Autowired
+	private PrecomputedExpansionStore precomputedExpansionStore;
+
+	@Autowired
+	private PreparsedPackageStore preparsedPackageStore;
+
+	@Autowired
+	private DecodedPackageCache decodedPackageCache;
+
 	private final MatchboxFhirContextProperties matchboxFhirContextProperties;
 
 	public MatchboxEngineSupport(final MatchboxFhirContextProperties matchboxFhirContextProperties) {
-		this.sessionCache = new EngineSessionCache();
 		this.matchboxFhirContextProperties = Objects.requireNonNull(matchboxFhirContextProperties);
+		this.sessionCache = new EngineSessionCache(matchboxFhirContextProperties.getEngineCache(),
+																 engine -> this.estimateRetainedSize((MatchboxEngine) engine));
+		this.validationResultCache = new ValidationResultCache(matchboxFhirContextProperties.getValidationResultCache());
+		FhirPathExpressionCache.getShared().setMaxEntries(matchboxFhirContextProperties.getExpressionCache().getMaxEntries());
 	}
 
 	public CliContext getClientContext() {
@@ -173,15 +222,7 @@ public class MatchboxEngineSupport {
 		final MatchboxEngine validator;
 		try { validator = new MatchboxEngine(engine); }
 		catch (final Exception e) { throw new MatchboxEngineCreationException(e); }
-		validator.setIgLoader(new IgLoaderFromJpaPackageCache(validator.getPcm(),
-																				validator.getContext(),
-																				validator.getVersion(),
-																				validator.isDebug(),
-																				this.myPackageCacheManager,
-																				this.myNpmPackageVersionDao,
-																				this.myDaoRegistry,
-																				this.myBinaryStorageSvc,
-																				this.myTxManager));
+		validator.setIgLoader(this.createIgLoader(validator));
 		if (ig != null) {
 			try {
 				validator.getIgLoader().loadIg(validator.getIgs(), validator.getBinaries(), ig, true);
@@ -215,8 +256,9 @@ public class MatchboxEngineSupport {
 	}
 			
 	/**
-	 * Returns a Matchbox engine for the specified canonical with cliClontext parameters. It is synchronized and waits
-	 * for the 'initialized' flag.
+	 * Returns a Matchbox engine for the specified canonical with cliClontext parameters. It waits for the
+	 * 'initialized' flag, but does not serialize the lookups: an engine that is already cached is returned without
+	 * locking, and the creation of an engine only blocks the requests for the same engine.
 	 *
 	 * @param canonical  URL to validate
 	 * @param cliContext cliContext parameters
@@ -225,10 +267,10 @@ public class MatchboxEngineSupport {
 	 * @return a Matchbox engine.
 	 * @throws MatchboxEngineCreationException if the engine cannot be created.
 	 */
-	public synchronized MatchboxEngine getMatchboxEngine(final @Nullable String canonical,
-																		  @Nullable CliContext cliContext,
-																		  final boolean create,
-																		  final boolean reload) throws MatchboxEngineCreationException {
+	public MatchboxEngine getMatchboxEngine(final @Nullable String canonical,
+														 @Nullable CliContext cliContext,
+														 final boolean create,
+														 final boolean reload) throws MatchboxEngineCreationException {
 		while (!this.isInitialized()) {
 			log.info("ValidationEngine is not yet initialized, waiting for initialization of packages");
 			try {
@@ -242,9 +284,8 @@ public class MatchboxEngineSupport {
 	}
 
 	/**
-	 * Returns a Matchbox engine for the specified canonical with cliClontext parameters. This method is not
-	 * synchronized and does not wait for the 'initialized' flag. It should be used only for internal calls from the
-	 * IG Provider load-all method.
+	 * Returns a Matchbox engine for the specified canonical with cliClontext parameters. This method does not wait for
+	 * the 'initialized' flag. It should be used only for internal calls from the IG Provider load-all method.
 	 *
 	 * @param canonical  URL to validate
 	 * @param cliContext cliContext parameters
@@ -258,99 +299,21 @@ public class MatchboxEngineSupport {
 																			 final boolean create,
 																			 final boolean reload) throws MatchboxEngineCreationException {
 
-		if (reload) {
-			mainEngine = null;
-			this.setInitialized(false);
-		}
-		if (mainEngine == null) {
-			cliContext = new CliContext(this.cliContext);
-			if (cliContext.getFhirVersion().equals("4.0.1")) {
-				log.debug("Preconfigure FHIR R4");
-			    mainEngine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR4();
-				try {
-					mainEngine.setIgLoader(new IgLoaderFromJpaPackageCache(mainEngine.getPcm(),
-																			mainEngine.getContext(),
-																			mainEngine.getVersion(),
-																			mainEngine.isDebug(),
-																			this.myPackageCacheManager,
-																			this.myNpmPackageVersionDao,
-																			this.myDaoRegistry,
-																			this.myBinaryStorageSvc,
-																			this.myTxManager));
-					log.debug("Load R5 Specials");
-					final var r5e = new R5ExtensionsLoader(mainEngine.getPcm(), mainEngine.getContext());
-					r5e.load();
-					log.debug("Load R5 Specials done");
-					r5e.loadR5SpecialTypes(List.of("ActorDefinition",
-															 "Requirements",
-															 "SubscriptionTopic",
-															 "TestPlan"));
-				} catch (final Exception e) {
-					throw new IgLoadException("Failed to load R5 specials", e);
+		// the main engine is read once, the readers don't take the lock and it may be replaced concurrently by a reload
+		MatchboxEngine main = mainEngine;
+		if (reload || main == null) {
+			synchronized (this.mainEngineLock) {
+				if (reload) {
+					this.setInitialized(false);
+					this.validationResultCache.clear();
 				}
-				log.debug("Load R5 Specials types");
-				this.configureValidationEngine(mainEngine, cliContext);
-			} else if (cliContext.getFhirVersion().equals("4.3.0")) {
-				log.debug("Preconfigure FHIR R4B");
-			    mainEngine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR4B();
-				mainEngine.setIgLoader(new IgLoaderFromJpaPackageCache(mainEngine.getPcm(),
-				mainEngine.getContext(),
-				mainEngine.getVersion(),
-				mainEngine.isDebug(),
-				this.myPackageCacheManager,
-				this.myNpmPackageVersionDao,
-				this.myDaoRegistry,
-				this.myBinaryStorageSvc,
-				this.myTxManager));
-				this.configureValidationEngine(mainEngine, cliContext);
-			} else if (cliContext.getFhirVersion().equals("5.0.0")) {
-				log.debug("Preconfigure FHIR R5");
-			    mainEngine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR5();
-				mainEngine.setIgLoader(new IgLoaderFromJpaPackageCache(mainEngine.getPcm(),
-				mainEngine.getContext(),
-				mainEngine.getVersion(),
-				mainEngine.isDebug(),
-				this.myPackageCacheManager,
-				this.myNpmPackageVersionDao,
-				this.myDaoRegistry,
-				this.myBinaryStorageSvc,
-				this.myTxManager));
-				this.configureValidationEngine(mainEngine, cliContext);
-			}
-			cliContext.setIg(this.getFhirCorePackage(cliContext));
-
-			log.info("Cached default engine forever {} with parameters {}",
-						(cliContext.getIg() != null ? "for " + cliContext.getIg() : ""),
-						cliContext.hashCode());
-			this.sessionCache.cacheSessionForEver("" + cliContext.hashCode(), mainEngine);
-			cliContext.setIg(null); // otherwise we get for reloads the pacakge name instead a new one later  set ahdis/matchbox #144
-
-			if (cliContext.getIgsPreloaded() != null) {
-				for (final String ig : cliContext.getIgsPreloaded()) {
-					if (cliContext.getOnlyOneEngine()) {
-						try {
-							mainEngine.getIgLoader().loadIg(mainEngine.getIgs(), mainEngine.getBinaries(), ig, true);
-						} catch (final Exception e) {
-							log.error("Error generating matchbox engine due to igLoader", e);
-						}
-					} else {
-						CliContext cliContextCp = new CliContext(this.cliContext);
-						cliContextCp.setIg(ig); // set the ig in the cliContext that hashCode will be
-						if (this.sessionCache.fetchSessionValidatorEngine("" + cliContextCp.hashCode()) == null) {
-							MatchboxEngine created = this.createMatchboxEngine(mainEngine, ig, cliContextCp);
-							this.sessionCache.cacheSessionForEver("" + cliContextCp.hashCode(), created);
-							log.info("Cached validate engine forever {} with parameters {}",
-										(ig != null ? "for " + ig : ""),
-										cliContextCp.hashCode());
-						}
-					}
+				main = mainEngine;
+				if (reload || main == null) {
+					// the new main engine is fully built before it replaces the previous one, in a single assignment
+					main = this.createMainEngine();
+					mainEngine = main;
 				}
 			}
-
-			if (cliContext.getOnlyOneEngine()) {
-				log.warn(
-					"Only one engine will be provided with the preloaded ig's mentioned in application.yaml, cannot handle multiple versions of ig's, DEVELOPMENT ONLY MODE");
-			}
 		}
 
 		if (cliContext == null) {
@@ -358,7 +321,7 @@ public class MatchboxEngineSupport {
 		}
 
 		if (cliContext.getIg() == null) {
-			if ("default".equals(canonical) || canonical == null || mainEngine.getCanonicalResource(canonical, cliContext.getFhirVersion()) != null) {
+			if ("default".equals(canonical) || canonical == null || main.getCanonicalResource(canonical, cliContext.getFhirVersion()) != null) {
 				cliContext.setIg(this.getFhirCorePackage(cliContext));
 			} else {
 				NpmPackageVersionResourceEntity npm = loadPackageAssetByUrl(canonical,
@@ -380,18 +343,21 @@ public class MatchboxEngineSupport {
 
 		if (cliContext.getOnlyOneEngine()) {
 			if (create && cliContext.getIg() != null) {
-				try {
-					mainEngine.getIgLoader().loadIg(mainEngine.getIgs(), mainEngine.getBinaries(), cliContext.getIg(), true);
-				} catch (final Exception e) {
-					log.error("Error generating matchbox engine due to igLoader", e);
+				// the single engine is modified, this can't be done concurrently
+				synchronized (this.mainEngineLock) {
+					try {
+						main.getIgLoader().loadIg(main.getIgs(), main.getBinaries(), cliContext.getIg(), true);
+					} catch (final Exception e) {
+						log.error("Error generating matchbox engine due to igLoader", e);
+					}
 				}
 			}
-			return mainEngine;
+			return main;
 		}
 
-		// check if we have already a validator in cache for that
-		final var matchboxEngine =
-			(MatchboxEngine) this.sessionCache.fetchSessionValidatorEngine("" + cliContext.hashCode());
+		// check if we have already a validator in cache for that, this doesn't lock
+		final String sessionId = "" + cliContext.hashCode();
+		final var matchboxEngine = (MatchboxEngine) this.sessionCache.fetchSessionValidatorEngine(sessionId);
 		if (matchboxEngine != null && !reload) {
 			log.debug("Using cached validate engine {} with parameters {}",
 						(cliContext.getIg() != null ? "for " + cliContext.getIg() : ""),
@@ -399,48 +365,243 @@ public class MatchboxEngineSupport {
 			return matchboxEngine;
 		}
 
-		// create a new validator and cache it temporarily
-		if (create && cliContext.getIg() != null) {
-			log.debug("Creating new cached validate engine {} with parameters {}",
-						 (cliContext.getIg() != null ? "for " + cliContext.getIg() : ""),
-						 cliContext.hashCode());
-			MatchboxEngine baseEngine = mainEngine;
-			if (!cliContext.getFhirVersion().equals(baseEngine.getVersion())) {
-				log.debug("Creating base engine for {} with parameters and fhir Version {}",
-						(cliContext.getIg() != null ? "for " + cliContext.getIg() : ""),
-						cliContext.getFhirVersion());
-				try {
-					switch (cliContext.getFhirVersion()) {
-						case "5.0.0":
-							baseEngine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR5();
-							break;
-						case "4.3.0":
-							baseEngine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR4B();
-							break;
-						case "4.0.1":
-							baseEngine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR4();
-							break;
-						default:
-							log.error("FHIR version not yet supported in mixed mode, needs to be added for version "
-									+ cliContext.getFhirVersion());
-							return null;
+		if (!create || cliContext.getIg() == null) {
+			return null;
+		}
+
+		// create a new validator and cache it temporarily. Only one thread creates an engine for a given session id,
+		// the others wait for it
+		final var creation = new CompletableFuture<MatchboxEngine>();
+		final var pendingCreation = this.enginesInCreation.putIfAbsent(sessionId, creation);
+		if (pendingCreation != null) {
+			log.debug("Waiting for the creation of the validate engine {} with parameters {}",
+						 "for " + cliContext.getIg(), cliContext.hashCode());
+			return this.awaitEngineCreation(pendingCreation);
+		}
+		try {
+			MatchboxEngine created = (MatchboxEngine) this.sessionCache.fetchSessionValidatorEngine(sessionId);
+			if (created == null || reload) {
+				created = this.createAndCacheMatchboxEngine(main, cliContext);
+			}
+			creation.complete(created);
+			return created;
+		} catch (final Throwable e) {
+			// the waiters are released whatever the failure is, they would otherwise block forever
+			creation.completeExceptionally(e);
+			throw e;
+		} finally {
+			this.enginesInCreation.remove(sessionId, creation);
+		}
+	}
+
+	/**
+	 * Creates the main engine, the default engine and the engines of the preloaded IGs. It shall be called while
+	 * holding the main engine lock; the created engine is not published, the caller replaces the main engine with it.
+	 *
+	 * @return the created main engine.
+	 */
+	private MatchboxEngine createMainEngine() throws MatchboxEngineCreationException {
+		final CliContext cliContext = new CliContext(this.cliContext);
+		MatchboxEngine engine = null;
+		if (cliContext.getFhirVersion().equals("4.0.1")) {
+			log.debug("Preconfigure FHIR R4");
+			engine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR4();
+			try {
+				engine.setIgLoader(this.createIgLoader(engine));
+				log.debug("Load R5 Specials");
+				final var r5e = new R5ExtensionsLoader(engine.getPcm(), engine.getContext());
+				r5e.load();
+				log.debug("Load R5 Specials done");
+				r5e.loadR5SpecialTypes(List.of("ActorDefinition",
+														 "Requirements",
+														 "SubscriptionTopic",
+														 "TestPlan"));
+			} catch (final Exception e) {
+				throw new IgLoadException("Failed to load R5 specials", e);
+			}
+			log.debug("Load R5 Specials types");
+			this.configureValidationEngine(engine, cliContext);
+		} else if (cliContext.getFhirVersion().equals("4.3.0")) {
+			log.debug("Preconfigure FHIR R4B");
+			engine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR4B();
+			engine.setIgLoader(this.createIgLoader(engine));
+			this.configureValidationEngine(engine, cliContext);
+		} else if (cliContext.getFhirVersion().equals("5.0.0")) {
+			log.debug("Preconfigure FHIR R5");
+			engine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR5();
+			engine.setIgLoader(this.createIgLoader(engine));
+			this.configureValidationEngine(engine, cliContext);
+		}
+		cliContext.setIg(this.getFhirCorePackage(cliContext));
+
+		log.info("Cached default engine forever {} with parameters {}",
+					(cliContext.getIg() != null ? "for " + cliContext.getIg() : ""),
+					cliContext.hashCode());
+		this.sessionCache.cacheSessionForEver("" + cliContext.hashCode(), engine);
+		cliContext.setIg(null); // otherwise we get for reloads the pacakge name instead a new one later  set ahdis/matchbox #144
+
+		if (cliContext.getIgsPreloaded() != null) {
+			for (final String ig : cliContext.getIgsPreloaded()) {
+				if (cliContext.getOnlyOneEngine()) {
+					try {
+						engine.getIgLoader().loadIg(engine.getIgs(), engine.getBinaries(), ig, true);
+					} catch (final Exception e) {
+						log.error("Error generating matchbox engine due to igLoader", e);
+					}
+				} else {
+					CliContext cliContextCp = new CliContext(this.cliContext);
+					cliContextCp.setIg(ig); // set the ig in the cliContext that hashCode will be
+					if (this.sessionCache.fetchSessionValidatorEngine("" + cliContextCp.hashCode()) == null) {
+						MatchboxEngine created = this.createMatchboxEngine(engine, ig, cliContextCp);
+						this.sessionCache.cacheSessionForEver("" + cliContextCp.hashCode(), created);
+						log.info("Cached validate engine forever {} with parameters {}",
+									(ig != null ? "for " + ig : ""),
+									cliContextCp.hashCode());
 					}
-				} catch (final Exception e) {
-					log.error("Error generating matchbox engine", e);
-					return null;
 				}
 			}
-			final var created = this.createMatchboxEngine(baseEngine, cliContext.getIg(), cliContext);
-			this.sessionCache.cacheSession("" + cliContext.hashCode(), created);
-			return created;
 		}
-		return null;
+
+		if (cliContext.getOnlyOneEngine()) {
+			log.warn(
+				"Only one engine will be provided with the preloaded ig's mentioned in application.yaml, cannot handle multiple versions of ig's, DEVELOPMENT ONLY MODE");
+		}
+		return engine;
+	}
+
+	/**
+	 * Creates an engine for the IG of the cliContext and caches it temporarily.
+	 *
+	 * @return the created engine, or {@code null} if the FHIR version is not supported.
+	 */
+	private @Nullable MatchboxEngine createAndCacheMatchboxEngine(final @NonNull MatchboxEngine main,
+																					  final @NonNull CliContext cliContext) throws MatchboxEngineCreationException {
+		log.debug("Creating new cached validate engine {} with parameters {}",
+					 (cliContext.getIg() != null ? "for " + cliContext.getIg() : ""),
+					 cliContext.hashCode());
+		MatchboxEngine baseEngine = main;
+		if (!cliContext.getFhirVersion().equals(baseEngine.getVersion())) {
+			log.debug("Creating base engine for {} with parameters and fhir Version {}",
+					(cliContext.getIg() != null ? "for " + cliContext.getIg() : ""),
+					cliContext.getFhirVersion());
+			try {
+				switch (cliContext.getFhirVersion()) {
+					case "5.0.0":
+						baseEngine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR5();
+						break;
+					case "4.3.0":
+						baseEngine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR4B();
+						break;
+					case "4.0.1":
+						baseEngine = new MatchboxEngineBuilder().withXVersion(cliContext.getXVersion()).getEngineR4();
+						break;
+					default:
+						log.error("FHIR version not yet supported in mixed mode, needs to be added for version "
+								+ cliContext.getFhirVersion());
+						return null;
+				}
+			} catch (final Exception e) {
+				log.error("Error generating matchbox engine", e);
+				return null;
+			}
+		}
+		final var created = this.createMatchboxEngine(baseEngine, cliContext.getIg(), cliContext);
+		final boolean pinned = this.matchboxFhirContextProperties.getEngineCache().isPinned(cliContext.getIg());
+		this.sessionCache.cacheSession("" + cliContext.hashCode(), created, pinned);
+		return created;
+	}
+
+	/**
+	 * Waits for an engine that is being created by another thread.
+	 */
+	private @Nullable MatchboxEngine awaitEngineCreation(final CompletableFuture<MatchboxEngine> creation) throws MatchboxEngineCreationException {
+		try {
+			return creation.join();
+		} catch (final CompletionException e) {
+			if (e.getCause() instanceof final MatchboxEngineCreationException creationException) {
+				throw creationException;
+			}
+			throw new MatchboxEngineCreationException(e.getCause());
+		}
 	}
 
 	public String getSessionId(final MatchboxEngine engine) {
 		return this.sessionCache.getSessionId(engine);
 	}
 
+	/**
+	 * Returns the statistics of the engine cache (size, hits, misses, evictions and expirations).
+	 */
+	public EngineSessionCache.Statistics getEngineCacheStatistics() {
+		return this.sessionCache.getStatistics();
+	}
+
+	/**
+	 * Returns the cache of the validation results.
+	 */
+	public ValidationResultCache getValidationResultCache() {
+		return this.validationResultCache;
+	}
+
+	/**
+	 * Estimates the retained heap size of an engine. The engines share the FHIR core resources and the binaries of the
+	 * main engine, so only the resources and the binaries that have been loaded on top of them are counted.
+	 */
+	private long estimateRetainedSize(final MatchboxEngine engine) {
+		final MatchboxEngine main = mainEngine;
+		final boolean shared = main != null && main != engine;
+		int resources = engine.getContext().countAllCaches();
+		if (shared) {
+			resources = Math.max(0, resources - main.getContext().countAllCaches());
+		}
+		long binaries = 0;
+		for (final String key : engine.getContext().getBinaryKeysAsSet()) {
+			final byte[] binary = engine.getContext().getBinaryForKey(key);
+			if (binary == null || (shared && main.getContext().getBinaryForKey(key) == binary)) {
+				continue;
+			}
+			binaries += binary.length;
+		}
+		return resources * ESTIMATED_RESOURCE_SIZE + binaries;
+	}
+
+	/**
+	 * Creates the loader of the packages of an engine from the JPA package cache.
+	 */
+	private IgLoaderFromJpaPackageCache createIgLoader(final MatchboxEngine engine) {
+		return new IgLoaderFromJpaPackageCache(engine.getPcm(),
+															engine.getContext(),
+															engine.getVersion(),
+															engine.isDebug(),
+															this.myPackageCacheManager,
+															this.myNpmPackageVersionDao,
+															this.myDaoRegistry,
+															this.myBinaryStorageSvc,
+															this.myTxManager,
+															this.matchboxFhirContextProperties.getPackageStore().isEnabled()
+																? this.preparsedPackageStore
+																: null,
+															this.decodedPackageCache,
+															this.getPackageLoadingExecutor());
+	}
+
+	/**
+	 * Returns the executor of the package loading, it is created on first use.
+	 */
+	private synchronized ExecutorService getPackageLoadingExecutor() {
+		if (this.packageLoadingExecutor == null) {
+			final var threadCounter = new AtomicInteger();
+			this.packageLoadingExecutor = Executors.newFixedThreadPool(
+				this.matchboxFhirContextProperties.getPackageLoadingThreads(),
+				runnable -> {
+					final var thread = new Thread(runnable, "matchbox-package-loading-" + threadCounter.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+		}
+		return this.packageLoadingExecutor;
+	}
+
 	public boolean isInitialized() {
 		return initialized;
 	}
@@ -512,6 +673,10 @@ public class MatchboxEngineSupport {
 			throw new MatchboxEngineCreationException("httpReadOnly and autoInstallMissingIgs are mutually exclusive");
 		}
 
+		if (this.matchboxFhirContextProperties.getExpansionStore().isEnabled()) {
+			validator.getContext().setPrecomputedExpansions(this.precomputedExpansionStore::expand);
+		}
+
 		validator.setDebug(cli.isDoDebug());
 		validator.getContext().setLogger(new EngineLoggingService());
 
@@ -542,6 +707,7 @@ public class MatchboxEngineSupport {
 		validator.setNoInvariantChecks(cli.isNoInvariants());
 		validator.setWantInvariantInMessage(cli.isWantInvariantsInMessages());
 		validator.setSecurityChecks(cli.isSecurityChecks());
+		validator.setParallelBundleValidation(cli.isParallelBundleValidation());
 		validator.setCrumbTrails(cli.isCrumbTrails());
 		validator.setShowMessageIds(cliContext.isShowMessageIds());
 		validator.setForPublication(cli.isForPublication());
@@ -10,6 +10,11 @@ import java.util.*;
 import ca.uhn.fhir.jpa.binary.api.IBinaryStorageSvc;
 import ca.uhn.fhir.jpa.dao.data.INpmPackageVersionResourceDao;
 import ca.uhn.fhir.jpa.model.entity.NpmPackageVersionResourceEntity;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
+import ch.ahdis.matchbox.engine.PreparsedPackageStore;
+import ch.ahdis.matchbox.packages.DecodedPackageCache;
+import ch.ahdis.matchbox.terminology.ValueSetExpansionPrecomputer;
 import jakarta.annotation.PostConstruct;
 
 import org.hl7.fhir.instance.model.api.*;
@@ -75,6 +80,12 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 			.unmodifiableList(Lists.newArrayList("NamingSystem", "CapabilityStatement", "CodeSystem", "ValueSet", "StructureDefinition", "Measure", "Library",
 					"ConceptMap", "SearchParameter", "StructureMap", "Questionnaire", "OperationDefinition","ActorDefinition","Requirements"));
 
+	// MODIFIED
+	/**
+	 * The number of StructureDefinition/StructureMap entities whose title is updated in a transaction.
+	 */
+	private static final int TITLE_UPDATE_PAGE_SIZE = 500;
+
 	boolean enabled = true;
 	@Autowired
 	private FhirContext myFhirContext;
@@ -93,6 +104,14 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 	private PartitionSettings myPartitionSettings;
 	@Autowired
 	private IBinaryStorageSvc myBinaryStorageSvc;
+	@Autowired
+	private MatchboxFhirContextProperties myMatchboxFhirContextProperties;
+	@Autowired
+	private PrecomputedExpansionStore myPrecomputedExpansionStore;
+	@Autowired
+	private PreparsedPackageStore myPreparsedPackageStore;
+	@Autowired
+	private DecodedPackageCache myDecodedPackageCache;
 
 	/**
 	 * Constructor
@@ -118,6 +137,14 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 			enabled = false;
 		}
 		}
+		// MODIFIED: the titles of the packages installed by an older version or without this installer are set once
+		if (enabled) {
+			try {
+				this.updateUntitledTitles();
+			} catch (final RuntimeException e) {
+				ourLog.error("Unable to update the StructureDefinition/StructureMap titles", e);
+			}
+		}
 	}
 
 	// MODIFIED: added
@@ -132,6 +159,8 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 		if (exists) {
 			ourLog.info("Remove Package {}#{} because it is a package based on an external url",
 					theInstallationSpec.getName(), theInstallationSpec.getVersion());
+			// MODIFIED: the precomputed expansions and pre-parsed resources of the package are removed too
+			removeDerivedPackageData(theInstallationSpec.getName(), theInstallationSpec.getVersion());
 			return myPackageCacheManager.uninstallPackage(theInstallationSpec.getName(), theInstallationSpec.getVersion());
 		}
 		return null;
@@ -162,6 +191,8 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 		theInstallationSpec.addDependencyExclude("hl7.fhir.uv.extensions.r5"); 
 		PackageInstallOutcomeJson retVal = new PackageInstallOutcomeJson();
 		if (enabled) {
+			// MODIFIED: the installed package and its dependencies
+			final List<NpmPackage> installedPackages = new ArrayList<>();
 			try {
 
 				boolean exists = new TransactionTemplate(myTxManager).execute(tx -> {
@@ -176,6 +207,7 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 					if (theInstallationSpec.getPackageUrl() != null && theInstallationSpec.getPackageUrl().startsWith("http") && (theInstallationSpec.getPackageUrl().contains("localhost") || theInstallationSpec.getPackageUrl().contains("build.fhir.org"))){
 						ourLog.info("Remove Package {}#{} because it is a ci-build package or coming form localhost",
 								theInstallationSpec.getName(), theInstallationSpec.getVersion());
+						removeDerivedPackageData(theInstallationSpec.getName(), theInstallationSpec.getVersion());
 						myPackageCacheManager.uninstallPackage(theInstallationSpec.getName(), theInstallationSpec.getVersion());
 					} else {
 						// Abort loading, the package is already installed
@@ -195,10 +227,22 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 				}
 				retVal.getMessage().addAll(JpaPackageCache.getProcessingMessages(npmPackage));
 
+				installedPackages.add(npmPackage);
 //				if (theInstallationSpec.isFetchDependencies()) {
-					fetchAndInstallDependencies(npmPackage, theInstallationSpec, retVal);
+					fetchAndInstallDependencies(npmPackage, theInstallationSpec, retVal, installedPackages);
 //				}
 
+				// MODIFIED: the value sets of the package and its dependencies are expanded in advance
+				if (myMatchboxFhirContextProperties.getExpansionStore().isEnabled()) {
+					ourLog.info("Precomputing the value set expansions of {}#{}", npmPackage.id(), npmPackage.version());
+					try {
+						new ValueSetExpansionPrecomputer(myFhirContext, myPrecomputedExpansionStore).precompute(installedPackages);
+					} catch (final RuntimeException e) {
+						ourLog.error("Unable to precompute the value set expansions of {}#{}", npmPackage.id(),
+										 npmPackage.version(), e);
+					}
+				}
+
 
 			} catch (IOException e) {
 				throw new ImplementationGuideInstallationException(
@@ -208,45 +252,99 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 
 			// We have installed at least one new package, let's save the StructureDefinition/StructureMap titles in the database
 			ourLog.debug("Updating StructureDefinition/StructureMap titles...");
-			final var parserR4 = new org.hl7.fhir.r4.formats.JsonParser();
-			final var parserR4B = new org.hl7.fhir.r4b.formats.JsonParser();
-			final var parserR5 = new org.hl7.fhir.r5.formats.JsonParser();
-			new TransactionTemplate(this.myTxManager).execute(tx -> {
-				final var page = PageRequest.of(0, 2147483646);
-				this.myPackageVersionResourceDao.findByResourceType(page, "StructureDefinition")
-					.forEach(npmPackageVersionResourceEntity -> {
-						try {
-							if (npmPackageVersionResourceEntity.getFilename() != null && !npmPackageVersionResourceEntity.getFilename().endsWith(".json")) {
-								// The filename has already been modified
-								return;
-							}
-							this.updateStructureDefinitionEntity(npmPackageVersionResourceEntity, parserR4, parserR4B, parserR5);
-							this.myPackageVersionResourceDao.save(npmPackageVersionResourceEntity);
-						} catch (final IOException e) {
-							ourLog.error("Unable to extract the StructureDefinition title", e);
-						}
-				});
-				this.myPackageVersionResourceDao.findByResourceType(page, "StructureMap")
-					.forEach(npmPackageVersionResourceEntity -> {
-						try {
-							if (npmPackageVersionResourceEntity.getFilename() != null && !npmPackageVersionResourceEntity.getFilename().endsWith(".json")) {
-								// The filename has already been modified
-								return;
-							}
-							this.updateStructureMapEntity(npmPackageVersionResourceEntity, parserR4, parserR4B, parserR5);
-							this.myPackageVersionResourceDao.save(npmPackageVersionResourceEntity);
-						} catch (final IOException e) {
-							ourLog.error("Unable to extract the StructureMap title", e);
-						}
-					});
-				return null;
-			});
+			this.updateTitles(installedPackages);
 			ourLog.debug("Updating StructureDefinition/StructureMap titles... Done");
 		}
 
 		return retVal;
 	}
 
+	// MODIFIED: only the resources of the installed packages are updated, in pages
+	/**
+	 * Saves the StructureDefinition/StructureMap titles of the installed packages in the database. The entities of each
+	 * package are read in pages of {@link #TITLE_UPDATE_PAGE_SIZE}, each page is updated in its own transaction and
+	 * saved in a batch, so that the time of an installation depends on the size of the package, not of the database.
+	 */
+	void updateTitles(final List<NpmPackage> thePackages) {
+		final var parserR4 = new org.hl7.fhir.r4.formats.JsonParser();
+		final var parserR4B = new org.hl7.fhir.r4b.formats.JsonParser();
+		final var parserR5 = new org.hl7.fhir.r5.formats.JsonParser();
+		for (final String resourceType : List.of("StructureDefinition", "StructureMap")) {
+			for (final NpmPackage npmPackage : thePackages) {
+				boolean hasNext = true;
+				for (int page = 0; hasNext; ++page) {
+					final var pageRequest = PageRequest.of(page, TITLE_UPDATE_PAGE_SIZE);
+					hasNext = Boolean.TRUE.equals(new TransactionTemplate(this.myTxManager).execute(tx -> {
+						final var slice = this.myPackageVersionResourceDao.findByResourceTypeByPackageVersion(pageRequest,
+																																		resourceType,
+																																		npmPackage.name(),
+																																		npmPackage.version());
+						this.updateTitles(slice.getContent(), resourceType, parserR4, parserR4B, parserR5);
+						return slice.hasNext();
+					}));
+				}
+			}
+		}
+	}
+
+	// MODIFIED: added
+	/**
+	 * Saves the titles of the StructureDefinition/StructureMap entities that are still without title, e.g. those of
+	 * the packages that have been installed by an older version or without this installer. Only their ids are queried,
+	 * the entities are then updated in pages. It runs once, when the server starts: every entity it reads gets a title,
+	 * or its canonical URL if it has none, so that it isn't read again.
+	 */
+	void updateUntitledTitles() {
+		final var parserR4 = new org.hl7.fhir.r4.formats.JsonParser();
+		final var parserR4B = new org.hl7.fhir.r4b.formats.JsonParser();
+		final var parserR5 = new org.hl7.fhir.r5.formats.JsonParser();
+		for (final String resourceType : List.of("StructureDefinition", "StructureMap")) {
+			final List<Long> untitledIds = new TransactionTemplate(this.myTxManager)
+				.execute(tx -> this.myPackageVersionResourceDao.findUntitledIdsByResourceType(resourceType));
+			if (untitledIds == null) {
+				continue;
+			}
+			for (int from = 0; from < untitledIds.size(); from += TITLE_UPDATE_PAGE_SIZE) {
+				final List<Long> pageIds = untitledIds.subList(from, Math.min(untitledIds.size(),
+																								  from + TITLE_UPDATE_PAGE_SIZE));
+				new TransactionTemplate(this.myTxManager).executeWithoutResult(
+					tx -> this.updateTitles(this.myPackageVersionResourceDao.findAllById(pageIds), resourceType, parserR4,
+													parserR4B, parserR5));
+			}
+		}
+	}
+
+	/**
+	 * Updates the titles of a page of StructureDefinition/StructureMap entities, and saves them in a batch.
+	 */
+	private void updateTitles(final List<NpmPackageVersionResourceEntity> theEntities,
+									  final String resourceType,
+									  final org.hl7.fhir.r4.formats.JsonParser parserR4,
+									  final org.hl7.fhir.r4b.formats.JsonParser parserR4B,
+									  final org.hl7.fhir.r5.formats.JsonParser parserR5) {
+		final List<NpmPackageVersionResourceEntity> updated = new ArrayList<>(theEntities.size());
+		for (final var npmPackageVersionResourceEntity : theEntities) {
+			if (npmPackageVersionResourceEntity.getFilename() != null && !npmPackageVersionResourceEntity.getFilename().endsWith(".json")) {
+				// The filename has already been modified
+				continue;
+			}
+			try {
+				if ("StructureDefinition".equals(resourceType)) {
+					this.updateStructureDefinitionEntity(npmPackageVersionResourceEntity, parserR4, parserR4B, parserR5);
+				} else {
+					this.updateStructureMapEntity(npmPackageVersionResourceEntity, parserR4, parserR4B, parserR5);
+				}
+				updated.add(npmPackageVersionResourceEntity);
+			} catch (final IOException | RuntimeException e) {
+				ourLog.error("Unable to extract the {} title", resourceType, e);
+				// the entity is not read again
+				npmPackageVersionResourceEntity.setFilename(getDefaultTitle(npmPackageVersionResourceEntity));
+				updated.add(npmPackageVersionResourceEntity);
+			}
+		}
+		this.myPackageVersionResourceDao.saveAll(updated);
+	}
+
 	/**
 	 * Updates the NpmPackageVersionResourceEntity of a StructureDefinition:
 	 * <ol>
@@ -323,7 +421,7 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 		};
 
 		// Change the filename for the StructureDefinition title
-		npmPackageVersionResourceEntity.setFilename(title);
+		npmPackageVersionResourceEntity.setFilename(title != null ? title : getDefaultTitle(npmPackageVersionResourceEntity));
 	}
 
 	/**
@@ -380,10 +478,20 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 		};
 
 		// Change the filename for the StructureDefinition title
-		npmPackageVersionResourceEntity.setFilename(title);
+		npmPackageVersionResourceEntity.setFilename(title != null ? title : getDefaultTitle(npmPackageVersionResourceEntity));
 	}
 
-	private void fetchAndInstallDependencies(NpmPackage npmPackage, PackageInstallationSpec theInstallationSpec, PackageInstallOutcomeJson theOutcome) throws ImplementationGuideInstallationException {
+	// MODIFIED: added
+	/**
+	 * Returns the title of an entity whose resource has neither title nor name, or can't be parsed. It is not null and
+	 * doesn't end with '.json', so that the entity is not considered untitled anymore.
+	 */
+	private static String getDefaultTitle(final NpmPackageVersionResourceEntity theEntity) {
+		return defaultString(theEntity.getCanonicalUrl());
+	}
+
+	// MODIFIED: the dependencies are added to theDependencies
+	private void fetchAndInstallDependencies(NpmPackage npmPackage, PackageInstallationSpec theInstallationSpec, PackageInstallOutcomeJson theOutcome, List<NpmPackage> theDependencies) throws ImplementationGuideInstallationException {
 		if (npmPackage.getNpm().has("dependencies")) {
 			JsonObject dependencies = npmPackage.getNpm().get("dependencies").asJsonObject();
 			List<String> igs = dependencies.getNames();
@@ -406,9 +514,12 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 
 					// resolve in local cache or on packages.fhir.org
 					NpmPackage dependency = myPackageCacheManager.loadPackage(ig, ver);
+					if (dependency != null && theDependencies.stream().noneMatch(pkg -> pkg.name().equals(dependency.name()) && pkg.version().equals(dependency.version()))) {
+						theDependencies.add(dependency);
+					}
 					// recursive call to install dependencies of a package before
 					// installing the package
-					fetchAndInstallDependencies(dependency, theInstallationSpec, theOutcome);
+					fetchAndInstallDependencies(dependency, theInstallationSpec, theOutcome, theDependencies);
 
 				} catch (IOException e) {
 					throw new ImplementationGuideInstallationException(Msg.code(1287) + String.format(
@@ -422,6 +533,21 @@ public class MatchboxPackageInstallerImpl implements IPackageInstallerSvc {
 	 * ============================= Utility methods ===============================
 	 */
 
+	// MODIFIED: added
+	private void removeDerivedPackageData(final String packageId, final String packageVersion) {
+		myDecodedPackageCache.remove(packageId, packageVersion);
+		try {
+			myPrecomputedExpansionStore.remove(packageId, packageVersion);
+		} catch (final IOException e) {
+			ourLog.warn("Unable to remove the precomputed expansions of {}#{}", packageId, packageVersion, e);
+		}
+		try {
+			myPreparsedPackageStore.remove(packageId, packageVersion);
+		} catch (final IOException e) {
+			ourLog.warn("Unable to remove the pre-parsed resources of {}#{}", packageId, packageVersion, e);
+		}
+	}
+
 	// MODIFIED: This method has been reimplemented: also add example folder 
 	private List<IBaseResource> parseResourcesOfType(String type, NpmPackage pkg) {
 		if (!pkg.getFolders().containsKey("package")) {
@@ -0,0 +1,217 @@
+package ch.ahdis.matchbox.validation;
+
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import org.checkerframework.checker.nullness.qual.NonNull;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+
+/**
+ * A streaming reader of the entry resources of a Bundle, in JSON or XML. The Bundle is not materialized: each entry
+ * resource is handed over as a string, in document order, as soon as it has been read, and the other elements of the
+ * Bundle are skipped. The entries without a resource are ignored.
+ */
+public class BundleEntryReader {
+
+	private static final String FHIR_NS = "http://hl7.org/fhir";
+
+	private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = XMLInputFactory.newFactory();
+
+	private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newFactory();
+
+	static {
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		// the namespaces inherited from the Bundle are declared on the copied entry resources
+		XML_OUTPUT_FACTORY.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, true);
+	}
+
+	private BundleEntryReader() {
+	}
+
+	/**
+	 * Reads the Bundle from the stream and hands over its entry resources to the handler.
+	 *
+	 * @throws DataFormatException if the content is not a well-formed Bundle.
+	 * @throws IOException         if the stream can't be read, or the handler fails.
+	 */
+	public static void readEntries(final @NonNull InputStream content,
+											 final @NonNull EncodingEnum encoding,
+											 final @NonNull EntryHandler handler) throws IOException {
+		if (encoding == EncodingEnum.XML) {
+			try {
+				readXmlEntries(content, handler);
+			} catch (final XMLStreamException e) {
+				throw new DataFormatException(e.getMessage(), e);
+			}
+		} else {
+			try {
+				readJsonEntries(content, handler);
+			} catch (final JsonProcessingException e) {
+				throw new DataFormatException(e.getOriginalMessage(), e);
+			}
+		}
+	}
+
+	private static void readJsonEntries(final InputStream content,
+													final EntryHandler handler) throws IOException {
+		try (final JsonParser parser = JSON_FACTORY.createParser(content)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new DataFormatException("The content is not a JSON object");
+			}
+			String resourceType = null;
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				final String name = parser.currentName();
+				final JsonToken value = parser.nextToken();
+				if ("resourceType".equals(name)) {
+					resourceType = parser.getValueAsString();
+					checkBundle(resourceType);
+				} else if ("entry".equals(name) && value == JsonToken.START_ARRAY) {
+					while (parser.nextToken() == JsonToken.START_OBJECT) {
+						readJsonEntry(parser, handler);
+					}
+				} else {
+					parser.skipChildren();
+				}
+			}
+			checkBundle(resourceType);
+		}
+	}
+
+	private static void readJsonEntry(final JsonParser parser,
+												 final EntryHandler handler) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			final String name = parser.currentName();
+			if (parser.nextToken() == JsonToken.START_OBJECT && "resource".equals(name)) {
+				final var writer = new StringWriter();
+				try (final JsonGenerator generator = JSON_FACTORY.createGenerator(writer)) {
+					generator.copyCurrentStructure(parser);
+				}
+				handler.accept(writer.toString());
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	private static void readXmlEntries(final InputStream content,
+												  final EntryHandler handler) throws IOException, XMLStreamException {
+		final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(content);
+		try {
+			reader.nextTag();
+			if (!FHIR_NS.equals(reader.getNamespaceURI())) {
+				throw new DataFormatException("The content is not a FHIR resource");
+			}
+			checkBundle(reader.getLocalName());
+			while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+				if (!"entry".equals(reader.getLocalName())) {
+					skipElement(reader);
+					continue;
+				}
+				while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+					if (!"resource".equals(reader.getLocalName())) {
+						skipElement(reader);
+						continue;
+					}
+					if (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+						handler.accept(copyElement(reader));
+						reader.nextTag();
+					}
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Copies the element the reader is positioned on, and leaves the reader on its end tag.
+	 */
+	private static String copyElement(final XMLStreamReader reader) throws XMLStreamException {
+		final var stringWriter = new StringWriter();
+		final XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(stringWriter);
+		int depth = 0;
+		do {
+			switch (reader.getEventType()) {
+				case XMLStreamConstants.START_ELEMENT -> {
+					++depth;
+					writer.writeStartElement(nonNull(reader.getPrefix()), reader.getLocalName(),
+													 nonNull(reader.getNamespaceURI()));
+					for (int i = 0; i < reader.getAttributeCount(); ++i) {
+						writer.writeAttribute(nonNull(reader.getAttributePrefix(i)),
+													 nonNull(reader.getAttributeNamespace(i)),
+													 reader.getAttributeLocalName(i),
+													 reader.getAttributeValue(i));
+					}
+				}
+				case XMLStreamConstants.END_ELEMENT -> {
+					--depth;
+					writer.writeEndElement();
+				}
+				case XMLStreamConstants.CHARACTERS, XMLStreamConstants.SPACE -> writer.writeCharacters(reader.getText());
+				case XMLStreamConstants.CDATA -> writer.writeCData(reader.getText());
+				case XMLStreamConstants.COMMENT -> writer.writeComment(reader.getText());
+				case XMLStreamConstants.ENTITY_REFERENCE -> writer.writeEntityRef(reader.getLocalName());
+				default -> {
+				}
+			}
+			if (depth > 0) {
+				reader.next();
+			}
+		} while (depth > 0);
+		writer.close();
+		return stringWriter.toString();
+	}
+
+	/**
+	 * Skips the element the reader is positioned on, and leaves the reader on its end tag.
+	 */
+	private static void skipElement(final XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			final int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				++depth;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				--depth;
+			}
+		}
+	}
+
+	private static void checkBundle(final String resourceType) {
+		if (!"Bundle".equals(resourceType)) {
+			throw new DataFormatException("The HTTP body must be a Bundle or NDJSON");
+		}
+	}
+
+	private static String nonNull(final String value) {
+		return value != null ? value : "";
+	}
+
+	/**
+	 * The handler of the entry resources.
+	 */
+	@FunctionalInterface
+	public interface EntryHandler {
+
+		/**
+		 * Handles an entry resource, serialized in the encoding of the Bundle.
+		 */
+		void accept(@NonNull String resource) throws IOException;
+	}
+}
@@ -25,10 +25,13 @@ import ca.uhn.fhir.jpa.dao.data.INpmPackageVersionDao;
 import ca.uhn.fhir.jpa.dao.data.INpmPackageVersionResourceDao;
 import ca.uhn.fhir.rest.annotation.Operation;
 import ca.uhn.fhir.rest.annotation.OperationParam;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.api.EncodingEnum;
 import ca.uhn.fhir.util.StopWatch;
 import ca.uhn.fhir.validation.SingleValidationMessage;
 import ch.ahdis.matchbox.CliContext;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
 import ch.ahdis.matchbox.util.MatchboxEngineSupport;
 import ch.ahdis.matchbox.engine.MatchboxEngine;
 import ch.ahdis.matchbox.engine.cli.VersionUtil;
@@ -38,6 +41,7 @@ import ch.ahdis.matchbox.registry.SimplifierPackage;
 import ch.ahdis.matchbox.registry.SimplifierPackageVersionsObject;
 import com.google.gson.Gson;
 import org.apache.commons.beanutils.BeanUtils;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.CloseableHttpClient;
@@ -59,20 +63,35 @@ import org.hl7.fhir.utilities.validation.ValidationMessage;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.annotation.Nullable;
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.PushbackInputStream;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static ch.ahdis.matchbox.util.MatchboxServerUtils.addExtension;
 
@@ -100,6 +119,28 @@ public class ValidationProvider {
 	@Autowired
 	private PlatformTransactionManager myTxManager;
 
+	@Autowired
+	private MatchboxFhirContextProperties matchboxFhirContextProperties;
+
+	private static final String NDJSON_CONTENT_TYPE = "application/fhir+ndjson";
+
+	/**
+	 * The digest of the content and profile, used as the OperationOutcome id and the validation result cache key.
+	 */
+	private static final String CONTENT_DIGEST = "SHA3-256";
+
+	/**
+	 * The number of bytes of the HTTP body that are read ahead to detect its encoding.
+	 */
+	private static final int PEEK_SIZE = 1024;
+
+	private static final byte[] UTF8_BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+
+	/**
+	 * The executor of the batch validations, see {@link #getBatchExecutor()}.
+	 */
+	private ExecutorService batchExecutor;
+
 //	@Operation(name = "$canonical", manualRequest = true, idempotent = true, returnParameters = {
 //			@OperationParam(name = "return", type = IBase.class, min = 1, max = 1) })
 //	public IBaseResource canonical(HttpServletRequest theRequest) {
@@ -130,39 +171,7 @@ public class ValidationProvider {
 		sw.startTask("Total");
 
 		// we extract here all config
-		final CliContext cliContext = new CliContext(this.cliContext);
-
-		// get al list of all JsonProperty of cliContext with return values property name and property type
-		List<Field> cliContextProperties = cliContext.getValidateEngineParameters();
-
-		// check for each cliContextProperties if it is in the request parameter
-		for (final Field field : cliContextProperties) {
-			final String cliContextProperty = field.getName();
-			if (theRequest.getParameter(cliContextProperty) != null) {
-				try {
-					final String value = theRequest.getParameter(cliContextProperty);
-					// currently only handles boolean or String
-					if (field.getType() == boolean.class) {
-						BeanUtils.setProperty(cliContext, cliContextProperty, Boolean.parseBoolean(value));
-					} else {
-						BeanUtils.setProperty(cliContext, cliContextProperty, value);
-					}
-				} catch (final IllegalAccessException | InvocationTargetException e) {
-					log.error("error setting property " + cliContextProperty + " to " + theRequest.getParameter(
-						cliContextProperty));
-				}
-			}
-		}
-
-		// Check if the IG should be auto-installed
-		if (cliContext.isAutoInstallMissingIgs()) {
-			this.ensureIgIsInstalled(theRequest.getParameter("ig"), theRequest.getParameter("profile"));
-		}
-
-		if (theRequest.getParameter("extensions") != null) {
-			String extensions = theRequest.getParameter("extensions");
-			cliContext.setExtensions(new ArrayList<String>(Arrays.asList(extensions.split(","))));
-		}
+		final CliContext cliContext = this.getCliContext(theRequest);
 
 		if (theRequest.getParameter("profile") == null) {
 			return this.getOoForError("The 'profile' parameter must be provided");
@@ -174,17 +183,20 @@ public class ValidationProvider {
 			reload = theRequest.getParameter("reload").equals("true");
 		}
 
-		String contentString = "";
+		// the body is not materialized: it is hashed while it is read, and it is only peeked at until the validation
+		final MessageDigest digest = DigestUtils.getDigest(CONTENT_DIGEST);
+		final PushbackInputStream content;
+		final byte[] head;
 		try {
-			contentString = new String(theRequest.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
-		} catch (final Exception e) {
+			content = new PushbackInputStream(new DigestInputStream(theRequest.getInputStream(), digest), PEEK_SIZE);
+			head = peek(content, PEEK_SIZE);
+		} catch (final IOException e) {
 			log.error(e.getMessage(), e);
+			return this.getOoForError("Error while reading the HTTP body: %s".formatted(e.getMessage()));
 		}
 
-		if (contentString.isEmpty()) {
+		if (head.length == 0) {
 			return this.getOoForError("No content provided in HTTP body");
-		} else {
-			log.trace(contentString);
 		}
 
 		final MatchboxEngine engine;
@@ -212,16 +224,319 @@ public class ValidationProvider {
 			return this.getOoForError("Validation engine not initialized, please try again");
 		}
 
-		final String sha3Hex = new DigestUtils("SHA3-256").digestAsHex(contentString + profile);
+		EncodingEnum encoding = EncodingEnum.forContentType(theRequest.getContentType());
+		if (encoding == null) {
+			encoding = EncodingEnum.detectEncoding(new String(head, StandardCharsets.UTF_8));
+		}
 
+		final IBaseResource result = this.validateContent(engine, content, digest, encoding, profile, cliContext, reload, sw);
+		log.debug("Validation time: {}", sw);
+		return result;
+	}
+
+	/**
+	 * Operation $validate-batch: validates a batch of independent resources against the same profile, with the same
+	 * engine. The resources are provided in the HTTP body, either as NDJSON (one JSON resource per line, with the
+	 * Content-Type application/fhir+ndjson or application/ndjson) or as a Bundle whose entries are validated
+	 * separately. The resources are validated in parallel.
+	 * <p>
+	 * For a NDJSON request, the OperationOutcomes are streamed back as NDJSON, one per line in the order of the
+	 * request. For a Bundle, a collection Bundle of the OperationOutcomes is returned, in the order of the entries.
+	 */
+	@Operation(name = "$validate-batch", manualRequest = true, manualResponse = true, idempotent = false)
+	public void validateBatch(final HttpServletRequest theRequest,
+									  final HttpServletResponse theResponse) throws IOException {
+		log.debug("$validate-batch");
+
+		final CliContext cliContext = this.getCliContext(theRequest);
+
+		String profile = theRequest.getParameter("profile");
+		if (profile == null) {
+			this.writeError(theResponse, "The 'profile' parameter must be provided");
+			return;
+		}
+		final boolean reload = "true".equals(theRequest.getParameter("reload"));
+
+		final MatchboxEngine engine;
+		try {
+			engine = this.matchboxEngineSupport.getMatchboxEngine(profile, cliContext, true, reload);
+		} catch (final Exception e) {
+			log.error("Error while initializing the validation engine", e);
+			this.writeError(theResponse, "Error while initializing the validation engine: %s".formatted(e.getMessage()));
+			return;
+		}
+		if (engine == null) {
+			this.writeError(theResponse,
+								 "Matchbox engine for profile '%s' could not be created, is an an ig configured for matchbox?".formatted(
+									 profile));
+			return;
+		}
+		final int versionSeparator = profile.lastIndexOf('|');
+		if (versionSeparator != -1) {
+			profile = profile.substring(0, versionSeparator);
+		}
+		if (engine.getStructureDefinitionR5(profile) == null) {
+			this.writeError(theResponse, "Engine configured, but validation for profile '%s' not found. ".formatted(
+				profile) + engine.toString());
+			return;
+		}
+		if (!this.matchboxEngineSupport.isInitialized()) {
+			this.writeError(theResponse, "Validation engine not initialized, please try again");
+			return;
+		}
+
+		final String contentType = theRequest.getContentType();
+		if (contentType != null && contentType.contains("ndjson")) {
+			this.validateNdjson(engine, profile, cliContext, theRequest, theResponse);
+		} else {
+			this.validateBundleEntries(engine, profile, cliContext, theRequest, theResponse);
+		}
+	}
+
+	/**
+	 * Validates the NDJSON lines of the request body and streams back the OperationOutcomes. The number of items being
+	 * validated at the same time is bounded, so that neither the request nor the response are held in memory.
+	 */
+	private void validateNdjson(final MatchboxEngine engine,
+										 final String profile,
+										 final CliContext cliContext,
+										 final HttpServletRequest theRequest,
+										 final HttpServletResponse theResponse) throws IOException {
+		final var parser = this.myContext.newJsonParser().setPrettyPrint(false);
+		final int maxPending = 4 * this.matchboxFhirContextProperties.getBatchValidationThreads();
+		final Deque<Future<IBaseResource>> pending = new ArrayDeque<>(maxPending);
+
+		theResponse.setStatus(200);
+		theResponse.setContentType(NDJSON_CONTENT_TYPE);
+		theResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		final var writer = theResponse.getWriter();
+		try (final var reader = new BufferedReader(new InputStreamReader(theRequest.getInputStream(),
+																							 StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isBlank()) {
+					continue;
+				}
+				pending.add(this.submitBatchItem(engine, line, EncodingEnum.JSON, profile, cliContext));
+				if (pending.size() >= maxPending) {
+					writer.println(parser.encodeResourceToString(this.getBatchItemResult(pending.poll())));
+				}
+			}
+			while (!pending.isEmpty()) {
+				writer.println(parser.encodeResourceToString(this.getBatchItemResult(pending.poll())));
+			}
+		} finally {
+			pending.forEach(future -> future.cancel(true));
+			writer.flush();
+		}
+	}
+
+	/**
+	 * Validates the entries of the Bundle in the request body, and streams back a collection Bundle of the
+	 * OperationOutcomes. As for NDJSON, the Bundle is read entry by entry and the number of entries being validated at
+	 * the same time is bounded, so that neither the request nor the response are held in memory.
+	 */
+	private void validateBundleEntries(final MatchboxEngine engine,
+												  final String profile,
+												  final CliContext cliContext,
+												  final HttpServletRequest theRequest,
+												  final HttpServletResponse theResponse) throws IOException {
+		final var content = new PushbackInputStream(theRequest.getInputStream(), PEEK_SIZE);
+		final byte[] head = peek(content, PEEK_SIZE);
+		if (head.length == 0) {
+			this.writeError(theResponse, "No content provided in HTTP body");
+			return;
+		}
 		EncodingEnum encoding = EncodingEnum.forContentType(theRequest.getContentType());
 		if (encoding == null) {
-			encoding = EncodingEnum.detectEncoding(contentString);
+			encoding = EncodingEnum.detectEncoding(new String(head, StandardCharsets.UTF_8));
 		}
+		final EncodingEnum bundleEncoding = encoding;
+		final int maxPending = 4 * this.matchboxFhirContextProperties.getBatchValidationThreads();
+		final Deque<Future<IBaseResource>> pending = new ArrayDeque<>(maxPending);
+		final var response = new CollectionBundleWriter(theResponse, bundleEncoding);
+
+		try {
+			try {
+				BundleEntryReader.readEntries(content, bundleEncoding, resource -> {
+					pending.add(this.submitBatchItem(engine, resource, bundleEncoding, profile, cliContext));
+					if (pending.size() >= maxPending) {
+						response.addEntry(this.getBatchItemResult(pending.poll()));
+					}
+				});
+			} catch (final DataFormatException e) {
+				final String message = "Error while parsing the Bundle: %s".formatted(e.getMessage());
+				if (!response.isStarted()) {
+					this.writeError(theResponse, message);
+					return;
+				}
+				// the OperationOutcomes of the entries read before the error are still returned, followed by the error
+				while (!pending.isEmpty()) {
+					response.addEntry(this.getBatchItemResult(pending.poll()));
+				}
+				response.addEntry(this.getOoForError(message));
+			}
+			while (!pending.isEmpty()) {
+				response.addEntry(this.getBatchItemResult(pending.poll()));
+			}
+			response.finish();
+		} finally {
+			pending.forEach(future -> future.cancel(true));
+		}
+	}
+
+	/**
+	 * A writer of a collection Bundle to the HTTP response, entry by entry. The response is started with the first
+	 * entry, so that an error can still be returned instead of the Bundle until then.
+	 */
+	private class CollectionBundleWriter {
+		private final HttpServletResponse theResponse;
+		private final EncodingEnum encoding;
+		private final IParser parser;
+		private PrintWriter writer;
+		private boolean first = true;
+
+		private CollectionBundleWriter(final HttpServletResponse theResponse, final EncodingEnum encoding) {
+			this.theResponse = theResponse;
+			this.encoding = encoding;
+			this.parser = encoding.newParser(ValidationProvider.this.myContext).setPrettyPrint(false);
+		}
+
+		private boolean isStarted() {
+			return this.writer != null;
+		}
+
+		private void addEntry(final IBaseResource resource) throws IOException {
+			this.start();
+			final String encoded = this.parser.encodeResourceToString(resource);
+			if (this.encoding == EncodingEnum.XML) {
+				this.writer.write("<entry><resource>");
+				this.writer.write(encoded);
+				this.writer.write("</resource></entry>");
+			} else {
+				this.writer.write(this.first ? ",\"entry\":[{\"resource\":" : ",{\"resource\":");
+				this.writer.write(encoded);
+				this.writer.write("}");
+			}
+			this.first = false;
+		}
+
+		private void finish() throws IOException {
+			this.start();
+			if (this.encoding == EncodingEnum.XML) {
+				this.writer.write("</Bundle>");
+			} else {
+				this.writer.write(this.first ? "}" : "]}");
+			}
+			this.writer.flush();
+		}
+
+		private void start() throws IOException {
+			if (this.writer != null) {
+				return;
+			}
+			this.theResponse.setStatus(200);
+			this.theResponse.setContentType(this.encoding.getResourceContentTypeNonLegacy());
+			this.theResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+			this.writer = this.theResponse.getWriter();
+			if (this.encoding == EncodingEnum.XML) {
+				this.writer.write("<Bundle xmlns=\"http://hl7.org/fhir\"><type value=\"collection\"/>");
+			} else {
+				this.writer.write("{\"resourceType\":\"Bundle\",\"type\":\"collection\"");
+			}
+		}
+	}
+
+	private Future<IBaseResource> submitBatchItem(final MatchboxEngine engine,
+																 final String content,
+																 final EncodingEnum encoding,
+																 final String profile,
+																 final CliContext cliContext) {
+		return this.getBatchExecutor().submit(() -> {
+			final var sw = new StopWatch();
+			final MessageDigest digest = DigestUtils.getDigest(CONTENT_DIGEST);
+			final var stream = new DigestInputStream(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)),
+																  digest);
+			return this.validateContent(engine, stream, digest, encoding, profile, cliContext, false, sw);
+		});
+	}
+
+	private IBaseResource getBatchItemResult(final Future<IBaseResource> future) {
+		try {
+			return future.get();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return this.getOoForError("The validation has been interrupted");
+		} catch (final ExecutionException e) {
+			log.error("Error during validation", e.getCause());
+			return this.getOoForError("Error during validation: %s".formatted(e.getCause().getMessage()));
+		}
+	}
+
+	/**
+	 * Returns the executor of the batch validations, it is created on first use.
+	 */
+	private synchronized ExecutorService getBatchExecutor() {
+		if (this.batchExecutor == null) {
+			final var threadCounter = new AtomicInteger();
+			this.batchExecutor = Executors.newFixedThreadPool(this.matchboxFhirContextProperties.getBatchValidationThreads(),
+																			  runnable -> {
+																				  final var thread = new Thread(runnable,
+																														  "matchbox-validate-batch-" + threadCounter.incrementAndGet());
+																				  thread.setDaemon(true);
+																				  return thread;
+																			  });
+		}
+		return this.batchExecutor;
+	}
+
+	private void writeError(final HttpServletResponse theResponse,
+									final @NonNull String message) throws IOException {
+		theResponse.setStatus(200);
+		theResponse.setContentType(EncodingEnum.JSON.getResourceContentTypeNonLegacy());
+		theResponse.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		this.myContext.newJsonParser().encodeResourceToWriter(this.getOoForError(message), theResponse.getWriter());
+	}
+
+	/**
+	 * Validates the content with the given engine and returns the OperationOutcome. If enabled, the result is looked up
+	 * in and added to the validation result cache, unless the engine has been reloaded by the request.
+	 * <p>
+	 * The content stream shall update the digest with the bytes it reads. The SHA3-256 hash of the content and profile
+	 * is the id of the OperationOutcome; the content is only read in memory if the hash is needed before the validation,
+	 * to look up the result cache, otherwise it is parsed from the stream.
+	 */
+	private IBaseResource validateContent(final MatchboxEngine engine,
+													  final InputStream content,
+													  final MessageDigest digest,
+													  final EncodingEnum encoding,
+													  final String profile,
+													  final CliContext cliContext,
+													  final boolean reload,
+													  final StopWatch sw) {
+		// the engine of a single engine setup is modified by the requests, its results can't be cached
+		final var resultCache = this.matchboxEngineSupport.getValidationResultCache();
+		final boolean cacheable = resultCache.isEnabled() && !cliContext.getOnlyOneEngine() && !reload;
 
 		final List<ValidationMessage> messages;
+		final String sha3Hex;
 		try {
-			messages = doValidate(engine, contentString, encoding, profile);
+			if (cacheable) {
+				final byte[] bytes = content.readAllBytes();
+				sha3Hex = getContentHash(digest, profile);
+				final OperationOutcome cachedResult = resultCache.get(sha3Hex, cliContext);
+				if (cachedResult != null) {
+					log.debug("Returning the cached validation result {}", sha3Hex);
+					this.updateRequestInformation(cachedResult, profile, engine, sw.getMillis(), cliContext);
+					return this.convertOperationOutcome(cachedResult);
+				}
+				messages = doValidate(engine, new ByteArrayInputStream(bytes), encoding, profile);
+			} else {
+				messages = doValidate(engine, content, encoding, profile);
+				// the parser may not have read the trailing bytes, they are part of the hash
+				content.transferTo(OutputStream.nullOutputStream());
+				sha3Hex = getContentHash(digest, profile);
+			}
 		} catch (final Exception e) {
 			sw.endCurrentTask();
 			log.debug("Validation time: {}", sw);
@@ -229,13 +544,60 @@ public class ValidationProvider {
 			return this.getOoForError("Error during validation: %s".formatted(e.getMessage()));
 		}
 
-		long millis = sw.getMillis();
-		log.debug("Validation time: {}", sw);
+		final OperationOutcome result = this.getOperationOutcome(sha3Hex, messages, profile, engine, sw.getMillis(),
+																				  cliContext);
+		if (cacheable) {
+			resultCache.put(sha3Hex, cliContext, result);
+		}
+		return this.convertOperationOutcome(result);
+	}
+
+	/**
+	 * Creates the CliContext of a validation request: the default one, updated with the validation parameters of the
+	 * request.
+	 */
+	private CliContext getCliContext(final HttpServletRequest theRequest) {
+		final CliContext cliContext = new CliContext(this.cliContext);
+
+		// get al list of all JsonProperty of cliContext with return values property name and property type
+		List<Field> cliContextProperties = cliContext.getValidateEngineParameters();
+
+		// check for each cliContextProperties if it is in the request parameter
+		for (final Field field : cliContextProperties) {
+			final String cliContextProperty = field.getName();
+			if (theRequest.getParameter(cliContextProperty) != null) {
+				try {
+					final String value = theRequest.getParameter(cliContextProperty);
+					// currently only handles boolean or String
+					if (field.getType() == boolean.class) {
+						BeanUtils.setProperty(cliContext, cliContextProperty, Boolean.parseBoolean(value));
+					} else {
+						BeanUtils.setProperty(cliContext, cliContextProperty, value);
+					}
+				} catch (final IllegalAccessException | InvocationTargetException e) {
+					log.error("error setting property " + cliContextProperty + " to " + theRequest.getParameter(
+						cliContextProperty));
+				}
+			}
+		}
 
-		return this.getOperationOutcome(sha3Hex, messages, profile, engine, millis, cliContext);
+		// Check if the IG should be auto-installed
+		if (cliContext.isAutoInstallMissingIgs()) {
+			this.ensureIgIsInstalled(theRequest.getParameter("ig"), theRequest.getParameter("profile"));
+		}
+
+		if (theRequest.getParameter("extensions") != null) {
+			String extensions = theRequest.getParameter("extensions");
+			cliContext.setExtensions(new ArrayList<String>(Arrays.asList(extensions.split(","))));
+		}
+
+		return cliContext;
 	}
 
-	private IBaseResource getOperationOutcome(final String id,
+	/**
+	 * Creates the R5 OperationOutcome of a validation, see {@link #convertOperationOutcome(OperationOutcome)}.
+	 */
+	private OperationOutcome getOperationOutcome(final String id,
 															final List<ValidationMessage> messages,
 															final String profile,
 															final MatchboxEngine engine,
@@ -252,27 +614,14 @@ public class ValidationProvider {
 
 			final org.hl7.fhir.r5.model.StructureDefinition structDefR5 = engine.getStructureDefinitionR5(profile);
 
-			final var profileDate = (structDefR5.getDateElement() != null)
-				? " (%s)".formatted(structDefR5.getDateElement().asStringValue())
-				: " ";
-
-			issue.setDiagnostics(
-				"Validation for profile %s|%s%s. Loaded packages: %s. Duration: %s. %s. Validation parameters: %s".formatted(
-					structDefR5.getUrl(),
-					structDefR5.getVersion(),
-					profileDate,
-					String.join(", ", engine.getContext().getLoadedPackages()),
-					ms/1000.0+ "s",
-					VersionUtil.getPoweredBy(),
-					cliContext.toString()
-				));
+			issue.setDiagnostics(getValidationDiagnostics(structDefR5, engine, ms, cliContext));
 
 			var ext = issue.addExtension().setUrl("http://matchbox.health/validation");
 			addExtension(ext, "profile", new UriType(structDefR5.getUrl()));
 			addExtension(ext, "profileVersion", new UriType(structDefR5.getVersion()));
 			addExtension(ext, "profileDate", structDefR5.getDateElement());
 
-			ext.addExtension("total", new Duration().setUnit("ms").setValue(ms));
+			ext.addExtension("total", getDuration(ms));
 			addExtension(ext, "validatorVersion", new StringType(VersionUtil.getPoweredBy()));
 			cliContext.addContextToExtension(ext);
 			if (matchboxEngineSupport.getSessionId(engine) != null) {
@@ -325,6 +674,41 @@ public class ValidationProvider {
 			issue.setDiagnostics("No fatal or error issues detected, the validation has passed");
 		}
 
+		return oo;
+	}
+
+	/**
+	 * Updates the information of the validation OperationOutcome that is specific to the request: the duration and the
+	 * engine session id.
+	 */
+	private void updateRequestInformation(final OperationOutcome oo,
+													  final String profile,
+													  final MatchboxEngine engine,
+													  final long ms,
+													  final CliContext cliContext) {
+		final var issue = oo.getIssueFirstRep();
+		final var ext = issue.getExtensionByUrl("http://matchbox.health/validation");
+		if (ext == null) {
+			return;
+		}
+		issue.setDiagnostics(getValidationDiagnostics(engine.getStructureDefinitionR5(profile), engine, ms, cliContext));
+		ext.getExtensionByUrl("total").setValue(getDuration(ms));
+		// the engine may have been evicted and recreated since the result was cached
+		final String sessionId = this.matchboxEngineSupport.getSessionId(engine);
+		final var sessionIdExt = ext.getExtensionByUrl("sessionId");
+		if (sessionId == null) {
+			ext.removeExtension("sessionId");
+		} else if (sessionIdExt != null) {
+			sessionIdExt.setValue(new StringType(sessionId));
+		} else {
+			addExtension(ext, "sessionId", new StringType(sessionId));
+		}
+	}
+
+	/**
+	 * Converts an R5 OperationOutcome to the FHIR version of the server.
+	 */
+	private IBaseResource convertOperationOutcome(final OperationOutcome oo) {
 		return switch (this.myContext.getVersion().getVersion()) {
 			case R4 -> VersionConvertorFactory_40_50.convertResource(oo);
 			case R4B -> VersionConvertorFactory_43_50.convertResource(oo);
@@ -334,6 +718,29 @@ public class ValidationProvider {
 		};
 	}
 
+	private static String getValidationDiagnostics(final org.hl7.fhir.r5.model.StructureDefinition structDefR5,
+																  final MatchboxEngine engine,
+																  final long ms,
+																  final CliContext cliContext) {
+		final var profileDate = (structDefR5.getDateElement() != null)
+			? " (%s)".formatted(structDefR5.getDateElement().asStringValue())
+			: " ";
+
+		return "Validation for profile %s|%s%s. Loaded packages: %s. Duration: %s. %s. Validation parameters: %s".formatted(
+			structDefR5.getUrl(),
+			structDefR5.getVersion(),
+			profileDate,
+			String.join(", ", engine.getContext().getLoadedPackages()),
+			ms/1000.0+ "s",
+			VersionUtil.getPoweredBy(),
+			cliContext.toString()
+		);
+	}
+
+	private static Duration getDuration(final long ms) {
+		return (Duration) new Duration().setUnit("ms").setValue(ms);
+	}
+
 	private IBaseResource getOoForError(final @NonNull String message) {
 		final var oo = new OperationOutcome();
 		final var issue = oo.addIssue();
@@ -426,10 +833,23 @@ public class ValidationProvider {
 									 String content,
 									 final EncodingEnum encoding,
 									 final String profile) throws EOperationOutcome, IOException {
+		return doValidate(engine, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), encoding, profile);
+	}
+
+	/**
+	 * Validates the content of the stream, which is parsed directly by the validator. A UTF-8 BOM at the beginning of
+	 * the stream is skipped, with a warning.
+	 */
+	public static List<ValidationMessage> doValidate(final MatchboxEngine engine,
+																	 final InputStream content,
+																	 final EncodingEnum encoding,
+																	 final String profile) throws EOperationOutcome, IOException {
 		final List<ValidationMessage> messages = new ArrayList<>();
 
-		if (content.startsWith("\uFEFF")) {
-			content = content.replace("\uFEFF", "");
+		final var stream = new PushbackInputStream(content, UTF8_BOM.length);
+		final byte[] head = peek(stream, UTF8_BOM.length);
+		if (Arrays.equals(head, UTF8_BOM)) {
+			stream.skipNBytes(UTF8_BOM.length);
 			final var m = new ValidationMessage();
 			m.setLevel(ValidationMessage.IssueSeverity.WARNING);
 			m.setMessage(
@@ -440,7 +860,6 @@ public class ValidationProvider {
 		}
 
 		final var format = encoding == EncodingEnum.XML ? FhirFormat.XML : FhirFormat.JSON;
-		final var stream = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
 		try {
 			messages.addAll(engine.validate(format, stream, profile));
 		} catch (IOException e) {
@@ -455,4 +874,22 @@ public class ValidationProvider {
 		} 
 		return messages;
 	}
+
+	/**
+	 * Reads up to {@code length} bytes of the stream and pushes them back, so that they are read again by the next
+	 * consumer.
+	 */
+	private static byte[] peek(final PushbackInputStream stream, final int length) throws IOException {
+		final byte[] head = stream.readNBytes(length);
+		stream.unread(head);
+		return head;
+	}
+
+	/**
+	 * Completes the digest of the content with the profile, and returns it as an hexadecimal string.
+	 */
+	private static String getContentHash(final MessageDigest digest, final String profile) {
+		digest.update(profile.getBytes(StandardCharsets.UTF_8));
+		return Hex.encodeHexString(digest.digest());
+	}
 }
@@ -0,0 +1,131 @@
+package ch.ahdis.matchbox.validation;
+
+import ch.ahdis.matchbox.CliContext;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.hl7.fhir.r5.model.OperationOutcome;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of the OperationOutcomes returned by $validate, to answer repeated validations of the same content
+ * without running the validator again. The OperationOutcomes are cached in R5, before their conversion to the FHIR
+ * version of the server, and each lookup returns a copy, that the caller may modify (e.g. to update the information
+ * that is specific to the request, as the duration of the validation).
+ * <p>
+ * The entries are keyed by the SHA3-256 hash of the content and profile, and by the {@link CliContext} of the engine
+ * (which identifies the engine session), compared with {@link CliContext#equals(Object)}. The least recently used
+ * entry is evicted when the cache is full. The cache is cleared when the engines are reloaded, as the same engine session may
+ * then validate against other IG contents.
+ *
+ * @see MatchboxFhirContextProperties.ValidationResultCache
+ */
+public class ValidationResultCache {
+
+	private static final org.slf4j.Logger log = org.slf4j.LoggerFactory.getLogger(ValidationResultCache.class);
+
+	/**
+	 * The maximum number of entries, 0 if the cache is disabled.
+	 */
+	private final int maxEntries;
+
+	/**
+	 * The cached OperationOutcomes, in access order.
+	 */
+	private final Map<Key, OperationOutcome> results;
+
+	private long hitCount = 0;
+
+	private long missCount = 0;
+
+	public ValidationResultCache(final MatchboxFhirContextProperties.@NonNull ValidationResultCache config) {
+		this.maxEntries = Math.max(0, config.getMaxEntries());
+		this.results = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<Key, OperationOutcome> eldest) {
+				return this.size() > ValidationResultCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns whether the cache is enabled.
+	 */
+	public boolean isEnabled() {
+		return this.maxEntries > 0;
+	}
+
+	/**
+	 * Returns a copy of the cached OperationOutcome of a validation, or {@code null} if there is none.
+	 *
+	 * @param contentHash the SHA3-256 hash of the content and profile.
+	 * @param cliContext  the CliContext of the engine.
+	 */
+	public @Nullable OperationOutcome get(final @NonNull String contentHash,
+													  final @NonNull CliContext cliContext) {
+		if (!this.isEnabled()) {
+			return null;
+		}
+		final OperationOutcome result;
+		synchronized (this) {
+			result = this.results.get(new Key(contentHash, cliContext));
+			if (result != null) {
+				++this.hitCount;
+			} else {
+				++this.missCount;
+			}
+		}
+		// the cached OperationOutcomes are never modified, they are copied outside the lock
+		return (result != null) ? result.copy() : null;
+	}
+
+	/**
+	 * Caches a copy of the OperationOutcome of a validation. The CliContext is kept as part of the key, it must not be
+	 * modified afterwards.
+	 *
+	 * @param contentHash the SHA3-256 hash of the content and profile.
+	 * @param cliContext  the CliContext of the engine.
+	 * @param result      the OperationOutcome.
+	 */
+	public void put(final @NonNull String contentHash,
+										  final @NonNull CliContext cliContext,
+										  final @NonNull OperationOutcome result) {
+		if (this.isEnabled()) {
+			final OperationOutcome copy = result.copy();
+			synchronized (this) {
+				this.results.put(new Key(contentHash, cliContext), copy);
+			}
+		}
+	}
+
+	/**
+	 * Removes all cached results.
+	 */
+	public synchronized void clear() {
+		if (!this.results.isEmpty()) {
+			log.debug("Clearing {} cached validation results (hits: {}, misses: {})", this.results.size(),
+						 this.hitCount, this.missCount);
+			this.results.clear();
+		}
+	}
+
+	public synchronized int size() {
+		return this.results.size();
+	}
+
+	public synchronized long getHitCount() {
+		return this.hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return this.missCount;
+	}
+
+	/**
+	 * The key of a cached OperationOutcome.
+	 */
+	private record Key(@NonNull String contentHash, @NonNull CliContext cliContext) {
+	}
+}
@@ -90,6 +90,43 @@ public class TransformTest {
 			 </TRight>""", response.body());
 	}
 
+	@Test
+	void testTransformBulk() throws Exception {
+		final var createMapRequest = HttpRequest.newBuilder(URI.create(TARGET_SERVER + "/fhir/StructureMap"))
+			.POST(HttpRequest.BodyPublishers.ofString(this.getContent("qr2patgender.map")))
+			.header("Content-Type", "text/fhir-mapping")
+			.header("Accept", "application/fhir+xml")
+			.build();
+		this.httpClient.send(createMapRequest, HttpResponse.BodyHandlers.discarding());
+
+		// the odd lines transform to male patients, the line 5 is not a valid document
+		final String qr = this.getContent("qr.json").replace("\r", "").replace("\n", " ");
+		final var content = new StringBuilder();
+		for (int i = 0; i < 20; ++i) {
+			content.append(i == 5 ? "{\"resourceType\":" : qr.replace("\"female\"", i % 2 == 0 ? "\"female\"" : "\"male\""));
+			content.append('\n');
+		}
+		final var transformRequest = HttpRequest.newBuilder(URI.create(
+			TARGET_SERVER + "/fhir/StructureMap/$transform-bulk?source=http://ahdis.ch/matchbox/fml/qr2patgender"))
+			.POST(HttpRequest.BodyPublishers.ofString(content.toString()))
+			.header("Content-Type", "application/fhir+ndjson")
+			.build();
+		final var response = this.httpClient.send(transformRequest, HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, response.statusCode());
+
+		// one result per line, in the order of the request
+		final var lines = response.body().lines().filter(line -> !line.isBlank()).toList();
+		assertEquals(20, lines.size());
+		for (int i = 0; i < 20; ++i) {
+			if (i == 5) {
+				assertTrue(lines.get(i).contains("\"OperationOutcome\""), lines.get(i));
+			} else {
+				assertTrue(lines.get(i).contains("\"Patient\""), lines.get(i));
+				assertTrue(lines.get(i).contains(i % 2 == 0 ? "\"female\"" : "\"male\""), lines.get(i));
+			}
+		}
+	}
+
 	private String getContent(final String resourceName) throws IOException {
 		Resource resource = new ClassPathResource(resourceName);
 		File file = resource.getFile();
@@ -0,0 +1,131 @@
+package ch.ahdis.matchbox.packages;
+
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DecodedPackageCacheTest {
+
+	private static final long ONE_MB = 1024 * 1024;
+
+	@Test
+	void testDisabledByDefault() throws Exception {
+		final var cache = new DecodedPackageCache(new MatchboxFhirContextProperties.PackageCache());
+		final var loads = new AtomicInteger();
+
+		cache.get("example.a", "1.0.0", 1, () -> newPackage(loads, 10));
+		cache.get("example.a", "1.0.0", 1, () -> newPackage(loads, 10));
+
+		assertEquals(2, loads.get());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	void testHitAndMiss() throws Exception {
+		final var cache = newCache(1);
+		final var loads = new AtomicInteger();
+
+		final NpmPackage npmPackage = cache.get("example.a", "1.0.0", 1, () -> newPackage(loads, 10));
+
+		assertSame(npmPackage, cache.get("example.a", "1.0.0", 1, () -> newPackage(loads, 10)));
+		assertEquals(1, loads.get());
+		// a re-installed package is decompressed again
+		assertNotSame(npmPackage, cache.get("example.a", "1.0.0", 2, () -> newPackage(loads, 10)));
+		assertEquals(2, loads.get());
+		assertEquals(1, cache.size());
+		assertEquals(10, cache.getSize());
+	}
+
+	@Test
+	void testEviction() throws Exception {
+		final var cache = newCache(1);
+		final var loads = new AtomicInteger();
+		final int half = (int) (ONE_MB / 2);
+
+		cache.get("example.a", "1.0.0", 1, () -> newPackage(loads, half));
+		cache.get("example.b", "1.0.0", 1, () -> newPackage(loads, half));
+		// 'example.a' is now the most recently used package
+		cache.get("example.a", "1.0.0", 1, () -> newPackage(loads, half));
+		cache.get("example.c", "1.0.0", 1, () -> newPackage(loads, half));
+
+		assertEquals(3, loads.get());
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get("example.a", "1.0.0", 1));
+		assertNull(cache.get("example.b", "1.0.0", 1));
+		assertNotNull(cache.get("example.c", "1.0.0", 1));
+		assertEquals(ONE_MB, cache.getSize());
+	}
+
+	@Test
+	void testConcurrentMissesDecompressOnce() throws Exception {
+		final var cache = newCache(1);
+		final var loads = new AtomicInteger();
+		final var started = new CountDownLatch(1);
+		final var release = new CountDownLatch(1);
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final Future<NpmPackage> first = executor.submit(() -> cache.get("example.a", "1.0.0", 1, () -> {
+				started.countDown();
+				try {
+					assertTrue(release.await(10, TimeUnit.SECONDS));
+				} catch (final InterruptedException e) {
+					throw new IOException(e);
+				}
+				return newPackage(loads, 10);
+			}));
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			final Future<NpmPackage> second = executor.submit(() -> cache.get("example.a", "1.0.0", 1,
+																									() -> newPackage(loads, 10)));
+			final Future<NpmPackage> third = executor.submit(() -> cache.get("example.a", "1.0.0", 1,
+																								  () -> newPackage(loads, 10)));
+			release.countDown();
+
+			final NpmPackage npmPackage = first.get(10, TimeUnit.SECONDS);
+			assertSame(npmPackage, second.get(10, TimeUnit.SECONDS));
+			assertSame(npmPackage, third.get(10, TimeUnit.SECONDS));
+			assertEquals(1, loads.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	void testFailureIsNotCached() throws Exception {
+		final var cache = newCache(1);
+		final var loads = new AtomicInteger();
+
+		assertThrows(IOException.class, () -> cache.get("example.a", "1.0.0", 1, () -> {
+			throw new IOException("corrupted package");
+		}));
+
+		assertNotNull(cache.get("example.a", "1.0.0", 1, () -> newPackage(loads, 10)));
+		assertEquals(1, loads.get());
+	}
+
+	private static DecodedPackageCache newCache(final long maxSizeMb) {
+		final var config = new MatchboxFhirContextProperties.PackageCache();
+		config.setMaxSizeMb(maxSizeMb);
+		return new DecodedPackageCache(config);
+	}
+
+	/**
+	 * Returns a package with a single file of the given size.
+	 */
+	private static NpmPackage newPackage(final AtomicInteger loads,
+													 final int size) {
+		loads.incrementAndGet();
+		final NpmPackage npmPackage = NpmPackage.empty();
+		npmPackage.addFile("package", "content.bin", new byte[size], null);
+		return npmPackage;
+	}
+}
@@ -0,0 +1,269 @@
+package ch.ahdis.matchbox.packages;
+
+import ca.uhn.fhir.jpa.dao.data.INpmPackageVersionDao;
+import ca.uhn.fhir.jpa.model.entity.NpmPackageVersionEntity;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.hl7.fhir.r5.context.SimpleWorkerContext;
+import org.hl7.fhir.r5.model.Resource;
+import org.hl7.fhir.r5.model.ValueSet;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the loading of the packages in the context of an engine, with the packages taken from the cache of the
+ * decompressed packages.
+ */
+class IgLoaderFromJpaPackageCacheTest {
+
+	private static final String VS_URL = "http://example.org/ValueSet/";
+
+	private static final String CS_URL = "http://example.org/CodeSystem/";
+
+	private INpmPackageVersionDao packageVersionDao;
+
+	private DecodedPackageCache decodedPackageCache;
+
+	private SimpleWorkerContext context;
+
+	/**
+	 * The files that have been parsed, in the order in which they were parsed.
+	 */
+	private final List<String> parsedFiles = Collections.synchronizedList(new ArrayList<>());
+
+	@BeforeEach
+	void setUp() throws Exception {
+		this.packageVersionDao = mock(INpmPackageVersionDao.class);
+		final var config = new MatchboxFhirContextProperties.PackageCache();
+		config.setMaxSizeMb(16);
+		this.decodedPackageCache = new DecodedPackageCache(config);
+		this.context = new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing();
+	}
+
+	@Test
+	void testResourcesAreParsedWhenFetched() throws Exception {
+		this.install(newPackage("example.a", "1.0.0", Map.of(),
+										valueSet("vs1", "a"), valueSet("vs2", "a"), codeSystem("cs1")));
+
+		this.newLoader(null).loadIg(new ArrayList<>(), new LinkedHashMap<>(), "example.a#1.0.0", true);
+
+		assertTrue(this.context.getLoadedPackages().contains("example.a#1.0.0"));
+		// only the code systems are parsed when the package is loaded
+		assertEquals(List.of("CodeSystem-cs1.json"), this.parsedFiles);
+
+		final ValueSet valueSet = this.fetchValueSet("vs1");
+		assertNotNull(valueSet);
+		assertEquals("a", valueSet.getName());
+		assertEquals(List.of("CodeSystem-cs1.json", "ValueSet-vs1.json"), this.parsedFiles);
+	}
+
+	@Test
+	void testDuplicatesAreDetectedWithoutParsing() throws Exception {
+		this.install(newPackage("example.a", "1.0.0", Map.of(), valueSet("vs1", "a"), codeSystem("cs1")));
+		this.install(newPackage("example.b", "1.0.0", Map.of("example.a", "1.0.0"),
+										valueSet("vs1", "b"), codeSystem("cs1")));
+
+		this.newLoader(null).loadIg(new ArrayList<>(), new LinkedHashMap<>(), "example.b#1.0.0", true);
+
+		// the duplicate value set is not parsed, the dependency is loaded first and its resource is kept
+		assertFalse(this.parsedFiles.contains("ValueSet-vs1.json"));
+		assertEquals("a", this.fetchValueSet("vs1").getName());
+	}
+
+	@Test
+	void testMalformedResourceIsSkipped() throws Exception {
+		final byte[] malformed = ("{\"resourceType\":\"ValueSet\",\"id\":\"bad\",\"url\":\"" + VS_URL + "bad\",")
+			.getBytes(StandardCharsets.UTF_8);
+		this.install(newPackage("example.a", "1.0.0", Map.of(), valueSet("vs1", "a"),
+										new PackageFile("ValueSet-bad.json", "ValueSet", "bad", VS_URL + "bad", malformed)));
+
+		this.newLoader(null).loadIg(new ArrayList<>(), new LinkedHashMap<>(), "example.a#1.0.0", true);
+
+		assertNull(this.fetchValueSet("bad"));
+		assertNotNull(this.fetchValueSet("vs1"));
+	}
+
+	@Test
+	void testProxiesDoNotRetainThePackage() throws Exception {
+		final WeakReference<NpmPackage> npmPackage = new WeakReference<>(
+			this.install(newPackage("example.a", "1.0.0", Map.of(), valueSet("vs1", "a"))));
+
+		this.newLoader(null).loadIg(new ArrayList<>(), new LinkedHashMap<>(), "example.a#1.0.0", true);
+		this.decodedPackageCache.remove("example.a", "1.0.0");
+
+		for (int i = 0; i < 20 && npmPackage.get() != null; ++i) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(npmPackage.get());
+		// the resource is still parsed from the content kept by its proxy
+		assertEquals("a", this.fetchValueSet("vs1").getName());
+	}
+
+	@Test
+	void testDuplicatesAreResolvedAsInSerialLoading() throws Exception {
+		// the dependencies are loaded first, in the order in which they are declared: a, b, c, d, then the IG
+		this.install(newPackage("example.a", "1.0.0", Map.of(), valueSet("vs1", "a"), codeSystem("cs1")));
+		this.install(newPackage("example.b", "1.0.0", Map.of("example.a", "1.0.0"),
+										valueSet("vs1", "b"), valueSet("vs2", "b"), codeSystem("cs1")));
+		this.install(newPackage("example.c", "1.0.0", Map.of(), valueSet("vs2", "c"), valueSet("vs3", "c")));
+		this.install(newPackage("example.d", "1.0.0", Map.of("example.c", "1.0.0"),
+										valueSet("vs3", "d"), codeSystem("cs1")));
+		final var ig = new LinkedHashMap<String, String>();
+		ig.put("example.b", "1.0.0");
+		ig.put("example.d", "1.0.0");
+		this.install(newPackage("example.ig", "1.0.0", ig, valueSet("vs1", "ig"), valueSet("vs4", "ig")));
+
+		this.newLoader(null).loadIg(new ArrayList<>(), new LinkedHashMap<>(), "example.ig#1.0.0", true);
+		final List<String> serialPackages = List.copyOf(this.context.getLoadedPackages());
+		final List<String> serialValueSets = this.getValueSetNames();
+		assertEquals(List.of("example.a#1.0.0", "example.b#1.0.0", "example.c#1.0.0", "example.d#1.0.0",
+									"example.ig#1.0.0"), serialPackages);
+		assertEquals(List.of("a", "b", "c", "ig"), serialValueSets);
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			for (int i = 0; i < 10; ++i) {
+				this.context = new SimpleWorkerContext.SimpleWorkerContextBuilder().fromNothing();
+				this.newLoader(executor).loadIg(new ArrayList<>(), new LinkedHashMap<>(), "example.ig#1.0.0", true);
+
+				assertEquals(serialPackages, List.copyOf(this.context.getLoadedPackages()), "load " + i);
+				assertEquals(serialValueSets, this.getValueSetNames(), "load " + i);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Returns the names of the value sets vs1 to vs4, i.e. the packages from which they have been registered.
+	 */
+	private List<String> getValueSetNames() {
+		final List<String> names = new ArrayList<>();
+		for (int i = 1; i <= 4; ++i) {
+			names.add(this.fetchValueSet("vs" + i).getName());
+		}
+		return names;
+	}
+
+	private IgLoaderFromJpaPackageCache newLoader(final Executor executor) {
+		return new IgLoaderFromJpaPackageCache(null, this.context, "4.0.1", false, null, this.packageVersionDao, null,
+															null, mock(PlatformTransactionManager.class), null,
+															this.decodedPackageCache, executor) {
+			@Override
+			public Resource loadResourceByVersion(final String fhirVersion,
+															  final byte[] content,
+															  final String fn) throws IOException {
+				parsedFiles.add(fn);
+				return super.loadResourceByVersion(fhirVersion, content, fn);
+			}
+		};
+	}
+
+	/**
+	 * Fetches a value set by type name: the context has no FHIR version without the core package.
+	 */
+	private ValueSet fetchValueSet(final String id) {
+		return this.context.fetchResourceWithException("ValueSet", VS_URL + id);
+	}
+
+	/**
+	 * Makes the package available to the loaders, as an installed package whose decompressed content is cached.
+	 */
+	private NpmPackage install(final NpmPackage npmPackage) {
+		final NpmPackageVersionEntity entity = mock(NpmPackageVersionEntity.class);
+		when(entity.getPackageId()).thenReturn(npmPackage.name());
+		when(entity.getVersionId()).thenReturn(npmPackage.version());
+		when(entity.getFhirVersionId()).thenReturn("4.0.1");
+		when(this.packageVersionDao.findByPackageIdAndVersion(npmPackage.name(), npmPackage.version()))
+			.thenReturn(Optional.of(entity));
+		this.decodedPackageCache.put(npmPackage.name(), npmPackage.version(), 0, npmPackage);
+		return npmPackage;
+	}
+
+	/**
+	 * Builds a package, with the index of its resources.
+	 */
+	private static NpmPackage newPackage(final String name,
+										  final String version,
+										  final Map<String, String> dependencies,
+										  final PackageFile... files) throws IOException {
+		final var manifest = new StringBuilder("{\"name\":\"" + name + "\",\"version\":\"" + version
+																+ "\",\"fhirVersions\":[\"4.0.1\"],\"dependencies\":{");
+		final var index = new StringBuilder("{\"index-version\":2,\"files\":[");
+		dependencies.forEach((id, dependencyVersion) -> {
+			if (manifest.charAt(manifest.length() - 1) != '{') {
+				manifest.append(',');
+			}
+			manifest.append('"').append(id).append("\":\"").append(dependencyVersion).append('"');
+		});
+		manifest.append("}}");
+		for (int i = 0; i < files.length; ++i) {
+			index.append(i == 0 ? "" : ",").append("{\"filename\":\"").append(files[i].name())
+				.append("\",\"resourceType\":\"").append(files[i].type()).append("\",\"id\":\"").append(files[i].id())
+				.append("\",\"url\":\"").append(files[i].url()).append("\"}");
+		}
+		index.append("]}");
+
+		final var tgz = new ByteArrayOutputStream();
+		try (final var tar = new TarArchiveOutputStream(new GzipCompressorOutputStream(tgz))) {
+			addEntry(tar, "package/package.json", manifest.toString().getBytes(StandardCharsets.UTF_8));
+			addEntry(tar, "package/.index.json", index.toString().getBytes(StandardCharsets.UTF_8));
+			for (final PackageFile file : files) {
+				addEntry(tar, "package/" + file.name(), file.content());
+			}
+		}
+		return NpmPackage.fromPackage(new ByteArrayInputStream(tgz.toByteArray()));
+	}
+
+	private static PackageFile valueSet(final String id,
+										 final String name) {
+		final String json = "{\"resourceType\":\"ValueSet\",\"id\":\"" + id + "\",\"url\":\"" + VS_URL + id
+			+ "\",\"name\":\"" + name + "\",\"status\":\"active\"}";
+		return new PackageFile("ValueSet-" + id + ".json", "ValueSet", id, VS_URL + id,
+									  json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static PackageFile codeSystem(final String id) {
+		final String json = "{\"resourceType\":\"CodeSystem\",\"id\":\"" + id + "\",\"url\":\"" + CS_URL + id
+			+ "\",\"status\":\"active\",\"content\":\"complete\",\"concept\":[{\"code\":\"a\"}]}";
+		return new PackageFile("CodeSystem-" + id + ".json", "CodeSystem", id, CS_URL + id,
+									  json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static void addEntry(final TarArchiveOutputStream tar,
+										  final String name,
+										  final byte[] content) throws IOException {
+		final var entry = new TarArchiveEntry(name);
+		entry.setSize(content.length);
+		tar.putArchiveEntry(entry);
+		tar.write(content);
+		tar.closeArchiveEntry();
+	}
+
+	private record PackageFile(String name, String type, String id, String url, byte[] content) {
+	}
+}
@@ -0,0 +1,204 @@
+package ch.ahdis.matchbox.terminology;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import ch.ahdis.matchbox.engine.BatchCodeValidationClient;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.convertors.factory.VersionConvertorFactory_40_50;
+import org.hl7.fhir.r5.context.BaseWorkerContext;
+import org.hl7.fhir.r5.model.Bundle;
+import org.hl7.fhir.r5.model.CapabilityStatement;
+import org.hl7.fhir.r5.model.Parameters;
+import org.hl7.fhir.r5.terminologies.client.ITerminologyClient;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ch.ahdis.matchbox.terminology.ValueSetCodeValidationProviderTest.newCoding;
+import static ch.ahdis.matchbox.terminology.ValueSetCodeValidationProviderTest.newRequest;
+import static ch.ahdis.matchbox.terminology.ValueSetCodeValidationProviderTest.newValueSet;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests of the ValueSet/$batch-validate-code operation, and of its use by the validation engines.
+ */
+class BatchCodeValidationTest {
+
+	private static final FhirContext FHIR_CONTEXT = FhirVersionEnum.R4.newContextCached();
+
+	private static final int BATCH_SIZE = 50;
+
+	private ValueSetCodeValidationProvider provider;
+
+	@BeforeEach
+	void setUp() {
+		final var properties = new MatchboxFhirContextProperties();
+		properties.setBatchValidationThreads(4);
+		this.provider = new ValueSetCodeValidationProvider(FHIR_CONTEXT, properties,
+																			mock(PrecomputedExpansionStore.class));
+	}
+
+	@Test
+	void testResponsesAreInRequestOrder() {
+		final var request = new org.hl7.fhir.r4.model.Parameters();
+		for (int i = 0; i < BATCH_SIZE; ++i) {
+			request.addParameter().setName("validation").setResource(newRequest(newCoding(codeOf(i)), "cache", newValueSet()));
+		}
+
+		final var response = assertInstanceOf(org.hl7.fhir.r4.model.Parameters.class,
+														  this.provider.batchValidateCode(request, mock(HttpServletResponse.class)));
+
+		assertEquals(BATCH_SIZE, response.getParameter().size());
+		for (int i = 0; i < BATCH_SIZE; ++i) {
+			final var validation = (org.hl7.fhir.r4.model.Parameters) response.getParameter().get(i).getResource();
+			assertEquals(i % 3 != 2, validation.getParameterBool("result"), "validation " + i);
+			assertEquals(codeOf(i), validation.getParameterValue("code").primitiveValue(), "validation " + i);
+		}
+	}
+
+	@Test
+	void testInvalidValidationParameter() {
+		final var request = new org.hl7.fhir.r4.model.Parameters();
+		request.addParameter().setName("validation").setResource(new org.hl7.fhir.r4.model.Patient());
+		final var servletResponse = mock(HttpServletResponse.class);
+
+		final var response = this.provider.batchValidateCode(request, servletResponse);
+
+		assertInstanceOf(org.hl7.fhir.r5.model.OperationOutcome.class, response);
+		verify(servletResponse).setStatus(422);
+	}
+
+	@Test
+	void testClientUsesTheOperation() {
+		final ITerminologyClient client = mockClient(true);
+		final var batchClient = new BatchCodeValidationClient(terminologyClient -> this::callOperation);
+
+		final Bundle response = batchClient.apply(client, newBatch());
+
+		assertNotNull(response);
+		assertEquals(Bundle.BundleType.BATCHRESPONSE, response.getType());
+		assertEquals(BATCH_SIZE, response.getEntry().size());
+		for (int i = 0; i < BATCH_SIZE; ++i) {
+			final var validation = (Parameters) response.getEntry().get(i).getResource();
+			assertEquals(i % 3 != 2, validation.getParameterBool("result"), "validation " + i);
+			assertEquals(codeOf(i), validation.getParameterValue("code").primitiveValue(), "validation " + i);
+		}
+
+		// the capability statement is only requested once
+		batchClient.apply(client, newBatch());
+		verify(client, times(1)).getCapabilitiesStatement();
+	}
+
+	@Test
+	void testClientSkipsUnsupportedServers() {
+		final ITerminologyClient client = mockClient(false);
+		final var operationCalls = new AtomicInteger();
+		final var batchClient = new BatchCodeValidationClient(terminologyClient -> request -> {
+			operationCalls.incrementAndGet();
+			return this.callOperation(request);
+		});
+
+		assertNull(batchClient.apply(client, newBatch()));
+		assertNull(batchClient.apply(client, newBatch()));
+
+		assertEquals(0, operationCalls.get());
+		verify(client, times(1)).getCapabilitiesStatement();
+	}
+
+	@Test
+	void testClientSkipsOtherRequests() {
+		final ITerminologyClient client = mockClient(true);
+		final var batchClient = new BatchCodeValidationClient(terminologyClient -> this::callOperation);
+		final Bundle batch = newBatch();
+		batch.getEntry().get(3).getRequest().setUrl("CodeSystem/$validate-code");
+
+		assertNull(batchClient.apply(client, batch));
+		verify(client, never()).getCapabilitiesStatement();
+	}
+
+	@Test
+	void testFallbackToBatchBundle() {
+		final Bundle batchResponse = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+
+		// the operation fails
+		ITerminologyClient client = mockClient(true);
+		when(client.validateBatch(any())).thenReturn(batchResponse);
+		var batchClient = new BatchCodeValidationClient(terminologyClient -> request -> {
+			throw new IllegalStateException("HTTP 500");
+		});
+		assertSame(batchResponse, BaseWorkerContext.validateBatch(batchClient, client, newBatch()));
+		verify(client).validateBatch(any());
+
+		// the operation returns a response per code, except one
+		client = mockClient(true);
+		when(client.validateBatch(any())).thenReturn(batchResponse);
+		batchClient = new BatchCodeValidationClient(terminologyClient -> request -> {
+			final Parameters response = this.callOperation(request);
+			response.getParameter().removeLast();
+			return response;
+		});
+		assertSame(batchResponse, BaseWorkerContext.validateBatch(batchClient, client, newBatch()));
+		verify(client).validateBatch(any());
+
+		// the operation is used
+		client = mockClient(true);
+		batchClient = new BatchCodeValidationClient(terminologyClient -> this::callOperation);
+		final Bundle response = BaseWorkerContext.validateBatch(batchClient, client, newBatch());
+		assertNotSame(batchResponse, response);
+		assertEquals(BATCH_SIZE, response.getEntry().size());
+		verify(client, never()).validateBatch(any());
+
+		// without batch code validation, the batch is sent as usual
+		client = mockClient(true);
+		when(client.validateBatch(any())).thenReturn(batchResponse);
+		assertSame(batchResponse, BaseWorkerContext.validateBatch(null, client, newBatch()));
+	}
+
+	/**
+	 * Calls the operation as a terminology server would, with the request converted to R4.
+	 */
+	private Parameters callOperation(final Parameters request) {
+		final var requestR4 = (org.hl7.fhir.r4.model.Parameters) VersionConvertorFactory_40_50.convertResource(request);
+		final var responseR4 = (org.hl7.fhir.r4.model.Parameters) this.provider.batchValidateCode(requestR4,
+																															  mock(HttpServletResponse.class));
+		return (Parameters) VersionConvertorFactory_40_50.convertResource(responseR4);
+	}
+
+	private static Bundle newBatch() {
+		final var batch = new Bundle().setType(Bundle.BundleType.BATCH);
+		for (int i = 0; i < BATCH_SIZE; ++i) {
+			final var request = (Parameters) VersionConvertorFactory_40_50.convertResource(
+				newRequest(newCoding(codeOf(i)), "cache", newValueSet()));
+			batch.addEntry().setResource(request).getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("ValueSet/$validate-code");
+		}
+		return batch;
+	}
+
+	private static ITerminologyClient mockClient(final boolean supportsOperation) {
+		final ITerminologyClient client = mock(ITerminologyClient.class);
+		when(client.getAddress()).thenReturn("http://tx.example.org/" + System.nanoTime());
+		final var capabilityStatement = new CapabilityStatement();
+		final var resource = capabilityStatement.addRest().addResource().setType("ValueSet");
+		if (supportsOperation) {
+			resource.addOperation().setName(BatchCodeValidationClient.OPERATION_NAME);
+		}
+		when(client.getCapabilitiesStatement()).thenReturn(capabilityStatement);
+		return client;
+	}
+
+	/**
+	 * Every third code is not in the value set.
+	 */
+	private static String codeOf(final int i) {
+		return switch (i % 3) {
+			case 0 -> "a";
+			case 1 -> "b";
+			default -> "unknown-" + i;
+		};
+	}
+}
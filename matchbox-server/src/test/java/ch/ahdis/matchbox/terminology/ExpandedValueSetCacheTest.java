@@ -0,0 +1,149 @@
+package ch.ahdis.matchbox.terminology;
+
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ch.ahdis.matchbox.terminology.ExpandedValueSetIndexTest.newValueSet;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpandedValueSetCacheTest {
+
+	private static final String SYSTEM = "http://example.org/system";
+
+	private static final long ONE_MB = 1024 * 1024;
+
+	private final AtomicLong now = new AtomicLong(1_000_000);
+
+	@Test
+	void testHitAndMiss() {
+		final var cache = this.newCache(0);
+		final var index = newIndex("a", 10);
+
+		assertSame(index, cache.put("id1", "http://example.org/ValueSet/a", index));
+
+		assertSame(index, cache.get("id1", "http://example.org/ValueSet/a"));
+		// the indices are cached per cache ID
+		assertNull(cache.get("id2", "http://example.org/ValueSet/a"));
+		assertNull(cache.get(null, "http://example.org/ValueSet/a"));
+		assertNull(cache.get("id1", "http://example.org/ValueSet/b"));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(3, cache.getMissCount());
+	}
+
+	@Test
+	void testIdenticalExpansionsAreShared() {
+		final var cache = this.newCache(0);
+		final var first = newIndex("a", 10);
+		final var second = newIndex("a", 10);
+
+		cache.put("id1", "http://example.org/ValueSet/a", first);
+		// the identical expansion of another value set, in another cache ID, reuses the cached index
+		assertSame(first, cache.put("id2", "http://example.org/ValueSet/b", second));
+
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getIndexCount());
+		assertEquals(first.getEstimatedSize(), cache.getEstimatedSize());
+
+		// the index is kept while a cache ID refers to it
+		cache.put("id1", "http://example.org/ValueSet/a", newIndex("other", 10));
+		assertEquals(2, cache.getIndexCount());
+		cache.put("id2", "http://example.org/ValueSet/b", newIndex("other", 10));
+		assertEquals(1, cache.getIndexCount());
+		assertEquals(newIndex("other", 10).getEstimatedSize(), cache.getEstimatedSize());
+	}
+
+	@Test
+	void testExpiration() {
+		final var cache = this.newCache(0);
+		cache.put("id1", "http://example.org/ValueSet/a", newIndex("a", 10));
+		this.now.addAndGet(TimeUnit.MINUTES.toMillis(3));
+		cache.put("id2", "http://example.org/ValueSet/b", newIndex("b", 10));
+
+		// the use of a cache ID extends its time to live
+		this.now.addAndGet(TimeUnit.MINUTES.toMillis(1));
+		assertNotNull(cache.get("id1", "http://example.org/ValueSet/a"));
+		this.now.addAndGet(TimeUnit.MINUTES.toMillis(4));
+
+		assertNotNull(cache.get("id1", "http://example.org/ValueSet/a"));
+		assertNull(cache.get("id2", "http://example.org/ValueSet/b"));
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getIndexCount());
+
+		this.now.addAndGet(TimeUnit.MINUTES.toMillis(5));
+		assertNull(cache.get("id1", "http://example.org/ValueSet/a"));
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getIndexCount());
+		assertEquals(0, cache.getEstimatedSize());
+	}
+
+	@Test
+	void testEviction() {
+		final var cache = this.newCache(1);
+		final var a = newIndex("a", 7000);
+		final var b = newIndex("b", 7000);
+		final var c = newIndex("c", 7000);
+		assertTrue(a.getEstimatedSize() + b.getEstimatedSize() <= ONE_MB);
+		assertTrue(a.getEstimatedSize() + b.getEstimatedSize() + c.getEstimatedSize() > ONE_MB);
+
+		cache.put("id1", "http://example.org/ValueSet/a", a);
+		cache.put("id2", "http://example.org/ValueSet/b", b);
+		// 'id1' is now the most recently used cache ID
+		assertNotNull(cache.get("id1", "http://example.org/ValueSet/a"));
+		cache.put("id3", "http://example.org/ValueSet/c", c);
+
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get("id1", "http://example.org/ValueSet/a"));
+		assertNull(cache.get("id2", "http://example.org/ValueSet/b"));
+		assertNotNull(cache.get("id3", "http://example.org/ValueSet/c"));
+		assertEquals(a.getEstimatedSize() + c.getEstimatedSize(), cache.getEstimatedSize());
+	}
+
+	@Test
+	void testCurrentCacheIdIsNotEvicted() {
+		final var cache = this.newCache(1);
+		final var a = newIndex("a", 7000);
+		final var b = newIndex("b", 7000);
+		final var c = newIndex("c", 7000);
+
+		cache.put("id1", "http://example.org/ValueSet/a", a);
+		cache.put("id1", "http://example.org/ValueSet/b", b);
+		cache.put("id1", "http://example.org/ValueSet/c", c);
+
+		// the limit is exceeded, but the only cache ID is the one in use
+		assertEquals(1, cache.size());
+		assertEquals(3, cache.getIndexCount());
+		assertNotNull(cache.get("id1", "http://example.org/ValueSet/a"));
+	}
+
+	@Test
+	void testTooLargeIndexIsNotCached() {
+		final var cache = this.newCache(1);
+		final var index = newIndex("a", 30_000);
+		assertTrue(index.getEstimatedSize() > ONE_MB);
+
+		assertSame(index, cache.put("id1", "http://example.org/ValueSet/a", index));
+
+		assertNull(cache.get("id1", "http://example.org/ValueSet/a"));
+		assertEquals(0, cache.getIndexCount());
+		assertEquals(0, cache.getEstimatedSize());
+	}
+
+	private ExpandedValueSetCache newCache(final long maxSizeMb) {
+		final var config = new MatchboxFhirContextProperties.ExpansionCache();
+		config.setTimeToLiveMinutes(5);
+		config.setMaxSizeMb(maxSizeMb);
+		return new ExpandedValueSetCache(config, this.now::get);
+	}
+
+	private static ExpandedValueSetIndex newIndex(final String prefix,
+																 final int codes) {
+		final var valueSet = newValueSet(SYSTEM);
+		for (int i = 0; i < codes; ++i) {
+			valueSet.getExpansion().addContains().setSystem(SYSTEM).setCode(prefix + "-" + i);
+		}
+		return new ExpandedValueSetIndex(valueSet);
+	}
+}
@@ -0,0 +1,100 @@
+package ch.ahdis.matchbox.terminology;
+
+import org.hl7.fhir.r5.model.ValueSet;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExpandedValueSetIndexTest {
+
+	private static final String SYSTEM = "http://example.org/system";
+
+	private static final String OTHER_SYSTEM = "http://example.org/other";
+
+	@Test
+	void testContains() {
+		final var valueSet = newValueSet(SYSTEM);
+		valueSet.getExpansion().addContains().setSystem(SYSTEM).setCode("a");
+		final var parent = valueSet.getExpansion().addContains().setSystem(SYSTEM).setCode("b");
+		// the nested codes are indexed
+		parent.addContains().setSystem(OTHER_SYSTEM).setCode("c");
+		// an abstract grouping without code is ignored
+		valueSet.getExpansion().addContains().setDisplay("group").addContains().setCode("d");
+
+		final var index = new ExpandedValueSetIndex(valueSet);
+
+		assertEquals(4, index.size());
+		assertFalse(index.isEmpty());
+		assertEquals(SYSTEM, index.getFirstIncludedSystem());
+		assertTrue(index.contains(SYSTEM, "a"));
+		assertTrue(index.contains(SYSTEM, "b"));
+		assertTrue(index.contains(OTHER_SYSTEM, "c"));
+		assertTrue(index.contains(null, "d"));
+		// the codes are checked per system
+		assertFalse(index.contains(OTHER_SYSTEM, "a"));
+		assertFalse(index.contains(SYSTEM, "c"));
+		assertFalse(index.contains(SYSTEM, "d"));
+		assertFalse(index.contains(SYSTEM, "unknown"));
+		assertFalse(index.contains(SYSTEM, null));
+		assertFalse(index.contains("http://example.org/unknown", "a"));
+		assertEquals(4, index.getHitCount());
+		assertEquals(6, index.getMissCount());
+	}
+
+	@Test
+	void testManyCodes() {
+		// the code sets are resized while the expansion is indexed
+		final var valueSet = newValueSet(SYSTEM);
+		for (int i = 0; i < 10_000; ++i) {
+			valueSet.getExpansion().addContains().setSystem(SYSTEM).setCode("code-" + i);
+		}
+		// the duplicates are only counted once
+		valueSet.getExpansion().addContains().setSystem(SYSTEM).setCode("code-0");
+
+		final var index = new ExpandedValueSetIndex(valueSet);
+
+		assertEquals(10_000, index.size());
+		for (int i = 0; i < 10_000; ++i) {
+			assertTrue(index.contains(SYSTEM, "code-" + i));
+		}
+		assertFalse(index.contains(SYSTEM, "code-10000"));
+		assertTrue(index.getEstimatedSize() > 10_000L * 40);
+	}
+
+	@Test
+	void testEmptyExpansion() {
+		final var index = new ExpandedValueSetIndex(new ValueSet());
+
+		assertTrue(index.isEmpty());
+		assertNull(index.getFirstIncludedSystem());
+		assertFalse(index.contains(SYSTEM, "a"));
+	}
+
+	@Test
+	void testContentHash() {
+		final var first = newValueSet(SYSTEM);
+		first.setUrl("http://example.org/ValueSet/first");
+		first.getExpansion().addContains().setSystem(SYSTEM).setCode("a");
+		final var second = newValueSet(SYSTEM);
+		second.setUrl("http://example.org/ValueSet/second");
+		second.getExpansion().addContains().setSystem(SYSTEM).setCode("a");
+		final var otherCode = newValueSet(SYSTEM);
+		otherCode.getExpansion().addContains().setSystem(SYSTEM).setCode("b");
+		final var otherIncludedSystem = newValueSet(OTHER_SYSTEM);
+		otherIncludedSystem.getExpansion().addContains().setSystem(SYSTEM).setCode("a");
+
+		final String hash = new ExpandedValueSetIndex(first).getContentHash();
+
+		// the identical expansions of different value sets have the same hash
+		assertEquals(hash, new ExpandedValueSetIndex(second).getContentHash());
+		assertNotEquals(hash, new ExpandedValueSetIndex(otherCode).getContentHash());
+		// the first included system is used to infer the missing systems, it is part of the content
+		assertNotEquals(hash, new ExpandedValueSetIndex(otherIncludedSystem).getContentHash());
+	}
+
+	static ValueSet newValueSet(final String includedSystem) {
+		final var valueSet = new ValueSet();
+		valueSet.getCompose().addInclude().setSystem(includedSystem);
+		return valueSet;
+	}
+}
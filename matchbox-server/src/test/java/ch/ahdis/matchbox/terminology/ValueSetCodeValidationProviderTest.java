@@ -0,0 +1,136 @@
+package ch.ahdis.matchbox.terminology;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import ch.ahdis.matchbox.engine.PrecomputedExpansionStore;
+import jakarta.servlet.http.HttpServletResponse;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the ValueSet/$validate-code operation, with the indices of the expanded value sets cached per cache ID.
+ */
+class ValueSetCodeValidationProviderTest {
+
+	private static final FhirContext FHIR_CONTEXT = FhirVersionEnum.R4.newContextCached();
+
+	private static final String SYSTEM = "http://example.org/system";
+
+	private static final String VS_URL = "http://example.org/ValueSet/example";
+
+	private static final String PRECOMPUTED_VS_URL = "http://example.org/ValueSet/precomputed";
+
+	private PrecomputedExpansionStore precomputedExpansionStore;
+
+	private ValueSetCodeValidationProvider provider;
+
+	@BeforeEach
+	void setUp() {
+		this.precomputedExpansionStore = mock(PrecomputedExpansionStore.class);
+		this.provider = new ValueSetCodeValidationProvider(FHIR_CONTEXT, new MatchboxFhirContextProperties(),
+																			this.precomputedExpansionStore);
+	}
+
+	@Test
+	void testValueSetIsExpandedAndIndexed() {
+		assertResult(true, this.validateCode(newCoding("a"), "cache", newValueSet()));
+		assertResult(false, this.validateCode(newCoding("unknown"), "cache", newValueSet()));
+		assertResult(false, this.validateCode(new Coding("http://example.org/other", "a", null), "cache",
+														  newValueSet()));
+	}
+
+	@Test
+	void testIndexIsReusedByUrl() {
+		// the value set is only sent once, then it is referenced by its URL in the same cache ID
+		assertResult(true, this.validateCode(newCoding("a"), "cache", newValueSet()));
+
+		assertResult(true, this.validateCode(newCoding("b"), "cache", null));
+		assertResult(false, this.validateCode(newCoding("unknown"), "cache", null));
+	}
+
+	@Test
+	void testUnknownValueSetIsAccepted() {
+		assertResult(true, this.validateCode(newCoding("a"), "cache", newValueSet()));
+
+		// the index is not shared with other cache IDs, nor with requests without cache ID
+		assertResult(true, this.validateCode(newCoding("unknown"), "other", null));
+		assertResult(true, this.validateCode(newCoding("unknown"), null, null));
+	}
+
+	@Test
+	void testInferSystem() {
+		final Parameters request = newRequest(new Coding(null, "a", null), "cache", newValueSet());
+		assertResult(false, this.provider.validateCode(request, mock(HttpServletResponse.class)));
+
+		request.addParameter("inferSystem", true);
+		assertResult(true, this.provider.validateCode(request, mock(HttpServletResponse.class)));
+	}
+
+	@Test
+	void testPrecomputedExpansionIsIndexed() {
+		final var precomputed = new org.hl7.fhir.r5.model.ValueSet();
+		precomputed.setUrl(PRECOMPUTED_VS_URL);
+		precomputed.getCompose().addInclude().setSystem(SYSTEM);
+		precomputed.getExpansion().addContains().setSystem(SYSTEM).setCode("p");
+		when(this.precomputedExpansionStore.getExpansion(eq(PRECOMPUTED_VS_URL), any())).thenReturn(precomputed);
+
+		final Parameters request = newRequest(newCoding("p"), "cache", null);
+		request.setParameter("url", PRECOMPUTED_VS_URL);
+		assertResult(true, this.provider.validateCode(request, mock(HttpServletResponse.class)));
+
+		request.setParameter("coding", newCoding("a"));
+		assertResult(false, this.provider.validateCode(request, mock(HttpServletResponse.class)));
+	}
+
+	private Object validateCode(final Coding coding,
+										 final String cacheId,
+										 final ValueSet valueSet) {
+		return this.provider.validateCode(newRequest(coding, cacheId, valueSet), mock(HttpServletResponse.class));
+	}
+
+	static Parameters newRequest(final Coding coding,
+										  final String cacheId,
+										  final ValueSet valueSet) {
+		final var request = new Parameters();
+		request.addParameter("coding", coding);
+		if (cacheId != null) {
+			request.addParameter("cache-id", cacheId);
+		}
+		if (valueSet != null) {
+			request.addParameter().setName("valueSet").setResource(valueSet);
+		} else {
+			request.addParameter("url", VS_URL);
+		}
+		return request;
+	}
+
+	static ValueSet newValueSet() {
+		final var valueSet = new ValueSet();
+		valueSet.setUrl(VS_URL);
+		valueSet.setStatus(org.hl7.fhir.r4.model.Enumerations.PublicationStatus.ACTIVE);
+		final var include = valueSet.getCompose().addInclude().setSystem(SYSTEM);
+		include.addConcept().setCode("a");
+		include.addConcept().setCode("b");
+		return valueSet;
+	}
+
+	static Coding newCoding(final String code) {
+		return new Coding(SYSTEM, code, null);
+	}
+
+	static void assertResult(final boolean expected,
+									 final Object response) {
+		final var parameters = assertInstanceOf(org.hl7.fhir.r5.model.Parameters.class, response);
+		assertEquals(expected, parameters.getParameterBool("result"));
+	}
+}
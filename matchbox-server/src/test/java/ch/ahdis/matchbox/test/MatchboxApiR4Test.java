@@ -9,12 +9,15 @@ import ch.ahdis.matchbox.validation.gazelle.models.validation.ValidationItem;
 import ch.ahdis.matchbox.validation.gazelle.models.validation.ValidationReport;
 import ch.ahdis.matchbox.validation.gazelle.models.validation.ValidationRequest;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 import org.hl7.fhir.instance.model.api.*;
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Patient;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestInstance;
@@ -33,6 +36,7 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -268,6 +272,86 @@ class MatchboxApiR4Test {
 		assertEquals(0, getValidationFailures(report));
 	}
 
+	@Test
+	void validateStreamedContent() throws Exception {
+		// the streamed body is hashed while it is validated, the hash of the content and profile is the outcome id
+		final String patient = "{\"resourceType\":\"Patient\",\"id\":\"streamed\"}";
+		final String profile = "http://hl7.org/fhir/StructureDefinition/Patient";
+		final var digest = MessageDigest.getInstance("SHA3-256");
+		digest.update(patient.getBytes(StandardCharsets.UTF_8));
+		digest.update(profile.getBytes(StandardCharsets.UTF_8));
+
+		final var request = HttpRequest.newBuilder(new URI(TARGET_SERVER + "/fhir/$validate?profile=" + profile))
+			.POST(HttpRequest.BodyPublishers.ofString(patient))
+			.header("Content-Type", "application/fhir+json")
+			.build();
+		final var response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+		final var outcome = (OperationOutcome) FHIR_CONTEXT.newJsonParser().parseResource(response.body());
+
+		assertEquals(0, getValidationFailures(outcome));
+		assertEquals(Hex.encodeHexString(digest.digest()),
+						 outcome.getIdElement().getIdPart());
+	}
+
+	@Test
+	void validateBatchBundle() throws Exception {
+		final var bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+		for (int i = 0; i < 50; ++i) {
+			bundle.addEntry().setResource(createBatchPatient(i));
+		}
+		final HttpRequest request = HttpRequest.newBuilder(new URI(TARGET_SERVER + "/fhir/$validate-batch?profile=http://hl7.org/fhir/StructureDefinition/Patient"))
+			.POST(HttpRequest.BodyPublishers.ofString(FHIR_CONTEXT.newJsonParser().encodeResourceToString(bundle)))
+			.header("Content-Type", "application/fhir+json")
+			.build();
+		final var response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, response.statusCode());
+
+		// the OperationOutcomes are returned in the order of the entries
+		final var outcomes = (Bundle) FHIR_CONTEXT.newJsonParser().parseResource(response.body());
+		assertEquals(Bundle.BundleType.COLLECTION, outcomes.getType());
+		assertEquals(50, outcomes.getEntry().size());
+		for (int i = 0; i < 50; ++i) {
+			final var outcome = (OperationOutcome) outcomes.getEntry().get(i).getResource();
+			assertEquals(i % 2 == 0, getValidationFailures(outcome) == 0, "entry " + i);
+		}
+	}
+
+	@Test
+	void validateBatchNdjson() throws Exception {
+		final var parser = FHIR_CONTEXT.newJsonParser().setPrettyPrint(false);
+		final var content = new StringBuilder();
+		for (int i = 0; i < 50; ++i) {
+			content.append(parser.encodeResourceToString(createBatchPatient(i))).append('\n');
+		}
+		final HttpRequest request = HttpRequest.newBuilder(new URI(TARGET_SERVER + "/fhir/$validate-batch?profile=http://hl7.org/fhir/StructureDefinition/Patient"))
+			.POST(HttpRequest.BodyPublishers.ofString(content.toString()))
+			.header("Content-Type", "application/fhir+ndjson")
+			.build();
+		final var response = this.httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+		assertEquals(200, response.statusCode());
+
+		// one OperationOutcome per line, in the order of the request
+		final List<String> lines = response.body().lines().filter(line -> !line.isBlank()).toList();
+		assertEquals(50, lines.size());
+		for (int i = 0; i < 50; ++i) {
+			final var outcome = (OperationOutcome) parser.parseResource(lines.get(i));
+			assertEquals(i % 2 == 0, getValidationFailures(outcome) == 0, "line " + i);
+		}
+	}
+
+	/**
+	 * Creates a Patient for the batch validations, the odd ones are invalid (cpt-2: a telecom value without system).
+	 */
+	private static Patient createBatchPatient(final int i) {
+		final var patient = new Patient();
+		patient.setId("batch-" + i);
+		patient.addName().setFamily("Family " + i);
+		if (i % 2 != 0) {
+			patient.addTelecom().setValue("+41 00 000 00 00");
+		}
+		return patient;
+	}
+
 	private String getContent(String resourceName) throws IOException {
 		Resource resource = new ClassPathResource(resourceName);
 		File file = resource.getFile();
@@ -0,0 +1,125 @@
+package ch.ahdis.matchbox.util;
+
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties.EvictionPolicy;
+import org.hl7.fhir.validation.ValidationEngine;
+import org.junit.jupiter.api.Test;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+class EngineSessionCacheTest {
+
+	private static final long MB = 1024 * 1024;
+
+	private final Map<ValidationEngine, Long> sizes = new IdentityHashMap<>();
+
+	@Test
+	void testDefaultsAreBounded() {
+		final var config = new MatchboxFhirContextProperties.EngineCache();
+		assertTrue(config.getMaxEngines() > 0);
+		assertTrue(config.getMaxSizeMb() > 0);
+	}
+
+	@Test
+	void testHitsAndMisses() {
+		final var cache = this.newCache(0, 0, EvictionPolicy.LRU);
+		final ValidationEngine engine = this.newEngine(MB);
+		final String sessionId = cache.cacheSession(engine);
+
+		assertSame(engine, cache.fetchSessionValidatorEngine(sessionId));
+		assertNull(cache.fetchSessionValidatorEngine("unknown"));
+		assertEquals(sessionId, cache.getSessionId(engine));
+
+		final var statistics = cache.getStatistics();
+		assertEquals(1, statistics.getSize());
+		assertEquals(MB, statistics.getEstimatedSizeBytes());
+		assertEquals(1, statistics.getHitCount());
+		assertEquals(1, statistics.getMissCount());
+		assertEquals(0, statistics.getEvictionCount());
+	}
+
+	@Test
+	void testEvictionByCount() throws Exception {
+		final var cache = this.newCache(2, 0, EvictionPolicy.LRU);
+		cache.cacheSession("a", this.newEngine(MB));
+		Thread.sleep(5);
+		cache.cacheSession("b", this.newEngine(MB));
+		Thread.sleep(5);
+		// 'a' is now the most recently used engine
+		cache.fetchSessionValidatorEngine("a");
+		Thread.sleep(5);
+		cache.cacheSession("c", this.newEngine(MB));
+
+		assertTrue(cache.sessionExists("a"));
+		assertFalse(cache.sessionExists("b"));
+		assertTrue(cache.sessionExists("c"));
+		assertEquals(1, cache.getStatistics().getEvictionCount());
+	}
+
+	@Test
+	void testEvictionBySize() {
+		final var cache = this.newCache(0, 10, EvictionPolicy.LRU);
+		cache.cacheSession("a", this.newEngine(4 * MB));
+		cache.cacheSession("b", this.newEngine(4 * MB));
+		assertEquals(2, cache.getStatistics().getSize());
+
+		cache.cacheSession("c", this.newEngine(4 * MB));
+		final var statistics = cache.getStatistics();
+		assertEquals(2, statistics.getSize());
+		assertEquals(8 * MB, statistics.getEstimatedSizeBytes());
+		assertEquals(1, statistics.getEvictionCount());
+	}
+
+	@Test
+	void testLfuEvictsTheLeastFrequentlyUsedEngine() {
+		final var cache = this.newCache(3, 0, EvictionPolicy.LFU);
+		cache.cacheSession("a", this.newEngine(4 * MB));
+		cache.cacheSession("b", this.newEngine(4 * MB));
+		cache.cacheSession("c", this.newEngine(4 * MB));
+		cache.fetchSessionValidatorEngine("a");
+		cache.fetchSessionValidatorEngine("a");
+		cache.fetchSessionValidatorEngine("c");
+		// The new engine has no hits either, but it's smaller
+		cache.cacheSession("d", this.newEngine(MB));
+
+		assertTrue(cache.sessionExists("a"));
+		assertFalse(cache.sessionExists("b"));
+		assertTrue(cache.sessionExists("c"));
+		assertTrue(cache.sessionExists("d"));
+	}
+
+	@Test
+	void testPinnedEnginesAreNeverEvicted() {
+		final var cache = this.newCache(1, 1, EvictionPolicy.LRU);
+		final ValidationEngine pinned = this.newEngine(100 * MB);
+		cache.cacheSessionForEver("pinned", pinned);
+		cache.cacheSession("a", this.newEngine(MB));
+
+		assertSame(pinned, cache.fetchSessionValidatorEngine("pinned"));
+		assertFalse(cache.sessionExists("a"));
+		final var statistics = cache.getStatistics();
+		assertEquals(1, statistics.getSize());
+		assertEquals(1, statistics.getPinnedSize());
+		assertEquals(1, statistics.getEvictionCount());
+	}
+
+	private EngineSessionCache newCache(final int maxEngines,
+													final long maxSizeMb,
+													final EvictionPolicy evictionPolicy) {
+		final var config = new MatchboxFhirContextProperties.EngineCache();
+		config.setMaxEngines(maxEngines);
+		config.setMaxSizeMb(maxSizeMb);
+		config.setEvictionPolicy(evictionPolicy);
+		return new EngineSessionCache(config, engine -> this.sizes.getOrDefault(engine, 0L));
+	}
+
+	private ValidationEngine newEngine(final long size) {
+		final ValidationEngine engine = mock(ValidationEngine.class);
+		this.sizes.put(engine, size);
+		return engine;
+	}
+}
@@ -0,0 +1,182 @@
+package ch.ahdis.matchbox.util;
+
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.dao.data.INpmPackageVersionResourceDao;
+import ca.uhn.fhir.jpa.model.entity.NpmPackageVersionEntity;
+import ca.uhn.fhir.jpa.model.entity.NpmPackageVersionResourceEntity;
+import ca.uhn.fhir.jpa.model.entity.ResourceTable;
+import org.hl7.fhir.r4.model.Binary;
+import org.hl7.fhir.utilities.npm.NpmPackage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests of the update of the StructureDefinition/StructureMap titles after an installation.
+ */
+class MatchboxPackageInstallerImplTest {
+
+	private static final String SD_JSON = """
+		{"resourceType":"StructureDefinition","url":"http://example.org/StructureDefinition/a","name":"A",
+		"title":"Profile A","status":"active","kind":"resource","abstract":false,"type":"Patient"}""";
+
+	private INpmPackageVersionResourceDao resourceDao;
+
+	private Binary binary;
+
+	private MatchboxPackageInstallerImpl installer;
+
+	@BeforeEach
+	void setUp() {
+		this.resourceDao = mock(INpmPackageVersionResourceDao.class);
+		when(this.resourceDao.findByResourceTypeByPackageVersion(any(), any(), any(), any()))
+			.thenReturn(new SliceImpl<>(List.of()));
+		when(this.resourceDao.findUntitledIdsByResourceType(any())).thenReturn(List.of());
+
+		this.binary = new Binary();
+		this.binary.setContentType("application/fhir+json");
+		this.binary.setData(SD_JSON.getBytes(StandardCharsets.UTF_8));
+		final IFhirResourceDao<?> binaryDao = mock(IFhirResourceDao.class);
+		doReturn(this.binary).when(binaryDao).readByPid(any());
+		final DaoRegistry daoRegistry = mock(DaoRegistry.class);
+		doReturn(binaryDao).when(daoRegistry).getResourceDao("Binary");
+
+		this.installer = new MatchboxPackageInstallerImpl();
+		ReflectionTestUtils.setField(this.installer, "myFhirContext", FhirVersionEnum.R4.newContextCached());
+		ReflectionTestUtils.setField(this.installer, "myTxManager", mock(PlatformTransactionManager.class));
+		ReflectionTestUtils.setField(this.installer, "myDaoRegistry", daoRegistry);
+		ReflectionTestUtils.setField(this.installer, "myPackageVersionResourceDao", this.resourceDao);
+	}
+
+	@Test
+	void testTitlesAreUpdatedInPages() {
+		final List<NpmPackageVersionResourceEntity> firstPage = newEntities(500);
+		final List<NpmPackageVersionResourceEntity> secondPage = newEntities(120);
+		when(this.resourceDao.findByResourceTypeByPackageVersion(PageRequest.of(0, 500), "StructureDefinition",
+																					"example.a", "1.0.0"))
+			.thenReturn(new SliceImpl<>(firstPage, PageRequest.of(0, 500), true));
+		when(this.resourceDao.findByResourceTypeByPackageVersion(PageRequest.of(1, 500), "StructureDefinition",
+																					"example.a", "1.0.0"))
+			.thenReturn(new SliceImpl<>(secondPage, PageRequest.of(1, 500), false));
+
+		this.installer.updateTitles(List.of(newPackage("example.a", "1.0.0")));
+
+		// the pages are read until the last one, and each page is saved in a batch
+		verify(this.resourceDao).findByResourceTypeByPackageVersion(PageRequest.of(0, 500), "StructureDefinition",
+																						"example.a", "1.0.0");
+		verify(this.resourceDao).findByResourceTypeByPackageVersion(PageRequest.of(1, 500), "StructureDefinition",
+																						"example.a", "1.0.0");
+		verify(this.resourceDao, never()).findByResourceTypeByPackageVersion(eq(PageRequest.of(2, 500)), any(), any(),
+																									any());
+		assertEquals(List.of(500, 120), this.getSavedPageSizes());
+		for (final var entity : firstPage) {
+			verify(entity).setFilename("Profile A");
+			verify(entity).setCanonicalVersion("1.0.0");
+		}
+		for (final var entity : secondPage) {
+			verify(entity).setFilename("Profile A");
+		}
+	}
+
+	@Test
+	void testTitledEntitiesAreSkipped() {
+		final List<NpmPackageVersionResourceEntity> entities = newEntities(3);
+		when(entities.get(1).getFilename()).thenReturn("Already titled");
+		when(this.resourceDao.findByResourceTypeByPackageVersion(PageRequest.of(0, 500), "StructureDefinition",
+																					"example.a", "1.0.0"))
+			.thenReturn(new SliceImpl<>(entities, PageRequest.of(0, 500), false));
+
+		this.installer.updateTitles(List.of(newPackage("example.a", "1.0.0")));
+
+		assertEquals(List.of(2), this.getSavedPageSizes());
+		verify(entities.get(1), never()).setFilename(any());
+		// the entities of the other packages are not queried at each installation
+		verify(this.resourceDao, never()).findUntitledIdsByResourceType(any());
+	}
+
+	@Test
+	void testUntitledEntitiesOfOtherPackagesAreUpdated() {
+		// e.g. the entities of a package that has been installed without this installer
+		final List<Long> ids = new ArrayList<>();
+		for (long id = 1; id <= 501; ++id) {
+			ids.add(id);
+		}
+		final List<NpmPackageVersionResourceEntity> firstPage = newEntities(500);
+		final List<NpmPackageVersionResourceEntity> secondPage = newEntities(1);
+		when(this.resourceDao.findUntitledIdsByResourceType("StructureDefinition")).thenReturn(ids);
+		when(this.resourceDao.findAllById(ids.subList(0, 500))).thenReturn(firstPage);
+		when(this.resourceDao.findAllById(ids.subList(500, 501))).thenReturn(secondPage);
+
+		this.installer.updateUntitledTitles();
+
+		verify(this.resourceDao, never()).findByResourceTypeByPackageVersion(any(), any(), any(), any());
+		assertEquals(List.of(500, 1), this.getSavedPageSizes());
+	}
+
+	@Test
+	void testEntitiesWithoutTitleAreNotUntitledAnymore() {
+		// a StructureDefinition without title nor name, and a StructureMap whose resource can't be read
+		final List<NpmPackageVersionResourceEntity> entities = newEntities(2);
+		when(entities.get(0).getCanonicalUrl()).thenReturn("http://example.org/StructureDefinition/a");
+		when(this.resourceDao.findUntitledIdsByResourceType("StructureDefinition")).thenReturn(List.of(1L));
+		when(this.resourceDao.findAllById(List.of(1L))).thenReturn(entities.subList(0, 1));
+		when(this.resourceDao.findUntitledIdsByResourceType("StructureMap")).thenReturn(List.of(2L));
+		when(this.resourceDao.findAllById(List.of(2L))).thenReturn(entities.subList(1, 2));
+		this.binary.setData(SD_JSON.replace("\"name\":\"A\",", "").replace("\"title\":\"Profile A\",", "")
+									  .getBytes(StandardCharsets.UTF_8));
+
+		this.installer.updateUntitledTitles();
+
+		// they are saved with a title that is not null and doesn't end with '.json'
+		assertEquals(List.of(1, 1), this.getSavedPageSizes());
+		verify(entities.get(0)).setFilename("http://example.org/StructureDefinition/a");
+		verify(entities.get(1)).setFilename("");
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Integer> getSavedPageSizes() {
+		final ArgumentCaptor<List<NpmPackageVersionResourceEntity>> captor = ArgumentCaptor.forClass(List.class);
+		verify(this.resourceDao, atLeast(0)).saveAll(captor.capture());
+		return captor.getAllValues().stream().map(List::size).filter(size -> size > 0).toList();
+	}
+
+	private static NpmPackage newPackage(final String name,
+													 final String version) {
+		final NpmPackage npmPackage = mock(NpmPackage.class);
+		when(npmPackage.name()).thenReturn(name);
+		when(npmPackage.version()).thenReturn(version);
+		return npmPackage;
+	}
+
+	private static List<NpmPackageVersionResourceEntity> newEntities(final int count) {
+		final NpmPackageVersionEntity packageVersion = mock(NpmPackageVersionEntity.class);
+		when(packageVersion.getVersionId()).thenReturn("1.0.0");
+		final ResourceTable resourceBinary = mock(ResourceTable.class);
+		when(resourceBinary.getId()).thenReturn(1L);
+		final List<NpmPackageVersionResourceEntity> entities = new ArrayList<>(count);
+		for (int i = 0; i < count; ++i) {
+			final NpmPackageVersionResourceEntity entity = mock(NpmPackageVersionResourceEntity.class);
+			when(entity.getFilename()).thenReturn("StructureDefinition-" + i + ".json");
+			when(entity.getFhirVersion()).thenReturn(FhirVersionEnum.R4);
+			when(entity.getPackageVersion()).thenReturn(packageVersion);
+			when(entity.getResourceBinary()).thenReturn(resourceBinary);
+			entities.add(entity);
+		}
+		return entities;
+	}
+}
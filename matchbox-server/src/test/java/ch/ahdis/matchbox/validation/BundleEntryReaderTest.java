@@ -0,0 +1,90 @@
+package ch.ahdis.matchbox.validation;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.FhirVersionEnum;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BundleEntryReaderTest {
+
+	private static final FhirContext FHIR_CONTEXT = FhirVersionEnum.R4.newContextCached();
+
+	@Test
+	void testJsonEntries() throws Exception {
+		this.assertEntries(EncodingEnum.JSON);
+	}
+
+	@Test
+	void testXmlEntries() throws Exception {
+		this.assertEntries(EncodingEnum.XML);
+	}
+
+	@Test
+	void testNotABundle() {
+		final var patient = new Patient();
+		patient.setId("p1");
+		for (final EncodingEnum encoding : List.of(EncodingEnum.JSON, EncodingEnum.XML)) {
+			final String content = encoding.newParser(FHIR_CONTEXT).encodeResourceToString(patient);
+			assertThrows(DataFormatException.class, () -> this.readEntries(content, encoding));
+		}
+	}
+
+	@Test
+	void testMalformedContent() {
+		assertThrows(DataFormatException.class,
+						 () -> this.readEntries("{\"resourceType\":\"Bundle\",\"entry\":[{\"resource\":", EncodingEnum.JSON));
+		assertThrows(DataFormatException.class,
+						 () -> this.readEntries("<Bundle xmlns=\"http://hl7.org/fhir\"><entry>", EncodingEnum.XML));
+	}
+
+	/**
+	 * Checks that the entry resources are read in document order, and that they can be parsed on their own.
+	 */
+	private void assertEntries(final EncodingEnum encoding) throws IOException {
+		final var bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+		for (int i = 0; i < 20; ++i) {
+			final var patient = new Patient();
+			patient.setId("p" + i);
+			patient.addName().setFamily("Family " + i);
+			patient.getText().setStatus(Narrative.NarrativeStatus.GENERATED).setDivAsString("<div>Patient " + i + "</div>");
+			bundle.addEntry().setFullUrl("http://example.org/Patient/p" + i).setResource(patient);
+			if (i == 10) {
+				// an entry without resource is ignored
+				bundle.addEntry().setFullUrl("http://example.org/Patient/none");
+			}
+		}
+		bundle.addEntry().setResource(new Observation().setStatus(Observation.ObservationStatus.FINAL).setId("o1"));
+		final var parser = encoding.newParser(FHIR_CONTEXT);
+
+		final List<String> entries = this.readEntries(parser.encodeResourceToString(bundle), encoding);
+
+		assertEquals(21, entries.size());
+		for (int i = 0; i < 20; ++i) {
+			final var patient = (Patient) parser.parseResource(entries.get(i));
+			assertEquals("p" + i, patient.getIdElement().getIdPart());
+			assertEquals("Family " + i, patient.getNameFirstRep().getFamily());
+			assertTrue(patient.getText().getDivAsString().contains("Patient " + i));
+		}
+		assertInstanceOf(Observation.class, parser.parseResource(entries.get(20)));
+	}
+
+	private List<String> readEntries(final String content, final EncodingEnum encoding) throws IOException {
+		final List<String> entries = new ArrayList<>();
+		BundleEntryReader.readEntries(new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), encoding,
+												entries::add);
+		return entries;
+	}
+}
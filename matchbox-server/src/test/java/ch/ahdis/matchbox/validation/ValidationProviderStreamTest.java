@@ -0,0 +1,96 @@
+package ch.ahdis.matchbox.validation;
+
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ch.ahdis.matchbox.engine.MatchboxEngine;
+import org.hl7.fhir.r5.elementmodel.Manager.FhirFormat;
+import org.hl7.fhir.utilities.validation.ValidationMessage;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the validation of a content stream, that is handed over to the validator without being read in memory.
+ */
+class ValidationProviderStreamTest {
+
+	private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"example\"}";
+
+	private static final String PROFILE = "http://hl7.org/fhir/StructureDefinition/Patient";
+
+	@Test
+	void testStreamIsHandedOver() throws Exception {
+		final List<String> validated = new ArrayList<>();
+		final MatchboxEngine engine = this.mockEngine(validated);
+		final var content = new ByteArrayInputStream(PATIENT.getBytes(StandardCharsets.UTF_8));
+
+		final List<ValidationMessage> messages = ValidationProvider.doValidate(engine, content, EncodingEnum.JSON,
+																									  PROFILE);
+
+		assertEquals(List.of(PATIENT), validated);
+		assertTrue(messages.isEmpty());
+	}
+
+	@Test
+	void testBomIsSkipped() throws Exception {
+		final List<String> validated = new ArrayList<>();
+		final MatchboxEngine engine = this.mockEngine(validated);
+		final var content = new ByteArrayInputStream(("﻿" + PATIENT).getBytes(StandardCharsets.UTF_8));
+
+		final List<ValidationMessage> messages = ValidationProvider.doValidate(engine, content, EncodingEnum.JSON,
+																									  PROFILE);
+
+		assertEquals(List.of(PATIENT), validated);
+		assertEquals(1, messages.size());
+		assertEquals(ValidationMessage.IssueSeverity.WARNING, messages.get(0).getLevel());
+		assertTrue(messages.get(0).getMessage().contains("BOM"));
+	}
+
+	@Test
+	void testShortContent() throws Exception {
+		// the content is shorter than the BOM
+		final List<String> validated = new ArrayList<>();
+		final MatchboxEngine engine = this.mockEngine(validated);
+
+		ValidationProvider.doValidate(engine, new ByteArrayInputStream(new byte[]{'{', '}'}), EncodingEnum.JSON, PROFILE);
+
+		assertEquals(List.of("{}"), validated);
+	}
+
+	@Test
+	void testReadError() throws Exception {
+		final MatchboxEngine engine = mock(MatchboxEngine.class);
+		when(engine.validate(eq(FhirFormat.XML), any(InputStream.class), eq(PROFILE)))
+			.thenThrow(new IOException("connection reset"));
+
+		final List<ValidationMessage> messages = ValidationProvider.doValidate(engine, "<Patient/>", EncodingEnum.XML,
+																									  PROFILE);
+
+		assertEquals(1, messages.size());
+		assertEquals(ValidationMessage.IssueSeverity.FATAL, messages.get(0).getLevel());
+		assertTrue(messages.get(0).getMessage().contains("connection reset"));
+	}
+
+	/**
+	 * Mocks an engine that reads the validated streams into the given list.
+	 */
+	private MatchboxEngine mockEngine(final List<String> validated) throws Exception {
+		final MatchboxEngine engine = mock(MatchboxEngine.class);
+		when(engine.validate(eq(FhirFormat.JSON), any(InputStream.class), eq(PROFILE))).thenAnswer(invocation -> {
+			final InputStream stream = invocation.getArgument(1);
+			validated.add(new String(stream.readAllBytes(), StandardCharsets.UTF_8));
+			return new ArrayList<ValidationMessage>();
+		});
+		return engine;
+	}
+}
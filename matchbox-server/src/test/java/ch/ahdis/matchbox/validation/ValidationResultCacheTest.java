@@ -0,0 +1,105 @@
+package ch.ahdis.matchbox.validation;
+
+import ch.ahdis.matchbox.CliContext;
+import ch.ahdis.matchbox.config.MatchboxFhirContextProperties;
+import org.hl7.fhir.r5.model.OperationOutcome;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.env.MockEnvironment;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ValidationResultCacheTest {
+
+	private static final CliContext CLI_CONTEXT = newCliContext("example.a#1.0.0", "http://tx.fhir.org");
+
+	@Test
+	void testHitAndMiss() {
+		final var cache = newCache(10);
+		cache.put("hash", CLI_CONTEXT, newOutcome("first"));
+
+		final OperationOutcome cached = cache.get("hash", CLI_CONTEXT);
+		assertNotNull(cached);
+		assertEquals("first", cached.getIssueFirstRep().getDiagnostics());
+		assertNull(cache.get("other", CLI_CONTEXT));
+		assertEquals(1, cache.getHitCount());
+		assertEquals(1, cache.getMissCount());
+	}
+
+	@Test
+	void testCachedPerEngine() {
+		final var cache = newCache(10);
+		cache.put("hash", CLI_CONTEXT, newOutcome("first"));
+
+		// an equal CliContext is the same engine session
+		assertNotNull(cache.get("hash", newCliContext("example.a#1.0.0", "http://tx.fhir.org")));
+		assertNotNull(cache.get("hash", new CliContext(CLI_CONTEXT)));
+		// the configurations that differ are other engine sessions
+		assertNull(cache.get("hash", newCliContext("example.b#1.0.0", "http://tx.fhir.org")));
+		assertNull(cache.get("hash", newCliContext("example.a#1.0.0", "n/a")));
+	}
+
+	@Test
+	void testReturnsCopies() {
+		final var cache = newCache(10);
+		final OperationOutcome outcome = newOutcome("first");
+		cache.put("hash", CLI_CONTEXT, outcome);
+		// the cached result is not modified by the caller of put
+		outcome.getIssueFirstRep().setDiagnostics("modified");
+
+		final OperationOutcome first = cache.get("hash", CLI_CONTEXT);
+		assertNotNull(first);
+		assertEquals("first", first.getIssueFirstRep().getDiagnostics());
+		// nor by the callers of get
+		first.getIssueFirstRep().setDiagnostics("modified");
+		final OperationOutcome second = cache.get("hash", CLI_CONTEXT);
+		assertNotNull(second);
+		assertNotSame(first, second);
+		assertEquals("first", second.getIssueFirstRep().getDiagnostics());
+	}
+
+	@Test
+	void testEviction() {
+		final var cache = newCache(2);
+		cache.put("a", CLI_CONTEXT, newOutcome("a"));
+		cache.put("b", CLI_CONTEXT, newOutcome("b"));
+		// 'a' is now the most recently used entry
+		assertNotNull(cache.get("a", CLI_CONTEXT));
+		cache.put("c", CLI_CONTEXT, newOutcome("c"));
+
+		assertEquals(2, cache.size());
+		assertNotNull(cache.get("a", CLI_CONTEXT));
+		assertNull(cache.get("b", CLI_CONTEXT));
+		assertNotNull(cache.get("c", CLI_CONTEXT));
+
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	void testDisabled() {
+		final var cache = newCache(0);
+		assertFalse(cache.isEnabled());
+		cache.put("hash", CLI_CONTEXT, newOutcome("first"));
+		assertNull(cache.get("hash", CLI_CONTEXT));
+		assertEquals(0, cache.size());
+	}
+
+	private static ValidationResultCache newCache(final int maxEntries) {
+		final var config = new MatchboxFhirContextProperties.ValidationResultCache();
+		config.setMaxEntries(maxEntries);
+		return new ValidationResultCache(config);
+	}
+
+	private static CliContext newCliContext(final String ig, final String txServer) {
+		final var cliContext = new CliContext(new MockEnvironment());
+		cliContext.setIg(ig);
+		cliContext.setTxServer(txServer);
+		return cliContext;
+	}
+
+	private static OperationOutcome newOutcome(final String diagnostics) {
+		final var outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.INFORMATION).setDiagnostics(diagnostics);
+		return outcome;
+	}
+}